@@ -7,12 +7,14 @@ import android.support.v7.app.AppCompatActivity;
 import android.widget.ImageView;
 import android.widget.Toast;
 
+import com.bumptech.glide.DrawableRequestBuilder;
 import com.bumptech.glide.Glide;
 import com.bumptech.glide.load.engine.DiskCacheStrategy;
 
 import java.io.File;
 
 import io.e55.fovea.android.sample.R;
+import io.e55.fovea.android.sdk.camera.lib.capture.CaptureResult;
 
 public class ImageActivity extends AppCompatActivity {
 
@@ -53,11 +55,21 @@ public class ImageActivity extends AppCompatActivity {
                 File imageFile = new File(imagePath);
 
                 if (imageFile.exists()) {
-                    Glide.with(context)
+                    DrawableRequestBuilder<File> request = Glide.with(context)
                             .load(imageFile)
                             .skipMemoryCache(true)
-                            .diskCacheStrategy(DiskCacheStrategy.NONE)
-                            .into(imageView);
+                            .diskCacheStrategy(DiskCacheStrategy.NONE);
+
+                    // shown while the picture loads, if stored by the capture
+                    File thumbnailFile = new File(CaptureResult.getThumbnailPath(imagePath));
+                    if (thumbnailFile.exists()) {
+                        request = request.thumbnail(Glide.with(context)
+                                .load(thumbnailFile)
+                                .skipMemoryCache(true)
+                                .diskCacheStrategy(DiskCacheStrategy.NONE));
+                    }
+
+                    request.into(imageView);
                     return true;
                 }
             }
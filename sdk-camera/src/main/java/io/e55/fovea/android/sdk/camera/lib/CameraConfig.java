@@ -61,6 +61,8 @@ import java.util.List;
 
 import io.e55.fovea.android.sdk.camera.R;
 import io.e55.fovea.android.sdk.camera.lib.modules.CameraModuleFactory.CameraModules;
+import io.e55.fovea.android.sdk.camera.lib.modules.CaptureQueue;
+import io.e55.fovea.android.sdk.camera.lib.store.CaptureStore;
 import timber.log.Timber;
 
 
@@ -97,6 +99,18 @@ public class CameraConfig {
     public static final String ORIENTATION_PORTRAIT = "portrait";
     public static final String ORIENTATION_LANDSCAPE = "landscape";
 
+    public static final String OUTPUT_MODE_COLOR = "color";
+    public static final String OUTPUT_MODE_GRAY = "gray";
+    public static final String OUTPUT_MODE_BINARY = "binary";
+
+    public static final String EXPOSURE_CHECK_OFF = "off";
+    public static final String EXPOSURE_CHECK_FLAG = "flag";
+    public static final String EXPOSURE_CHECK_REJECT = "reject";
+
+    public static final String SYNC_POLICY_NONE = "none";
+    public static final String SYNC_POLICY_DATA = "data";
+    public static final String SYNC_POLICY_ALL = "all";
+
     private static volatile CameraConfig instance;
 
     private final int mAutoFocusInitialDelay;
@@ -111,10 +125,56 @@ public class CameraConfig {
 
     private final boolean mUseFocusOnAcceleration;
 
+    private final int mSensorIntervalActive;
+
+    private final int mSensorIntervalSteady;
+
+    private final int mSensorMaxReportLatency;
+
     private final float mLuxTooDark;
 
     private final float mLuxBrightEnough;
 
+    private final int mFlashToggleInterval;
+
+    private final float mFrameChangeThreshold;
+
+    private final int mFrameStaticFrames;
+
+    private final int mFrameStaticInterval;
+
+    private final boolean mUseAutoFlash;
+
+    private final float mAutoFlashLumaDark;
+
+    private final float mAutoFlashLumaBright;
+
+    private final int mAutoFlashDwell;
+
+    private final boolean mUseDocumentDetection;
+
+    private final int mDocumentDetectMaxSide;
+
+    private final float mDocumentMinArea;
+
+    private final boolean mUseAutoCapture;
+
+    private final int mAutoCaptureStableFrames;
+
+    private final float mAutoCaptureMaxMotion;
+
+    private final float mAutoCaptureRearmMotion;
+
+    private final float mAutoCaptureMinSharpness;
+
+    private final float mAutoCaptureSharpnessRatio;
+
+    private final float mAutoCaptureMinEvenness;
+
+    private final float mAutoCaptureMinLuma;
+
+    private final boolean mAutoCaptureRequireDocument;
+
     private final String mCaptureOrientation;
 
     private final boolean mIsCaptureOrientationLandscape;
@@ -127,12 +187,62 @@ public class CameraConfig {
 
     private final int mCaptureMaxSide;
 
+    private final int mCaptureThumbnailSide;
+
+    private final boolean mCaptureTranscodeJpeg;
+
+    private final int mCaptureTargetBytes;
+
+    private final int mCaptureTargetMinQuality;
+
+    private final int mCaptureTargetIterations;
+
+    private final int mCaptureTargetMillis;
+
     private final boolean mCapturePreviewFrame;
 
+    private final boolean mCaptureRectifyDocument;
+
+    private final int mCaptureRectifyMaxSide;
+
+    private final boolean mCaptureCropToGuide;
+
+    private final String mCaptureSyncPolicy;
+
+    private final File mCaptureStoreDir;
+
+    private final int mCaptureStoreMaxMb;
+
+    private final File mCaptureQueueDir;
+
+    private final int mCaptureQueueWorkers;
+
+    private final int mCaptureQueueMaxAttempts;
+
+    private final String mCaptureExposureCheck;
+
+    private final String mCaptureOutputMode;
+
+    private final int mCaptureBinarizeWindow;
+
+    private final float mCaptureBinarizeK;
+
+    private final int mCaptureLowLightFrames;
+
+    private final float mCaptureLowLightLuma;
+
+    private final float mCaptureMaxClipped;
+
+    private final float mCaptureMaxDark;
+
+    private final float mCaptureMinDynamicRange;
+
     private final boolean mUseCameraShade;
 
     private final int mCameraShadeInitDelay;
 
+    private final int mCameraShadeSnapshotSide;
+
     private final int mMinPictureSide;
 
     private final float mMaxAspectDistortion;
@@ -141,7 +251,14 @@ public class CameraConfig {
 
 
     public static CameraConfig init(Application app) {
-        return getInstance(app.getApplicationContext());
+        CameraConfig config = getInstance(app.getApplicationContext());
+
+        // resumes captures that were pending when the process last died
+        if (config.captureQueueWorkers() > 0) {
+            CaptureQueue.getInstance(config);
+        }
+
+        return config;
     }
 
     public static CameraConfig getInstance(final Context context) {
@@ -169,9 +286,38 @@ public class CameraConfig {
         mUseFocusOnAcceleration = res.getBoolean(R.bool.use_focus_on_accel);
         mFocusOnAcceleration = readFloat(res, R.dimen.focus_on_accel);
 
+        mSensorIntervalActive = res.getInteger(R.integer.sensor_interval_active);
+        mSensorIntervalSteady = res.getInteger(R.integer.sensor_interval_steady);
+        mSensorMaxReportLatency = res.getInteger(R.integer.sensor_max_report_latency);
+
         mLuxTooDark = readFloat(res, R.dimen.lux_too_dark);
         mLuxBrightEnough = readFloat(res, R.dimen.lux_bright_enough);
 
+        mFlashToggleInterval = res.getInteger(R.integer.flash_toggle_interval);
+
+        mFrameChangeThreshold = readFloat(res, R.dimen.frame_change_threshold);
+        mFrameStaticFrames = res.getInteger(R.integer.frame_static_frames);
+        mFrameStaticInterval = res.getInteger(R.integer.frame_static_interval);
+
+        mUseAutoFlash = res.getBoolean(R.bool.use_auto_flash);
+        mAutoFlashLumaDark = readFloat(res, R.dimen.auto_flash_luma_dark);
+        mAutoFlashLumaBright = readFloat(res, R.dimen.auto_flash_luma_bright);
+        mAutoFlashDwell = res.getInteger(R.integer.auto_flash_dwell);
+
+        mUseDocumentDetection = res.getBoolean(R.bool.use_document_detection);
+        mDocumentDetectMaxSide = res.getInteger(R.integer.document_detect_max_side);
+        mDocumentMinArea = readFloat(res, R.dimen.document_min_area);
+
+        mUseAutoCapture = res.getBoolean(R.bool.use_auto_capture);
+        mAutoCaptureStableFrames = res.getInteger(R.integer.auto_capture_stable_frames);
+        mAutoCaptureMaxMotion = readFloat(res, R.dimen.auto_capture_max_motion);
+        mAutoCaptureRearmMotion = readFloat(res, R.dimen.auto_capture_rearm_motion);
+        mAutoCaptureMinSharpness = readFloat(res, R.dimen.auto_capture_min_sharpness);
+        mAutoCaptureSharpnessRatio = readFloat(res, R.dimen.auto_capture_sharpness_ratio);
+        mAutoCaptureMinEvenness = readFloat(res, R.dimen.auto_capture_min_evenness);
+        mAutoCaptureMinLuma = readFloat(res, R.dimen.auto_capture_min_luma);
+        mAutoCaptureRequireDocument = res.getBoolean(R.bool.auto_capture_require_document);
+
         mCaptureOrientation = res.getString(R.string.capture_orientation).toLowerCase();
 
         if (!(mCaptureOrientation.equals(ORIENTATION_PORTRAIT) ||
@@ -184,11 +330,65 @@ public class CameraConfig {
 
         mCaptureJpegQuality = res.getInteger(R.integer.capture_jpeg_quality);
         mCaptureMaxSide = res.getInteger(R.integer.capture_max_side);
+        mCaptureThumbnailSide = res.getInteger(R.integer.capture_thumbnail_side);
+        mCaptureTranscodeJpeg = res.getBoolean(R.bool.capture_transcode_jpeg);
+        mCaptureTargetBytes = res.getInteger(R.integer.capture_target_bytes);
+        mCaptureTargetMinQuality = res.getInteger(R.integer.capture_target_min_quality);
+        mCaptureTargetIterations = res.getInteger(R.integer.capture_target_iterations);
+        mCaptureTargetMillis = res.getInteger(R.integer.capture_target_millis);
 
         mCapturePreviewFrame = res.getBoolean(R.bool.capture_preview_frame);
 
+        mCaptureRectifyDocument = res.getBoolean(R.bool.capture_rectify_document);
+        mCaptureRectifyMaxSide = res.getInteger(R.integer.capture_rectify_max_side);
+        mCaptureCropToGuide = res.getBoolean(R.bool.capture_crop_to_guide);
+
+        mCaptureSyncPolicy = res.getString(R.string.capture_sync_policy).toLowerCase();
+
+        if (!(mCaptureSyncPolicy.equals(SYNC_POLICY_NONE) ||
+                mCaptureSyncPolicy.equals(SYNC_POLICY_DATA) ||
+                mCaptureSyncPolicy.equals(SYNC_POLICY_ALL))) {
+            throw new IllegalStateException("Invalid sync policy: " + mCaptureSyncPolicy);
+        }
+
+        mCaptureStoreDir = new File(context.getFilesDir(),
+                res.getString(R.string.capture_store_dir));
+        mCaptureStoreMaxMb = res.getInteger(R.integer.capture_store_max_mb);
+
+        mCaptureQueueDir = new File(context.getFilesDir(),
+                res.getString(R.string.capture_queue_dir));
+        mCaptureQueueWorkers = res.getInteger(R.integer.capture_queue_workers);
+        mCaptureQueueMaxAttempts = res.getInteger(R.integer.capture_queue_max_attempts);
+
+        mCaptureOutputMode = res.getString(R.string.capture_output_mode).toLowerCase();
+
+        if (!(mCaptureOutputMode.equals(OUTPUT_MODE_COLOR) ||
+                mCaptureOutputMode.equals(OUTPUT_MODE_GRAY) ||
+                mCaptureOutputMode.equals(OUTPUT_MODE_BINARY))) {
+            throw new IllegalStateException("Invalid output mode: " + mCaptureOutputMode);
+        }
+
+        mCaptureBinarizeWindow = res.getInteger(R.integer.capture_binarize_window);
+        mCaptureBinarizeK = readFloat(res, R.dimen.capture_binarize_k);
+
+        mCaptureLowLightFrames = res.getInteger(R.integer.capture_low_light_frames);
+        mCaptureLowLightLuma = readFloat(res, R.dimen.capture_low_light_luma);
+
+        mCaptureExposureCheck = res.getString(R.string.capture_exposure_check).toLowerCase();
+
+        if (!(mCaptureExposureCheck.equals(EXPOSURE_CHECK_OFF) ||
+                mCaptureExposureCheck.equals(EXPOSURE_CHECK_FLAG) ||
+                mCaptureExposureCheck.equals(EXPOSURE_CHECK_REJECT))) {
+            throw new IllegalStateException("Invalid exposure check: " + mCaptureExposureCheck);
+        }
+
+        mCaptureMaxClipped = readFloat(res, R.dimen.capture_max_clipped);
+        mCaptureMaxDark = readFloat(res, R.dimen.capture_max_dark);
+        mCaptureMinDynamicRange = readFloat(res, R.dimen.capture_min_dynamic_range);
+
         mUseCameraShade = res.getBoolean(R.bool.use_camera_shade);
         mCameraShadeInitDelay = res.getInteger(R.integer.camera_shade_init_delay);
+        mCameraShadeSnapshotSide = res.getInteger(R.integer.camera_shade_snapshot_side);
 
         mMinPictureSide = res.getInteger(R.integer.min_picture_side);
         mMaxAspectDistortion = readFloat(res, R.dimen.max_aspect_distortion);
@@ -203,6 +403,19 @@ public class CameraConfig {
 
         //LUX values vary far too much across devices
         //mModules.add(CameraModules.LIGHT_SENSOR);
+
+        // Measures the light in the preview frames instead
+        if (mUseAutoFlash) {
+            mModules.add(CameraModules.AUTO_FLASH);
+        }
+
+        if (mUseDocumentDetection) {
+            mModules.add(CameraModules.DOCUMENT_DETECT);
+        }
+
+        if (mUseAutoCapture) {
+            mModules.add(CameraModules.AUTO_CAPTURE);
+        }
     }
 
     public List<String> getCameraModules() {
@@ -241,6 +454,18 @@ public class CameraConfig {
         return mUseFocusOnAcceleration;
     }
 
+    public int sensorIntervalActive() {
+        return mSensorIntervalActive;
+    }
+
+    public int sensorIntervalSteady() {
+        return mSensorIntervalSteady;
+    }
+
+    public int sensorMaxReportLatency() {
+        return mSensorMaxReportLatency;
+    }
+
     public boolean isLightTooDark(float value) {
         return (value <= mLuxTooDark);
     }
@@ -249,6 +474,86 @@ public class CameraConfig {
         return (value >= mLuxBrightEnough);
     }
 
+    public int flashToggleInterval() {
+        return mFlashToggleInterval;
+    }
+
+    public float frameChangeThreshold() {
+        return mFrameChangeThreshold;
+    }
+
+    public int frameStaticFrames() {
+        return mFrameStaticFrames;
+    }
+
+    public int frameStaticInterval() {
+        return mFrameStaticInterval;
+    }
+
+    public boolean useAutoFlash() {
+        return mUseAutoFlash;
+    }
+
+    public float autoFlashLumaDark() {
+        return mAutoFlashLumaDark;
+    }
+
+    public float autoFlashLumaBright() {
+        return mAutoFlashLumaBright;
+    }
+
+    public int autoFlashDwell() {
+        return mAutoFlashDwell;
+    }
+
+    public boolean useDocumentDetection() {
+        return mUseDocumentDetection;
+    }
+
+    public int documentDetectMaxSide() {
+        return mDocumentDetectMaxSide;
+    }
+
+    public float documentMinArea() {
+        return mDocumentMinArea;
+    }
+
+    public boolean useAutoCapture() {
+        return mUseAutoCapture;
+    }
+
+    public int autoCaptureStableFrames() {
+        return mAutoCaptureStableFrames;
+    }
+
+    public float autoCaptureMaxMotion() {
+        return mAutoCaptureMaxMotion;
+    }
+
+    public float autoCaptureRearmMotion() {
+        return mAutoCaptureRearmMotion;
+    }
+
+    public float autoCaptureMinSharpness() {
+        return mAutoCaptureMinSharpness;
+    }
+
+    public float autoCaptureSharpnessRatio() {
+        return mAutoCaptureSharpnessRatio;
+    }
+
+    public float autoCaptureMinEvenness() {
+        return mAutoCaptureMinEvenness;
+    }
+
+    public float autoCaptureMinLuma() {
+        return mAutoCaptureMinLuma;
+    }
+
+    public boolean autoCaptureRequireDocument() {
+        return mAutoCaptureRequireDocument;
+    }
+
     public int captureJpegQuality() {
         return mCaptureJpegQuality;
     }
@@ -261,10 +566,116 @@ public class CameraConfig {
         return mCaptureMaxSide;
     }
 
+    public int captureThumbnailSide() {
+        return mCaptureThumbnailSide;
+    }
+
+    public boolean captureTranscodeJpeg() {
+        return mCaptureTranscodeJpeg;
+    }
+
+    public int captureTargetBytes() {
+        return mCaptureTargetBytes;
+    }
+
+    public int captureTargetMinQuality() {
+        return mCaptureTargetMinQuality;
+    }
+
+    public int captureTargetIterations() {
+        return mCaptureTargetIterations;
+    }
+
+    public int captureTargetMillis() {
+        return mCaptureTargetMillis;
+    }
+
     public boolean capturePreviewFrame() {
         return mCapturePreviewFrame;
     }
 
+    public boolean captureRectifyDocument() {
+        return mCaptureRectifyDocument;
+    }
+
+    public int captureRectifyMaxSide() {
+        return mCaptureRectifyMaxSide;
+    }
+
+    public boolean captureCropToGuide() {
+        return mCaptureCropToGuide;
+    }
+
+    public String captureSyncPolicy() {
+        return mCaptureSyncPolicy;
+    }
+
+    /**
+     * Store that captured pictures are kept in, if enabled. Pictures are then stored there
+     * instead of at the path given for them.
+     *
+     * @return CaptureStore, or null if disabled.
+     */
+    public CaptureStore getCaptureStore() {
+        if (mCaptureStoreMaxMb <= 0) {
+            return null;
+        }
+
+        return CaptureStore.open(mCaptureStoreDir, mCaptureStoreMaxMb * 1024L * 1024L);
+    }
+
+    public File captureQueueDir() {
+        return mCaptureQueueDir;
+    }
+
+    /**
+     * @return Number of background workers of the {@link CaptureQueue}; 0 if captures are
+     * processed in line.
+     */
+    public int captureQueueWorkers() {
+        return mCaptureQueueWorkers;
+    }
+
+    public int captureQueueMaxAttempts() {
+        return mCaptureQueueMaxAttempts;
+    }
+
+    public String captureOutputMode() {
+        return mCaptureOutputMode;
+    }
+
+    public int captureBinarizeWindow() {
+        return mCaptureBinarizeWindow;
+    }
+
+    public float captureBinarizeK() {
+        return mCaptureBinarizeK;
+    }
+
+    public int captureLowLightFrames() {
+        return mCaptureLowLightFrames;
+    }
+
+    public float captureLowLightLuma() {
+        return mCaptureLowLightLuma;
+    }
+
+    public String captureExposureCheck() {
+        return mCaptureExposureCheck;
+    }
+
+    public float captureMaxClipped() {
+        return mCaptureMaxClipped;
+    }
+
+    public float captureMaxDark() {
+        return mCaptureMaxDark;
+    }
+
+    public float captureMinDynamicRange() {
+        return mCaptureMinDynamicRange;
+    }
+
     public boolean useCameraShade() {
         return mUseCameraShade;
     }
@@ -273,6 +684,10 @@ public class CameraConfig {
         return mCameraShadeInitDelay;
     }
 
+    public int cameraShadeSnapshotSide() {
+        return mCameraShadeSnapshotSide;
+    }
+
     public int getMinPictureSide() {
         return mMinPictureSide;
     }
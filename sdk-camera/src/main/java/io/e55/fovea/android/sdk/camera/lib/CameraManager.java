@@ -25,6 +25,7 @@ package io.e55.fovea.android.sdk.camera.lib;
 import android.app.Activity;
 import android.content.Context;
 import android.graphics.Point;
+import android.graphics.RectF;
 import android.hardware.Camera;
 import android.hardware.Camera.CameraInfo;
 import android.view.Display;
@@ -40,7 +41,16 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import io.e55.fovea.android.sdk.camera.lib.capture.AutoCaptureDecision;
+import io.e55.fovea.android.sdk.camera.lib.capture.CaptureQualityException;
+import io.e55.fovea.android.sdk.camera.lib.capture.CaptureResult;
+import io.e55.fovea.android.sdk.camera.lib.document.Quad;
+import io.e55.fovea.android.sdk.camera.lib.frame.FrameAnalyzer;
+import io.e55.fovea.android.sdk.camera.lib.frame.FramePipeline;
+import io.e55.fovea.android.sdk.camera.lib.frame.FramePipeline.FrameListener;
+import io.e55.fovea.android.sdk.camera.lib.modules.CameraAutoCaptureModule;
 import io.e55.fovea.android.sdk.camera.lib.modules.CameraCaptureModule;
+import io.e55.fovea.android.sdk.camera.lib.modules.CameraDocumentModule;
 import io.e55.fovea.android.sdk.camera.lib.modules.CameraFlashModule;
 import io.e55.fovea.android.sdk.camera.lib.modules.CameraModule;
 import io.e55.fovea.android.sdk.camera.lib.modules.CameraModuleFactory;
@@ -52,6 +62,7 @@ import rx.Subscriber;
 import rx.Subscription;
 import rx.android.schedulers.AndroidSchedulers;
 import rx.functions.Action1;
+import rx.functions.Func1;
 import rx.schedulers.Schedulers;
 import timber.log.Timber;
 
@@ -72,11 +83,16 @@ public class CameraManager {
     private final CameraConfig mConfig;
     private final CameraModuleFactory mCameraModuleFactory;
     private final WindowManager mWindowManager;
+    private final FramePipeline mFramePipeline;
 
     private int mRearCameraId = -1;
+    private int mDisplayOrientation;
     private Camera mCamera;
 
-    private boolean mIsOpening, mIsPreviewing, mIsCapturing;
+    private boolean mIsOpening, mIsPreviewing;
+
+    // also read by frame analyzers
+    private volatile boolean mIsCapturing;
 
     private final List<Subscription> mSubscriptions;
 
@@ -85,10 +101,13 @@ public class CameraManager {
     private Observable<MotionEvent> mTouchEventObservable;
 
     private View mCameraShadeView;
+    private View mCaptureGuideView, mPreviewView;
 
     public CameraManager(Context context) {
         mWindowManager = (WindowManager) context.getSystemService(Activity.WINDOW_SERVICE);
         mConfig = new CameraConfig(context);
+        mFramePipeline = new FramePipeline(mConfig.frameChangeThreshold(),
+                mConfig.frameStaticFrames(), mConfig.frameStaticInterval());
 
         mCameraModuleFactory = new CameraModuleFactory(context, mConfig);
         mModules = new HashMap<>();
@@ -223,6 +242,7 @@ public class CameraManager {
             int displayOrientation = getDisplayOrientation(getDisplay(), mRearCameraId);
             if (displayOrientation >= 0) {
                 mCamera.setDisplayOrientation(displayOrientation);
+                mDisplayOrientation = displayOrientation;
             }
         }
     }
@@ -233,6 +253,7 @@ public class CameraManager {
             try {
                 mIsPreviewing = true;
                 updateCameraOrientation();
+                mFramePipeline.start(mCamera);
                 mCamera.startPreview();
                 startModules();
                 Timber.d("startPreview");
@@ -250,6 +271,7 @@ public class CameraManager {
                 mIsPreviewing = false;
                 mIsCapturing = false;
 
+                mFramePipeline.stop();
                 mCamera.stopPreview();
                 stopModules();
                 Timber.d("stopPreview");
@@ -270,6 +292,16 @@ public class CameraManager {
     }
 
 
+    /**
+     * Clockwise rotation applied to the Camera preview frames for display.
+     *
+     * @return 0, 90, 180 or 270 degrees.
+     */
+    public int getPreviewRotation() {
+        return mDisplayOrientation;
+    }
+
+
     /**
      * Reference to the Camera object that was opened.
      *
@@ -280,6 +312,71 @@ public class CameraManager {
     }
 
 
+    /**
+     * Registers a listener for the Camera preview frames, called on the main thread.
+     * Frames are delivered from a pool of reused buffers; see {@link FramePipeline}.
+     *
+     * @param listener {@link FrameListener} to be notified of every preview frame.
+     */
+    public void addPreviewFrameListener(FrameListener listener) {
+        mFramePipeline.addListener(listener);
+    }
+
+
+    /**
+     * Unregisters a listener added with `addPreviewFrameListener()`.
+     *
+     * @param listener {@link FrameListener} to be removed.
+     */
+    public void removePreviewFrameListener(FrameListener listener) {
+        mFramePipeline.removeListener(listener);
+    }
+
+
+    /**
+     * Registers an analyzer for the Camera preview frames, called on a worker thread.
+     * A busy analyzer only receives the latest frame; see {@link FramePipeline}.
+     *
+     * @param analyzer {@link FrameAnalyzer} to receive preview frames.
+     */
+    public void addFrameAnalyzer(FrameAnalyzer analyzer) {
+        mFramePipeline.addAnalyzer(analyzer);
+    }
+
+
+    /**
+     * Registers an analyzer for the Camera preview frames, called on a worker thread.
+     *
+     * @param analyzer      {@link FrameAnalyzer} to receive preview frames.
+     * @param skipUnchanged If false, the analyzer also receives the frames that are skipped
+     *                      while the scene is static.
+     */
+    public void addFrameAnalyzer(FrameAnalyzer analyzer, boolean skipUnchanged) {
+        mFramePipeline.addAnalyzer(analyzer, skipUnchanged);
+    }
+
+
+    /**
+     * Unregisters an analyzer added with `addFrameAnalyzer()`.
+     *
+     * @param analyzer {@link FrameAnalyzer} to be removed.
+     */
+    public void removeFrameAnalyzer(FrameAnalyzer analyzer) {
+        mFramePipeline.removeAnalyzer(analyzer);
+    }
+
+
+    /**
+     * Returns the pipeline that delivers the Camera preview frames, e.g. to query
+     * analyzer statistics.
+     *
+     * @return FramePipeline
+     */
+    public FramePipeline getFramePipeline() {
+        return mFramePipeline;
+    }
+
+
     /**
      * Returns the Observable for the MotionEvents on the SurfaceView.
      *
@@ -290,6 +387,23 @@ public class CameraManager {
     }
 
 
+    /**
+     * Returns the Observable for the document outlines found in the Camera preview frames,
+     * e.g. to draw an overlay or to trigger a capture.
+     *
+     * @return Observable of {@link Quad}s on the main thread; empty if document detection is
+     * disabled.
+     */
+    public Observable<Quad> getDocumentQuadObservable() {
+        if (!mModules.containsKey(CameraModules.DOCUMENT_DETECT)) {
+            return Observable.empty();
+        }
+
+        return ((CameraDocumentModule) mModules.get(CameraModules.DOCUMENT_DETECT))
+                .getQuadObservable();
+    }
+
+
     /**
      * Status of the Flash light.
      *
@@ -317,26 +431,106 @@ public class CameraManager {
 
     /**
      * Persists the currently visible Camera frame to the specified file path.
+     * If enabled in {@link CameraConfig}, the document found in the preview is de-skewed first.
      *
      * @param path Write-accessible path for the image file to be stored.
      * @param subscriber {@link Subscriber} that should receive status feedback.
      * @return true, if the operation was successfully initiated.
      */
     public boolean takePicture(String path, final Subscriber<String> subscriber) {
+        Quad corners = null;
+
+        if (mConfig.captureRectifyDocument() &&
+                mModules.containsKey(CameraModules.DOCUMENT_DETECT)) {
+            corners = ((CameraDocumentModule) mModules.get(CameraModules.DOCUMENT_DETECT))
+                    .getLastQuad();
+        }
+
+        return takePicture(path, corners, subscriber);
+    }
+
+
+    /**
+     * Persists the document within the given corners of the currently visible Camera frame,
+     * de-skewed, to the specified file path.
+     *
+     * @param path Write-accessible path for the image file to be stored.
+     * @param corners Corners of the document, e.g. adjusted by the user; null or empty keeps
+     *                the whole frame.
+     * @param subscriber {@link Subscriber} that should receive status feedback.
+     * @return true, if the operation was successfully initiated.
+     */
+    public boolean takePicture(String path, Quad corners, final Subscriber<String> subscriber) {
+        Observable<CaptureResult> ob = startCapture(path, corners);
+        if (ob == null) {
+            return false;
+        }
+
+        ob.map(new Func1<CaptureResult, String>() {
+            @Override
+            public String call(CaptureResult result) {
+                return result.getPath();
+            }
+        }).subscribe(subscriber);
+        watchCapture(ob);
+
+        return true;
+    }
+
+
+    /**
+     * Persists the document within the given corners of the currently visible Camera frame,
+     * and reports what is known about the stored picture, such as its exposure.
+     *
+     * @param path Write-accessible path for the image file to be stored.
+     * @param corners Corners of the document; null or empty keeps the whole frame.
+     * @param subscriber {@link Subscriber} that should receive the {@link CaptureResult}, or a
+     *                   {@link CaptureQualityException} if the picture was rejected.
+     * @return true, if the operation was successfully initiated.
+     */
+    public boolean capture(String path, Quad corners, Subscriber<CaptureResult> subscriber) {
+        Observable<CaptureResult> ob = startCapture(path, corners);
+        if (ob == null) {
+            return false;
+        }
+
+        ob.subscribe(subscriber);
+        watchCapture(ob);
+        return true;
+    }
+
+
+    /**
+     * @return Shared observable of the capture, for the caller's subscriber and then
+     * `watchCapture()`; null if a capture cannot be started.
+     */
+    private Observable<CaptureResult> startCapture(String path, Quad corners) {
         Timber.d("takePicture");
 
         if (mIsCapturing || mCamera == null || !mModules.containsKey(CameraModules.CAPTURE)) {
-            return false;
+            return null;
         }
 
         mIsCapturing = true;
 
-        Observable<String> ob = ((CameraCaptureModule) mModules.get(CameraModules.CAPTURE))
-                .takePicture(path)
+        // a document's corners cut it out already
+        RectF region = null;
+        if (mConfig.captureCropToGuide() && (corners == null || corners.isEmpty())) {
+            region = getCaptureRegion();
+        }
+
+        return ((CameraCaptureModule) mModules.get(CameraModules.CAPTURE))
+                .capture(path, corners, region)
                 .share();
+    }
 
-        ob.subscribe(subscriber);
-        ob.subscribe(new Subscriber<String>() {
+
+    /**
+     * Updates the capturing state and the Camera once the capture ends; subscribes after the
+     * caller, who thus hears of the outcome first.
+     */
+    private void watchCapture(Observable<CaptureResult> ob) {
+        ob.subscribe(new Subscriber<CaptureResult>() {
             @Override
             public void onStart() {
                 super.onStart();
@@ -356,18 +550,63 @@ public class CameraManager {
             @Override
             public void onError(Throwable e) {
                 mIsCapturing = false;
+
+                // the Camera stays open for another attempt
+                toggleCameraShade(false);
             }
 
             @Override
-            public void onNext(String s) {
+            public void onNext(CaptureResult result) {
                 //nothing
             }
         });
+    }
+
+
+    /**
+     * Status of a capture started with `takePicture()`.
+     *
+     * @return true while a picture is being taken and persisted.
+     */
+    public boolean isCapturing() {
+        return mIsCapturing;
+    }
+
 
+    /**
+     * Enables or disables automatic captures, which take a picture once the preview has been
+     * still, sharp and evenly lit for a while. Requires the auto-capture module to be enabled.
+     *
+     * @param target Supplies the path and subscriber for each capture; null disables captures.
+     * @return true if auto-capture is available.
+     */
+    public boolean setAutoCapture(PictureTarget target) {
+        if (!mModules.containsKey(CameraModules.AUTO_CAPTURE)) {
+            return false;
+        }
+
+        ((CameraAutoCaptureModule) mModules.get(CameraModules.AUTO_CAPTURE)).setTarget(target);
         return true;
     }
 
 
+    /**
+     * Returns the Observable for the decisions of the auto-capture module, e.g. to tell the
+     * user why no picture is being taken.
+     *
+     * @return Observable of {@link AutoCaptureDecision}s on the main thread; empty if
+     * auto-capture is disabled.
+     */
+    public Observable<AutoCaptureDecision> getAutoCaptureDecisionObservable() {
+        if (!mModules.containsKey(CameraModules.AUTO_CAPTURE)) {
+            return Observable.empty();
+        }
+
+        return ((CameraAutoCaptureModule) mModules.get(CameraModules.AUTO_CAPTURE))
+                .getDecisionObservable();
+    }
+
+
     /**
      * Returns the view that covers the Camera when it's not active.
      * Visibility for the view is controller by the {@link CameraShadeModule} module, if active.
@@ -389,6 +628,81 @@ public class CameraManager {
     }
 
 
+    /**
+     * View that outlines where the document should be placed, drawn over the Camera preview.
+     * If enabled in {@link CameraConfig}, pictures are cropped to the area inside its padding.
+     *
+     * @param captureGuideView View of the capture guide.
+     * @param previewView      View the Camera preview is drawn on.
+     */
+    public void setCaptureGuideView(View captureGuideView, View previewView) {
+        mCaptureGuideView = captureGuideView;
+        mPreviewView = previewView;
+    }
+
+
+    /**
+     * Maps the area inside the capture guide through the preview's scaling and display
+     * orientation onto the Camera frame. Must be called on the main thread.
+     *
+     * @return Region in normalised frame coordinates (0..1 along the frame's width and height,
+     * in sensor orientation), or null if the guide is not laid out over the preview.
+     */
+    public RectF getCaptureRegion() {
+        View guide = mCaptureGuideView;
+        View preview = mPreviewView;
+        if (guide == null || preview == null || preview.getWidth() == 0 ||
+                preview.getHeight() == 0) {
+            return null;
+        }
+
+        int[] guideLocation = new int[2];
+        int[] previewLocation = new int[2];
+        guide.getLocationInWindow(guideLocation);
+        preview.getLocationInWindow(previewLocation);
+
+        // the preview is stretched across its view, so view and frame map linearly
+        float width = preview.getWidth();
+        float height = preview.getHeight();
+        float x = guideLocation[0] - previewLocation[0];
+        float y = guideLocation[1] - previewLocation[1];
+
+        RectF region = toFrameRegion(
+                (x + guide.getPaddingLeft()) / width,
+                (y + guide.getPaddingTop()) / height,
+                (x + guide.getWidth() - guide.getPaddingRight()) / width,
+                (y + guide.getHeight() - guide.getPaddingBottom()) / height,
+                mDisplayOrientation);
+
+        if (!region.intersect(0f, 0f, 1f, 1f) || region.isEmpty()) {
+            return null;
+        }
+
+        return region;
+    }
+
+
+    /**
+     * Undoes the clockwise display rotation of a region of the preview.
+     */
+    protected static RectF toFrameRegion(float left, float top, float right, float bottom,
+                                         int rotation) {
+        switch (rotation) {
+            case 90:
+                return new RectF(top, 1f - right, bottom, 1f - left);
+
+            case 180:
+                return new RectF(1f - right, 1f - bottom, 1f - left, 1f - top);
+
+            case 270:
+                return new RectF(1f - bottom, left, 1f - top, right);
+
+            default:
+                return new RectF(left, top, right, bottom);
+        }
+    }
+
+
     /**
      * Toggles the visibility of the Camera shade.
      *
@@ -533,4 +847,21 @@ public class CameraManager {
         return (cameraInfo.orientation - degrees + 360) % 360;
     }
 
+
+    /**
+     * Supplies the destination of pictures that are not taken by a direct call to
+     * `takePicture()`, such as automatic captures.
+     */
+    public interface PictureTarget {
+
+        /**
+         * @return Writable path to store the image file.
+         */
+        String provideOutputFilePath();
+
+        /**
+         * @return Subscriber to be used for feedback.
+         */
+        Subscriber<String> providePictureTakenSubscriber();
+    }
 }
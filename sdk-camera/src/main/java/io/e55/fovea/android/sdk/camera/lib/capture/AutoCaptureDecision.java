@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2015 Shirish Kamath.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package io.e55.fovea.android.sdk.camera.lib.capture;
+
+
+/**
+ * Outcome of the auto-capture gate for a preview frame: whether a picture is taken and why
+ * (or why not), along with the frame metrics the decision was based on.
+ */
+public class AutoCaptureDecision {
+
+    public interface Reasons {
+        /** Enough good frames in a row; a picture is taken. */
+        String CAPTURE = "CAPTURE";
+        /** Good frame, but not enough of them in a row yet. */
+        String STABILIZING = "STABILIZING";
+        /** The camera or the document is moving. */
+        String MOTION = "MOTION";
+        /** The frame is out of focus or blurred. */
+        String BLURRED = "BLURRED";
+        /** Shadows or glare on the document. */
+        String UNEVEN_LIGHT = "UNEVEN_LIGHT";
+        /** The scene is too dark. */
+        String TOO_DARK = "TOO_DARK";
+        /** No document outline was found. */
+        String NO_DOCUMENT = "NO_DOCUMENT";
+        /** A picture was just taken; waiting for the camera to move on. */
+        String WAITING_FOR_MOVEMENT = "WAITING_FOR_MOVEMENT";
+    }
+
+    private final String mReason;
+    private final int mStableCount, mStableFrames;
+    private final float mMotion, mSharpness, mEvenness, mLuma;
+    private final long mTimestamp;
+
+    public AutoCaptureDecision(String reason, int stableCount, int stableFrames,
+                               float motion, float sharpness, float evenness, float luma,
+                               long timestamp) {
+        mReason = reason;
+        mStableCount = stableCount;
+        mStableFrames = stableFrames;
+        mMotion = motion;
+        mSharpness = sharpness;
+        mEvenness = evenness;
+        mLuma = luma;
+        mTimestamp = timestamp;
+    }
+
+    public boolean isCapture() {
+        return Reasons.CAPTURE.equals(mReason);
+    }
+
+    /**
+     * @return One of {@link Reasons}
+     */
+    public String getReason() {
+        return mReason;
+    }
+
+    public int getStableCount() {
+        return mStableCount;
+    }
+
+    public int getStableFrames() {
+        return mStableFrames;
+    }
+
+    public float getMotion() {
+        return mMotion;
+    }
+
+    public float getSharpness() {
+        return mSharpness;
+    }
+
+    public float getEvenness() {
+        return mEvenness;
+    }
+
+    public float getLuma() {
+        return mLuma;
+    }
+
+    /**
+     * @return Timestamp of the frame, in {@link System#nanoTime()} units.
+     */
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("AutoCaptureDecision{%s, stable=%d/%d, motion=%.4f, sharpness=%.4f, " +
+                        "evenness=%.2f, luma=%.2f}", mReason, mStableCount, mStableFrames,
+                mMotion, mSharpness, mEvenness, mLuma);
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2015 Shirish Kamath.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package io.e55.fovea.android.sdk.camera.lib.capture;
+
+import io.e55.fovea.android.sdk.camera.lib.capture.AutoCaptureDecision.Reasons;
+
+
+/**
+ * Decides when to take a picture on its own, from per-frame quality metrics
+ * (see {@link io.e55.fovea.android.sdk.camera.lib.frame.FrameQuality}).
+ *
+ * A capture is triggered once the configured number of consecutive frames were still, bright,
+ * evenly lit and sharp (and showed a document, if required). Sharpness is judged both against
+ * an absolute minimum and against the sharpest frame of the current still period, so that
+ * a frame blurred by a refocus is not captured. After a capture the gate waits for the camera
+ * to move before it arms again, so that the same page is not taken twice.
+ *
+ * The gate only depends on the metrics it is given, so a recorded sequence of metrics always
+ * yields the same decisions. Instances are not thread-safe.
+ */
+public class AutoCaptureGate {
+
+    private final int mStableFrames;
+    private final float mMaxMotion, mRearmMotion;
+    private final float mMinSharpness, mSharpnessRatio;
+    private final float mMinEvenness, mMinLuma;
+    private final boolean mRequireDocument;
+
+    private int mStableCount;
+    private float mPeakSharpness;
+    private boolean mNeedsMovement;
+    private float mMovement;
+
+
+    /**
+     * @param stableFrames    Consecutive good frames required for a capture.
+     * @param maxMotion       Maximum motion of a still frame.
+     * @param rearmMotion     Motion that re-arms the gate after a capture, summed over the
+     *                        frames that moved.
+     * @param minSharpness    Minimum sharpness of a frame.
+     * @param sharpnessRatio  Minimum sharpness relative to the sharpest still frame, in [0, 1].
+     * @param minEvenness     Minimum evenness of the lighting.
+     * @param minLuma         Minimum mean luma.
+     * @param requireDocument If true, frames without a document never count as good.
+     */
+    public AutoCaptureGate(int stableFrames, float maxMotion, float rearmMotion,
+                           float minSharpness, float sharpnessRatio,
+                           float minEvenness, float minLuma, boolean requireDocument) {
+        mStableFrames = Math.max(1, stableFrames);
+        mMaxMotion = maxMotion;
+        mRearmMotion = rearmMotion;
+        mMinSharpness = minSharpness;
+        mSharpnessRatio = sharpnessRatio;
+        mMinEvenness = minEvenness;
+        mMinLuma = minLuma;
+        mRequireDocument = requireDocument;
+    }
+
+
+    /**
+     * Feeds the metrics of the next frame.
+     *
+     * @return One of {@link Reasons}; {@link Reasons#CAPTURE} if a picture should be taken now.
+     */
+    public String update(float motion, float sharpness, float evenness, float luma,
+                         boolean documentFound) {
+        if (mNeedsMovement) {
+            // still frames do not add up, however many there are
+            if (motion > mMaxMotion) {
+                mMovement += motion;
+            }
+
+            if (mMovement < mRearmMotion) {
+                return Reasons.WAITING_FOR_MOVEMENT;
+            }
+
+            mNeedsMovement = false;
+        }
+
+        if (motion > mMaxMotion) {
+            mStableCount = 0;
+            mPeakSharpness = 0f;
+            return Reasons.MOTION;
+        }
+
+        String reason = null;
+
+        if (luma < mMinLuma) {
+            reason = Reasons.TOO_DARK;
+        } else if (mRequireDocument && !documentFound) {
+            reason = Reasons.NO_DOCUMENT;
+        } else if (evenness < mMinEvenness) {
+            reason = Reasons.UNEVEN_LIGHT;
+        } else {
+            mPeakSharpness = Math.max(mPeakSharpness, sharpness);
+
+            if (sharpness < mMinSharpness || sharpness < mPeakSharpness * mSharpnessRatio) {
+                reason = Reasons.BLURRED;
+            }
+        }
+
+        if (reason != null) {
+            mStableCount = 0;
+            return reason;
+        }
+
+        if (++mStableCount < mStableFrames) {
+            return Reasons.STABILIZING;
+        }
+
+        mStableCount = 0;
+        mPeakSharpness = 0f;
+        mNeedsMovement = true;
+        mMovement = 0f;
+        return Reasons.CAPTURE;
+    }
+
+
+    /**
+     * Starts over, e.g. when the preview restarts; the next capture needs no prior movement.
+     */
+    public void reset() {
+        mStableCount = 0;
+        mPeakSharpness = 0f;
+        mNeedsMovement = false;
+    }
+
+
+    /**
+     * @return Consecutive good frames seen so far.
+     */
+    public int getStableCount() {
+        return mStableCount;
+    }
+
+    /**
+     * @return Good frames required for a capture.
+     */
+    public int getStableFrames() {
+        return mStableFrames;
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) 2015 Shirish Kamath.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package io.e55.fovea.android.sdk.camera.lib.capture;
+
+import java.io.IOException;
+
+
+/**
+ * Signals that a picture was not stored because its quality is too poor to be of use,
+ * e.g. when it is blown out by flash glare.
+ */
+public class CaptureQualityException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final ExposureReport mReport;
+
+    public CaptureQualityException(ExposureReport report) {
+        super("Picture rejected: " + report.getProblem());
+        mReport = report;
+    }
+
+    /**
+     * @return Measurement that the picture was rejected for.
+     */
+    public ExposureReport getReport() {
+        return mReport;
+    }
+}
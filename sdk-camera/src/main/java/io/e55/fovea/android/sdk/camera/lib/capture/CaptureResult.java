@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2015 Shirish Kamath.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package io.e55.fovea.android.sdk.camera.lib.capture;
+
+
+/**
+ * Outcome of a successful capture: where the picture was stored and what is known about it.
+ * If configured, a thumbnail of the picture is stored next to it and described by a result
+ * of its own.
+ */
+public class CaptureResult {
+
+    public static final String MIME_JPEG = "image/jpeg";
+    public static final String MIME_PNG = "image/png";
+
+    private final String mPath;
+    private final String mMimeType;
+    private final int mWidth, mHeight;
+    private final int mQuality;
+    private final long mSize;
+    private final long mChecksum;
+    private final ExposureReport mExposure;
+    private final CaptureResult mThumbnail;
+
+    public CaptureResult(String path, String mimeType, int width, int height, int quality,
+                         long size, long checksum, ExposureReport exposure) {
+        this(path, mimeType, width, height, quality, size, checksum, exposure, null);
+    }
+
+    public CaptureResult(String path, String mimeType, int width, int height, int quality,
+                         long size, long checksum, ExposureReport exposure,
+                         CaptureResult thumbnail) {
+        mPath = path;
+        mMimeType = mimeType;
+        mWidth = width;
+        mHeight = height;
+        mQuality = quality;
+        mSize = size;
+        mChecksum = checksum;
+        mExposure = exposure;
+        mThumbnail = thumbnail;
+    }
+
+
+    /**
+     * Path of the thumbnail of a picture: the picture's path with `_thumb` before its extension.
+     * Thumbnails are always JPEGs.
+     *
+     * @param path Path of the picture
+     * @return Path of its thumbnail
+     */
+    public static String getThumbnailPath(String path) {
+        int dot = path.lastIndexOf('.');
+        if (dot <= path.lastIndexOf('/')) {
+            dot = path.length();
+        }
+
+        return path.substring(0, dot) + "_thumb.jpg";
+    }
+
+
+    /**
+     * @return A copy of this result with the given thumbnail.
+     */
+    public CaptureResult withThumbnail(CaptureResult thumbnail) {
+        return new CaptureResult(mPath, mMimeType, mWidth, mHeight, mQuality, mSize, mChecksum,
+                mExposure, thumbnail);
+    }
+
+    /**
+     * @return Absolute path of the stored image file.
+     */
+    public String getPath() {
+        return mPath;
+    }
+
+    /**
+     * @return Format of the stored file, e.g. {@link #MIME_PNG} for binarized documents.
+     */
+    public String getMimeType() {
+        return mMimeType;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * @return JPEG quality the picture was encoded with, or -1 if it isn't a JPEG.
+     */
+    public int getQuality() {
+        return mQuality;
+    }
+
+    /**
+     * @return Size of the stored file in bytes.
+     */
+    public long getSize() {
+        return mSize;
+    }
+
+    /**
+     * @return CRC-32C of the stored file, computed while it was written; e.g. to skip
+     * uploading a file twice without reading it again.
+     */
+    public long getChecksum() {
+        return mChecksum;
+    }
+
+    /**
+     * @return Exposure of the picture, or null if it wasn't checked. A picture with an
+     * unacceptable exposure is only stored if the check is configured to flag rather than reject.
+     */
+    public ExposureReport getExposure() {
+        return mExposure;
+    }
+
+    /**
+     * @return Thumbnail stored next to the picture, or null if none was configured or it could
+     * not be stored.
+     */
+    public CaptureResult getThumbnail() {
+        return mThumbnail;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("CaptureResult{%s, %s, %d x %d, q%d, %d bytes, crc32c %08x, %s, " +
+                        "thumbnail=%s}", mPath, mMimeType, mWidth, mHeight, mQuality, mSize,
+                mChecksum, mExposure, mThumbnail);
+    }
+}
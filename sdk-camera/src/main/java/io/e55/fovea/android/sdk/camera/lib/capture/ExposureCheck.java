@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2015 Shirish Kamath.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package io.e55.fovea.android.sdk.camera.lib.capture;
+
+import io.e55.fovea.android.sdk.camera.lib.frame.LumaStats;
+
+
+/**
+ * Judges the exposure of a picture from its luma histogram: the area of clipped highlights,
+ * the area in deep shadow and the dynamic range between them. Pictures that fail are useless
+ * for reading the document, so they are best caught before they are encoded and stored.
+ */
+public class ExposureCheck {
+
+    // luma at or above which a pixel counts as clipped, i.e. the top histogram bin
+    private static final float CLIPPED_LEVEL = 0.97f;
+
+    // luma at or below which a pixel counts as deep shadow
+    private static final float DARK_LEVEL = 0.08f;
+
+    private final float mMaxClipped, mMaxDark, mMinDynamicRange;
+
+
+    /**
+     * @param maxClipped      Maximum fraction of clipped highlights
+     * @param maxDark         Maximum fraction of deep shadow
+     * @param minDynamicRange Minimum spread between the 5th and 95th luma percentile
+     */
+    public ExposureCheck(float maxClipped, float maxDark, float minDynamicRange) {
+        mMaxClipped = maxClipped;
+        mMaxDark = maxDark;
+        mMinDynamicRange = minDynamicRange;
+    }
+
+
+    /**
+     * @param stats Luma statistics of the picture
+     * @return Report with the first problem found, if any.
+     */
+    public ExposureReport evaluate(LumaStats stats) {
+        float clipped = stats.fractionAbove(CLIPPED_LEVEL);
+        float dark = stats.fractionBelow(DARK_LEVEL);
+        float range = Math.max(0f, stats.percentile(0.95f) - stats.percentile(0.05f));
+
+        String problem = null;
+        if (clipped > mMaxClipped) {
+            problem = ExposureReport.Problems.GLARE;
+        } else if (dark > mMaxDark) {
+            problem = ExposureReport.Problems.UNDEREXPOSED;
+        } else if (range < mMinDynamicRange) {
+            problem = ExposureReport.Problems.LOW_CONTRAST;
+        }
+
+        return new ExposureReport(clipped, dark, range, problem);
+    }
+}
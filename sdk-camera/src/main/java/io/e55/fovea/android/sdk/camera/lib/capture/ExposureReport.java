@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2015 Shirish Kamath.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package io.e55.fovea.android.sdk.camera.lib.capture;
+
+import java.io.Serializable;
+
+
+/**
+ * Exposure of a captured picture, measured on a subsampled luma histogram before the picture
+ * is stored; see {@link ExposureCheck}.
+ */
+public class ExposureReport implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public interface Problems {
+        /** Too much of the picture is blown out, e.g. by flash glare. */
+        String GLARE = "GLARE";
+        /** Too much of the picture is in deep shadow. */
+        String UNDEREXPOSED = "UNDEREXPOSED";
+        /** Too little difference between the dark and bright parts, e.g. text and paper. */
+        String LOW_CONTRAST = "LOW_CONTRAST";
+    }
+
+    private final float mClipped, mDark, mDynamicRange;
+    private final String mProblem;
+
+    public ExposureReport(float clipped, float dark, float dynamicRange, String problem) {
+        mClipped = clipped;
+        mDark = dark;
+        mDynamicRange = dynamicRange;
+        mProblem = problem;
+    }
+
+    /**
+     * @return true if no problem was found.
+     */
+    public boolean isAcceptable() {
+        return mProblem == null;
+    }
+
+    /**
+     * @return One of {@link Problems}, or null if the exposure is acceptable.
+     */
+    public String getProblem() {
+        return mProblem;
+    }
+
+    /**
+     * @return Fraction of the picture with clipped highlights, in [0, 1].
+     */
+    public float getClipped() {
+        return mClipped;
+    }
+
+    /**
+     * @return Fraction of the picture in deep shadow, in [0, 1].
+     */
+    public float getDark() {
+        return mDark;
+    }
+
+    /**
+     * @return Spread between the 5th and 95th luma percentile, in [0, 1].
+     */
+    public float getDynamicRange() {
+        return mDynamicRange;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ExposureReport{%s, clipped=%.3f, dark=%.3f, range=%.2f}",
+                (mProblem != null) ? mProblem : "OK", mClipped, mDark, mDynamicRange);
+    }
+}
@@ -0,0 +1,385 @@
+/*
+ * Copyright (c) 2015 Shirish Kamath.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package io.e55.fovea.android.sdk.camera.lib.document;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import io.e55.fovea.android.sdk.camera.lib.capture.CaptureResult;
+
+
+/**
+ * Streams JPEG pages into a PDF, for sharing a multi-page scan as a single document.
+ * <p/>
+ * Each JPEG is embedded as is, as a DCTDecode image, so pages are neither decoded nor
+ * re-encoded. A page's objects are written out as soon as it is added; only the offsets of the
+ * objects are kept until {@link #close()} writes the page tree, cross-reference table and
+ * trailer. Memory use thus does not depend on the number or size of the pages.
+ */
+public class PdfWriter implements Closeable {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final Charset LATIN_1 = Charset.forName("ISO-8859-1");
+
+    private static final int CATALOG = 1;
+    private static final int PAGES = 2;
+
+    private static final int COPY_CHUNK = 64 * 1024;
+
+    private final CountingOutputStream mOut;
+    private final float mDpi;
+    private final List<Long> mOffsets;
+    private final List<Integer> mPages;
+    private byte[] mChunk;
+    private boolean mIsClosed;
+
+
+    /**
+     * @param os  Stream to write to; closed with the writer.
+     * @param dpi Resolution of the pages, which sets their printed size; e.g. 200 for an A4
+     *            page captured 1654 pixels wide.
+     */
+    public PdfWriter(OutputStream os, float dpi) throws IOException {
+        if (dpi <= 0) {
+            throw new IllegalArgumentException("Invalid resolution: " + dpi);
+        }
+
+        mOut = new CountingOutputStream(new BufferedOutputStream(os, COPY_CHUNK));
+        mDpi = dpi;
+        mOffsets = new ArrayList<>();
+        mPages = new ArrayList<>();
+
+        // catalog and page tree are written last, under reserved numbers
+        mOffsets.add(0L);
+        mOffsets.add(0L);
+
+        // binary comment, so that transfers treat the file as binary
+        print("%PDF-1.4\n%\u00e2\u00e3\u00cf\u00d3\n");
+    }
+
+
+    /**
+     * Adds a page from the bytes of a JPEG.
+     */
+    public void addPage(byte[] jpeg) throws IOException {
+        addPage(ByteBuffer.wrap(jpeg));
+    }
+
+
+    /**
+     * Adds a page from a JPEG file, which is mapped rather than read into memory.
+     */
+    public void addPage(File jpeg) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(jpeg, "r");
+        try {
+            addPage(file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length()));
+        } finally {
+            file.close();
+        }
+    }
+
+
+    /**
+     * Adds a page from a stored JPEG capture.
+     *
+     * @throws IllegalArgumentException if the capture is not a JPEG.
+     */
+    public void addPage(CaptureResult result) throws IOException {
+        if (!CaptureResult.MIME_JPEG.equals(result.getMimeType())) {
+            throw new IllegalArgumentException("Not a JPEG: " + result.getMimeType());
+        }
+
+        addPage(new File(result.getPath()));
+    }
+
+
+    /**
+     * Adds a page from the bytes of a JPEG, e.g. as read from a
+     * {@link io.e55.fovea.android.sdk.camera.lib.store.PageContainer.Reader}.
+     *
+     * @param jpeg Remaining bytes are the JPEG; the buffer's position is left unchanged.
+     * @throws IOException if the bytes are not a baseline or progressive JPEG.
+     */
+    public void addPage(ByteBuffer jpeg) throws IOException {
+        ensureOpen();
+
+        JpegInfo info = readJpegInfo(jpeg);
+        float pageWidth = info.width * 72f / mDpi;
+        float pageHeight = info.height * 72f / mDpi;
+
+        int image = mOffsets.size() + 1;
+        int contents = image + 1;
+        int page = image + 2;
+
+        beginObject(image);
+        print("<< /Type /XObject /Subtype /Image /Width " + info.width +
+                " /Height " + info.height +
+                " /ColorSpace " + info.colorSpace +
+                " /BitsPerComponent 8 /Filter /DCTDecode /Length " + jpeg.remaining() +
+                (info.decode != null ? " /Decode " + info.decode : "") + " >>\nstream\n");
+        write(jpeg);
+        print("\nendstream\nendobj\n");
+
+        byte[] content = String.format(Locale.US, "q %.2f 0 0 %.2f 0 0 cm /Im0 Do Q",
+                pageWidth, pageHeight).getBytes(ASCII);
+        beginObject(contents);
+        print("<< /Length " + content.length + " >>\nstream\n");
+        mOut.write(content);
+        print("\nendstream\nendobj\n");
+
+        beginObject(page);
+        print(String.format(Locale.US, "<< /Type /Page /Parent %d 0 R /MediaBox [0 0 %.2f %.2f]" +
+                        " /Resources << /XObject << /Im0 %d 0 R >> >> /Contents %d 0 R >>\n",
+                PAGES, pageWidth, pageHeight, image, contents));
+        print("endobj\n");
+
+        mPages.add(page);
+    }
+
+
+    /**
+     * @return Number of pages added so far.
+     */
+    public int getPageCount() {
+        return mPages.size();
+    }
+
+
+    /**
+     * Writes the page tree, cross-reference table and trailer, then closes the stream.
+     */
+    @Override
+    public void close() throws IOException {
+        if (mIsClosed) {
+            return;
+        }
+        mIsClosed = true;
+
+        try {
+            StringBuilder kids = new StringBuilder();
+            for (int page : mPages) {
+                kids.append(page).append(" 0 R ");
+            }
+
+            beginObject(PAGES);
+            print("<< /Type /Pages /Kids [" + kids + "] /Count " + mPages.size() + " >>\n");
+            print("endobj\n");
+
+            beginObject(CATALOG);
+            print("<< /Type /Catalog /Pages " + PAGES + " 0 R >>\nendobj\n");
+
+            long xref = mOut.getCount();
+            print("xref\n0 " + (mOffsets.size() + 1) + "\n0000000000 65535 f \n");
+            for (long offset : mOffsets) {
+                // entries are exactly 20 bytes, including the end of line
+                print(String.format(Locale.US, "%010d 00000 n \n", offset));
+            }
+
+            print("trailer\n<< /Size " + (mOffsets.size() + 1) + " /Root " + CATALOG +
+                    " 0 R >>\nstartxref\n" + xref + "\n%%EOF\n");
+            mOut.flush();
+        } finally {
+            mOut.close();
+        }
+    }
+
+
+    private void beginObject(int number) throws IOException {
+        if (number > mOffsets.size()) {
+            mOffsets.add(mOut.getCount());
+        } else {
+            mOffsets.set(number - 1, mOut.getCount());
+        }
+
+        print(number + " 0 obj\n");
+    }
+
+    private void print(String s) throws IOException {
+        mOut.write(s.getBytes(LATIN_1));
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        ByteBuffer data = buffer.duplicate();
+
+        if (data.hasArray()) {
+            mOut.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+            return;
+        }
+
+        if (mChunk == null) {
+            mChunk = new byte[COPY_CHUNK];
+        }
+
+        while (data.hasRemaining()) {
+            int n = Math.min(mChunk.length, data.remaining());
+            data.get(mChunk, 0, n);
+            mOut.write(mChunk, 0, n);
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (mIsClosed) {
+            throw new IOException("Writer closed");
+        }
+    }
+
+
+    private static class JpegInfo {
+        int width, height;
+        String colorSpace;
+        String decode;
+    }
+
+
+    /**
+     * Reads the size and colour space of a JPEG from its frame header.
+     */
+    private static JpegInfo readJpegInfo(ByteBuffer jpeg) throws IOException {
+        int p = jpeg.position();
+        int end = jpeg.limit();
+
+        if (end - p < 4 || (jpeg.get(p) & 0xff) != 0xff || (jpeg.get(p + 1) & 0xff) != 0xd8) {
+            throw new IOException("Not a JPEG");
+        }
+        p += 2;
+
+        boolean adobe = false;
+
+        while (p + 4 <= end) {
+            if ((jpeg.get(p) & 0xff) != 0xff) {
+                throw new IOException("Corrupt JPEG marker at " + p);
+            }
+
+            int marker = jpeg.get(p + 1) & 0xff;
+            if (marker == 0xff) {
+                // fill byte
+                p++;
+                continue;
+            }
+
+            int length = ((jpeg.get(p + 2) & 0xff) << 8) | (jpeg.get(p + 3) & 0xff);
+
+            if (marker == 0xee && length >= 7 && p + 9 <= end &&
+                    jpeg.get(p + 4) == 'A' && jpeg.get(p + 5) == 'd' && jpeg.get(p + 6) == 'o' &&
+                    jpeg.get(p + 7) == 'b' && jpeg.get(p + 8) == 'e') {
+                adobe = true;
+            }
+
+            if (marker == 0xc0 || marker == 0xc1 || marker == 0xc2) {
+                if (p + 10 > end) {
+                    break;
+                }
+
+                JpegInfo info = new JpegInfo();
+                info.height = ((jpeg.get(p + 5) & 0xff) << 8) | (jpeg.get(p + 6) & 0xff);
+                info.width = ((jpeg.get(p + 7) & 0xff) << 8) | (jpeg.get(p + 8) & 0xff);
+                int components = jpeg.get(p + 9) & 0xff;
+
+                if (jpeg.get(p + 4) != 8 || info.width == 0 || info.height == 0) {
+                    throw new IOException("Unsupported JPEG frame");
+                }
+
+                switch (components) {
+                    case 1:
+                        info.colorSpace = "/DeviceGray";
+                        break;
+                    case 3:
+                        info.colorSpace = "/DeviceRGB";
+                        break;
+                    case 4:
+                        info.colorSpace = "/DeviceCMYK";
+                        // Adobe's CMYK JPEGs are stored inverted
+                        info.decode = adobe ? "[1 0 1 0 1 0 1 0]" : null;
+                        break;
+                    default:
+                        throw new IOException("Unsupported JPEG components: " + components);
+                }
+
+                return info;
+            }
+
+            if ((marker >= 0xc3 && marker <= 0xcf && marker != 0xc4 && marker != 0xc8 &&
+                    marker != 0xcc)) {
+                throw new IOException("Unsupported JPEG process: SOF" + (marker - 0xc0));
+            }
+
+            if (marker == 0xd9 || marker == 0xda) {
+                break;
+            }
+
+            p += 2 + length;
+        }
+
+        throw new IOException("JPEG frame header not found");
+    }
+
+
+    /**
+     * Counts the bytes written, for the offsets of the cross-reference table.
+     */
+    private static class CountingOutputStream extends OutputStream {
+        private final OutputStream mOut;
+        private long mCount;
+
+        CountingOutputStream(OutputStream out) {
+            mOut = out;
+        }
+
+        long getCount() {
+            return mCount;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            mOut.write(b);
+            mCount++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            mOut.write(b, off, len);
+            mCount += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            mOut.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mOut.close();
+        }
+    }
+}
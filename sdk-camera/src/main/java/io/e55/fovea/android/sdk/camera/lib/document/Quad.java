@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2015 Shirish Kamath.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package io.e55.fovea.android.sdk.camera.lib.document;
+
+import java.util.Arrays;
+
+
+/**
+ * Quadrilateral outline of a document detected in a Camera frame.
+ *
+ * Corners are in normalised frame coordinates (0..1 along the frame's width and height, in
+ * sensor orientation), ordered top-left, top-right, bottom-right, bottom-left.
+ * An empty quad signals that no document is in view.
+ */
+public class Quad {
+
+    public static final int TOP_LEFT = 0;
+    public static final int TOP_RIGHT = 1;
+    public static final int BOTTOM_RIGHT = 2;
+    public static final int BOTTOM_LEFT = 3;
+
+    private final float[] mCorners;
+    private final float mConfidence;
+    private final long mTimestamp;
+
+
+    /**
+     * @param corners    x, y pairs of the four corners, in the order TL, TR, BR, BL.
+     * @param confidence Fraction of the outline that is backed by edges in the frame, in [0, 1].
+     * @param timestamp  Timestamp of the frame the quad was detected in.
+     */
+    public Quad(float[] corners, float confidence, long timestamp) {
+        if (corners != null && corners.length != 8) {
+            throw new IllegalArgumentException("Expected 4 corners");
+        }
+
+        mCorners = (corners != null) ? corners.clone() : null;
+        mConfidence = confidence;
+        mTimestamp = timestamp;
+    }
+
+
+    public static Quad empty(long timestamp) {
+        return new Quad(null, 0f, timestamp);
+    }
+
+
+    public boolean isEmpty() {
+        return mCorners == null;
+    }
+
+    public float getX(int corner) {
+        return mCorners[corner * 2];
+    }
+
+    public float getY(int corner) {
+        return mCorners[corner * 2 + 1];
+    }
+
+    /**
+     * @return x, y pairs of the corners in the order TL, TR, BR, BL, or null if empty.
+     */
+    public float[] getCorners() {
+        return (mCorners != null) ? mCorners.clone() : null;
+    }
+
+    public float getConfidence() {
+        return mConfidence;
+    }
+
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    /**
+     * @return Area of the quad as a fraction of the frame.
+     */
+    public float getArea() {
+        if (mCorners == null) {
+            return 0f;
+        }
+
+        float sum = 0f;
+        for (int i = 0; i < 4; i++) {
+            int j = (i + 1) % 4;
+            sum += mCorners[i * 2] * mCorners[j * 2 + 1] - mCorners[j * 2] * mCorners[i * 2 + 1];
+        }
+
+        return Math.abs(sum) / 2f;
+    }
+
+    @Override
+    public String toString() {
+        return isEmpty() ? "Quad{}" :
+                String.format("Quad{%s, %.2f}", Arrays.toString(mCorners), mConfidence);
+    }
+}
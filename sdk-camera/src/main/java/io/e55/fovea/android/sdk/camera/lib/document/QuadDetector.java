@@ -0,0 +1,597 @@
+/*
+ * Copyright (c) 2015 Shirish Kamath.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package io.e55.fovea.android.sdk.camera.lib.document;
+
+
+/**
+ * Finds the outline of a document in the Y (luma) plane of a Camera frame.
+ * <p/>
+ * The plane is box-filtered down to a small working image, Sobel gradients are computed and
+ * the strongest edges vote in a Hough accumulator, each only for line angles close to its own
+ * gradient direction. The strongest roughly horizontal and roughly vertical lines are then
+ * combined into the best-supported convex quadrilateral that covers enough of the frame.
+ * <p/>
+ * All working buffers are allocated on the first frame (or when the frame size changes) and
+ * reused afterwards, so `detect()` only allocates the {@link Quad} it returns.
+ * Instances are not thread-safe.
+ */
+public class QuadDetector {
+
+    // 2 degrees per bin over [0, 180)
+    private static final int THETA_BINS = 90;
+
+    // an edge votes for line angles within +/- 6 degrees of its gradient direction
+    private static final int THETA_SPREAD = 3;
+
+    // candidate lines per orientation
+    private static final int MAX_LINES = 6;
+
+    // share of the working pixels considered to be edges
+    private static final float EDGE_FRACTION = 0.08f;
+
+    // minimum gradient magnitude of an edge, so that flat frames yield no lines
+    private static final int MIN_EDGE_MAGNITUDE = 48;
+
+    private static final int MAGNITUDE_BINS = 1024;
+
+    private static final float[] COS = new float[THETA_BINS];
+    private static final float[] SIN = new float[THETA_BINS];
+
+    static {
+        for (int t = 0; t < THETA_BINS; t++) {
+            double theta = Math.PI * t / THETA_BINS;
+            COS[t] = (float) Math.cos(theta);
+            SIN[t] = (float) Math.sin(theta);
+        }
+    }
+
+    private final int mMaxSide;
+    private final float mMinArea;
+
+    private int mFrameWidth, mFrameHeight;
+    private int mScale, mWidth, mHeight, mDiagonal, mRhoBins;
+
+    private int[] mWork;
+    private int[] mMagnitude;
+    private int[] mHistogram;
+    private int[] mAccumulator;
+
+    // candidate lines: [0] roughly horizontal, [1] roughly vertical
+    private final int[][] mLineTheta = new int[2][MAX_LINES];
+    private final int[][] mLineRho = new int[2][MAX_LINES];
+    private final int[][] mLineVotes = new int[2][MAX_LINES];
+    private final int[] mLineCount = new int[2];
+
+    private final float[] mCorners = new float[8];
+    private final float[] mBestCorners = new float[8];
+
+
+    /**
+     * @param maxSide Maximum width or height of the working image.
+     * @param minArea Minimum area of a document, as a fraction of the frame.
+     */
+    public QuadDetector(int maxSide, float minArea) {
+        mMaxSide = maxSide;
+        mMinArea = minArea;
+    }
+
+
+    /**
+     * @param y         Y plane (or a frame in a format that starts with the Y plane).
+     * @param width     Width of the Y plane
+     * @param height    Height of the Y plane
+     * @param timestamp Timestamp of the frame, passed on to the {@link Quad}.
+     * @return Best quad found, or an empty {@link Quad} if no document was found.
+     */
+    public Quad detect(byte[] y, int width, int height, long timestamp) {
+        prepare(width, height);
+        downscale(y, width);
+        return detectInWorkingImage(timestamp);
+    }
+
+
+    /**
+     * Same as `detect()`, for a plane that has already been downscaled by the caller.
+     *
+     * @param plane       Downscaled Y plane
+     * @param planeWidth  Width of `plane`
+     * @param planeHeight Height of `plane`
+     * @param frameWidth  Width of the frame; an integer multiple of `planeWidth`.
+     * @param frameHeight Height of the frame
+     * @param timestamp   Timestamp of the frame, passed on to the {@link Quad}.
+     * @return Best quad found, or an empty {@link Quad} if no document was found.
+     */
+    public Quad detectScaled(byte[] plane, int planeWidth, int planeHeight,
+                             int frameWidth, int frameHeight, long timestamp) {
+        int scale = Math.max(1, frameWidth / planeWidth);
+        prepareWorkingImage(frameWidth, frameHeight, planeWidth, planeHeight, scale);
+
+        int[] work = mWork;
+        for (int i = 0, n = planeWidth * planeHeight; i < n; i++) {
+            work[i] = plane[i] & 0xff;
+        }
+
+        return detectInWorkingImage(timestamp);
+    }
+
+
+    private void prepare(int width, int height) {
+        int scale = Math.max(1, (Math.max(width, height) + mMaxSide - 1) / mMaxSide);
+        prepareWorkingImage(width, height, width / scale, height / scale, scale);
+    }
+
+    private void prepareWorkingImage(int frameWidth, int frameHeight, int w, int h, int scale) {
+        mFrameWidth = frameWidth;
+        mFrameHeight = frameHeight;
+
+        if (mWork != null && w == mWidth && h == mHeight && scale == mScale) {
+            return;
+        }
+
+        mScale = scale;
+        mWidth = w;
+        mHeight = h;
+        mDiagonal = (int) Math.ceil(Math.sqrt(w * w + h * h));
+        mRhoBins = 2 * mDiagonal + 1;
+
+        mWork = new int[w * h];
+        mMagnitude = new int[w * h];
+        mHistogram = new int[MAGNITUDE_BINS];
+        mAccumulator = new int[THETA_BINS * mRhoBins];
+    }
+
+
+    private void downscale(byte[] y, int stride) {
+        int scale = mScale;
+        int[] work = mWork;
+        int w = mWidth, h = mHeight;
+
+        if (scale == 1) {
+            for (int row = 0; row < h; row++) {
+                int src = row * stride;
+                int dst = row * w;
+                for (int x = 0; x < w; x++) {
+                    work[dst + x] = y[src + x] & 0xff;
+                }
+            }
+            return;
+        }
+
+        int area = scale * scale;
+
+        for (int row = 0; row < h; row++) {
+            int dst = row * w;
+            for (int x = 0; x < w; x++) {
+                work[dst + x] = 0;
+            }
+
+            for (int dy = 0; dy < scale; dy++) {
+                int src = (row * scale + dy) * stride;
+                for (int x = 0; x < w; x++) {
+                    int sum = 0;
+                    for (int dx = 0; dx < scale; dx++) {
+                        sum += y[src++] & 0xff;
+                    }
+                    work[dst + x] += sum;
+                }
+            }
+
+            for (int x = 0; x < w; x++) {
+                work[dst + x] /= area;
+            }
+        }
+    }
+
+
+    private Quad detectInWorkingImage(long timestamp) {
+        int threshold = computeGradients();
+        if (threshold < 0) {
+            return Quad.empty(timestamp);
+        }
+
+        vote(threshold);
+        findLines();
+
+        float score = findBestQuad();
+        if (score <= 0) {
+            return Quad.empty(timestamp);
+        }
+
+        // working image pixel centres to normalised frame coordinates
+        float offset = mScale / 2f;
+        float[] corners = mBestCorners;
+        float[] out = mCorners;
+
+        for (int i = 0; i < 4; i++) {
+            out[i * 2] = clamp01((corners[i * 2] * mScale + offset) / mFrameWidth);
+            out[i * 2 + 1] = clamp01((corners[i * 2 + 1] * mScale + offset) / mFrameHeight);
+        }
+
+        float perimeter = 0f;
+        for (int i = 0; i < 4; i++) {
+            int j = (i + 1) % 4;
+            float dx = corners[j * 2] - corners[i * 2];
+            float dy = corners[j * 2 + 1] - corners[i * 2 + 1];
+            perimeter += (float) Math.sqrt(dx * dx + dy * dy);
+        }
+
+        return new Quad(out, Math.min(1f, score / perimeter), timestamp);
+    }
+
+
+    /**
+     * Computes Sobel gradient magnitudes into `mMagnitude`.
+     *
+     * @return Magnitude threshold for edges, or -1 if the frame has too few edges.
+     */
+    private int computeGradients() {
+        int w = mWidth, h = mHeight;
+        int[] p = mWork;
+        int[] mag = mMagnitude;
+        int[] hist = mHistogram;
+
+        for (int i = 0; i < MAGNITUDE_BINS; i++) {
+            hist[i] = 0;
+        }
+
+        int count = 0;
+
+        for (int row = 1; row < h - 1; row++) {
+            int i = row * w + 1;
+            for (int x = 1; x < w - 1; x++, i++) {
+                int tl = p[i - w - 1], t = p[i - w], tr = p[i - w + 1];
+                int l = p[i - 1], r = p[i + 1];
+                int bl = p[i + w - 1], b = p[i + w], br = p[i + w + 1];
+
+                int gx = (tr + 2 * r + br) - (tl + 2 * l + bl);
+                int gy = (bl + 2 * b + br) - (tl + 2 * t + tr);
+                int m = Math.abs(gx) + Math.abs(gy);
+
+                mag[i] = m;
+                hist[Math.min(MAGNITUDE_BINS - 1, m)]++;
+                count++;
+            }
+        }
+
+        // magnitude above which EDGE_FRACTION of the pixels lie
+        int target = (int) (count * EDGE_FRACTION);
+        int above = 0;
+        int threshold = MAGNITUDE_BINS - 1;
+        while (threshold > 0 && above + hist[threshold] < target) {
+            above += hist[threshold];
+            threshold--;
+        }
+
+        threshold = Math.max(threshold, MIN_EDGE_MAGNITUDE);
+
+        // not enough structure for the outline of a document
+        int edges = 0;
+        for (int i = threshold; i < MAGNITUDE_BINS; i++) {
+            edges += hist[i];
+        }
+
+        return (edges < Math.min(w, h)) ? -1 : threshold;
+    }
+
+
+    private void vote(int threshold) {
+        int w = mWidth, h = mHeight;
+        int[] p = mWork;
+        int[] mag = mMagnitude;
+        int[] acc = mAccumulator;
+        int rhoBins = mRhoBins;
+        int diagonal = mDiagonal;
+
+        for (int i = 0, n = acc.length; i < n; i++) {
+            acc[i] = 0;
+        }
+
+        for (int row = 1; row < h - 1; row++) {
+            int i = row * w + 1;
+            for (int x = 1; x < w - 1; x++, i++) {
+                if (mag[i] < threshold) {
+                    continue;
+                }
+
+                int gx = (p[i - w + 1] + 2 * p[i + 1] + p[i + w + 1]) -
+                        (p[i - w - 1] + 2 * p[i - 1] + p[i + w - 1]);
+                int gy = (p[i + w - 1] + 2 * p[i + w] + p[i + w + 1]) -
+                        (p[i - w - 1] + 2 * p[i - w] + p[i - w + 1]);
+
+                // the gradient is normal to the edge, i.e. along the line's normal
+                double phi = Math.atan2(gy, gx);
+                if (phi < 0) {
+                    phi += Math.PI;
+                }
+
+                int center = (int) Math.round(phi * THETA_BINS / Math.PI);
+
+                for (int d = -THETA_SPREAD; d <= THETA_SPREAD; d++) {
+                    // theta wraps around at 180 degrees; rho is computed for the wrapped angle
+                    int t = center + d;
+                    if (t < 0) {
+                        t += THETA_BINS;
+                    } else if (t >= THETA_BINS) {
+                        t -= THETA_BINS;
+                    }
+
+                    int rhoBin = Math.round(x * COS[t] + row * SIN[t]) + diagonal;
+                    if (rhoBin < 0 || rhoBin >= rhoBins) {
+                        continue;
+                    }
+
+                    acc[t * rhoBins + rhoBin]++;
+                }
+            }
+        }
+    }
+
+
+    private void findLines() {
+        int[] acc = mAccumulator;
+        int rhoBins = mRhoBins;
+
+        mLineCount[0] = 0;
+        mLineCount[1] = 0;
+
+        for (int t = 0; t < THETA_BINS; t++) {
+            // normals near 90 degrees belong to roughly horizontal lines
+            int group = (t >= THETA_BINS / 4 && t < THETA_BINS * 3 / 4) ? 0 : 1;
+
+            // a side of a document spans at least a fifth of the frame
+            int minVotes = ((group == 0) ? mWidth : mHeight) / 5;
+
+            for (int r = 0; r < rhoBins; r++) {
+                int votes = acc[t * rhoBins + r];
+                if (votes < minVotes || !isLocalMaximum(t, r, votes)) {
+                    continue;
+                }
+
+                addLine(group, t, r - mDiagonal, votes);
+            }
+        }
+    }
+
+    private boolean isLocalMaximum(int t, int r, int votes) {
+        int[] acc = mAccumulator;
+        int rhoBins = mRhoBins;
+
+        for (int dt = -2; dt <= 2; dt++) {
+            int tt = t + dt;
+            if (tt < 0 || tt >= THETA_BINS) {
+                continue;
+            }
+
+            for (int dr = -3; dr <= 3; dr++) {
+                int rr = r + dr;
+                if (rr < 0 || rr >= rhoBins || (dt == 0 && dr == 0)) {
+                    continue;
+                }
+
+                int v = acc[tt * rhoBins + rr];
+                // ties are broken towards the first cell
+                if (v > votes || (v == votes && (dt < 0 || (dt == 0 && dr < 0)))) {
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+
+    private void addLine(int group, int theta, int rho, int votes) {
+        int[] thetas = mLineTheta[group];
+        int[] rhos = mLineRho[group];
+        int[] counts = mLineVotes[group];
+        int n = mLineCount[group];
+
+        // near-duplicates of a stronger line are not separate sides
+        for (int i = 0; i < n; i++) {
+            if (isSameLine(thetas[i], rhos[i], theta, rho)) {
+                if (counts[i] >= votes) {
+                    return;
+                }
+
+                removeLine(group, i);
+                n--;
+                break;
+            }
+        }
+
+        int pos = n;
+        while (pos > 0 && counts[pos - 1] < votes) {
+            pos--;
+        }
+
+        if (pos >= MAX_LINES) {
+            return;
+        }
+
+        int last = Math.min(n, MAX_LINES - 1);
+        for (int i = last; i > pos; i--) {
+            thetas[i] = thetas[i - 1];
+            rhos[i] = rhos[i - 1];
+            counts[i] = counts[i - 1];
+        }
+
+        thetas[pos] = theta;
+        rhos[pos] = rho;
+        counts[pos] = votes;
+        mLineCount[group] = Math.min(n + 1, MAX_LINES);
+    }
+
+    private void removeLine(int group, int index) {
+        int n = mLineCount[group];
+        for (int i = index; i < n - 1; i++) {
+            mLineTheta[group][i] = mLineTheta[group][i + 1];
+            mLineRho[group][i] = mLineRho[group][i + 1];
+            mLineVotes[group][i] = mLineVotes[group][i + 1];
+        }
+
+        mLineCount[group] = n - 1;
+    }
+
+    private boolean isSameLine(int t1, int r1, int t2, int r2) {
+        int dt = Math.abs(t1 - t2);
+        if (dt > THETA_BINS / 2) {
+            // across the wrap, the same line has the opposite rho
+            dt = THETA_BINS - dt;
+            r2 = -r2;
+        }
+
+        return dt <= 5 && Math.abs(r1 - r2) <= Math.max(4, Math.min(mWidth, mHeight) / 20);
+    }
+
+
+    /**
+     * Tries every pair of horizontal with every pair of vertical candidate lines.
+     *
+     * @return Score (total votes) of the best quad, stored in `mBestCorners`; 0 if none.
+     */
+    private float findBestQuad() {
+        int nh = mLineCount[0];
+        int nv = mLineCount[1];
+        float best = 0f;
+
+        float minArea = mMinArea * mWidth * mHeight;
+        float marginX = mWidth * 0.05f;
+        float marginY = mHeight * 0.05f;
+
+        for (int a = 0; a < nh; a++) {
+            for (int b = a + 1; b < nh; b++) {
+                // order top/bottom by where they cross the vertical centre line
+                int top = a, bottom = b;
+                if (yAt(0, a, mWidth / 2f) > yAt(0, b, mWidth / 2f)) {
+                    top = b;
+                    bottom = a;
+                }
+
+                if (yAt(0, bottom, mWidth / 2f) - yAt(0, top, mWidth / 2f) < mHeight / 4f) {
+                    continue;
+                }
+
+                for (int c = 0; c < nv; c++) {
+                    for (int d = c + 1; d < nv; d++) {
+                        int left = c, right = d;
+                        if (xAt(1, c, mHeight / 2f) > xAt(1, d, mHeight / 2f)) {
+                            left = d;
+                            right = c;
+                        }
+
+                        if (xAt(1, right, mHeight / 2f) - xAt(1, left, mHeight / 2f) < mWidth / 4f) {
+                            continue;
+                        }
+
+                        int votes = mLineVotes[0][top] + mLineVotes[0][bottom] +
+                                mLineVotes[1][left] + mLineVotes[1][right];
+                        if (votes <= best) {
+                            continue;
+                        }
+
+                        float[] q = mCorners;
+                        if (!intersect(top, left, q, 0) || !intersect(top, right, q, 2) ||
+                                !intersect(bottom, right, q, 4) || !intersect(bottom, left, q, 6)) {
+                            continue;
+                        }
+
+                        if (!isInside(q, marginX, marginY) || !isConvex(q) || area(q) < minArea) {
+                            continue;
+                        }
+
+                        best = votes;
+                        System.arraycopy(q, 0, mBestCorners, 0, 8);
+                    }
+                }
+            }
+        }
+
+        return best;
+    }
+
+    private float yAt(int group, int line, float x) {
+        int t = mLineTheta[group][line];
+        return (mLineRho[group][line] - x * COS[t]) / SIN[t];
+    }
+
+    private float xAt(int group, int line, float y) {
+        int t = mLineTheta[group][line];
+        return (mLineRho[group][line] - y * SIN[t]) / COS[t];
+    }
+
+    private boolean intersect(int horizontal, int vertical, float[] out, int offset) {
+        int t1 = mLineTheta[0][horizontal], t2 = mLineTheta[1][vertical];
+        float r1 = mLineRho[0][horizontal], r2 = mLineRho[1][vertical];
+
+        float det = COS[t1] * SIN[t2] - SIN[t1] * COS[t2];
+        if (Math.abs(det) < 1e-3f) {
+            return false;
+        }
+
+        out[offset] = (r1 * SIN[t2] - r2 * SIN[t1]) / det;
+        out[offset + 1] = (COS[t1] * r2 - COS[t2] * r1) / det;
+        return true;
+    }
+
+    private boolean isInside(float[] q, float marginX, float marginY) {
+        for (int i = 0; i < 4; i++) {
+            float x = q[i * 2], y = q[i * 2 + 1];
+            if (x < -marginX || x > mWidth + marginX || y < -marginY || y > mHeight + marginY) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static boolean isConvex(float[] q) {
+        int sign = 0;
+        for (int i = 0; i < 4; i++) {
+            int j = (i + 1) % 4, k = (i + 2) % 4;
+            float cross = (q[j * 2] - q[i * 2]) * (q[k * 2 + 1] - q[j * 2 + 1]) -
+                    (q[j * 2 + 1] - q[i * 2 + 1]) * (q[k * 2] - q[j * 2]);
+            int s = (cross > 0) ? 1 : (cross < 0) ? -1 : 0;
+
+            if (s == 0 || (sign != 0 && s != sign)) {
+                return false;
+            }
+
+            sign = s;
+        }
+
+        return true;
+    }
+
+    private static float area(float[] q) {
+        float sum = 0f;
+        for (int i = 0; i < 4; i++) {
+            int j = (i + 1) % 4;
+            sum += q[i * 2] * q[j * 2 + 1] - q[j * 2] * q[i * 2 + 1];
+        }
+
+        return Math.abs(sum) / 2f;
+    }
+
+    private static float clamp01(float v) {
+        return (v < 0f) ? 0f : (v > 1f) ? 1f : v;
+    }
+}
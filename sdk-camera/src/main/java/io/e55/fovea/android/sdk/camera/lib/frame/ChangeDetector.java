@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2015 Shirish Kamath.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package io.e55.fovea.android.sdk.camera.lib.frame;
+
+
+/**
+ * Tells whether a preview frame differs from the ones before it, so that frame analysis can be
+ * throttled while the Camera looks at a static scene (e.g. the phone lies on a desk).
+ *
+ * A frame's signature is the sum of each block of a 16 x 16 grid over a downscaled Y plane
+ * (typically the 1/8 {@link YPyramid} level). Once the signature has changed by less than the
+ * threshold for a number of consecutive frames, the scene is considered static and only every
+ * `staticInterval`th frame is passed on; the first changed frame ends the static period.
+ *
+ * The decision only depends on the planes it is given. Methods are synchronized so that the
+ * detector can be reset from another thread.
+ */
+public class ChangeDetector {
+
+    private static final int GRID = 16;
+
+    private final float mThreshold;
+    private final int mStaticFrames, mStaticInterval;
+
+    private final int[] mSignature = new int[GRID * GRID];
+    private final int[] mPrevious = new int[GRID * GRID];
+    private boolean mHasPrevious;
+
+    private float mChange;
+    private int mUnchangedCount, mSinceAnalyzed;
+
+
+    /**
+     * @param threshold      Mean change of the block means, in normalised luma, below which
+     *                       a frame counts as unchanged.
+     * @param staticFrames   Consecutive unchanged frames after which the scene is static.
+     * @param staticInterval While static, one in this many frames is analyzed; 1 analyzes all.
+     */
+    public ChangeDetector(float threshold, int staticFrames, int staticInterval) {
+        mThreshold = threshold;
+        mStaticFrames = Math.max(1, staticFrames);
+        mStaticInterval = Math.max(1, staticInterval);
+    }
+
+
+    /**
+     * @param plane  Downscaled Y plane, with a stride of `width`.
+     * @param width  Width of the plane
+     * @param height Height of the plane
+     * @return true if the frame should be analyzed.
+     */
+    public synchronized boolean update(byte[] plane, int width, int height) {
+        computeSignature(plane, width, height);
+
+        if (!mHasPrevious) {
+            mHasPrevious = true;
+            mChange = 1f;
+            return analyzed();
+        }
+
+        mChange = difference(width, height);
+
+        if (mChange >= mThreshold) {
+            mUnchangedCount = 0;
+            return analyzed();
+        }
+
+        mUnchangedCount++;
+        if (mUnchangedCount < mStaticFrames || ++mSinceAnalyzed >= mStaticInterval) {
+            return analyzed();
+        }
+
+        return false;
+    }
+
+    private boolean analyzed() {
+        mSinceAnalyzed = 0;
+        return true;
+    }
+
+
+    private void computeSignature(byte[] plane, int width, int height) {
+        int[] signature = mSignature;
+        System.arraycopy(signature, 0, mPrevious, 0, signature.length);
+
+        for (int i = 0; i < signature.length; i++) {
+            signature[i] = 0;
+        }
+
+        int blockWidth = Math.max(1, width / GRID);
+        int blockHeight = Math.max(1, height / GRID);
+        int cols = Math.min(width, blockWidth * GRID);
+        int rows = Math.min(height, blockHeight * GRID);
+
+        for (int row = 0; row < rows; row++) {
+            int p = row * width;
+            int block = (row / blockHeight) * GRID;
+
+            for (int bx = 0, col = 0; bx < GRID && col < cols; bx++) {
+                int sum = 0;
+                for (int end = col + blockWidth; col < end; col++) {
+                    sum += plane[p + col] & 0xff;
+                }
+                signature[block + bx] += sum;
+            }
+        }
+    }
+
+    private float difference(int width, int height) {
+        int[] signature = mSignature;
+        int[] previous = mPrevious;
+
+        long diff = 0;
+        for (int i = 0; i < signature.length; i++) {
+            diff += Math.abs(signature[i] - previous[i]);
+        }
+
+        int blockArea = Math.max(1, width / GRID) * Math.max(1, height / GRID);
+        return diff / (signature.length * blockArea * 255f);
+    }
+
+
+    /**
+     * Forgets the previous frames, e.g. when the preview restarts.
+     */
+    public synchronized void reset() {
+        mHasPrevious = false;
+        mUnchangedCount = 0;
+        mSinceAnalyzed = 0;
+    }
+
+
+    /**
+     * @return Change of the last frame from the one before, in [0, 1].
+     */
+    public synchronized float getChange() {
+        return mChange;
+    }
+
+
+    /**
+     * @return true if the scene has been static long enough for frames to be skipped.
+     */
+    public synchronized boolean isStatic() {
+        return mUnchangedCount >= mStaticFrames;
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2015 Shirish Kamath.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package io.e55.fovea.android.sdk.camera.lib.frame;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * A pooled Camera preview frame handed to {@link FrameAnalyzer}s by the {@link FramePipeline}.
+ *
+ * The frame's buffer goes back to the Camera once every holder has released it. Analyzers
+ * hold the frame for the duration of `analyze()`; to use it beyond that, call `retain()`
+ * and later `release()` exactly once.
+ */
+public class Frame {
+
+    private final FramePipeline mPipeline;
+    private final byte[] mData;
+    private final int mWidth, mHeight;
+    private final int mPoolId;
+
+    private final AtomicInteger mRefCount;
+    private final YPyramid mPyramid;
+
+    private volatile long mTimestamp, mSequence;
+
+    // whether the Camera has the buffer; guarded by the pipeline
+    private boolean mIsQueued;
+
+
+    Frame(FramePipeline pipeline, byte[] data, int width, int height, int poolId) {
+        mPipeline = pipeline;
+        mData = data;
+        mWidth = width;
+        mHeight = height;
+        mPoolId = poolId;
+        mRefCount = new AtomicInteger();
+        mPyramid = new YPyramid(data, width, height);
+    }
+
+
+    void prepare(long timestamp, long sequence) {
+        mTimestamp = timestamp;
+        mSequence = sequence;
+        mPyramid.invalidate();
+        mRefCount.set(1);
+    }
+
+
+    /**
+     * @return Frame data in the preview format (NV21 by default); the Y plane occupies the
+     * first `width * height` bytes.
+     */
+    public byte[] getData() {
+        return mData;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * @return Downscaled copies of the Y plane, shared by all holders of this frame.
+     */
+    public YPyramid getPyramid() {
+        return mPyramid;
+    }
+
+    /**
+     * @return Time at which the frame was received, in `System.nanoTime()` nanoseconds.
+     */
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    /**
+     * @return Sequence number of the frame within the preview session.
+     */
+    public long getSequence() {
+        return mSequence;
+    }
+
+    int getPoolId() {
+        return mPoolId;
+    }
+
+    boolean isInUse() {
+        return mRefCount.get() > 0;
+    }
+
+    boolean isQueued() {
+        return mIsQueued;
+    }
+
+    void setQueued(boolean queued) {
+        mIsQueued = queued;
+    }
+
+
+    public void retain() {
+        mRefCount.incrementAndGet();
+    }
+
+    public void release() {
+        int refCount = mRefCount.decrementAndGet();
+
+        if (refCount == 0) {
+            mPipeline.recycle(this);
+        } else if (refCount < 0) {
+            mRefCount.set(0);
+            throw new IllegalStateException("Frame released too often");
+        }
+    }
+}
@@ -0,0 +1,347 @@
+/*
+ * Copyright (c) 2015 Shirish Kamath.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package io.e55.fovea.android.sdk.camera.lib.frame;
+
+import io.e55.fovea.android.sdk.camera.lib.image.RowBands;
+
+
+/**
+ * Averages consecutive NV21 preview frames into one, to reduce the noise of captures in dim
+ * light.
+ *
+ * Each frame is aligned to the first one by a global translation, searched coarse to fine
+ * over the levels of the frames' {@link YPyramid}s, and then added to a running sum. Frames are
+ * therefore not held while more are collected, and memory stays at one sum buffer plus one copy
+ * of the reference pyramid, whatever the number of frames. Buffers are reused as long as the
+ * frame size does not change.
+ * <p/>
+ * Sums and the final average run in parallel row bands (see {@link RowBands}).
+ * Instances are not thread-safe.
+ */
+public class FrameFusion {
+
+    // search radius at the coarsest level, in its pixels; +/- 32 pixels of the full frame
+    private static final int COARSE_RADIUS = 4;
+
+    // approximate number of pixels compared for each candidate translation
+    private static final int MATCH_SAMPLES = 16384;
+
+    // mean difference, in 1/256 of a luma level, by which a translation must beat the one
+    // predicted by the coarser level (none at the coarsest); more than noise alone makes up
+    private static final long MIN_GAIN = 32;
+
+    // more frames would overflow the 16-bit sums
+    private static final int MAX_FRAMES = 255;
+
+    private int mWidth, mHeight;
+
+    // Y then interleaved VU sums, as in NV21
+    private char[] mSum;
+    private final byte[][] mReference = new byte[YPyramid.LEVELS][];
+    private final int[] mRefWidths = new int[YPyramid.LEVELS];
+    private final int[] mRefHeights = new int[YPyramid.LEVELS];
+
+    private int mCount;
+    private int mShiftX, mShiftY;
+
+
+    /**
+     * Starts a new average with the given frame as the reference.
+     *
+     * @param frame First frame; all others are aligned to it.
+     */
+    public void begin(Frame frame) {
+        int width = frame.getWidth();
+        int height = frame.getHeight();
+
+        if (mSum == null || width != mWidth || height != mHeight) {
+            mWidth = width;
+            mHeight = height;
+            mSum = new char[width * height * 3 / 2];
+
+            for (int i = 0; i < YPyramid.LEVELS; i++) {
+                mReference[i] = null;
+            }
+        }
+
+        YPyramid pyramid = frame.getPyramid();
+        for (int i = 0; i < YPyramid.LEVELS; i++) {
+            byte[] level = pyramid.getLevel(i);
+            int size = pyramid.getWidth(i) * pyramid.getHeight(i);
+
+            if (mReference[i] == null) {
+                mReference[i] = new byte[size];
+            }
+
+            System.arraycopy(level, 0, mReference[i], 0, size);
+            mRefWidths[i] = pyramid.getWidth(i);
+            mRefHeights[i] = pyramid.getHeight(i);
+        }
+
+        mCount = 0;
+        accumulate(frame.getData(), 0, 0, true);
+    }
+
+
+    /**
+     * Aligns a frame to the reference and adds it to the average.
+     *
+     * @param frame Frame of the same size as the reference.
+     * @return false if the frame could not be added, e.g. because it moved too far.
+     */
+    public boolean add(Frame frame) {
+        if (mCount == 0 || mCount >= MAX_FRAMES ||
+                frame.getWidth() != mWidth || frame.getHeight() != mHeight) {
+            return false;
+        }
+
+        if (!align(frame.getPyramid())) {
+            return false;
+        }
+
+        accumulate(frame.getData(), mShiftX, mShiftY, false);
+        return true;
+    }
+
+
+    /**
+     * @return Number of frames averaged so far.
+     */
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * @return Horizontal offset of the last frame added relative to the reference, in pixels.
+     */
+    public int getShiftX() {
+        return mShiftX;
+    }
+
+    /**
+     * @return Vertical offset of the last frame added relative to the reference, in pixels.
+     */
+    public int getShiftY() {
+        return mShiftY;
+    }
+
+
+    /**
+     * Writes the average of the frames added so far.
+     *
+     * @param out NV21 frame of the reference's size.
+     */
+    public void finish(final byte[] out) {
+        final char[] sum = mSum;
+        final int count = Math.max(1, mCount);
+        final int width = mWidth;
+
+        // Y rows followed by VU rows
+        int rows = mHeight + mHeight / 2;
+
+        RowBands.run(rows, 32, new RowBands.RowTask() {
+            @Override
+            public void run(int startRow, int endRow) {
+                int half = count / 2;
+                for (int i = startRow * width, end = endRow * width; i < end; i++) {
+                    out[i] = (byte) ((sum[i] + half) / count);
+                }
+            }
+        });
+    }
+
+
+    /**
+     * Finds the translation of a frame against the reference, from the coarsest pyramid level
+     * to the Y plane, refining by one pixel at each finer level.
+     */
+    private boolean align(YPyramid pyramid) {
+        int top = YPyramid.LEVELS - 1;
+        int dx = 0, dy = 0;
+
+        for (int level = top; level >= 0; level--) {
+            int radius = (level == top) ? COARSE_RADIUS : 1;
+            byte[] plane = pyramid.getLevel(level);
+            int w = mRefWidths[level];
+            int h = mRefHeights[level];
+
+            if (pyramid.getWidth(level) != w || pyramid.getHeight(level) != h) {
+                return false;
+            }
+
+            // wide enough for the largest translation searched at this level
+            int margin = (COARSE_RADIUS + 1) << (top - level);
+            if (w <= 2 * margin || h <= 2 * margin) {
+                return false;
+            }
+
+            int step = Math.max(1, (int) Math.sqrt((double) (w - 2 * margin) *
+                    (h - 2 * margin) / MATCH_SAMPLES));
+
+            // the prediction wins ties, so that frames without detail do not drift
+            long best = difference(mReference[level], plane, w, h, dx, dy, margin, step,
+                    Long.MAX_VALUE);
+            int bestX = dx, bestY = dy;
+
+            for (int sy = dy - radius; sy <= dy + radius; sy++) {
+                for (int sx = dx - radius; sx <= dx + radius; sx++) {
+                    if (sx == dx && sy == dy) {
+                        continue;
+                    }
+
+                    long mad = difference(mReference[level], plane, w, h, sx, sy, margin, step,
+                            best - MIN_GAIN);
+                    if (mad < best - MIN_GAIN) {
+                        best = mad;
+                        bestX = sx;
+                        bestY = sy;
+                    }
+                }
+            }
+
+            if (level > 0) {
+                dx = bestX * 2;
+                dy = bestY * 2;
+            } else {
+                dx = bestX;
+                dy = bestY;
+            }
+        }
+
+        mShiftX = dx;
+        mShiftY = dy;
+
+        int limit = COARSE_RADIUS << top;
+        return Math.abs(dx) <= limit && Math.abs(dy) <= limit;
+    }
+
+
+    /**
+     * Mean absolute difference, in 1/256 of a luma level, between the reference and the frame
+     * shifted by (dx, dy). The same window of the reference, inside the margin, is compared
+     * for every translation, on a sparse grid. Returns `limit` as soon as it is reached.
+     */
+    private static long difference(byte[] ref, byte[] plane, int w, int h, int dx, int dy,
+                                   int margin, int step, long limit) {
+        int x0 = margin, x1 = w - margin;
+        int y0 = margin, y1 = h - margin;
+
+        long samples = (long) ((x1 - x0 + step - 1) / step) * ((y1 - y0 + step - 1) / step);
+        long maxSad = (limit == Long.MAX_VALUE) ? Long.MAX_VALUE : (limit * samples) >> 8;
+
+        long sad = 0;
+        for (int y = y0; y < y1; y += step) {
+            int r = y * w;
+            int p = (y + dy) * w + dx;
+
+            for (int x = x0; x < x1; x += step) {
+                sad += Math.abs((ref[r + x] & 0xff) - (plane[p + x] & 0xff));
+            }
+
+            if (sad >= maxSad) {
+                return limit;
+            }
+        }
+
+        return (sad << 8) / samples;
+    }
+
+
+    private void accumulate(final byte[] data, final int dx, final int dy, final boolean first) {
+        final char[] sum = mSum;
+        final int width = mWidth;
+        final int height = mHeight;
+
+        // chroma is subsampled 2 x 2 and interleaved; shift by whole VU pairs
+        final int cdx = dx / 2;
+        final int cdy = dy / 2;
+        final int chromaRows = height / 2;
+
+        RowBands.run(height + chromaRows, 32, new RowBands.RowTask() {
+            @Override
+            public void run(int startRow, int endRow) {
+                for (int row = startRow; row < endRow; row++) {
+                    if (row < height) {
+                        int src = clamp(row + dy, height) * width;
+                        addRow(data, src, dx, 1, sum, row * width, width, first);
+                    } else {
+                        int c = row - height;
+                        int src = width * height + clamp(c + cdy, chromaRows) * width;
+                        addRow(data, src, cdx, 2, sum, width * height + c * width, width, first);
+                    }
+                }
+            }
+        });
+
+        mCount++;
+    }
+
+
+    /**
+     * Adds a source row, shifted by `shift` pixels of `pixelSize` bytes and clamped at the
+     * edges, to a row of sums. `src` is the start of the source row.
+     */
+    private static void addRow(byte[] data, int src, int shift, int pixelSize,
+                               char[] sum, int dst, int width, boolean first) {
+        int pixels = width / pixelSize;
+
+        // pixels whose source lies inside the row
+        int start = Math.min(pixels, Math.max(0, -shift));
+        int end = Math.max(start, Math.min(pixels, pixels - shift));
+
+        for (int x = 0; x < start; x++) {
+            addPixel(data, src, pixelSize, sum, dst + x * pixelSize, first);
+        }
+
+        int offset = src + shift * pixelSize - dst;
+        int from = dst + start * pixelSize;
+        int to = dst + end * pixelSize;
+
+        if (first) {
+            for (int i = from; i < to; i++) {
+                sum[i] = (char) (data[i + offset] & 0xff);
+            }
+        } else {
+            for (int i = from; i < to; i++) {
+                sum[i] += data[i + offset] & 0xff;
+            }
+        }
+
+        int last = src + (pixels - 1) * pixelSize;
+        for (int x = end; x < pixels; x++) {
+            addPixel(data, last, pixelSize, sum, dst + x * pixelSize, first);
+        }
+    }
+
+    private static void addPixel(byte[] data, int src, int pixelSize, char[] sum, int dst,
+                                 boolean first) {
+        for (int b = 0; b < pixelSize; b++) {
+            int v = data[src + b] & 0xff;
+            sum[dst + b] = first ? (char) v : (char) (sum[dst + b] + v);
+        }
+    }
+
+    private static int clamp(int v, int size) {
+        return (v < 0) ? 0 : (v >= size) ? size - 1 : v;
+    }
+}
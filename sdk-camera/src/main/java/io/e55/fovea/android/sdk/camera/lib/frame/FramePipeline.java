@@ -0,0 +1,674 @@
+/*
+ * Copyright (c) 2015 Shirish Kamath.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package io.e55.fovea.android.sdk.camera.lib.frame;
+
+import android.graphics.ImageFormat;
+import android.hardware.Camera;
+import android.os.Process;
+
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import timber.log.Timber;
+
+
+/**
+ * Delivers Camera preview frames from a small pool of pre-allocated callback buffers to
+ * {@link FrameListener}s on the Camera callback thread (the main looper) and to
+ * {@link FrameAnalyzer}s on a pool of worker threads.
+ * <p/>
+ * Each analyzer has a single slot for the next frame: if it is still busy when a new frame
+ * arrives, the waiting frame is replaced by the new one and counted as dropped. Slow analyzers
+ * therefore always see the latest frame and never build up a queue.
+ * <p/>
+ * Before frames reach the analyzers, a {@link ChangeDetector} compares them on a worker thread
+ * with the frames before; while the scene is static, most frames are skipped.
+ * <p/>
+ * A frame's buffer is handed back to the Camera once the listeners have returned and every
+ * analyzer has released it, and never while the Camera has it already. The pool grows as
+ * analyzers are added, up to a limit, since each may hold a frame.
+ */
+@SuppressWarnings("deprecation")
+public class FramePipeline implements Camera.PreviewCallback {
+
+    private static final int MIN_BUFFER_COUNT = 3;
+    private static final int MAX_BUFFER_COUNT = 6;
+
+    private static final FrameListener[] NO_LISTENERS = new FrameListener[0];
+    private static final AnalyzerSlot[] NO_ANALYZERS = new AnalyzerSlot[0];
+
+    private final Executor mExecutor;
+
+    private final ChangeDetector mChangeDetector;
+    private final AnalyzerSlot mChangeGate;
+    private final AtomicLong mSkipped = new AtomicLong();
+    private final AtomicLong mPassed = new AtomicLong();
+
+    private FrameSource mSource;
+    private int mWidth, mHeight, mBufferSize;
+
+    // read on the Camera callback thread; replaced when the pool grows
+    private volatile Frame[] mFrames;
+    private int mPoolId;
+    private long mSequence;
+
+    // replaced on every add/remove so that dispatching a frame never allocates
+    private volatile FrameListener[] mListeners = NO_LISTENERS;
+    private volatile AnalyzerSlot[] mAnalyzers = NO_ANALYZERS;
+
+
+    /**
+     * Receives preview frames on the Camera callback thread.
+     */
+    public interface FrameListener {
+
+        /**
+         * Invoked for each preview frame. The data is only valid until this method returns.
+         *
+         * @param data   Frame data in the preview format (NV21 by default); the Y plane
+         *               occupies the first `width * height` bytes.
+         * @param width  Width of the preview frame
+         * @param height Height of the preview frame
+         */
+        void onPreviewFrame(byte[] data, int width, int height);
+    }
+
+
+    /**
+     * Fills the pipeline's buffers with preview frames: the Camera, or a stand-in.
+     */
+    interface FrameSource {
+
+        /**
+         * Queues an empty buffer, which comes back filled through `onPreviewFrame()`.
+         */
+        void addCallbackBuffer(byte[] buffer);
+
+        /**
+         * @param pipeline Pipeline to deliver frames to, or null to stop delivering them;
+         *                 the queued buffers are dropped then.
+         */
+        void setCallback(FramePipeline pipeline);
+    }
+
+
+    /**
+     * @param changeThreshold Change below which a frame counts as unchanged;
+     *                        see {@link ChangeDetector}.
+     * @param staticFrames    Unchanged frames after which the scene is static.
+     * @param staticInterval  While static, one in this many frames is analyzed.
+     */
+    public FramePipeline(float changeThreshold, int staticFrames, int staticInterval) {
+        this(changeThreshold, staticFrames, staticInterval, newExecutor());
+    }
+
+
+    /**
+     * @param executor Runs the analyzers.
+     */
+    FramePipeline(float changeThreshold, int staticFrames, int staticInterval,
+                  Executor executor) {
+        mChangeDetector = new ChangeDetector(changeThreshold, staticFrames, staticInterval);
+        mChangeGate = new AnalyzerSlot(new ChangeGate(), false);
+        mExecutor = executor;
+    }
+
+
+    private static Executor newExecutor() {
+        int threads = Math.max(1, Math.min(3, Runtime.getRuntime().availableProcessors() - 1));
+
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 30,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new WorkerThreadFactory());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+
+    /**
+     * Allocates the buffer pool for the current preview size of the Camera
+     * and starts receiving preview frames.
+     *
+     * @param camera Camera whose preview frames should be dispatched.
+     */
+    public synchronized void start(final Camera camera) {
+        stop();
+
+        Camera.Parameters parameters = camera.getParameters();
+        Camera.Size previewSize = parameters.getPreviewSize();
+        int bitsPerPixel = ImageFormat.getBitsPerPixel(parameters.getPreviewFormat());
+
+        if (previewSize == null || bitsPerPixel <= 0) {
+            Timber.w("Unknown preview size or format. Preview frames unavailable.");
+            return;
+        }
+
+        start(new FrameSource() {
+            @Override
+            public void addCallbackBuffer(byte[] buffer) {
+                camera.addCallbackBuffer(buffer);
+            }
+
+            @Override
+            public void setCallback(FramePipeline pipeline) {
+                camera.setPreviewCallbackWithBuffer(pipeline);
+            }
+        }, previewSize.width, previewSize.height,
+                previewSize.width * previewSize.height * bitsPerPixel / 8);
+    }
+
+
+    synchronized void start(FrameSource source, int width, int height, int bufferSize) {
+        stop();
+
+        // a pool grown for the analyzers of the last session is kept for the next
+        if (mFrames == null || mBufferSize != bufferSize ||
+                mWidth != width || mHeight != height) {
+            mWidth = width;
+            mHeight = height;
+            mBufferSize = bufferSize;
+            mPoolId++;
+            mFrames = new Frame[0];
+        }
+
+        mSource = source;
+
+        // frames still held by analyzers are handed over once released
+        for (Frame frame : mFrames) {
+            queueBuffer(frame);
+        }
+
+        source.setCallback(this);
+        mSequence = 0;
+        growBuffers();
+
+        mChangeDetector.reset();
+        mSkipped.set(0);
+        mPassed.set(0);
+        Timber.d("Preview frames: %d x %d (%d buffers)", mWidth, mHeight, mFrames.length);
+    }
+
+
+    /**
+     * Adds buffers to the pool, and to the Camera, until there are enough for the analyzers.
+     */
+    private void growBuffers() {
+        if (mSource == null) {
+            return;
+        }
+
+        // one frame may wait at the change gate besides those waiting for the analyzers
+        int analyzers = mAnalyzers.length;
+        int bufferCount = Math.min(MAX_BUFFER_COUNT,
+                MIN_BUFFER_COUNT + analyzers + ((analyzers > 0) ? 1 : 0));
+
+        Frame[] frames = mFrames;
+        if (frames.length >= bufferCount) {
+            return;
+        }
+
+        Frame[] grown = Arrays.copyOf(frames, bufferCount);
+        for (int i = frames.length; i < bufferCount; i++) {
+            grown[i] = new Frame(this, new byte[mBufferSize], mWidth, mHeight, mPoolId);
+        }
+        mFrames = grown;
+
+        for (int i = frames.length; i < bufferCount; i++) {
+            queueBuffer(grown[i]);
+        }
+    }
+
+
+    /**
+     * Stops receiving preview frames. Buffers are retained for reuse on the next `start()`.
+     */
+    public synchronized void stop() {
+        if (mSource != null) {
+            try {
+                mSource.setCallback(null);
+            } catch (RuntimeException e) {
+                // Camera was already released
+                Timber.w(e, "stop");
+            }
+
+            mSource = null;
+
+            // the Camera drops its buffers with the callback
+            for (Frame frame : mFrames) {
+                frame.setQueued(false);
+            }
+
+            Timber.d("%s, %.0f%% skipped", mChangeGate.mStats, getSkipRatio() * 100f);
+            for (AnalyzerSlot slot : mAnalyzers) {
+                Timber.d("%s", slot.mStats);
+            }
+        }
+    }
+
+
+    public synchronized void addListener(FrameListener listener) {
+        FrameListener[] listeners = mListeners;
+        for (FrameListener l : listeners) {
+            if (l == listener) {
+                return;
+            }
+        }
+
+        FrameListener[] updated = new FrameListener[listeners.length + 1];
+        System.arraycopy(listeners, 0, updated, 0, listeners.length);
+        updated[listeners.length] = listener;
+        mListeners = updated;
+    }
+
+
+    public synchronized void removeListener(FrameListener listener) {
+        FrameListener[] listeners = mListeners;
+        for (int i = 0; i < listeners.length; i++) {
+            if (listeners[i] == listener) {
+                FrameListener[] updated = new FrameListener[listeners.length - 1];
+                System.arraycopy(listeners, 0, updated, 0, i);
+                System.arraycopy(listeners, i + 1, updated, i, listeners.length - i - 1);
+                mListeners = (updated.length > 0) ? updated : NO_LISTENERS;
+                return;
+            }
+        }
+    }
+
+
+    public synchronized void addAnalyzer(FrameAnalyzer analyzer) {
+        addAnalyzer(analyzer, true);
+    }
+
+
+    /**
+     * @param analyzer      Analyzer to receive preview frames on a worker thread.
+     * @param skipUnchanged If false, the analyzer receives frames even while the scene is static,
+     *                      e.g. to collect consecutive frames.
+     */
+    public synchronized void addAnalyzer(FrameAnalyzer analyzer, boolean skipUnchanged) {
+        AnalyzerSlot[] analyzers = mAnalyzers;
+        for (AnalyzerSlot slot : analyzers) {
+            if (slot.mAnalyzer == analyzer) {
+                return;
+            }
+        }
+
+        AnalyzerSlot[] updated = new AnalyzerSlot[analyzers.length + 1];
+        System.arraycopy(analyzers, 0, updated, 0, analyzers.length);
+        updated[analyzers.length] = new AnalyzerSlot(analyzer, skipUnchanged);
+        mAnalyzers = updated;
+
+        // analyzers are mostly added once the preview runs, as modules start
+        growBuffers();
+    }
+
+
+    public synchronized void removeAnalyzer(FrameAnalyzer analyzer) {
+        AnalyzerSlot[] analyzers = mAnalyzers;
+        for (int i = 0; i < analyzers.length; i++) {
+            if (analyzers[i].mAnalyzer == analyzer) {
+                analyzers[i].close();
+
+                AnalyzerSlot[] updated = new AnalyzerSlot[analyzers.length - 1];
+                System.arraycopy(analyzers, 0, updated, 0, i);
+                System.arraycopy(analyzers, i + 1, updated, i, analyzers.length - i - 1);
+                mAnalyzers = (updated.length > 0) ? updated : NO_ANALYZERS;
+                return;
+            }
+        }
+    }
+
+
+    /**
+     * @param analyzer A registered {@link FrameAnalyzer}
+     * @return Cost and drop statistics of the analyzer, or null if it isn't registered.
+     */
+    public AnalyzerStats getStats(FrameAnalyzer analyzer) {
+        for (AnalyzerSlot slot : mAnalyzers) {
+            if (slot.mAnalyzer == analyzer) {
+                return slot.mStats;
+            }
+        }
+
+        return null;
+    }
+
+
+    /**
+     * @return Share of the frames in this preview session that were not analyzed because the
+     * scene was static, in [0, 1].
+     */
+    public float getSkipRatio() {
+        long skipped = mSkipped.get();
+        long total = skipped + mPassed.get();
+        return (total > 0) ? skipped / (float) total : 0f;
+    }
+
+
+    /**
+     * @return Number of frames in this preview session that were not analyzed because the
+     * scene was static.
+     */
+    public long getSkippedFrameCount() {
+        return mSkipped.get();
+    }
+
+
+    @Override
+    public void onPreviewFrame(byte[] data, Camera camera) {
+        if (data == null) {
+            return;
+        }
+
+        Frame frame = findFrame(data);
+        if (frame == null) {
+            // not one of ours (e.g. from a pool that was replaced)
+            return;
+        }
+
+        // in use before it stops counting as queued, so that a late recycle() can't requeue it
+        frame.prepare(System.nanoTime(), mSequence++);
+        synchronized (this) {
+            frame.setQueued(false);
+        }
+
+        FrameListener[] listeners = mListeners;
+        for (FrameListener l : listeners) {
+            l.onPreviewFrame(data, mWidth, mHeight);
+        }
+
+        boolean gated = false;
+
+        AnalyzerSlot[] analyzers = mAnalyzers;
+        for (AnalyzerSlot slot : analyzers) {
+            if (slot.mSkipUnchanged) {
+                gated = true;
+            } else {
+                slot.offer(frame);
+            }
+        }
+
+        if (gated) {
+            mChangeGate.offer(frame);
+        }
+
+        frame.release();
+    }
+
+
+    /**
+     * Passes changed frames on to the analyzers; runs on a worker thread, one frame at a time.
+     */
+    private class ChangeGate implements FrameAnalyzer {
+
+        @Override
+        public void analyze(Frame frame) {
+            YPyramid pyramid = frame.getPyramid();
+            int level = YPyramid.LEVELS - 1;
+
+            // the analyzers mostly need this level too, so it is rarely built for nothing
+            if (!mChangeDetector.update(pyramid.getLevel(level),
+                    pyramid.getWidth(level), pyramid.getHeight(level))) {
+                mSkipped.incrementAndGet();
+                return;
+            }
+
+            mPassed.incrementAndGet();
+
+            AnalyzerSlot[] analyzers = mAnalyzers;
+            for (AnalyzerSlot slot : analyzers) {
+                if (slot.mSkipUnchanged) {
+                    slot.offer(frame);
+                }
+            }
+        }
+    }
+
+
+    private Frame findFrame(byte[] data) {
+        Frame[] frames = mFrames;
+        if (frames != null) {
+            for (Frame frame : frames) {
+                if (frame.getData() == data) {
+                    return frame;
+                }
+            }
+        }
+
+        return null;
+    }
+
+
+    /**
+     * Hands the frame's buffer back to the Camera; called once the frame is released.
+     */
+    synchronized void recycle(Frame frame) {
+        if (frame.getPoolId() == mPoolId) {
+            queueBuffer(frame);
+        }
+    }
+
+
+    /**
+     * Hands the frame's buffer to the Camera unless it is in use or the Camera has it already;
+     * `start()` and `recycle()` may both see a frame that was just released.
+     */
+    private void queueBuffer(Frame frame) {
+        if (mSource == null || frame.isInUse() || frame.isQueued()) {
+            return;
+        }
+
+        frame.setQueued(true);
+
+        try {
+            mSource.addCallbackBuffer(frame.getData());
+        } catch (RuntimeException e) {
+            // Camera was already released
+            Timber.w(e, "queueBuffer");
+        }
+    }
+
+
+    /**
+     * Cost and drop counts of a {@link FrameAnalyzer}.
+     */
+    public static class AnalyzerStats {
+        private final String mName;
+
+        // frames are dropped on the Camera callback thread and at the change gate
+        private final AtomicLong mFrames = new AtomicLong();
+        private final AtomicLong mDropped = new AtomicLong();
+        private final AtomicLong mTotalNanos = new AtomicLong();
+        private final AtomicLong mMaxNanos = new AtomicLong();
+
+        AnalyzerStats(String name) {
+            mName = name;
+        }
+
+        void record(long nanos) {
+            mFrames.incrementAndGet();
+            mTotalNanos.addAndGet(nanos);
+
+            long max;
+            do {
+                max = mMaxNanos.get();
+            } while (nanos > max && !mMaxNanos.compareAndSet(max, nanos));
+        }
+
+        void drop() {
+            mDropped.incrementAndGet();
+        }
+
+        /**
+         * @return Number of frames analyzed.
+         */
+        public long getFrameCount() {
+            return mFrames.get();
+        }
+
+        /**
+         * @return Number of frames dropped because the analyzer was busy.
+         */
+        public long getDropCount() {
+            return mDropped.get();
+        }
+
+        public long getAverageNanos() {
+            long frames = mFrames.get();
+            return (frames > 0) ? mTotalNanos.get() / frames : 0;
+        }
+
+        public long getMaxNanos() {
+            return mMaxNanos.get();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d frames, %d dropped, avg %d us, max %d us", mName,
+                    getFrameCount(), getDropCount(), getAverageNanos() / 1000,
+                    getMaxNanos() / 1000);
+        }
+    }
+
+
+    private class AnalyzerSlot implements Runnable {
+        final FrameAnalyzer mAnalyzer;
+        final AnalyzerStats mStats;
+        final boolean mSkipUnchanged;
+
+        // latest frame waiting for the analyzer
+        private Frame mPending;
+        private boolean mIsRunning, mIsClosed;
+
+        AnalyzerSlot(FrameAnalyzer analyzer, boolean skipUnchanged) {
+            mAnalyzer = analyzer;
+            mSkipUnchanged = skipUnchanged;
+            String name = analyzer.getClass().getSimpleName();
+            mStats = new AnalyzerStats(name.isEmpty() ? analyzer.getClass().getName() : name);
+        }
+
+        void offer(Frame frame) {
+            frame.retain();
+
+            Frame dropped;
+            boolean schedule = false;
+
+            synchronized (this) {
+                if (mIsClosed) {
+                    dropped = frame;
+                } else {
+                    dropped = mPending;
+                    mPending = frame;
+
+                    if (!mIsRunning) {
+                        mIsRunning = true;
+                        schedule = true;
+                    }
+                }
+            }
+
+            if (dropped != null) {
+                mStats.drop();
+                dropped.release();
+            }
+
+            if (schedule) {
+                mExecutor.execute(this);
+            }
+        }
+
+        void close() {
+            Frame pending;
+
+            synchronized (this) {
+                mIsClosed = true;
+                pending = mPending;
+                mPending = null;
+            }
+
+            if (pending != null) {
+                pending.release();
+            }
+        }
+
+        @Override
+        public void run() {
+            Frame frame;
+
+            synchronized (this) {
+                frame = mPending;
+                mPending = null;
+
+                if (frame == null) {
+                    mIsRunning = false;
+                    return;
+                }
+            }
+
+            long start = System.nanoTime();
+            try {
+                mAnalyzer.analyze(frame);
+            } catch (RuntimeException e) {
+                Timber.e(e, "%s failed", mStats.mName);
+            } finally {
+                frame.release();
+            }
+
+            mStats.record(System.nanoTime() - start);
+
+            boolean reschedule;
+            synchronized (this) {
+                reschedule = (mPending != null);
+                mIsRunning = reschedule;
+            }
+
+            // back of the queue, so that a slow analyzer can't starve the others
+            if (reschedule) {
+                mExecutor.execute(this);
+            }
+        }
+    }
+
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, "FrameAnalyzer-" + mCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
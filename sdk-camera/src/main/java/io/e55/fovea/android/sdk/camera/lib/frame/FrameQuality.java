@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2015 Shirish Kamath.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package io.e55.fovea.android.sdk.camera.lib.frame;
+
+
+/**
+ * Cheap image quality metrics for consecutive preview frames, computed on the Y (luma) plane.
+ * <ul>
+ * <li>Motion: mean absolute difference of block means against the previous frame, after
+ * removing the change in overall brightness (auto-exposure drift).</li>
+ * <li>Sharpness: mean absolute difference between neighbouring pixels at the sampled points.</li>
+ * <li>Evenness: darkest over brightest region in the centre of the frame, where the document
+ * is framed; low values indicate shadows or glare.</li>
+ * </ul>
+ * All metrics are normalised, i.e. in [0, 1]. The frame is divided into a fixed grid of blocks,
+ * whose means come from the coarsest {@link YPyramid} level of a pipeline frame, or from sparse
+ * samples of a bare Y plane; either way the cost hardly depends on the preview size.
+ *
+ * Instances keep the block means of the previous frame and are meant to be reused from frame
+ * to frame; `compute()` does not allocate.
+ */
+public class FrameQuality {
+
+    // blocks per side
+    private static final int GRID = 16;
+
+    // samples per block side
+    private static final int BLOCK_SAMPLES = 4;
+
+    // evenness is measured over the central GRID / 2 blocks, in regions of REGION x REGION blocks
+    private static final int REGION = 2;
+
+    private final int[] mBlocks = new int[GRID * GRID];
+    private final int[] mPreviousBlocks = new int[GRID * GRID];
+    private boolean mHasPrevious;
+
+    private float mMotion, mSharpness, mEvenness, mLuma;
+
+
+    /**
+     * Computes the metrics of a pipeline frame, with block means taken from the coarsest level
+     * of its {@link YPyramid}.
+     *
+     * @param frame Frame to measure
+     */
+    public void compute(Frame frame) {
+        YPyramid pyramid = frame.getPyramid();
+        int level = YPyramid.LEVELS - 1;
+
+        computeBlocks(pyramid.getLevel(level), pyramid.getWidth(level), pyramid.getHeight(level),
+                1, 1);
+        computeSharpness(frame.getData(), frame.getWidth(), frame.getHeight());
+        computeMetrics();
+    }
+
+
+    /**
+     * @param y      Y plane (or a frame in a format that starts with the Y plane).
+     * @param width  Width of the Y plane
+     * @param height Height of the Y plane
+     */
+    public void compute(byte[] y, int width, int height) {
+        int stepX = Math.max(1, width / (GRID * BLOCK_SAMPLES));
+        int stepY = Math.max(1, height / (GRID * BLOCK_SAMPLES));
+
+        computeBlocks(y, width, height, stepX, stepY);
+        computeSharpness(y, width, height);
+        computeMetrics();
+    }
+
+
+    private void computeBlocks(byte[] plane, int width, int height, int stepX, int stepY) {
+        int[] blocks = mBlocks;
+        System.arraycopy(blocks, 0, mPreviousBlocks, 0, blocks.length);
+
+        int blockWidth = Math.max(1, width / GRID);
+        int blockHeight = Math.max(1, height / GRID);
+
+        for (int by = 0; by < GRID; by++) {
+            int rowStart = Math.min(height - 1, by * blockHeight + stepY / 2);
+            int rowEnd = Math.min(height, (by + 1) * blockHeight);
+
+            for (int bx = 0; bx < GRID; bx++) {
+                int colStart = Math.min(width - 1, bx * blockWidth + stepX / 2);
+                int colEnd = Math.min(width, (bx + 1) * blockWidth);
+
+                int sum = 0;
+                int count = 0;
+
+                for (int row = rowStart; row < rowEnd; row += stepY) {
+                    int p = row * width;
+                    for (int col = colStart; col < colEnd; col += stepX) {
+                        sum += plane[p + col] & 0xff;
+                        count++;
+                    }
+                }
+
+                blocks[by * GRID + bx] = (count > 0) ?
+                        sum / count : plane[rowStart * width + colStart] & 0xff;
+            }
+        }
+    }
+
+    private void computeSharpness(byte[] y, int width, int height) {
+        int stepX = Math.max(1, width / (GRID * BLOCK_SAMPLES));
+        int stepY = Math.max(1, height / (GRID * BLOCK_SAMPLES));
+
+        long gradient = 0;
+        int samples = 0;
+
+        for (int row = stepY / 2; row < height - 1; row += stepY) {
+            int p = row * width;
+            for (int col = stepX / 2; col < width - 1; col += stepX) {
+                int i = p + col;
+                int v = y[i] & 0xff;
+
+                gradient += Math.abs(v - (y[i + 1] & 0xff)) + Math.abs(v - (y[i + width] & 0xff));
+                samples++;
+            }
+        }
+
+        mSharpness = (samples > 0) ? gradient / (samples * 2f * 255f) : 0f;
+    }
+
+    private void computeMetrics() {
+        int[] blocks = mBlocks;
+        int[] previous = mPreviousBlocks;
+
+        long total = 0;
+        for (int v : blocks) {
+            total += v;
+        }
+
+        mLuma = total / (float) (blocks.length * 255);
+        mEvenness = computeEvenness(blocks);
+
+        if (mHasPrevious) {
+            long previousTotal = 0;
+            for (int v : previous) {
+                previousTotal += v;
+            }
+
+            // compare the blocks relative to their frame's mean brightness
+            float drift = (total - previousTotal) / (float) blocks.length;
+            float diff = 0f;
+            for (int i = 0; i < blocks.length; i++) {
+                diff += Math.abs(blocks[i] - previous[i] - drift);
+            }
+
+            mMotion = diff / (blocks.length * 255f);
+        } else {
+            mMotion = 1f;
+        }
+
+        mHasPrevious = true;
+    }
+
+    private static float computeEvenness(int[] blocks) {
+        int start = GRID / 4;
+        int end = GRID - GRID / 4;
+        int min = Integer.MAX_VALUE;
+        int max = 0;
+
+        for (int ry = start; ry < end; ry += REGION) {
+            for (int rx = start; rx < end; rx += REGION) {
+                int sum = 0;
+                for (int dy = 0; dy < REGION; dy++) {
+                    for (int dx = 0; dx < REGION; dx++) {
+                        sum += blocks[(ry + dy) * GRID + rx + dx];
+                    }
+                }
+
+                min = Math.min(min, sum);
+                max = Math.max(max, sum);
+            }
+        }
+
+        return (max > 0) ? min / (float) max : 0f;
+    }
+
+
+    /**
+     * Forgets the previous frame, e.g. when the preview restarts.
+     */
+    public void reset() {
+        mHasPrevious = false;
+    }
+
+
+    /**
+     * @return Change from the previous frame, in [0, 1]; 1 for the first frame.
+     */
+    public float getMotion() {
+        return mMotion;
+    }
+
+    /**
+     * @return Mean local contrast, in [0, 1]; higher is sharper.
+     */
+    public float getSharpness() {
+        return mSharpness;
+    }
+
+    /**
+     * @return Darkest over brightest central region, in [0, 1]; 1 is perfectly even.
+     */
+    public float getEvenness() {
+        return mEvenness;
+    }
+
+    /**
+     * @return Mean luma of the frame, in [0, 1].
+     */
+    public float getLuma() {
+        return mLuma;
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2015 Shirish Kamath.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package io.e55.fovea.android.sdk.camera.lib.frame;
+
+import android.graphics.Bitmap;
+
+
+/**
+ * Keeps a small grayscale copy of a preview frame, taken straight from its Y plane,
+ * that can be shown in place of the preview while the Camera is not running.
+ *
+ * The copy is point-sampled and rotated into display orientation in a single pass, and both
+ * the pixel buffer and the {@link Bitmap} are reused for as long as the frame size stays the same.
+ */
+public class FrameSnapshot {
+
+    private final int mMaxSide;
+
+    private int[] mPixels;
+    private Bitmap mBitmap;
+    private boolean mHasSnapshot;
+
+
+    /**
+     * @param maxSide Maximum width or height of the snapshot, in pixels.
+     */
+    public FrameSnapshot(int maxSide) {
+        mMaxSide = maxSide;
+    }
+
+
+    /**
+     * Replaces the snapshot with the given preview frame.
+     *
+     * @param y        Y plane (or a frame in a format that starts with the Y plane).
+     * @param width    Width of the preview frame
+     * @param height   Height of the preview frame
+     * @param rotation Clockwise rotation from the frame to the display: 0, 90, 180 or 270.
+     */
+    public void update(byte[] y, int width, int height, int rotation) {
+        int step = Math.max(1, (Math.max(width, height) + mMaxSide - 1) / mMaxSide);
+        int sw = width / step;
+        int sh = height / step;
+
+        boolean swap = (rotation == 90 || rotation == 270);
+        int dw = swap ? sh : sw;
+        int dh = swap ? sw : sh;
+
+        if (dw <= 0 || dh <= 0) {
+            return;
+        }
+
+        if (mBitmap == null || mBitmap.getWidth() != dw || mBitmap.getHeight() != dh) {
+            if (mBitmap != null) {
+                mBitmap.recycle();
+            }
+
+            mBitmap = Bitmap.createBitmap(dw, dh, Bitmap.Config.ARGB_8888);
+            mPixels = new int[dw * dh];
+        }
+
+        int[] pixels = mPixels;
+        int offset = step / 2;
+
+        for (int sy = 0; sy < sh; sy++) {
+            int row = (sy * step + offset) * width + offset;
+
+            for (int sx = 0; sx < sw; sx++) {
+                int v = y[row + sx * step] & 0xff;
+
+                int dx, dy;
+                switch (rotation) {
+                    case 90:
+                        dx = sh - 1 - sy;
+                        dy = sx;
+                        break;
+
+                    case 180:
+                        dx = sw - 1 - sx;
+                        dy = sh - 1 - sy;
+                        break;
+
+                    case 270:
+                        dx = sy;
+                        dy = sw - 1 - sx;
+                        break;
+
+                    default:
+                        dx = sx;
+                        dy = sy;
+                        break;
+                }
+
+                pixels[dy * dw + dx] = 0xff000000 | (v << 16) | (v << 8) | v;
+            }
+        }
+
+        mBitmap.setPixels(pixels, 0, dw, 0, 0, dw, dh);
+        mHasSnapshot = true;
+    }
+
+
+    public boolean hasSnapshot() {
+        return mHasSnapshot;
+    }
+
+
+    /**
+     * @return Bitmap of the snapshot; only valid if `hasSnapshot()`.
+     */
+    public Bitmap getBitmap() {
+        return mBitmap;
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) 2015 Shirish Kamath.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package io.e55.fovea.android.sdk.camera.lib.frame;
+
+
+/**
+ * Luminance statistics for the Y (luma) plane of a preview frame.
+ *
+ * The plane is sampled on a regular grid so that the cost of `compute()` depends on the number
+ * of samples rather than the frame resolution. All values are reported in normalised luma
+ * (0 = black, 1 = white) so that thresholds remain valid across devices and preview sizes.
+ *
+ * Instances are meant to be reused from frame to frame; `compute()` does not allocate.
+ */
+public class LumaStats {
+
+    /**
+     * Number of histogram bins. Each bin covers 8 luma levels.
+     */
+    public static final int BINS = 32;
+
+    private static final int BIN_SHIFT = 3;
+
+    private final int[] mHistogram = new int[BINS];
+
+    private int mSamples;
+    private long mSum;
+
+
+    /**
+     * Samples roughly `targetSamples` pixels from the Y plane, evenly spread across the frame.
+     *
+     * @param y             Y plane (or a frame in a format that starts with the Y plane).
+     * @param width         Width of the Y plane
+     * @param height        Height of the Y plane
+     * @param targetSamples Approximate number of pixels to sample.
+     */
+    public void compute(byte[] y, int width, int height, int targetSamples) {
+        int step = (int) Math.sqrt((double) width * height / Math.max(1, targetSamples));
+        compute(y, 0, width, width, height, Math.max(1, step));
+    }
+
+
+    /**
+     * Samples every `step`th pixel of every `step`th row of the Y plane.
+     *
+     * @param y      Y plane data
+     * @param offset Offset of the first pixel of the plane in `y`
+     * @param stride Row stride of the plane
+     * @param width  Width of the Y plane
+     * @param height Height of the Y plane
+     * @param step   Sampling step, in pixels, for both rows and columns.
+     */
+    public void compute(byte[] y, int offset, int stride, int width, int height, int step) {
+        int[] hist = mHistogram;
+        for (int i = 0; i < BINS; i++) {
+            hist[i] = 0;
+        }
+
+        long sum = 0;
+        int samples = 0;
+
+        // centre the sampling grid in the frame
+        int y0 = (height % step) / 2 + step / 2;
+        int x0 = (width % step) / 2 + step / 2;
+
+        for (int row = y0; row < height; row += step) {
+            int p = offset + row * stride + x0;
+            int end = offset + row * stride + width;
+
+            for (; p < end; p += step) {
+                int v = y[p] & 0xff;
+                sum += v;
+                hist[v >> BIN_SHIFT]++;
+                samples++;
+            }
+        }
+
+        mSum = sum;
+        mSamples = samples;
+    }
+
+
+    /**
+     * Computes the statistics of ARGB pixels, e.g. of a downscaled picture, using the luma of
+     * every pixel.
+     *
+     * @param argb  Pixels in {@link android.graphics.Color} format.
+     * @param count Number of pixels to use
+     */
+    public void computeArgb(int[] argb, int count) {
+        int[] hist = mHistogram;
+        for (int i = 0; i < BINS; i++) {
+            hist[i] = 0;
+        }
+
+        long sum = 0;
+        for (int i = 0; i < count; i++) {
+            int c = argb[i];
+            // BT.601 luma, as in the Camera's YUV frames
+            int v = (77 * ((c >> 16) & 0xff) + 150 * ((c >> 8) & 0xff) + 29 * (c & 0xff)) >> 8;
+            sum += v;
+            hist[v >> BIN_SHIFT]++;
+        }
+
+        mSum = sum;
+        mSamples = count;
+    }
+
+
+    public int getSampleCount() {
+        return mSamples;
+    }
+
+
+    /**
+     * @return Mean luma of the sampled pixels, in [0, 1].
+     */
+    public float getMean() {
+        return (mSamples > 0) ? (mSum / (float) mSamples) / 255f : 0f;
+    }
+
+
+    /**
+     * Fraction of sampled pixels with a luma at or below the given level.
+     * The level is rounded up to the histogram bin that contains it.
+     *
+     * @param level Normalised luma, in [0, 1].
+     * @return Fraction of samples, in [0, 1].
+     */
+    public float fractionBelow(float level) {
+        if (mSamples == 0) {
+            return 0f;
+        }
+
+        int lastBin = binOf(level);
+        int count = 0;
+        for (int i = 0; i <= lastBin; i++) {
+            count += mHistogram[i];
+        }
+
+        return count / (float) mSamples;
+    }
+
+
+    /**
+     * Fraction of sampled pixels with a luma at or above the given level.
+     * The level is rounded down to the histogram bin that contains it.
+     *
+     * @param level Normalised luma, in [0, 1].
+     * @return Fraction of samples, in [0, 1].
+     */
+    public float fractionAbove(float level) {
+        if (mSamples == 0) {
+            return 0f;
+        }
+
+        int firstBin = binOf(level);
+        int count = 0;
+        for (int i = firstBin; i < BINS; i++) {
+            count += mHistogram[i];
+        }
+
+        return count / (float) mSamples;
+    }
+
+
+    /**
+     * Luma below which the given fraction of the sampled pixels lie.
+     *
+     * @param fraction Fraction of samples, in [0, 1]; e.g. 0.5 for the median.
+     * @return Normalised luma at the upper edge of the matching histogram bin.
+     */
+    public float percentile(float fraction) {
+        if (mSamples == 0) {
+            return 0f;
+        }
+
+        int target = Math.max(1, Math.round(fraction * mSamples));
+        int count = 0;
+        for (int i = 0; i < BINS; i++) {
+            count += mHistogram[i];
+            if (count >= target) {
+                return ((i + 1) << BIN_SHIFT) / 256f;
+            }
+        }
+
+        return 1f;
+    }
+
+
+    /**
+     * @return The histogram of the last `compute()`; do not modify.
+     */
+    public int[] getHistogram() {
+        return mHistogram;
+    }
+
+
+    private static int binOf(float level) {
+        int v = Math.round(level * 255f);
+        return Math.max(0, Math.min(BINS - 1, v >> BIN_SHIFT));
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2015 Shirish Kamath.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package io.e55.fovea.android.sdk.camera.lib.frame;
+
+
+/**
+ * Downscaled copies of a frame's Y (luma) plane at 1/2, 1/4 and 1/8 of its size, so that
+ * analyzers working on small images share the cost of downscaling.
+ *
+ * Level 0 is the Y plane itself; each further level is a 2 x 2 box filter of the one before,
+ * built on first request and at most once per frame. The buffers belong to the pooled
+ * {@link Frame} and are reused for the frames that follow, so requesting a level does not
+ * allocate after the first few frames. Like the frame data, levels are only valid while the
+ * frame is held.
+ */
+public class YPyramid {
+
+    /**
+     * Number of levels, including the Y plane itself.
+     */
+    public static final int LEVELS = 4;
+
+    private final byte[] mPlane;
+    private final int[] mWidths = new int[LEVELS];
+    private final int[] mHeights = new int[LEVELS];
+    private final byte[][] mLevels = new byte[LEVELS][];
+
+    // number of levels built for the current frame, including the Y plane
+    private int mBuilt;
+
+
+    YPyramid(byte[] plane, int width, int height) {
+        mPlane = plane;
+        mLevels[0] = plane;
+        mBuilt = 1;
+
+        for (int i = 0; i < LEVELS; i++) {
+            mWidths[i] = width >> i;
+            mHeights[i] = height >> i;
+        }
+    }
+
+
+    /**
+     * Marks all levels as stale, once the frame's buffer holds a new frame.
+     */
+    synchronized void invalidate() {
+        mBuilt = 1;
+    }
+
+
+    /**
+     * Returns a level, building it (and the levels above it) if needed.
+     *
+     * @param level 0 for the Y plane, 1 for half its size, up to `LEVELS - 1`.
+     * @return Pixels of the level, row by row with a stride of `getWidth(level)`.
+     */
+    public synchronized byte[] getLevel(int level) {
+        if (level < 0 || level >= LEVELS) {
+            throw new IllegalArgumentException("Invalid level: " + level);
+        }
+
+        while (mBuilt <= level) {
+            int i = mBuilt;
+            if (mLevels[i] == null) {
+                mLevels[i] = new byte[mWidths[i] * mHeights[i]];
+            }
+
+            downscale(mLevels[i - 1], mWidths[i - 1], mHeights[i - 1], mLevels[i]);
+            mBuilt++;
+        }
+
+        return mLevels[level];
+    }
+
+    public int getWidth(int level) {
+        return mWidths[level];
+    }
+
+    public int getHeight(int level) {
+        return mHeights[level];
+    }
+
+
+    /**
+     * Finds the smallest level that still has at least the given size.
+     *
+     * @param minSide Minimum width or height, whichever is larger.
+     * @return Level index; 0 if even the Y plane is smaller.
+     */
+    public int levelFor(int minSide) {
+        for (int i = LEVELS - 1; i > 0; i--) {
+            if (Math.max(mWidths[i], mHeights[i]) >= minSide) {
+                return i;
+            }
+        }
+
+        return 0;
+    }
+
+
+    /**
+     * Halves a plane with a 2 x 2 box filter. An odd last row or column is dropped.
+     *
+     * @param src    Source plane, with a stride of `width`.
+     * @param width  Width of the source
+     * @param height Height of the source
+     * @param dst    Destination, at least `(width / 2) * (height / 2)` long.
+     */
+    public static void downscale(byte[] src, int width, int height, byte[] dst) {
+        int w = width >> 1;
+        int h = height >> 1;
+
+        for (int row = 0; row < h; row++) {
+            int top = 2 * row * width;
+            int bottom = top + width;
+            int out = row * w;
+
+            for (int x = 0; x < w; x++, top += 2, bottom += 2) {
+                int sum = (src[top] & 0xff) + (src[top + 1] & 0xff) +
+                        (src[bottom] & 0xff) + (src[bottom + 1] & 0xff);
+                dst[out + x] = (byte) ((sum + 2) >> 2);
+            }
+        }
+    }
+}
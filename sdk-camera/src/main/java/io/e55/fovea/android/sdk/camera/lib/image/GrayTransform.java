@@ -0,0 +1,265 @@
+/*
+ * Copyright (c) 2015 Shirish Kamath.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package io.e55.fovea.android.sdk.camera.lib.image;
+
+import java.util.concurrent.Executor;
+
+import io.e55.fovea.android.sdk.camera.lib.frame.YPyramid;
+
+
+/**
+ * Crops, scales and rotates a single-channel image, such as the Y plane of a Camera frame,
+ * in one pass.
+ *
+ * Every output pixel is mapped back into the crop through an affine transform and sampled
+ * bilinearly in fixed point; rows are processed in parallel bands (see {@link RowBands}).
+ * For reductions below one half, the source is first box-downscaled by powers of two so that
+ * no source pixels are skipped.
+ */
+public class GrayTransform {
+
+    private final int mLeft, mTop, mCropWidth, mCropHeight;
+    private final int mRotation;
+
+    // number of 2x2 box downscales before sampling
+    private final int mHalvings;
+
+    private final int mWidth, mHeight;
+
+
+    /**
+     * @param left       Left edge of the crop in source pixels
+     * @param top        Top edge of the crop in source pixels
+     * @param cropWidth  Width of the crop
+     * @param cropHeight Height of the crop
+     * @param scale      Scale of the crop, applied before the rotation.
+     * @param rotation   Clockwise rotation in degrees: 0, 90, 180 or 270.
+     * @throws IllegalArgumentException if the crop is empty or the rotation unsupported.
+     */
+    public GrayTransform(int left, int top, int cropWidth, int cropHeight, float scale,
+                         int rotation) {
+        rotation = ((rotation % 360) + 360) % 360;
+        if (rotation % 90 != 0) {
+            throw new IllegalArgumentException("Unsupported rotation: " + rotation);
+        }
+
+        if (cropWidth <= 0 || cropHeight <= 0 || scale <= 0f) {
+            throw new IllegalArgumentException("Empty crop");
+        }
+
+        mLeft = left;
+        mTop = top;
+        mCropWidth = cropWidth;
+        mCropHeight = cropHeight;
+        mRotation = rotation;
+
+        int halvings = 0;
+        while (scale * (1 << halvings) < 0.5f && (cropWidth >> (halvings + 1)) >= 8 &&
+                (cropHeight >> (halvings + 1)) >= 8) {
+            halvings++;
+        }
+        mHalvings = halvings;
+
+        int width = Math.max(1, Math.round(cropWidth * scale));
+        int height = Math.max(1, Math.round(cropHeight * scale));
+        boolean swap = (rotation == 90 || rotation == 270);
+
+        mWidth = swap ? height : width;
+        mHeight = swap ? width : height;
+    }
+
+
+    /**
+     * @return Width of the output
+     */
+    public int getWidth() {
+        return mWidth;
+    }
+
+    /**
+     * @return Height of the output
+     */
+    public int getHeight() {
+        return mHeight;
+    }
+
+
+    /**
+     * Transforms an image on the shared executor.
+     *
+     * @param src       Source pixels, with a stride of `srcWidth`; e.g. an NV21 frame.
+     * @param srcWidth  Width of the source
+     * @param srcHeight Height of the source
+     * @param dst       Output pixels; at least `getWidth() * getHeight()` long.
+     */
+    public void transform(byte[] src, int srcWidth, int srcHeight, byte[] dst) {
+        transform(src, srcWidth, srcHeight, dst, RowBands.getExecutor(),
+                RowBands.getParallelism());
+    }
+
+
+    /**
+     * Transforms an image in up to `parallelism` row bands.
+     *
+     * @param executor    Executor for the row bands; null transforms on the calling thread.
+     * @param parallelism Maximum number of row bands
+     */
+    public void transform(byte[] src, int srcWidth, int srcHeight, final byte[] dst,
+                          Executor executor, int parallelism) {
+        if (src.length < srcWidth * srcHeight || dst.length < mWidth * mHeight) {
+            throw new IllegalArgumentException("Buffer too small");
+        }
+
+        if (mLeft < 0 || mTop < 0 || mLeft + mCropWidth > srcWidth ||
+                mTop + mCropHeight > srcHeight) {
+            throw new IllegalArgumentException("Crop out of bounds");
+        }
+
+        // only the rows of the crop are downscaled
+        int left = mLeft, top = mTop, cropWidth = mCropWidth, cropHeight = mCropHeight;
+        int stride = srcWidth;
+
+        if (mHalvings > 0) {
+            byte[] plane = new byte[srcWidth * cropHeight];
+            System.arraycopy(src, top * srcWidth, plane, 0, srcWidth * cropHeight);
+
+            int w = srcWidth, h = cropHeight;
+            for (int i = 0; i < mHalvings; i++) {
+                byte[] half = new byte[(w / 2) * (h / 2)];
+                YPyramid.downscale(plane, w, h, half);
+                plane = half;
+                w /= 2;
+                h /= 2;
+            }
+
+            src = plane;
+            stride = w;
+            left >>= mHalvings;
+            top = 0;
+            cropWidth = Math.min(w - left, Math.max(1, cropWidth >> mHalvings));
+            cropHeight = h;
+        }
+
+        final Mapping mapping = new Mapping(left, top, cropWidth, cropHeight);
+        final byte[] source = src;
+        final int sourceStride = stride;
+
+        RowBands.run(executor, parallelism, mHeight, 16, new RowBands.RowTask() {
+            @Override
+            public void run(int startRow, int endRow) {
+                transformRows(source, sourceStride, mapping, dst, startRow, endRow);
+            }
+        });
+    }
+
+
+    /**
+     * Source coordinates of output pixels, in 16.16 fixed point: x = ax * col + bx * row + cx,
+     * and likewise for y.
+     */
+    private class Mapping {
+        final int mAx, mBx, mCx, mAy, mBy, mCy;
+        final int mMinX, mMaxX, mMinY, mMaxY;
+
+        Mapping(int left, int top, int cropWidth, int cropHeight) {
+            boolean swap = (mRotation == 90 || mRotation == 270);
+            int width = swap ? mHeight : mWidth;
+            int height = swap ? mWidth : mHeight;
+
+            // source pixels per output pixel along each axis of the crop
+            float su = cropWidth / (float) width;
+            float sv = cropHeight / (float) height;
+
+            // output pixel centres (col + 0.5, row + 0.5) map to unrotated centres (u, v)
+            float au, bu, cu, av, bv, cv;
+            switch (mRotation) {
+                case 90:
+                    au = 0f; bu = 1f; cu = 0.5f;
+                    av = -1f; bv = 0f; cv = height - 0.5f;
+                    break;
+                case 180:
+                    au = -1f; bu = 0f; cu = width - 0.5f;
+                    av = 0f; bv = -1f; cv = height - 0.5f;
+                    break;
+                case 270:
+                    au = 0f; bu = -1f; cu = width - 0.5f;
+                    av = 1f; bv = 0f; cv = 0.5f;
+                    break;
+                default:
+                    au = 1f; bu = 0f; cu = 0.5f;
+                    av = 0f; bv = 1f; cv = 0.5f;
+                    break;
+            }
+
+            // source pixel centres are at integer + 0.5
+            mAx = fixed(au * su);
+            mBx = fixed(bu * su);
+            mCx = fixed(left + cu * su - 0.5f);
+            mAy = fixed(av * sv);
+            mBy = fixed(bv * sv);
+            mCy = fixed(top + cv * sv - 0.5f);
+
+            mMinX = left << 16;
+            mMaxX = (left + cropWidth - 1) << 16;
+            mMinY = top << 16;
+            mMaxY = (top + cropHeight - 1) << 16;
+        }
+    }
+
+    private void transformRows(byte[] src, int stride, Mapping m, byte[] dst,
+                               int startRow, int endRow) {
+        int w = mWidth;
+
+        for (int row = startRow; row < endRow; row++) {
+            int x = m.mBx * row + m.mCx;
+            int y = m.mBy * row + m.mCy;
+            int out = row * w;
+
+            for (int col = 0; col < w; col++) {
+                int cx = (x < m.mMinX) ? m.mMinX : (x > m.mMaxX) ? m.mMaxX : x;
+                int cy = (y < m.mMinY) ? m.mMinY : (y > m.mMaxY) ? m.mMaxY : y;
+
+                int x0 = cx >> 16, y0 = cy >> 16;
+                int dx = (cx < m.mMaxX) ? 1 : 0;
+                int dy = (cy < m.mMaxY) ? stride : 0;
+
+                // 8-bit fixed point weights
+                int fx = (cx >> 8) & 0xff;
+                int fy = (cy >> 8) & 0xff;
+
+                int p = y0 * stride + x0;
+                int top = (src[p] & 0xff) * (256 - fx) + (src[p + dx] & 0xff) * fx;
+                int bottom = (src[p + dy] & 0xff) * (256 - fx) + (src[p + dy + dx] & 0xff) * fx;
+
+                dst[out + col] = (byte) ((top * (256 - fy) + bottom * fy + (1 << 15)) >>> 16);
+
+                x += m.mAx;
+                y += m.mAy;
+            }
+        }
+    }
+
+    private static int fixed(float value) {
+        return Math.round(value * 65536f);
+    }
+}
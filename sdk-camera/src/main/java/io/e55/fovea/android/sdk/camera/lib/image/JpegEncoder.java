@@ -0,0 +1,780 @@
+/*
+ * Copyright (c) 2015 Shirish Kamath.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package io.e55.fovea.android.sdk.camera.lib.image;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+
+
+/**
+ * Baseline JPEG encoder for grayscale or planar YCbCr 4:2:0 images, independent of Android's
+ * Bitmap and YuvImage.
+ *
+ * The image is split into horizontal stripes of MCU rows separated by restart markers. Since
+ * every stripe starts afresh, the stripes are entropy coded in parallel (see {@link RowBands})
+ * and simply concatenated. Blocks are transformed with the accurate integer DCT of the IJG
+ * library and coded with the standard Huffman tables.
+ */
+public class JpegEncoder {
+
+    /**
+     * MCU rows per restart interval, i.e. per stripe
+     */
+    public static final int RESTART_ROWS = 4;
+
+    static final int[] ZIGZAG = {
+            0, 1, 8, 16, 9, 2, 3, 10, 17, 24, 32, 25, 18, 11, 4, 5,
+            12, 19, 26, 33, 40, 48, 41, 34, 27, 20, 13, 6, 7, 14, 21, 28,
+            35, 42, 49, 56, 57, 50, 43, 36, 29, 22, 15, 23, 30, 37, 44, 51,
+            58, 59, 52, 45, 38, 31, 39, 46, 53, 60, 61, 54, 47, 55, 62, 63
+    };
+
+    static final int[] LUMA_QUANT = {
+            16, 11, 10, 16, 24, 40, 51, 61,
+            12, 12, 14, 19, 26, 58, 60, 55,
+            14, 13, 16, 24, 40, 57, 69, 56,
+            14, 17, 22, 29, 51, 87, 80, 62,
+            18, 22, 37, 56, 68, 109, 103, 77,
+            24, 35, 55, 64, 81, 104, 113, 92,
+            49, 64, 78, 87, 103, 121, 120, 101,
+            72, 92, 95, 98, 112, 100, 103, 99
+    };
+
+    private static final int[] CHROMA_QUANT = {
+            17, 18, 24, 47, 99, 99, 99, 99,
+            18, 21, 26, 66, 99, 99, 99, 99,
+            24, 26, 56, 99, 99, 99, 99, 99,
+            47, 66, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99
+    };
+
+    // standard Huffman tables: code counts per length 1-16, then the symbols
+    private static final int[] DC_LUMA_BITS = {0, 1, 5, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 0};
+    private static final int[] DC_LUMA_VALUES = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11};
+    private static final int[] DC_CHROMA_BITS = {0, 3, 1, 1, 1, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0};
+    private static final int[] DC_CHROMA_VALUES = DC_LUMA_VALUES;
+
+    private static final int[] AC_LUMA_BITS = {0, 2, 1, 3, 3, 2, 4, 3, 5, 5, 4, 4, 0, 0, 1, 0x7d};
+    private static final int[] AC_LUMA_VALUES = {
+            0x01, 0x02, 0x03, 0x00, 0x04, 0x11, 0x05, 0x12, 0x21, 0x31, 0x41, 0x06, 0x13, 0x51,
+            0x61, 0x07, 0x22, 0x71, 0x14, 0x32, 0x81, 0x91, 0xa1, 0x08, 0x23, 0x42, 0xb1, 0xc1,
+            0x15, 0x52, 0xd1, 0xf0, 0x24, 0x33, 0x62, 0x72, 0x82, 0x09, 0x0a, 0x16, 0x17, 0x18,
+            0x19, 0x1a, 0x25, 0x26, 0x27, 0x28, 0x29, 0x2a, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39,
+            0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49, 0x4a, 0x53, 0x54, 0x55, 0x56, 0x57,
+            0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a, 0x73, 0x74, 0x75,
+            0x76, 0x77, 0x78, 0x79, 0x7a, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89, 0x8a, 0x92,
+            0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5, 0xa6, 0xa7,
+            0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3,
+            0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8,
+            0xd9, 0xda, 0xe1, 0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf1, 0xf2,
+            0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8, 0xf9, 0xfa
+    };
+
+    private static final int[] AC_CHROMA_BITS = {0, 2, 1, 2, 4, 4, 3, 4, 7, 5, 4, 4, 0, 1, 2, 0x77};
+    private static final int[] AC_CHROMA_VALUES = {
+            0x00, 0x01, 0x02, 0x03, 0x11, 0x04, 0x05, 0x21, 0x31, 0x06, 0x12, 0x41, 0x51, 0x07,
+            0x61, 0x71, 0x13, 0x22, 0x32, 0x81, 0x08, 0x14, 0x42, 0x91, 0xa1, 0xb1, 0xc1, 0x09,
+            0x23, 0x33, 0x52, 0xf0, 0x15, 0x62, 0x72, 0xd1, 0x0a, 0x16, 0x24, 0x34, 0xe1, 0x25,
+            0xf1, 0x17, 0x18, 0x19, 0x1a, 0x26, 0x27, 0x28, 0x29, 0x2a, 0x35, 0x36, 0x37, 0x38,
+            0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49, 0x4a, 0x53, 0x54, 0x55, 0x56,
+            0x57, 0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a, 0x73, 0x74,
+            0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x82, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89,
+            0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5,
+            0xa6, 0xa7, 0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba,
+            0xc2, 0xc3, 0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6,
+            0xd7, 0xd8, 0xd9, 0xda, 0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf2,
+            0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8, 0xf9, 0xfa
+    };
+
+    static final HuffmanTable DC_LUMA = new HuffmanTable(DC_LUMA_BITS, DC_LUMA_VALUES);
+    static final HuffmanTable AC_LUMA = new HuffmanTable(AC_LUMA_BITS, AC_LUMA_VALUES);
+    static final HuffmanTable DC_CHROMA =
+            new HuffmanTable(DC_CHROMA_BITS, DC_CHROMA_VALUES);
+    static final HuffmanTable AC_CHROMA =
+            new HuffmanTable(AC_CHROMA_BITS, AC_CHROMA_VALUES);
+
+    // accurate integer DCT (jfdctint.c)
+    private static final int CONST_BITS = 13;
+    private static final int PASS1_BITS = 2;
+    private static final int FIX_0_298631336 = 2446;
+    private static final int FIX_0_390180644 = 3196;
+    private static final int FIX_0_541196100 = 4433;
+    private static final int FIX_0_765366865 = 6270;
+    private static final int FIX_0_899976223 = 7373;
+    private static final int FIX_1_175875602 = 9633;
+    private static final int FIX_1_501321110 = 12299;
+    private static final int FIX_1_847759065 = 15137;
+    private static final int FIX_1_961570560 = 16069;
+    private static final int FIX_2_053119869 = 16819;
+    private static final int FIX_2_562915447 = 20995;
+    private static final int FIX_3_072711026 = 25172;
+
+    private final int mQuality;
+
+    // quantization tables in natural order, and reciprocals of the DCT-scaled divisors
+    private final int[] mLumaQuant, mChromaQuant;
+    private final int[] mLumaRecip, mChromaRecip;
+
+
+    /**
+     * @param quality JPEG quality, 1-100, as used by libjpeg and Bitmap.compress().
+     */
+    public JpegEncoder(int quality) {
+        mQuality = Math.max(1, Math.min(100, quality));
+
+        mLumaQuant = scaleQuant(LUMA_QUANT, mQuality);
+        mChromaQuant = scaleQuant(CHROMA_QUANT, mQuality);
+        mLumaRecip = reciprocals(mLumaQuant);
+        mChromaRecip = reciprocals(mChromaQuant);
+    }
+
+    public int getQuality() {
+        return mQuality;
+    }
+
+
+    /**
+     * Encodes a grayscale image on the shared executor.
+     *
+     * @param gray   Pixels, with a stride of `width`; e.g. the Y plane of a Camera frame.
+     * @param width  Width of the image
+     * @param height Height of the image
+     * @param os     Stream for the JPEG file; not closed.
+     */
+    public void encodeGray(byte[] gray, int width, int height, OutputStream os)
+            throws IOException {
+        encodeGray(gray, width, height, os, RowBands.getExecutor(), RowBands.getParallelism());
+    }
+
+    /**
+     * Encodes a grayscale image in up to `parallelism` bands of stripes.
+     *
+     * @param executor    Executor for the bands; null encodes on the calling thread.
+     * @param parallelism Maximum number of bands
+     */
+    public void encodeGray(byte[] gray, int width, int height, OutputStream os,
+                           Executor executor, int parallelism) throws IOException {
+        if (gray.length < width * height) {
+            throw new IllegalArgumentException("Buffer too small");
+        }
+
+        encode(new byte[][]{gray}, width, height, os, executor, parallelism);
+    }
+
+
+    /**
+     * Encodes a YCbCr 4:2:0 image on the shared executor.
+     *
+     * @param y      Luma, with a stride of `width`.
+     * @param cb     Blue-difference chroma at half the width and height, rounded up.
+     * @param cr     Red-difference chroma at half the width and height, rounded up.
+     * @param width  Width of the image
+     * @param height Height of the image
+     * @param os     Stream for the JPEG file; not closed.
+     */
+    public void encodeYCbCr(byte[] y, byte[] cb, byte[] cr, int width, int height,
+                            OutputStream os) throws IOException {
+        encodeYCbCr(y, cb, cr, width, height, os, RowBands.getExecutor(),
+                RowBands.getParallelism());
+    }
+
+    /**
+     * Encodes a YCbCr 4:2:0 image in up to `parallelism` bands of stripes.
+     *
+     * @param executor    Executor for the bands; null encodes on the calling thread.
+     * @param parallelism Maximum number of bands
+     */
+    public void encodeYCbCr(byte[] y, byte[] cb, byte[] cr, int width, int height,
+                            OutputStream os, Executor executor, int parallelism)
+            throws IOException {
+        int chromaSize = ((width + 1) / 2) * ((height + 1) / 2);
+        if (y.length < width * height || cb.length < chromaSize || cr.length < chromaSize) {
+            throw new IllegalArgumentException("Buffer too small");
+        }
+
+        encode(new byte[][]{y, cb, cr}, width, height, os, executor, parallelism);
+    }
+
+
+    /**
+     * Estimates the size of the grayscale JPEG by encoding only every `step`-th stripe, at
+     * about 1/step the cost of {@link #encodeGray}. Unlike a downscaled proxy, the sampled
+     * stripes keep the detail per pixel, and so the bytes per pixel, of the full image.
+     *
+     * @return Estimated size of the JPEG file in bytes.
+     */
+    public int estimateGray(byte[] gray, int width, int height, int step) {
+        if (gray.length < width * height) {
+            throw new IllegalArgumentException("Buffer too small");
+        }
+
+        return estimate(new byte[][]{gray}, width, height, step);
+    }
+
+    /**
+     * Estimates the size of the YCbCr 4:2:0 JPEG like {@link #estimateGray}.
+     *
+     * @return Estimated size of the JPEG file in bytes.
+     */
+    public int estimateYCbCr(byte[] y, byte[] cb, byte[] cr, int width, int height, int step) {
+        int chromaSize = ((width + 1) / 2) * ((height + 1) / 2);
+        if (y.length < width * height || cb.length < chromaSize || cr.length < chromaSize) {
+            throw new IllegalArgumentException("Buffer too small");
+        }
+
+        return estimate(new byte[][]{y, cb, cr}, width, height, step);
+    }
+
+
+    private void encode(byte[][] planes, int width, int height, OutputStream os,
+                        Executor executor, int parallelism) throws IOException {
+        Stripes stripes = new Stripes(planes, width, height);
+        stripes.encode(1, executor, parallelism);
+
+        writeHeaders(os, width, height, stripes.mColor, stripes.getRestartInterval());
+
+        int count = stripes.mData.length;
+        for (int i = 0; i < count; i++) {
+            os.write(stripes.mData[i], 0, stripes.mLengths[i]);
+
+            if (i < count - 1) {
+                // RST0-RST7
+                os.write(0xff);
+                os.write(0xd0 + (i & 7));
+            }
+        }
+
+        os.write(0xff);
+        os.write(0xd9);
+    }
+
+    private int estimate(byte[][] planes, int width, int height, int step) {
+        Stripes stripes = new Stripes(planes, width, height);
+        int count = stripes.mData.length;
+
+        // too few stripes to sample reliably
+        step = (count >= 4 * step) ? Math.max(1, step) : 1;
+        stripes.encode(step, RowBands.getExecutor(), RowBands.getParallelism());
+
+        long bytes = 0;
+        int sampled = 0;
+        for (int i = 0; i < count; i += step) {
+            bytes += stripes.mLengths[i];
+            sampled++;
+        }
+
+        ByteArrayOutputStream headers = new ByteArrayOutputStream();
+        try {
+            writeHeaders(headers, width, height, stripes.mColor, stripes.getRestartInterval());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+
+        // restart markers and EOI
+        return (int) (bytes * count / sampled) + headers.size() + 2 * count;
+    }
+
+
+    /**
+     * Entropy-coded stripes of an image.
+     */
+    private class Stripes {
+        final byte[][] mPlanes;
+        final int mWidth, mHeight;
+        final boolean mColor;
+        final int mMcuColumns, mMcuRows, mRestartRows;
+
+        final byte[][] mData;
+        final int[] mLengths;
+
+        Stripes(byte[][] planes, int width, int height) {
+            if (width <= 0 || height <= 0 || width > 0xffff || height > 0xffff) {
+                throw new IllegalArgumentException("Unsupported size: " + width + " x " + height);
+            }
+
+            mPlanes = planes;
+            mWidth = width;
+            mHeight = height;
+            mColor = (planes.length == 3);
+
+            int mcuSize = mColor ? 16 : 8;
+            mMcuColumns = (width + mcuSize - 1) / mcuSize;
+            mMcuRows = (height + mcuSize - 1) / mcuSize;
+
+            // the restart interval is counted in MCUs and has to fit in 16 bits
+            mRestartRows = Math.max(1, Math.min(RESTART_ROWS, 0xffff / mMcuColumns));
+
+            int count = (mMcuRows + mRestartRows - 1) / mRestartRows;
+            mData = new byte[count][];
+            mLengths = new int[count];
+        }
+
+        int getRestartInterval() {
+            return (mData.length > 1) ? mRestartRows * mMcuColumns : 0;
+        }
+
+        /**
+         * Encodes every `step`-th stripe in up to `parallelism` bands.
+         */
+        void encode(final int step, Executor executor, int parallelism) {
+            int sampled = (mData.length + step - 1) / step;
+
+            RowBands.run(executor, parallelism, sampled, 1, new RowBands.RowTask() {
+                @Override
+                public void run(int start, int end) {
+                    StripeEncoder encoder = new StripeEncoder(mPlanes, mWidth, mHeight,
+                            mMcuColumns);
+
+                    for (int i = start; i < end; i++) {
+                        int stripe = i * step;
+                        int startRow = stripe * mRestartRows;
+                        int endRow = Math.min(mMcuRows, startRow + mRestartRows);
+
+                        BitWriter writer = mColor ? encoder.encodeColor(startRow, endRow) :
+                                encoder.encodeGray(startRow, endRow);
+                        mData[stripe] = writer.mData;
+                        mLengths[stripe] = writer.mLength;
+                    }
+                }
+            });
+        }
+    }
+
+
+    private void writeHeaders(OutputStream os, int width, int height, boolean color,
+                              int restartInterval) throws IOException {
+        // SOI, APP0 (JFIF 1.01, no thumbnail)
+        os.write(new byte[]{
+                (byte) 0xff, (byte) 0xd8,
+                (byte) 0xff, (byte) 0xe0, 0, 16, 'J', 'F', 'I', 'F', 0, 1, 1, 0, 0, 1, 0, 1, 0, 0
+        });
+
+        // DQT
+        int tables = color ? 2 : 1;
+        writeMarker(os, 0xdb, 65 * tables);
+        writeQuant(os, 0, mLumaQuant);
+        if (color) {
+            writeQuant(os, 1, mChromaQuant);
+        }
+
+        // SOF0
+        int components = color ? 3 : 1;
+        writeMarker(os, 0xc0, 6 + 3 * components);
+        os.write(8);
+        write16(os, height);
+        write16(os, width);
+        os.write(components);
+        os.write(new byte[]{1, (byte) (color ? 0x22 : 0x11), 0});
+        if (color) {
+            os.write(new byte[]{2, 0x11, 1, 3, 0x11, 1});
+        }
+
+        // DHT
+        int length = DC_LUMA.getSegmentLength() + AC_LUMA.getSegmentLength();
+        if (color) {
+            length += DC_CHROMA.getSegmentLength() + AC_CHROMA.getSegmentLength();
+        }
+        writeMarker(os, 0xc4, length);
+        DC_LUMA.write(os, 0x00);
+        AC_LUMA.write(os, 0x10);
+        if (color) {
+            DC_CHROMA.write(os, 0x01);
+            AC_CHROMA.write(os, 0x11);
+        }
+
+        // DRI
+        if (restartInterval > 0) {
+            writeMarker(os, 0xdd, 2);
+            write16(os, restartInterval);
+        }
+
+        // SOS
+        writeMarker(os, 0xda, 4 + 2 * components);
+        os.write(components);
+        os.write(new byte[]{1, 0x00});
+        if (color) {
+            os.write(new byte[]{2, 0x11, 3, 0x11});
+        }
+        os.write(new byte[]{0, 63, 0});
+    }
+
+    static void writeMarker(OutputStream os, int marker, int payload)
+            throws IOException {
+        os.write(0xff);
+        os.write(marker);
+        write16(os, payload + 2);
+    }
+
+    private static void writeQuant(OutputStream os, int id, int[] quant) throws IOException {
+        os.write(id);
+        for (int i = 0; i < 64; i++) {
+            os.write(quant[ZIGZAG[i]]);
+        }
+    }
+
+    static void write16(OutputStream os, int value) throws IOException {
+        os.write(value >> 8);
+        os.write(value);
+    }
+
+
+    /**
+     * Quantization table for the quality, scaled like libjpeg's jpeg_quality_scaling().
+     */
+    private static int[] scaleQuant(int[] base, int quality) {
+        int scale = (quality < 50) ? 5000 / quality : 200 - 2 * quality;
+        int[] quant = new int[64];
+
+        for (int i = 0; i < 64; i++) {
+            quant[i] = Math.max(1, Math.min(255, (base[i] * scale + 50) / 100));
+        }
+
+        return quant;
+    }
+
+    /**
+     * 18-bit reciprocals of the divisors; the DCT output is scaled up by 8.
+     */
+    private static int[] reciprocals(int[] quant) {
+        int[] recip = new int[64];
+        for (int i = 0; i < 64; i++) {
+            int divisor = quant[i] * 8;
+            recip[i] = ((1 << 18) + divisor - 1) / divisor;
+        }
+        return recip;
+    }
+
+
+    /**
+     * Encodes stripes of MCU rows; one per thread.
+     */
+    private class StripeEncoder {
+        private final byte[][] mPlanes;
+        private final int mWidth, mHeight, mMcuColumns;
+
+        private final int[] mBlock = new int[64];
+
+        StripeEncoder(byte[][] planes, int width, int height, int mcuColumns) {
+            mPlanes = planes;
+            mWidth = width;
+            mHeight = height;
+            mMcuColumns = mcuColumns;
+        }
+
+        BitWriter encodeGray(int startRow, int endRow) {
+            BitWriter writer = new BitWriter((endRow - startRow) * mMcuColumns * 32);
+            int[] dc = new int[1];
+
+            for (int row = startRow; row < endRow; row++) {
+                for (int col = 0; col < mMcuColumns; col++) {
+                    loadBlock(mPlanes[0], mWidth, mHeight, col * 8, row * 8);
+                    encodeBlock(writer, dc, 0, mLumaQuant, mLumaRecip, DC_LUMA, AC_LUMA);
+                }
+            }
+
+            writer.flush();
+            return writer;
+        }
+
+        BitWriter encodeColor(int startRow, int endRow) {
+            BitWriter writer = new BitWriter((endRow - startRow) * mMcuColumns * 128);
+            int[] dc = new int[3];
+            int chromaWidth = (mWidth + 1) / 2;
+            int chromaHeight = (mHeight + 1) / 2;
+
+            for (int row = startRow; row < endRow; row++) {
+                for (int col = 0; col < mMcuColumns; col++) {
+                    int x = col * 16, y = row * 16;
+
+                    for (int i = 0; i < 4; i++) {
+                        loadBlock(mPlanes[0], mWidth, mHeight, x + (i & 1) * 8, y + (i >> 1) * 8);
+                        encodeBlock(writer, dc, 0, mLumaQuant, mLumaRecip,
+                                DC_LUMA, AC_LUMA);
+                    }
+
+                    loadBlock(mPlanes[1], chromaWidth, chromaHeight, col * 8, row * 8);
+                    encodeBlock(writer, dc, 1, mChromaQuant, mChromaRecip,
+                            DC_CHROMA, AC_CHROMA);
+                    loadBlock(mPlanes[2], chromaWidth, chromaHeight, col * 8, row * 8);
+                    encodeBlock(writer, dc, 2, mChromaQuant, mChromaRecip,
+                            DC_CHROMA, AC_CHROMA);
+                }
+            }
+
+            writer.flush();
+            return writer;
+        }
+
+        /**
+         * Level-shifted samples of the block at (x, y); edges are replicated past the image.
+         */
+        private void loadBlock(byte[] plane, int width, int height, int x, int y) {
+            int[] block = mBlock;
+
+            if (x + 8 <= width && y + 8 <= height) {
+                for (int r = 0; r < 8; r++) {
+                    int p = (y + r) * width + x;
+                    int b = r * 8;
+                    for (int c = 0; c < 8; c++) {
+                        block[b + c] = (plane[p + c] & 0xff) - 128;
+                    }
+                }
+                return;
+            }
+
+            for (int r = 0; r < 8; r++) {
+                int p = Math.min(y + r, height - 1) * width;
+                int b = r * 8;
+                for (int c = 0; c < 8; c++) {
+                    block[b + c] = (plane[p + Math.min(x + c, width - 1)] & 0xff) - 128;
+                }
+            }
+        }
+
+        private void encodeBlock(BitWriter writer, int[] dc, int component, int[] quant,
+                                 int[] recip, HuffmanTable dcTable, HuffmanTable acTable) {
+            int[] block = mBlock;
+            forwardDct(block);
+
+            // quantize in place, in natural order, rounding to nearest; divisors are 8 * quant
+            for (int i = 0; i < 64; i++) {
+                int v = block[i];
+                int half = quant[i] << 2;
+                block[i] = (v < 0) ? -(((half - v) * recip[i]) >> 18) :
+                        ((half + v) * recip[i]) >> 18;
+            }
+
+            writeBlock(writer, block, dc, component, dcTable, acTable);
+        }
+    }
+
+
+    /**
+     * Entropy codes a block of quantized coefficients in natural order.
+     *
+     * @param dc DC predictors per component, updated.
+     */
+    static void writeBlock(BitWriter writer, int[] block, int[] dc, int component,
+                           HuffmanTable dcTable, HuffmanTable acTable) {
+        int diff = block[0] - dc[component];
+        dc[component] = block[0];
+
+        int size = bitLength(diff);
+        writer.write(dcTable.mCodes[size], dcTable.mSizes[size]);
+        if (size > 0) {
+            writer.write((diff < 0) ? diff - 1 : diff, size);
+        }
+
+        int run = 0;
+        for (int k = 1; k < 64; k++) {
+            int v = block[ZIGZAG[k]];
+            if (v == 0) {
+                run++;
+                continue;
+            }
+
+            while (run > 15) {
+                // ZRL
+                writer.write(acTable.mCodes[0xf0], acTable.mSizes[0xf0]);
+                run -= 16;
+            }
+
+            size = bitLength(v);
+            int symbol = (run << 4) | size;
+            writer.write(acTable.mCodes[symbol], acTable.mSizes[symbol]);
+            writer.write((v < 0) ? v - 1 : v, size);
+            run = 0;
+        }
+
+        if (run > 0) {
+            // EOB
+            writer.write(acTable.mCodes[0], acTable.mSizes[0]);
+        }
+    }
+
+    static int bitLength(int value) {
+        return 32 - Integer.numberOfLeadingZeros((value < 0) ? -value : value);
+    }
+
+
+    /**
+     * Forward DCT in place; the output is scaled up by 8 (jfdctint.c).
+     */
+    private static void forwardDct(int[] d) {
+        for (int p = 0; p < 64; p += 8) {
+            int tmp0 = d[p] + d[p + 7], tmp7 = d[p] - d[p + 7];
+            int tmp1 = d[p + 1] + d[p + 6], tmp6 = d[p + 1] - d[p + 6];
+            int tmp2 = d[p + 2] + d[p + 5], tmp5 = d[p + 2] - d[p + 5];
+            int tmp3 = d[p + 3] + d[p + 4], tmp4 = d[p + 3] - d[p + 4];
+
+            int tmp10 = tmp0 + tmp3, tmp13 = tmp0 - tmp3;
+            int tmp11 = tmp1 + tmp2, tmp12 = tmp1 - tmp2;
+
+            d[p] = (tmp10 + tmp11) << PASS1_BITS;
+            d[p + 4] = (tmp10 - tmp11) << PASS1_BITS;
+
+            int z1 = (tmp12 + tmp13) * FIX_0_541196100;
+            d[p + 2] = descale(z1 + tmp13 * FIX_0_765366865, CONST_BITS - PASS1_BITS);
+            d[p + 6] = descale(z1 - tmp12 * FIX_1_847759065, CONST_BITS - PASS1_BITS);
+
+            oddPart(d, p, 1, tmp4, tmp5, tmp6, tmp7, CONST_BITS - PASS1_BITS);
+        }
+
+        for (int p = 0; p < 8; p++) {
+            int tmp0 = d[p] + d[p + 56], tmp7 = d[p] - d[p + 56];
+            int tmp1 = d[p + 8] + d[p + 48], tmp6 = d[p + 8] - d[p + 48];
+            int tmp2 = d[p + 16] + d[p + 40], tmp5 = d[p + 16] - d[p + 40];
+            int tmp3 = d[p + 24] + d[p + 32], tmp4 = d[p + 24] - d[p + 32];
+
+            int tmp10 = tmp0 + tmp3, tmp13 = tmp0 - tmp3;
+            int tmp11 = tmp1 + tmp2, tmp12 = tmp1 - tmp2;
+
+            d[p] = descale(tmp10 + tmp11, PASS1_BITS);
+            d[p + 32] = descale(tmp10 - tmp11, PASS1_BITS);
+
+            int z1 = (tmp12 + tmp13) * FIX_0_541196100;
+            d[p + 16] = descale(z1 + tmp13 * FIX_0_765366865, CONST_BITS + PASS1_BITS);
+            d[p + 48] = descale(z1 - tmp12 * FIX_1_847759065, CONST_BITS + PASS1_BITS);
+
+            oddPart(d, p, 8, tmp4, tmp5, tmp6, tmp7, CONST_BITS + PASS1_BITS);
+        }
+    }
+
+    private static void oddPart(int[] d, int p, int step, int tmp4, int tmp5, int tmp6,
+                                int tmp7, int bits) {
+        int z1 = tmp4 + tmp7, z2 = tmp5 + tmp6, z3 = tmp4 + tmp6, z4 = tmp5 + tmp7;
+        int z5 = (z3 + z4) * FIX_1_175875602;
+
+        tmp4 *= FIX_0_298631336;
+        tmp5 *= FIX_2_053119869;
+        tmp6 *= FIX_3_072711026;
+        tmp7 *= FIX_1_501321110;
+        z1 *= -FIX_0_899976223;
+        z2 *= -FIX_2_562915447;
+        z3 = z3 * -FIX_1_961570560 + z5;
+        z4 = z4 * -FIX_0_390180644 + z5;
+
+        d[p + 7 * step] = descale(tmp4 + z1 + z3, bits);
+        d[p + 5 * step] = descale(tmp5 + z2 + z4, bits);
+        d[p + 3 * step] = descale(tmp6 + z2 + z3, bits);
+        d[p + step] = descale(tmp7 + z1 + z4, bits);
+    }
+
+    private static int descale(int x, int n) {
+        return (x + (1 << (n - 1))) >> n;
+    }
+
+
+    static class HuffmanTable {
+        private final int[] mBits, mValues;
+
+        // code and code length per symbol
+        final int[] mCodes = new int[256];
+        final int[] mSizes = new int[256];
+
+        HuffmanTable(int[] bits, int[] values) {
+            mBits = bits;
+            mValues = values;
+
+            int code = 0, k = 0;
+            for (int length = 1; length <= 16; length++) {
+                for (int i = 0; i < bits[length - 1]; i++) {
+                    mCodes[values[k]] = code++;
+                    mSizes[values[k]] = length;
+                    k++;
+                }
+                code <<= 1;
+            }
+        }
+
+        int getSegmentLength() {
+            return 1 + 16 + mValues.length;
+        }
+
+        void write(OutputStream os, int classAndId) throws IOException {
+            os.write(classAndId);
+            for (int count : mBits) {
+                os.write(count);
+            }
+            for (int value : mValues) {
+                os.write(value);
+            }
+        }
+    }
+
+
+    /**
+     * Entropy-coded bytes of a stripe, with 0xff bytes stuffed.
+     */
+    static class BitWriter {
+        byte[] mData;
+        int mLength;
+
+        private int mBuffer, mBits;
+
+        BitWriter(int capacity) {
+            mData = new byte[Math.max(64, capacity)];
+        }
+
+        /**
+         * @param bits Value whose `count` lowest bits are written, at most 16.
+         */
+        void write(int bits, int count) {
+            mBuffer = (mBuffer << count) | (bits & ((1 << count) - 1));
+            mBits += count;
+
+            while (mBits >= 8) {
+                mBits -= 8;
+                int b = (mBuffer >> mBits) & 0xff;
+                put(b);
+                if (b == 0xff) {
+                    put(0);
+                }
+            }
+
+            mBuffer &= (1 << mBits) - 1;
+        }
+
+        /**
+         * Pads the last byte with 1 bits.
+         */
+        void flush() {
+            if (mBits > 0) {
+                write(0x7f, 8 - mBits);
+            }
+        }
+
+        private void put(int b) {
+            if (mLength == mData.length) {
+                mData = Arrays.copyOf(mData, mData.length * 2);
+            }
+            mData[mLength++] = (byte) b;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2015 Shirish Kamath.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package io.e55.fovea.android.sdk.camera.lib.image;
+
+
+/**
+ * Finds the highest JPEG quality whose file fits a byte budget, by a binary search over
+ * size estimates of sampled stripes (see {@link JpegEncoder#estimateGray}).
+ *
+ * The search is bounded by a number of estimates and by a time budget; when either runs out,
+ * the highest quality found to fit so far is used.
+ */
+public class JpegQualitySearch {
+
+    /**
+     * Every this many stripes are encoded for an estimate.
+     */
+    public static final int SAMPLE_STEP = 4;
+
+    // estimates tend to fall short by up to ~2%
+    private static final float ESTIMATE_MARGIN = 0.02f;
+
+    private final int mTargetBytes;
+    private final int mMinQuality, mMaxQuality;
+    private final int mMaxIterations;
+    private final long mMaxNanos;
+
+    private int mIterations;
+    private int mEstimate;
+
+
+    /**
+     * @param targetBytes   Byte budget of the JPEG file.
+     * @param minQuality    Lowest quality to use, even if the file does not fit.
+     * @param maxQuality    Highest quality to use, even if a higher one would fit.
+     * @param maxIterations Maximum number of size estimates.
+     * @param maxMillis     Time budget of the search.
+     */
+    public JpegQualitySearch(int targetBytes, int minQuality, int maxQuality, int maxIterations,
+                             long maxMillis) {
+        mTargetBytes = targetBytes;
+        mMinQuality = Math.max(1, Math.min(minQuality, maxQuality));
+        mMaxQuality = Math.min(100, maxQuality);
+        mMaxIterations = maxIterations;
+        mMaxNanos = maxMillis * 1000000L;
+    }
+
+
+    /**
+     * @return Quality for a grayscale image.
+     */
+    public int searchGray(final byte[] gray, final int width, final int height) {
+        return search(new Estimator() {
+            @Override
+            public int estimate(JpegEncoder encoder) {
+                return encoder.estimateGray(gray, width, height, SAMPLE_STEP);
+            }
+        });
+    }
+
+    /**
+     * @return Quality for a YCbCr 4:2:0 image.
+     */
+    public int searchYCbCr(final byte[] y, final byte[] cb, final byte[] cr, final int width,
+                           final int height) {
+        return search(new Estimator() {
+            @Override
+            public int estimate(JpegEncoder encoder) {
+                return encoder.estimateYCbCr(y, cb, cr, width, height, SAMPLE_STEP);
+            }
+        });
+    }
+
+
+    /**
+     * @return Number of estimates made by the last search.
+     */
+    public int getIterations() {
+        return mIterations;
+    }
+
+    /**
+     * @return Estimated size at the quality found by the last search, or 0 if none fit.
+     */
+    public int getEstimate() {
+        return mEstimate;
+    }
+
+
+    private interface Estimator {
+        int estimate(JpegEncoder encoder);
+    }
+
+    private int search(Estimator estimator) {
+        long start = System.nanoTime();
+        int budget = (int) (mTargetBytes * (1f - ESTIMATE_MARGIN));
+        int low = mMinQuality, high = mMaxQuality;
+        int best = mMinQuality;
+
+        mIterations = 0;
+        mEstimate = 0;
+
+        while (low <= high && mIterations < mMaxIterations &&
+                System.nanoTime() - start < mMaxNanos) {
+            // if the highest quality fits, one estimate is enough
+            int quality = (mIterations == 0) ? high : (low + high + 1) / 2;
+            int estimate = estimator.estimate(new JpegEncoder(quality));
+            mIterations++;
+
+            if (estimate <= budget) {
+                best = quality;
+                mEstimate = estimate;
+                low = quality + 1;
+            } else {
+                high = quality - 1;
+            }
+        }
+
+        return best;
+    }
+}
@@ -0,0 +1,1066 @@
+/*
+ * Copyright (c) 2015 Shirish Kamath.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package io.e55.fovea.android.sdk.camera.lib.image;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static io.e55.fovea.android.sdk.camera.lib.image.JpegEncoder.AC_CHROMA;
+import static io.e55.fovea.android.sdk.camera.lib.image.JpegEncoder.AC_LUMA;
+import static io.e55.fovea.android.sdk.camera.lib.image.JpegEncoder.DC_CHROMA;
+import static io.e55.fovea.android.sdk.camera.lib.image.JpegEncoder.DC_LUMA;
+import static io.e55.fovea.android.sdk.camera.lib.image.JpegEncoder.LUMA_QUANT;
+import static io.e55.fovea.android.sdk.camera.lib.image.JpegEncoder.RESTART_ROWS;
+import static io.e55.fovea.android.sdk.camera.lib.image.JpegEncoder.ZIGZAG;
+
+
+/**
+ * Crops, rotates and downscales baseline JPEGs, e.g. from `Camera.takePicture()`, on their
+ * quantized DCT coefficients rather than on pixels.
+ *
+ * Rotations by multiples of 90 degrees and crops on MCU boundaries move and transpose
+ * coefficients without changing them, and so are lossless. Downscaling by 1/2, 1/4 or 1/8
+ * keeps only the low frequencies of every block; those are turned into the pixels of the
+ * smaller blocks and re-quantized with the original tables, so it loses about as much as one
+ * more encode at the same quality, but never decodes the picture at full size.
+ *
+ * The entropy-coded data is decoded in parallel between restart markers, if the JPEG has any,
+ * and the output is coded in parallel stripes like that of the {@link JpegEncoder}.
+ * Progressive and arithmetic-coded JPEGs are not supported.
+ */
+public class JpegTranscoder {
+
+    // bits decoded at once by the Huffman lookup tables
+    private static final int LOOKAHEAD = 9;
+
+    // per quarter turn, the source coefficient of every rotated one in natural order, and its
+    // sign: a transpose swaps the frequencies, a mirror negates the odd ones along its axis
+    private static final int[][] ROTATED_ORDER = new int[4][64];
+    private static final int[][] ROTATED_SIGNS = new int[4][64];
+
+    static {
+        for (int v = 0; v < 8; v++) {
+            for (int u = 0; u < 8; u++) {
+                int i = v * 8 + u;
+                int transposed = u * 8 + v;
+
+                ROTATED_ORDER[0][i] = i;
+                ROTATED_SIGNS[0][i] = 1;
+                // transpose, then mirror horizontally
+                ROTATED_ORDER[1][i] = transposed;
+                ROTATED_SIGNS[1][i] = ((u & 1) != 0) ? -1 : 1;
+                ROTATED_ORDER[2][i] = i;
+                ROTATED_SIGNS[2][i] = (((u + v) & 1) != 0) ? -1 : 1;
+                // transpose, then mirror vertically
+                ROTATED_ORDER[3][i] = transposed;
+                ROTATED_SIGNS[3][i] = ((v & 1) != 0) ? -1 : 1;
+            }
+        }
+    }
+
+    private int mWidth, mHeight;
+    private int mMaxH, mMaxV;
+    private int mMcusX, mMcusY;
+    private Component[] mComponents;
+    private int mRestartInterval;
+
+    // natural order
+    private final int[][] mQuantTables = new int[4][];
+    private final DecodeTable[][] mHuffmanTables = new DecodeTable[2][4];
+
+
+    /**
+     * Decodes the DCT coefficients of the JPEG.
+     *
+     * @throws IOException if the JPEG is malformed or not a baseline JPEG.
+     */
+    public JpegTranscoder(byte[] jpeg) throws IOException {
+        try {
+            parse(jpeg);
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Truncated JPEG");
+        } catch (BadDataException e) {
+            throw new IOException(e.getMessage());
+        }
+
+        if (mComponents == null) {
+            throw new IOException("No frame");
+        }
+
+        for (Component c : mComponents) {
+            if (c.mCoefficients == null) {
+                throw new IOException("Missing scan of component " + c.mId);
+            }
+        }
+    }
+
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * @return 1 for grayscale, 3 for YCbCr.
+     */
+    public int getComponentCount() {
+        return mComponents.length;
+    }
+
+    /**
+     * @return Width of an MCU; crops start at multiples of it.
+     */
+    public int getMcuWidth() {
+        return 8 * mMaxH;
+    }
+
+    /**
+     * @return Height of an MCU; crops start at multiples of it.
+     */
+    public int getMcuHeight() {
+        return 8 * mMaxV;
+    }
+
+    /**
+     * @return Quality of the JPEG, estimated from its luma quantization table as if it was
+     * scaled like libjpeg's.
+     */
+    public int getQuality() {
+        int[] quant = mQuantTables[mComponents[0].mTq];
+        long sum = 0, base = 0;
+        for (int i = 0; i < 64; i++) {
+            sum += quant[i];
+            base += LUMA_QUANT[i];
+        }
+
+        int scale = (int) ((sum * 100 + base / 2) / base);
+        int quality = (scale <= 100) ? (200 - scale) / 2 : 5000 / scale;
+        return Math.max(1, Math.min(100, quality));
+    }
+
+
+    /**
+     * @return Width of {@link #getLumaThumbnail()}
+     */
+    public int getThumbnailWidth() {
+        return mComponents[0].mDataBlocksX;
+    }
+
+    /**
+     * @return Height of {@link #getLumaThumbnail()}
+     */
+    public int getThumbnailHeight() {
+        return mComponents[0].mDataBlocksY;
+    }
+
+    /**
+     * @return Mean luma of every 8 x 8 block of luma, from the DC coefficients alone.
+     */
+    public byte[] getLumaThumbnail() {
+        Component y = mComponents[0];
+        int q = mQuantTables[y.mTq][0];
+        byte[] thumbnail = new byte[y.mDataBlocksX * y.mDataBlocksY];
+
+        for (int by = 0; by < y.mDataBlocksY; by++) {
+            for (int bx = 0; bx < y.mDataBlocksX; bx++) {
+                int dc = y.mCoefficients[(by * y.mBlocksX + bx) * 64];
+                int mean = (dc * q + (dc >= 0 ? 4 : -4)) / 8 + 128;
+                thumbnail[by * y.mDataBlocksX + bx] =
+                        (byte) ((mean < 0) ? 0 : (mean > 255) ? 255 : mean);
+            }
+        }
+
+        return thumbnail;
+    }
+
+
+    /**
+     * Prepares a transform of the JPEG. The crop is applied first, then the rotation, then the
+     * downscale.
+     *
+     * @param left       Left edge of the crop; rounded down to a multiple of the MCU width.
+     * @param top        Top edge of the crop; rounded down to a multiple of the MCU height.
+     * @param width      Width of the crop. Edges that the rotation moves to the left or top
+     *                   are trimmed to whole MCUs.
+     * @param height     Height of the crop, trimmed likewise.
+     * @param rotation   Clockwise rotation in degrees: 0, 90, 180 or 270.
+     * @param scaleShift Downscale by 2^scaleShift, from 0 to 3.
+     * @param gray       Whether to keep only the luma.
+     * @throws IllegalArgumentException if the crop is empty or a parameter is unsupported.
+     */
+    public Transform newTransform(int left, int top, int width, int height, int rotation,
+                                  int scaleShift, boolean gray) {
+        return new Transform(left, top, width, height, rotation, scaleShift, gray);
+    }
+
+
+    /**
+     * A crop, rotation and downscale of the JPEG.
+     */
+    public class Transform {
+        private final int mRotation, mShift;
+        private final int mWidth, mHeight;
+        private final OutComponent[] mOut;
+        private final int mOutMcusX, mOutMcusY;
+
+        Transform(int left, int top, int width, int height, int rotation, int scaleShift,
+                  boolean gray) {
+            rotation = ((rotation % 360) + 360) % 360;
+            if (rotation % 90 != 0) {
+                throw new IllegalArgumentException("Unsupported rotation: " + rotation);
+            }
+            if (scaleShift < 0 || scaleShift > 3) {
+                throw new IllegalArgumentException("Unsupported scale: 1/" + (1 << scaleShift));
+            }
+
+            mRotation = rotation;
+            mShift = scaleShift;
+
+            int mcuW = getMcuWidth(), mcuH = getMcuHeight();
+            int right = Math.min(JpegTranscoder.this.mWidth, Math.max(0, left) + width);
+            int bottom = Math.min(JpegTranscoder.this.mHeight, Math.max(0, top) + height);
+            left = Math.max(0, left) / mcuW * mcuW;
+            top = Math.max(0, top) / mcuH * mcuH;
+
+            int cropW = right - left, cropH = bottom - top;
+
+            // partial MCUs would end up at the left or top
+            if (rotation == 90 || rotation == 180) {
+                cropH = cropH / mcuH * mcuH;
+            }
+            if (rotation == 180 || rotation == 270) {
+                cropW = cropW / mcuW * mcuW;
+            }
+
+            if (cropW <= 0 || cropH <= 0) {
+                throw new IllegalArgumentException("Empty crop");
+            }
+
+            boolean swap = (rotation == 90 || rotation == 270);
+            int scale = 1 << scaleShift;
+            mWidth = ((swap ? cropH : cropW) + scale - 1) / scale;
+            mHeight = ((swap ? cropW : cropH) + scale - 1) / scale;
+
+            int count = gray ? 1 : mComponents.length;
+            mOut = new OutComponent[count];
+            int maxH = 1, maxV = 1;
+
+            for (int i = 0; i < count; i++) {
+                Component c = mComponents[i];
+                OutComponent out = new OutComponent();
+                out.mSource = c;
+                out.mBlockLeft = left / mcuW * c.mH;
+                out.mBlockTop = top / mcuH * c.mV;
+                out.mCropBlocksX = ceilDiv(ceilDiv(cropW * c.mH, mMaxH), 8);
+                out.mCropBlocksY = ceilDiv(ceilDiv(cropH * c.mV, mMaxV), 8);
+                out.mBlocksX = swap ? out.mCropBlocksY : out.mCropBlocksX;
+                out.mBlocksY = swap ? out.mCropBlocksX : out.mCropBlocksY;
+                out.mH = (count == 1) ? 1 : swap ? c.mV : c.mH;
+                out.mV = (count == 1) ? 1 : swap ? c.mH : c.mV;
+                out.mTq = c.mTq;
+                out.mQuant = swap ? transpose(mQuantTables[c.mTq]) : mQuantTables[c.mTq];
+
+                maxH = Math.max(maxH, out.mH);
+                maxV = Math.max(maxV, out.mV);
+                mOut[i] = out;
+            }
+
+            mOutMcusX = ceilDiv(mWidth, 8 * maxH);
+            mOutMcusY = ceilDiv(mHeight, 8 * maxV);
+        }
+
+        public int getWidth() {
+            return mWidth;
+        }
+
+        public int getHeight() {
+            return mHeight;
+        }
+
+
+        /**
+         * Writes the transformed JPEG on the shared executor.
+         *
+         * @param os Stream for the JPEG file; not closed.
+         */
+        public void write(OutputStream os) throws IOException {
+            write(os, RowBands.getExecutor(), RowBands.getParallelism());
+        }
+
+
+        /**
+         * Writes the transformed JPEG in up to `parallelism` bands of stripes.
+         *
+         * @param executor    Executor for the bands; null writes on the calling thread, as
+         *                    tasks already running on the shared executor must.
+         * @param parallelism Maximum number of bands
+         */
+        public void write(OutputStream os, Executor executor, int parallelism)
+                throws IOException {
+            int restartRows = Math.max(1, Math.min(RESTART_ROWS, 0xffff / mOutMcusX));
+            final int rows = restartRows;
+            final int stripeCount = ceilDiv(mOutMcusY, restartRows);
+            final JpegEncoder.BitWriter[] stripes = new JpegEncoder.BitWriter[stripeCount];
+
+            RowBands.run(executor, parallelism, stripeCount, 1, new RowBands.RowTask() {
+                @Override
+                public void run(int startStripe, int endStripe) {
+                    BlockReader reader = new BlockReader();
+
+                    for (int stripe = startStripe; stripe < endStripe; stripe++) {
+                        int startRow = stripe * rows;
+                        stripes[stripe] = encodeStripe(reader, startRow,
+                                Math.min(mOutMcusY, startRow + rows));
+                    }
+                }
+            });
+
+            writeHeaders(os, (stripeCount > 1) ? restartRows * mOutMcusX : 0);
+
+            for (int i = 0; i < stripeCount; i++) {
+                os.write(stripes[i].mData, 0, stripes[i].mLength);
+
+                if (i < stripeCount - 1) {
+                    // RST0-RST7
+                    os.write(0xff);
+                    os.write(0xd0 + (i & 7));
+                }
+            }
+
+            os.write(0xff);
+            os.write(0xd9);
+        }
+
+        private JpegEncoder.BitWriter encodeStripe(BlockReader reader, int startRow,
+                                                   int endRow) {
+            JpegEncoder.BitWriter writer =
+                    new JpegEncoder.BitWriter((endRow - startRow) * mOutMcusX * 64);
+            int[] dc = new int[mOut.length];
+            int[] block = new int[64];
+
+            for (int my = startRow; my < endRow; my++) {
+                for (int mx = 0; mx < mOutMcusX; mx++) {
+                    for (int i = 0; i < mOut.length; i++) {
+                        OutComponent out = mOut[i];
+
+                        for (int v = 0; v < out.mV; v++) {
+                            for (int h = 0; h < out.mH; h++) {
+                                reader.read(out, mx * out.mH + h, my * out.mV + v, block);
+                                JpegEncoder.writeBlock(writer, block, dc, i,
+                                        (i == 0) ? DC_LUMA : DC_CHROMA,
+                                        (i == 0) ? AC_LUMA : AC_CHROMA);
+                            }
+                        }
+                    }
+                }
+            }
+
+            writer.flush();
+            return writer;
+        }
+
+        private void writeHeaders(OutputStream os, int restartInterval) throws IOException {
+            // SOI, APP0 (JFIF 1.01, no thumbnail)
+            os.write(new byte[]{
+                    (byte) 0xff, (byte) 0xd8,
+                    (byte) 0xff, (byte) 0xe0, 0, 16, 'J', 'F', 'I', 'F', 0, 1, 1, 0, 0, 1, 0, 1,
+                    0, 0
+            });
+
+            // DQT, once per table in use
+            boolean[] written = new boolean[4];
+            for (OutComponent out : mOut) {
+                if (!written[out.mTq]) {
+                    written[out.mTq] = true;
+                    JpegEncoder.writeMarker(os, 0xdb, 65);
+                    os.write(out.mTq);
+                    for (int i = 0; i < 64; i++) {
+                        os.write(out.mQuant[ZIGZAG[i]]);
+                    }
+                }
+            }
+
+            // SOF0
+            int count = mOut.length;
+            JpegEncoder.writeMarker(os, 0xc0, 6 + 3 * count);
+            os.write(8);
+            JpegEncoder.write16(os, mHeight);
+            JpegEncoder.write16(os, mWidth);
+            os.write(count);
+            for (int i = 0; i < count; i++) {
+                os.write(new byte[]{(byte) (i + 1), (byte) ((mOut[i].mH << 4) | mOut[i].mV),
+                        (byte) mOut[i].mTq});
+            }
+
+            // DHT
+            int length = DC_LUMA.getSegmentLength() + AC_LUMA.getSegmentLength();
+            if (count > 1) {
+                length += DC_CHROMA.getSegmentLength() + AC_CHROMA.getSegmentLength();
+            }
+            JpegEncoder.writeMarker(os, 0xc4, length);
+            DC_LUMA.write(os, 0x00);
+            AC_LUMA.write(os, 0x10);
+            if (count > 1) {
+                DC_CHROMA.write(os, 0x01);
+                AC_CHROMA.write(os, 0x11);
+            }
+
+            // DRI
+            if (restartInterval > 0) {
+                JpegEncoder.writeMarker(os, 0xdd, 2);
+                JpegEncoder.write16(os, restartInterval);
+            }
+
+            // SOS
+            JpegEncoder.writeMarker(os, 0xda, 4 + 2 * count);
+            os.write(count);
+            for (int i = 0; i < count; i++) {
+                os.write(new byte[]{(byte) (i + 1), (byte) ((i == 0) ? 0x00 : 0x11)});
+            }
+            os.write(new byte[]{0, 63, 0});
+        }
+
+
+        /**
+         * Reads blocks of the output, with edge blocks repeated past the crop; one per thread.
+         */
+        private class BlockReader {
+            private final int[] mBlock = new int[64];
+            private final float[] mPixels = new float[64];
+            private final float[] mTemp = new float[64];
+
+            void read(OutComponent out, int bx, int by, int[] dst) {
+                if (mShift == 0) {
+                    readRotated(out, Math.min(bx, out.mBlocksX - 1),
+                            Math.min(by, out.mBlocksY - 1), dst);
+                    return;
+                }
+
+                int group = 1 << mShift;
+                int size = 8 >> mShift;
+                float[] basis = DctBasis.SCALED[mShift];
+                int[] quant = out.mQuant;
+
+                // the low frequencies of every block of the group become pixels of one block
+                for (int j = 0; j < group; j++) {
+                    for (int i = 0; i < group; i++) {
+                        int rx = Math.min(bx * group + i, out.mBlocksX - 1);
+                        int ry = Math.min(by * group + j, out.mBlocksY - 1);
+                        readRotated(out, rx, ry, mBlock);
+
+                        DctBasis.inverse(mBlock, quant, basis, size, mTemp, mPixels,
+                                (j * size) * 8 + i * size);
+                    }
+                }
+
+                DctBasis.forward(mPixels, mTemp, quant, dst);
+            }
+
+            private void readRotated(OutComponent out, int rx, int ry, int[] dst) {
+                int sx, sy;
+                switch (mRotation) {
+                    case 90:
+                        sx = ry;
+                        sy = out.mCropBlocksY - 1 - rx;
+                        break;
+                    case 180:
+                        sx = out.mCropBlocksX - 1 - rx;
+                        sy = out.mCropBlocksY - 1 - ry;
+                        break;
+                    case 270:
+                        sx = out.mCropBlocksX - 1 - ry;
+                        sy = rx;
+                        break;
+                    default:
+                        sx = rx;
+                        sy = ry;
+                        break;
+                }
+
+                Component c = out.mSource;
+                short[] src = c.mCoefficients;
+                int p = ((out.mBlockTop + sy) * c.mBlocksX + out.mBlockLeft + sx) * 64;
+
+                int[] order = ROTATED_ORDER[mRotation / 90];
+                int[] signs = ROTATED_SIGNS[mRotation / 90];
+                for (int i = 0; i < 64; i++) {
+                    dst[i] = src[p + order[i]] * signs[i];
+                }
+            }
+        }
+    }
+
+    private static class OutComponent {
+        Component mSource;
+        // first block of the crop, and its size in blocks, in the source
+        int mBlockLeft, mBlockTop, mCropBlocksX, mCropBlocksY;
+        // size of the rotated crop in blocks
+        int mBlocksX, mBlocksY;
+        int mH, mV, mTq;
+        int[] mQuant;
+    }
+
+
+    /**
+     * Orthonormal DCT bases, which is what the coefficients of JPEG are.
+     */
+    private static class DctBasis {
+        // [shift][m * size + u]: pixels of a block of size 8 >> shift from its lowest
+        // frequencies, including the scale that makes a pixel the mean of those it replaces
+        static final float[][] SCALED = new float[4][];
+        // [u * 8 + m]
+        static final float[] FORWARD = new float[64];
+
+        static {
+            for (int shift = 0; shift < 4; shift++) {
+                int size = 8 >> shift;
+                float[] basis = new float[size * size];
+                for (int m = 0; m < size; m++) {
+                    for (int u = 0; u < size; u++) {
+                        basis[m * size + u] = (float) (Math.sqrt(size / 8.0) * alpha(u, size) *
+                                Math.cos((2 * m + 1) * u * Math.PI / (2 * size)));
+                    }
+                }
+                SCALED[shift] = basis;
+            }
+
+            for (int u = 0; u < 8; u++) {
+                for (int m = 0; m < 8; m++) {
+                    FORWARD[u * 8 + m] = (float) (alpha(u, 8) *
+                            Math.cos((2 * m + 1) * u * Math.PI / 16));
+                }
+            }
+        }
+
+        private static double alpha(int u, int size) {
+            return Math.sqrt(((u == 0) ? 1.0 : 2.0) / size);
+        }
+
+        /**
+         * Dequantizes the lowest size x size frequencies of `block` and writes their pixels
+         * into `pixels`, an 8 x 8 block, at `offset`.
+         */
+        static void inverse(int[] block, int[] quant, float[] basis, int size, float[] temp,
+                            float[] pixels, int offset) {
+            // rows: temp[v * size + m] = sum over u
+            for (int v = 0; v < size; v++) {
+                for (int m = 0; m < size; m++) {
+                    float sum = 0f;
+                    for (int u = 0; u < size; u++) {
+                        sum += basis[m * size + u] * block[v * 8 + u] * quant[v * 8 + u];
+                    }
+                    temp[v * size + m] = sum;
+                }
+            }
+
+            // columns
+            for (int n = 0; n < size; n++) {
+                for (int m = 0; m < size; m++) {
+                    float sum = 0f;
+                    for (int v = 0; v < size; v++) {
+                        sum += basis[n * size + v] * temp[v * size + m];
+                    }
+                    // level-shifted pixels stay within 8 bits
+                    pixels[offset + n * 8 + m] = Math.max(-128f, Math.min(127f, sum));
+                }
+            }
+        }
+
+        /**
+         * Transforms and quantizes 8 x 8 pixels.
+         */
+        static void forward(float[] pixels, float[] temp, int[] quant, int[] dst) {
+            for (int y = 0; y < 8; y++) {
+                for (int u = 0; u < 8; u++) {
+                    float sum = 0f;
+                    for (int x = 0; x < 8; x++) {
+                        sum += FORWARD[u * 8 + x] * pixels[y * 8 + x];
+                    }
+                    temp[y * 8 + u] = sum;
+                }
+            }
+
+            for (int v = 0; v < 8; v++) {
+                for (int u = 0; u < 8; u++) {
+                    float sum = 0f;
+                    for (int y = 0; y < 8; y++) {
+                        sum += FORWARD[v * 8 + y] * temp[y * 8 + u];
+                    }
+                    dst[v * 8 + u] = Math.round(sum / quant[v * 8 + u]);
+                }
+            }
+        }
+    }
+
+
+    // ---- decoding ----
+
+    private static class Component {
+        int mId, mH, mV, mTq;
+        // blocks stored, covering whole MCUs, and blocks with image data
+        int mBlocksX, mBlocksY, mDataBlocksX, mDataBlocksY;
+        // quantized, in natural order
+        short[] mCoefficients;
+        DecodeTable mDcTable, mAcTable;
+    }
+
+    private static class BadDataException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        BadDataException(String message) {
+            super(message);
+        }
+    }
+
+    private void parse(byte[] data) throws IOException {
+        if ((data[0] & 0xff) != 0xff || (data[1] & 0xff) != 0xd8) {
+            throw new IOException("Not a JPEG");
+        }
+
+        int pos = 2;
+        while (true) {
+            if ((data[pos] & 0xff) != 0xff) {
+                throw new IOException("Marker expected at " + pos);
+            }
+            while ((data[pos] & 0xff) == 0xff) {
+                pos++;
+            }
+
+            int marker = data[pos++] & 0xff;
+            if (marker == 0xd9) {
+                return;
+            }
+            if (marker == 0x01 || (marker >= 0xd0 && marker <= 0xd7)) {
+                continue;
+            }
+
+            int length = ((data[pos] & 0xff) << 8) | (data[pos + 1] & 0xff);
+            int start = pos + 2, end = pos + length;
+
+            switch (marker) {
+                case 0xc0:
+                case 0xc1:
+                    parseFrame(data, start);
+                    break;
+                case 0xc4:
+                    parseHuffmanTables(data, start, end);
+                    break;
+                case 0xdb:
+                    parseQuantTables(data, start, end);
+                    break;
+                case 0xdd:
+                    mRestartInterval = ((data[start] & 0xff) << 8) | (data[start + 1] & 0xff);
+                    break;
+                case 0xda:
+                    end = decodeScan(data, start);
+                    break;
+                default:
+                    if (marker >= 0xc2 && marker <= 0xcf) {
+                        throw new IOException("Unsupported JPEG process: SOF" + (marker - 0xc0));
+                    }
+                    // APPn, COM, ...
+                    break;
+            }
+
+            pos = end;
+        }
+    }
+
+    private void parseFrame(byte[] data, int p) throws IOException {
+        if ((data[p] & 0xff) != 8) {
+            throw new IOException("Unsupported precision: " + (data[p] & 0xff));
+        }
+
+        mHeight = ((data[p + 1] & 0xff) << 8) | (data[p + 2] & 0xff);
+        mWidth = ((data[p + 3] & 0xff) << 8) | (data[p + 4] & 0xff);
+        int count = data[p + 5] & 0xff;
+
+        if (mWidth == 0 || mHeight == 0) {
+            throw new IOException("Unsupported size: " + mWidth + " x " + mHeight);
+        }
+        if (count != 1 && count != 3) {
+            throw new IOException("Unsupported number of components: " + count);
+        }
+
+        mComponents = new Component[count];
+        p += 6;
+        for (int i = 0; i < count; i++, p += 3) {
+            Component c = new Component();
+            c.mId = data[p] & 0xff;
+            c.mH = (data[p + 1] >> 4) & 0x0f;
+            c.mV = data[p + 1] & 0x0f;
+            c.mTq = data[p + 2] & 0x03;
+
+            if (c.mH < 1 || c.mH > 4 || c.mV < 1 || c.mV > 4) {
+                throw new IOException("Bad sampling factors");
+            }
+
+            mMaxH = Math.max(mMaxH, c.mH);
+            mMaxV = Math.max(mMaxV, c.mV);
+            mComponents[i] = c;
+        }
+
+        mMcusX = ceilDiv(mWidth, 8 * mMaxH);
+        mMcusY = ceilDiv(mHeight, 8 * mMaxV);
+
+        for (Component c : mComponents) {
+            c.mBlocksX = mMcusX * c.mH;
+            c.mBlocksY = mMcusY * c.mV;
+            c.mDataBlocksX = ceilDiv(ceilDiv(mWidth * c.mH, mMaxH), 8);
+            c.mDataBlocksY = ceilDiv(ceilDiv(mHeight * c.mV, mMaxV), 8);
+        }
+    }
+
+    private void parseQuantTables(byte[] data, int p, int end) throws IOException {
+        while (p < end) {
+            int precision = (data[p] >> 4) & 0x0f;
+            int id = data[p] & 0x03;
+            if (precision != 0) {
+                throw new IOException("Unsupported 16-bit quantization table");
+            }
+
+            int[] quant = new int[64];
+            for (int i = 0; i < 64; i++) {
+                quant[ZIGZAG[i]] = Math.max(1, data[p + 1 + i] & 0xff);
+            }
+
+            mQuantTables[id] = quant;
+            p += 65;
+        }
+    }
+
+    private void parseHuffmanTables(byte[] data, int p, int end) throws IOException {
+        while (p < end) {
+            int tableClass = (data[p] >> 4) & 0x0f;
+            int id = data[p] & 0x03;
+            if (tableClass > 1) {
+                throw new IOException("Bad Huffman table class");
+            }
+
+            int[] bits = new int[16];
+            int total = 0;
+            for (int i = 0; i < 16; i++) {
+                bits[i] = data[p + 1 + i] & 0xff;
+                total += bits[i];
+            }
+            if (total > 256) {
+                throw new IOException("Bad Huffman table");
+            }
+
+            int[] values = new int[total];
+            for (int i = 0; i < total; i++) {
+                values[i] = data[p + 17 + i] & 0xff;
+            }
+
+            mHuffmanTables[tableClass][id] = new DecodeTable(bits, values);
+            p += 17 + total;
+        }
+    }
+
+
+    /**
+     * Decodes a scan and its entropy-coded data.
+     *
+     * @param p Start of the SOS header, after its length.
+     * @return Position of the marker that follows the scan.
+     */
+    private int decodeScan(byte[] data, int p) throws IOException {
+        if (mComponents == null) {
+            throw new IOException("Scan before frame");
+        }
+
+        int count = data[p] & 0xff;
+        final Component[] components = new Component[count];
+
+        for (int i = 0; i < count; i++) {
+            int id = data[p + 1 + 2 * i] & 0xff;
+            int tables = data[p + 2 + 2 * i] & 0xff;
+
+            for (Component c : mComponents) {
+                if (c.mId == id) {
+                    components[i] = c;
+                }
+            }
+
+            Component c = components[i];
+            if (c == null) {
+                throw new IOException("Unknown component " + id);
+            }
+
+            c.mDcTable = mHuffmanTables[0][(tables >> 4) & 0x03];
+            c.mAcTable = mHuffmanTables[1][tables & 0x03];
+            if (c.mDcTable == null || c.mAcTable == null) {
+                throw new IOException("Missing Huffman table");
+            }
+
+            if (mQuantTables[c.mTq] == null) {
+                throw new IOException("Missing quantization table " + c.mTq);
+            }
+
+            if (c.mCoefficients == null) {
+                c.mCoefficients = new short[c.mBlocksX * c.mBlocksY * 64];
+            }
+        }
+
+        int q = p + 1 + 2 * count;
+        if ((data[q] & 0xff) != 0 || (data[q + 1] & 0xff) != 63 || data[q + 2] != 0) {
+            throw new IOException("Not a sequential scan");
+        }
+
+        // split the entropy-coded data at its restart markers
+        final List<int[]> segments = new ArrayList<>();
+        int start = q + 3, i = start;
+        int end = data.length;
+
+        while (i < data.length - 1) {
+            if ((data[i] & 0xff) != 0xff) {
+                i++;
+                continue;
+            }
+
+            int next = data[i + 1] & 0xff;
+            if (next == 0x00 || next == 0xff) {
+                i += (next == 0x00) ? 2 : 1;
+            } else if (next >= 0xd0 && next <= 0xd7) {
+                segments.add(new int[]{start, i});
+                start = i + 2;
+                i = start;
+            } else {
+                end = i;
+                break;
+            }
+        }
+        segments.add(new int[]{start, end});
+
+        final boolean interleaved = (count > 1);
+        final int total = interleaved ? mMcusX * mMcusY :
+                components[0].mDataBlocksX * components[0].mDataBlocksY;
+        final int interval = (mRestartInterval > 0) ? mRestartInterval : total;
+
+        if (segments.size() > 1 && mRestartInterval == 0) {
+            throw new IOException("Restart marker without restart interval");
+        }
+
+        final byte[] bytes = data;
+        RowBands.run(segments.size(), 1, new RowBands.RowTask() {
+            @Override
+            public void run(int startSegment, int endSegment) {
+                for (int s = startSegment; s < endSegment; s++) {
+                    int[] segment = segments.get(s);
+                    int first = s * interval;
+                    int last = Math.min(total, first + interval);
+
+                    decodeSegment(new BitReader(bytes, segment[0], segment[1]), components,
+                            interleaved, first, last);
+                }
+            }
+        });
+
+        return end;
+    }
+
+    private void decodeSegment(BitReader reader, Component[] components, boolean interleaved,
+                               int first, int last) {
+        int[] predictors = new int[components.length];
+
+        for (int mcu = first; mcu < last; mcu++) {
+            if (!interleaved) {
+                Component c = components[0];
+                int bx = mcu % c.mDataBlocksX, by = mcu / c.mDataBlocksX;
+                decodeBlock(reader, c, (by * c.mBlocksX + bx) * 64, predictors, 0);
+                continue;
+            }
+
+            int mx = mcu % mMcusX, my = mcu / mMcusX;
+            for (int i = 0; i < components.length; i++) {
+                Component c = components[i];
+                for (int v = 0; v < c.mV; v++) {
+                    for (int h = 0; h < c.mH; h++) {
+                        int block = (my * c.mV + v) * c.mBlocksX + mx * c.mH + h;
+                        decodeBlock(reader, c, block * 64, predictors, i);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void decodeBlock(BitReader reader, Component c, int offset, int[] predictors,
+                                    int index) {
+        short[] coefficients = c.mCoefficients;
+
+        int size = c.mDcTable.decode(reader);
+        if (size > 0) {
+            predictors[index] += extend(reader.receive(size), size);
+        }
+        coefficients[offset] = (short) predictors[index];
+
+        DecodeTable ac = c.mAcTable;
+        for (int k = 1; k < 64; ) {
+            int symbol = ac.decode(reader);
+            int run = symbol >> 4;
+            size = symbol & 0x0f;
+
+            if (size == 0) {
+                if (run != 15) {
+                    // EOB
+                    break;
+                }
+                k += 16;
+                continue;
+            }
+
+            k += run;
+            if (k > 63) {
+                throw new BadDataException("Bad AC run");
+            }
+
+            coefficients[offset + ZIGZAG[k]] = (short) extend(reader.receive(size), size);
+            k++;
+        }
+    }
+
+    private static int extend(int value, int size) {
+        return (value < (1 << (size - 1))) ? value - (1 << size) + 1 : value;
+    }
+
+
+    private static class DecodeTable {
+        // (length << 8) | symbol for codes of up to LOOKAHEAD bits
+        private final int[] mLookup = new int[1 << LOOKAHEAD];
+        private final int[] mMaxCode = new int[17];
+        private final int[] mOffset = new int[17];
+        private final int[] mValues;
+
+        DecodeTable(int[] bits, int[] values) {
+            mValues = values;
+
+            int code = 0, k = 0;
+            for (int length = 1; length <= 16; length++) {
+                int count = bits[length - 1];
+                mOffset[length] = k - code;
+                mMaxCode[length] = (count > 0) ? code + count - 1 : -1;
+
+                for (int i = 0; i < count; i++, code++, k++) {
+                    if (length <= LOOKAHEAD) {
+                        int shift = LOOKAHEAD - length;
+                        int entry = (length << 8) | values[k];
+                        for (int j = 0; j < (1 << shift); j++) {
+                            mLookup[(code << shift) | j] = entry;
+                        }
+                    }
+                }
+                code <<= 1;
+            }
+        }
+
+        int decode(BitReader reader) {
+            int entry = mLookup[reader.peek(LOOKAHEAD)];
+            if (entry != 0) {
+                reader.skip(entry >> 8);
+                return entry & 0xff;
+            }
+
+            int bits = reader.peek(16);
+            for (int length = LOOKAHEAD + 1; length <= 16; length++) {
+                int code = bits >> (16 - length);
+                if (code <= mMaxCode[length]) {
+                    reader.skip(length);
+                    return mValues[mOffset[length] + code];
+                }
+            }
+
+            throw new BadDataException("Bad Huffman code");
+        }
+    }
+
+    /**
+     * Reads entropy-coded data between two markers, with 0xff bytes unstuffed; zeros past the
+     * end.
+     */
+    private static class BitReader {
+        private final byte[] mData;
+        private final int mEnd;
+        private int mPos;
+        private int mBuffer, mBits;
+
+        BitReader(byte[] data, int start, int end) {
+            mData = data;
+            mPos = start;
+            mEnd = end;
+        }
+
+        int peek(int count) {
+            if (mBits < count) {
+                fill();
+            }
+            return (mBuffer >>> (mBits - count)) & ((1 << count) - 1);
+        }
+
+        void skip(int count) {
+            mBits -= count;
+        }
+
+        int receive(int count) {
+            int value = peek(count);
+            mBits -= count;
+            return value;
+        }
+
+        private void fill() {
+            while (mBits <= 24) {
+                int b = 0;
+                if (mPos < mEnd) {
+                    b = mData[mPos++] & 0xff;
+                    if (b == 0xff) {
+                        // stuffed zero
+                        mPos++;
+                    }
+                }
+
+                mBuffer = (mBuffer << 8) | b;
+                mBits += 8;
+            }
+        }
+    }
+
+
+    private static int[] transpose(int[] table) {
+        int[] transposed = new int[64];
+        for (int v = 0; v < 8; v++) {
+            for (int u = 0; u < 8; u++) {
+                transposed[v * 8 + u] = table[u * 8 + v];
+            }
+        }
+        return transposed;
+    }
+
+    private static int ceilDiv(int a, int b) {
+        return (a + b - 1) / b;
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright (c) 2015 Shirish Kamath.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package io.e55.fovea.android.sdk.camera.lib.image;
+
+import java.util.concurrent.Executor;
+
+
+/**
+ * Maps a quadrilateral of an image onto an upright rectangle, e.g. to de-skew a photographed
+ * document.
+ *
+ * The output size follows the lengths of the quad's sides, bounded by `maxSide`. Every output
+ * pixel is mapped back into the source through a homography and sampled bilinearly; rows are
+ * processed in parallel bands (see {@link RowBands}).
+ */
+public class PerspectiveWarp {
+
+    // homography from the unit square to the source quad
+    private final float mA, mB, mC, mD, mE, mF, mG, mH;
+
+    private final int mWidth, mHeight;
+
+
+    /**
+     * @param corners Corners of the quad in source pixel coordinates: top-left, top-right,
+     *                bottom-right and bottom-left as x, y pairs.
+     * @param maxSide Maximum width or height of the output.
+     * @throws IllegalArgumentException if the corners do not form a proper quad.
+     */
+    public PerspectiveWarp(float[] corners, int maxSide) {
+        float x0 = corners[0], y0 = corners[1];
+        float x1 = corners[2], y1 = corners[3];
+        float x2 = corners[4], y2 = corners[5];
+        float x3 = corners[6], y3 = corners[7];
+
+        float dx1 = x1 - x2, dy1 = y1 - y2;
+        float dx2 = x3 - x2, dy2 = y3 - y2;
+        float dx3 = x0 - x1 + x2 - x3, dy3 = y0 - y1 + y2 - y3;
+
+        float det = dx1 * dy2 - dx2 * dy1;
+        if (Math.abs(det) < 1e-6f) {
+            throw new IllegalArgumentException("Degenerate quad");
+        }
+
+        mG = (dx3 * dy2 - dx2 * dy3) / det;
+        mH = (dx1 * dy3 - dx3 * dy1) / det;
+        mA = x1 - x0 + mG * x1;
+        mB = x3 - x0 + mH * x3;
+        mC = x0;
+        mD = y1 - y0 + mG * y1;
+        mE = y3 - y0 + mH * y3;
+        mF = y0;
+
+        // average of the opposite sides
+        float width = (distance(x0, y0, x1, y1) + distance(x3, y3, x2, y2)) / 2f;
+        float height = (distance(x0, y0, x3, y3) + distance(x1, y1, x2, y2)) / 2f;
+        float scale = Math.min(1f, maxSide / Math.max(width, height));
+
+        mWidth = Math.max(1, Math.round(width * scale));
+        mHeight = Math.max(1, Math.round(height * scale));
+    }
+
+
+    /**
+     * @return Width of the output
+     */
+    public int getWidth() {
+        return mWidth;
+    }
+
+    /**
+     * @return Height of the output
+     */
+    public int getHeight() {
+        return mHeight;
+    }
+
+
+    /**
+     * Warps an ARGB image on the shared executor.
+     *
+     * @param src       Source pixels, row by row.
+     * @param srcWidth  Width of the source
+     * @param srcHeight Height of the source
+     * @param dst       Output pixels; at least `getWidth() * getHeight()` long.
+     */
+    public void warp(int[] src, int srcWidth, int srcHeight, int[] dst) {
+        warp(src, srcWidth, srcHeight, dst, RowBands.getExecutor(), RowBands.getParallelism());
+    }
+
+
+    /**
+     * Warps an ARGB image in up to `parallelism` row bands.
+     *
+     * @param executor    Executor for the row bands; null warps on the calling thread.
+     * @param parallelism Maximum number of row bands
+     */
+    public void warp(final int[] src, final int srcWidth, final int srcHeight, final int[] dst,
+                     Executor executor, int parallelism) {
+        if (src.length < srcWidth * srcHeight || dst.length < mWidth * mHeight) {
+            throw new IllegalArgumentException("Buffer too small");
+        }
+
+        RowBands.run(executor, parallelism, mHeight, 16, new RowBands.RowTask() {
+            @Override
+            public void run(int startRow, int endRow) {
+                warpRows(src, srcWidth, srcHeight, dst, startRow, endRow);
+            }
+        });
+    }
+
+
+    /**
+     * Warps a single-channel image, such as the Y plane of a Camera frame, on the shared
+     * executor.
+     *
+     * @param src       Source pixels, with a stride of `srcWidth`.
+     * @param srcWidth  Width of the source
+     * @param srcHeight Height of the source
+     * @param dst       Output pixels; at least `getWidth() * getHeight()` long.
+     */
+    public void warp(final byte[] src, final int srcWidth, final int srcHeight,
+                     final byte[] dst) {
+        if (src.length < srcWidth * srcHeight || dst.length < mWidth * mHeight) {
+            throw new IllegalArgumentException("Buffer too small");
+        }
+
+        RowBands.run(mHeight, 16, new RowBands.RowTask() {
+            @Override
+            public void run(int startRow, int endRow) {
+                warpRows(src, srcWidth, srcHeight, dst, startRow, endRow);
+            }
+        });
+    }
+
+
+    private void warpRows(int[] src, int srcWidth, int srcHeight, int[] dst,
+                          int startRow, int endRow) {
+        int w = mWidth;
+        float du = 1f / w;
+        float maxX = srcWidth - 1, maxY = srcHeight - 1;
+
+        for (int row = startRow; row < endRow; row++) {
+            float v = (row + 0.5f) / mHeight;
+            float u = 0.5f * du;
+
+            // numerators and denominator are linear in u; step them along the row
+            float nx = mA * u + mB * v + mC;
+            float ny = mD * u + mE * v + mF;
+            float dn = mG * u + mH * v + 1f;
+            float nxStep = mA * du, nyStep = mD * du, dnStep = mG * du;
+
+            int out = row * w;
+
+            for (int col = 0; col < w; col++) {
+                // source pixel centres are at integer + 0.5
+                float x = nx / dn - 0.5f;
+                float y = ny / dn - 0.5f;
+
+                x = (x < 0f) ? 0f : (x > maxX) ? maxX : x;
+                y = (y < 0f) ? 0f : (y > maxY) ? maxY : y;
+
+                int x0 = (int) x, y0 = (int) y;
+                int x1 = Math.min(x0 + 1, srcWidth - 1);
+                int y1 = Math.min(y0 + 1, srcHeight - 1);
+
+                // 8-bit fixed point weights
+                int fx = (int) ((x - x0) * 256f);
+                int fy = (int) ((y - y0) * 256f);
+
+                dst[out + col] = bilinear(src[y0 * srcWidth + x0], src[y0 * srcWidth + x1],
+                        src[y1 * srcWidth + x0], src[y1 * srcWidth + x1], fx, fy);
+
+                nx += nxStep;
+                ny += nyStep;
+                dn += dnStep;
+            }
+        }
+    }
+
+    private void warpRows(byte[] src, int srcWidth, int srcHeight, byte[] dst,
+                          int startRow, int endRow) {
+        int w = mWidth;
+        float du = 1f / w;
+        float maxX = srcWidth - 1, maxY = srcHeight - 1;
+
+        for (int row = startRow; row < endRow; row++) {
+            float v = (row + 0.5f) / mHeight;
+            float u = 0.5f * du;
+
+            float nx = mA * u + mB * v + mC;
+            float ny = mD * u + mE * v + mF;
+            float dn = mG * u + mH * v + 1f;
+            float nxStep = mA * du, nyStep = mD * du, dnStep = mG * du;
+
+            int out = row * w;
+
+            for (int col = 0; col < w; col++) {
+                float x = nx / dn - 0.5f;
+                float y = ny / dn - 0.5f;
+
+                x = (x < 0f) ? 0f : (x > maxX) ? maxX : x;
+                y = (y < 0f) ? 0f : (y > maxY) ? maxY : y;
+
+                int x0 = (int) x, y0 = (int) y;
+                int dx = (x0 < srcWidth - 1) ? 1 : 0;
+                int dy = (y0 < srcHeight - 1) ? srcWidth : 0;
+
+                int fx = (int) ((x - x0) * 256f);
+                int fy = (int) ((y - y0) * 256f);
+
+                int p = y0 * srcWidth + x0;
+                int top = (src[p] & 0xff) * (256 - fx) + (src[p + dx] & 0xff) * fx;
+                int bottom = (src[p + dy] & 0xff) * (256 - fx) + (src[p + dy + dx] & 0xff) * fx;
+
+                dst[out + col] = (byte) ((top * (256 - fy) + bottom * fy + (1 << 15)) >>> 16);
+
+                nx += nxStep;
+                ny += nyStep;
+                dn += dnStep;
+            }
+        }
+    }
+
+    private static int bilinear(int p00, int p10, int p01, int p11, int fx, int fy) {
+        int w00 = (256 - fx) * (256 - fy);
+        int w10 = fx * (256 - fy);
+        int w01 = (256 - fx) * fy;
+        int w11 = fx * fy;
+
+        int result = 0;
+        for (int shift = 0; shift < 32; shift += 8) {
+            int c = ((p00 >>> shift) & 0xff) * w00 + ((p10 >>> shift) & 0xff) * w10 +
+                    ((p01 >>> shift) & 0xff) * w01 + ((p11 >>> shift) & 0xff) * w11;
+            result |= ((c + (1 << 15)) >>> 16) << shift;
+        }
+
+        return result;
+    }
+
+    private static float distance(float x0, float y0, float x1, float y1) {
+        float dx = x1 - x0, dy = y1 - y0;
+        return (float) Math.sqrt(dx * dx + dy * dy);
+    }
+}
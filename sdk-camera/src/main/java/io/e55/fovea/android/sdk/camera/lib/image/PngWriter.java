@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2015 Shirish Kamath.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package io.e55.fovea.android.sdk.camera.lib.image;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+
+/**
+ * Writes grayscale images as PNG files, in 8 bits or in 1 bit per pixel for black-and-white
+ * documents, where the latter is several times smaller than a JPEG of the same page.
+ * <p/>
+ * Android's {@link android.graphics.Bitmap} can only write 8-bit colour PNGs, so the file is
+ * built here: signature, header, deflated image data and trailer chunks, each with its CRC.
+ */
+public final class PngWriter {
+
+    private static final byte[] SIGNATURE = {
+            (byte) 137, 80, 78, 71, 13, 10, 26, 10
+    };
+
+    private static final int COLOR_TYPE_GRAY = 0;
+
+    private PngWriter() {
+    }
+
+
+    /**
+     * @param os       Stream to write to; not closed.
+     * @param gray     Grayscale pixels, with a stride of `width`.
+     * @param width    Width of the image
+     * @param height   Height of the image
+     * @param bitDepth 8, or 1 to store pixels of 128 and above as white and the others as black.
+     */
+    public static void writeGray(OutputStream os, byte[] gray, int width, int height,
+                                 int bitDepth) throws IOException {
+        if (bitDepth != 1 && bitDepth != 8) {
+            throw new IllegalArgumentException("Unsupported bit depth: " + bitDepth);
+        }
+
+        os.write(SIGNATURE);
+
+        byte[] header = new byte[13];
+        putInt(header, 0, width);
+        putInt(header, 4, height);
+        header[8] = (byte) bitDepth;
+        header[9] = COLOR_TYPE_GRAY;
+        // compression, filter and interlace methods: defaults
+        writeChunk(os, "IHDR", header, header.length);
+
+        // each row starts with its filter type; none, as documents compress well without
+        int rowBytes = (bitDepth == 1) ? (width + 7) / 8 : width;
+        byte[] row = new byte[rowBytes + 1];
+        byte[] buffer = new byte[64 * 1024];
+
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try {
+            for (int y = 0; y < height; y++) {
+                packRow(gray, y * width, width, bitDepth, row);
+                deflater.setInput(row, 0, row.length);
+
+                while (!deflater.needsInput()) {
+                    int n = deflater.deflate(buffer, 0, buffer.length);
+                    if (n > 0) {
+                        writeChunk(os, "IDAT", buffer, n);
+                    }
+                }
+            }
+
+            deflater.finish();
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buffer, 0, buffer.length);
+                if (n > 0) {
+                    writeChunk(os, "IDAT", buffer, n);
+                }
+            }
+        } finally {
+            deflater.end();
+        }
+
+        writeChunk(os, "IEND", buffer, 0);
+    }
+
+
+    private static void packRow(byte[] gray, int offset, int width, int bitDepth, byte[] row) {
+        row[0] = 0;
+
+        if (bitDepth == 8) {
+            System.arraycopy(gray, offset, row, 1, width);
+            return;
+        }
+
+        for (int i = 1; i < row.length; i++) {
+            row[i] = 0;
+        }
+
+        for (int x = 0; x < width; x++) {
+            if ((gray[offset + x] & 0xff) >= 128) {
+                row[1 + (x >> 3)] |= 0x80 >>> (x & 7);
+            }
+        }
+    }
+
+
+    private static void writeChunk(OutputStream os, String type, byte[] data, int length)
+            throws IOException {
+        byte[] word = new byte[4];
+        byte[] typeBytes = type.getBytes("US-ASCII");
+
+        putInt(word, 0, length);
+        os.write(word);
+        os.write(typeBytes);
+        os.write(data, 0, length);
+
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data, 0, length);
+        putInt(word, 0, (int) crc.getValue());
+        os.write(word);
+    }
+
+    private static void putInt(byte[] b, int offset, int v) {
+        b[offset] = (byte) (v >>> 24);
+        b[offset + 1] = (byte) (v >>> 16);
+        b[offset + 2] = (byte) (v >>> 8);
+        b[offset + 3] = (byte) v;
+    }
+}
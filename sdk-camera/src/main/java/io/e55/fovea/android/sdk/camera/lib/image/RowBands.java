@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2015 Shirish Kamath.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package io.e55.fovea.android.sdk.camera.lib.image;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Splits per-row image work into bands of consecutive rows that are processed in parallel.
+ *
+ * The calling thread processes the last band itself and returns once all bands are done, so a
+ * band task may freely write to rows of a shared output. The shared executor has one thread per
+ * core; {@link java.util.concurrent.ForkJoinPool} would do the same, but is unavailable before
+ * API 21.
+ */
+public final class RowBands {
+
+    /**
+     * Work on the rows [startRow, endRow).
+     */
+    public interface RowTask {
+        void run(int startRow, int endRow);
+    }
+
+    private static volatile ThreadPoolExecutor sExecutor;
+
+
+    private RowBands() {
+    }
+
+
+    /**
+     * @return Executor shared by the image operations of this library.
+     */
+    public static Executor getExecutor() {
+        if (sExecutor == null) {
+            synchronized (RowBands.class) {
+                if (sExecutor == null) {
+                    int threads = getParallelism();
+                    ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+                            30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                            new ImageThreadFactory());
+                    executor.allowCoreThreadTimeOut(true);
+                    sExecutor = executor;
+                }
+            }
+        }
+
+        return sExecutor;
+    }
+
+
+    /**
+     * @return Number of bands worth splitting work into.
+     */
+    public static int getParallelism() {
+        return Math.max(1, Runtime.getRuntime().availableProcessors());
+    }
+
+
+    /**
+     * Runs `task` over `rows` rows on the shared executor.
+     *
+     * @param rows    Number of rows
+     * @param minRows Minimum rows per band, so that small images are not split needlessly.
+     * @param task    Work for a band of rows.
+     */
+    public static void run(int rows, int minRows, RowTask task) {
+        run(getExecutor(), getParallelism(), rows, minRows, task);
+    }
+
+
+    /**
+     * Runs `task` over `rows` rows in up to `parallelism` bands.
+     *
+     * @param executor    Executor for all but the last band; null runs everything on the
+     *                    calling thread.
+     * @param parallelism Maximum number of bands
+     * @param rows        Number of rows
+     * @param minRows     Minimum rows per band
+     * @param task        Work for a band of rows.
+     * @throws RuntimeException thrown by any of the bands.
+     */
+    public static void run(Executor executor, int parallelism, int rows, int minRows,
+                           final RowTask task) {
+        int bands = Math.min(parallelism, rows / Math.max(1, minRows));
+        if (executor == null || bands <= 1) {
+            task.run(0, rows);
+            return;
+        }
+
+        final CountDownLatch done = new CountDownLatch(bands - 1);
+        final RuntimeException[] failure = new RuntimeException[1];
+
+        int start = 0;
+        for (int b = 0; b < bands - 1; b++) {
+            final int from = start;
+            final int to = start + rows / bands + ((b < rows % bands) ? 1 : 0);
+            start = to;
+
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run(from, to);
+                    } catch (RuntimeException e) {
+                        synchronized (failure) {
+                            failure[0] = e;
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+
+        try {
+            task.run(start, rows);
+        } finally {
+            awaitUninterruptibly(done);
+        }
+
+        synchronized (failure) {
+            if (failure[0] != null) {
+                throw failure[0];
+            }
+        }
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        boolean interrupted = false;
+
+        // the bands write to the caller's buffers; never return before they are done
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    private static class ImageThreadFactory implements ThreadFactory {
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "ImageWorker-" + mCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2015 Shirish Kamath.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package io.e55.fovea.android.sdk.camera.lib.image;
+
+import java.util.concurrent.Executor;
+
+
+/**
+ * Turns a grayscale image of a document into black and white with Sauvola's local threshold:
+ * a pixel is white if it is brighter than `mean * (1 + k * (deviation / 128 - 1))` of the window
+ * around it. Unlike a global threshold, this copes with shadows and uneven lighting.
+ * <p/>
+ * Window means and deviations come from integral images, so the cost does not depend on the
+ * window size. The image is processed in tiles of full-width row bands in parallel; each tile
+ * builds the integral images of its rows plus the window's reach above and below, so memory is
+ * bounded by the tile size rather than by the image.
+ */
+public class SauvolaBinarizer {
+
+    private static final int TILE_ROWS = 64;
+
+    private static final int DYNAMIC_RANGE = 128;
+
+    private final int mRadius;
+    private final float mK;
+
+
+    /**
+     * @param window Side of the square window, in pixels.
+     * @param k      Sensitivity to the local contrast; typically 0.2 to 0.5.
+     */
+    public SauvolaBinarizer(int window, float k) {
+        mRadius = Math.max(1, window / 2);
+        mK = k;
+    }
+
+
+    /**
+     * Binarizes on the shared executor.
+     *
+     * @param gray   Grayscale pixels, with a stride of `width`.
+     * @param width  Width of the image
+     * @param height Height of the image
+     * @param out    0 (black) or 255 (white) for every pixel; may not be `gray`.
+     */
+    public void binarize(byte[] gray, int width, int height, byte[] out) {
+        binarize(gray, width, height, out, RowBands.getExecutor(), RowBands.getParallelism());
+    }
+
+
+    /**
+     * Binarizes in up to `parallelism` bands of tiles.
+     *
+     * @param executor    Executor for the bands; null binarizes on the calling thread.
+     * @param parallelism Maximum number of bands
+     */
+    public void binarize(final byte[] gray, final int width, final int height, final byte[] out,
+                         Executor executor, int parallelism) {
+        int tiles = (height + TILE_ROWS - 1) / TILE_ROWS;
+
+        RowBands.run(executor, parallelism, tiles, 1, new RowBands.RowTask() {
+            @Override
+            public void run(int startTile, int endTile) {
+                // tile rows, the halo on either side and the leading row of zeros
+                int rows = Math.min(TILE_ROWS, height) + 2 * mRadius + 2;
+                int[] sum = new int[rows * (width + 1)];
+                long[] squares = new long[rows * (width + 1)];
+
+                for (int tile = startTile; tile < endTile; tile++) {
+                    int startRow = tile * TILE_ROWS;
+                    int endRow = Math.min(height, startRow + TILE_ROWS);
+                    binarizeTile(gray, width, height, out, startRow, endRow, sum, squares);
+                }
+            }
+        });
+    }
+
+
+    private void binarizeTile(byte[] gray, int width, int height, byte[] out,
+                              int startRow, int endRow, int[] sum, long[] squares) {
+        int r = mRadius;
+        int top = Math.max(0, startRow - r);
+        int bottom = Math.min(height, endRow + r + 1);
+        int stride = width + 1;
+
+        // integral images of rows [top, bottom), with a leading row and column of zeros
+        for (int x = 0; x <= width; x++) {
+            sum[x] = 0;
+            squares[x] = 0;
+        }
+
+        for (int row = top; row < bottom; row++) {
+            int i = (row - top + 1) * stride;
+            int above = i - stride;
+            int p = row * width;
+
+            int rowSum = 0;
+            long rowSquares = 0;
+            sum[i] = 0;
+            squares[i] = 0;
+
+            for (int x = 0; x < width; x++) {
+                int v = gray[p + x] & 0xff;
+                rowSum += v;
+                rowSquares += v * v;
+                sum[i + x + 1] = sum[above + x + 1] + rowSum;
+                squares[i + x + 1] = squares[above + x + 1] + rowSquares;
+            }
+        }
+
+        float k = mK;
+
+        for (int row = startRow; row < endRow; row++) {
+            int y0 = Math.max(top, row - r) - top;
+            int y1 = Math.min(bottom, row + r + 1) - top;
+            int a = y0 * stride;
+            int b = y1 * stride;
+            int p = row * width;
+
+            for (int x = 0; x < width; x++) {
+                int x0 = Math.max(0, x - r);
+                int x1 = Math.min(width, x + r + 1);
+                int n = (y1 - y0) * (x1 - x0);
+
+                int s = sum[b + x1] - sum[b + x0] - sum[a + x1] + sum[a + x0];
+                long sq = squares[b + x1] - squares[b + x0] - squares[a + x1] + squares[a + x0];
+
+                float mean = s / (float) n;
+                float variance = Math.max(0f, sq / (float) n - mean * mean);
+                float deviation = (float) Math.sqrt(variance);
+                float threshold = mean * (1f + k * (deviation / DYNAMIC_RANGE - 1f));
+
+                out[p + x] = ((gray[p + x] & 0xff) > threshold) ? (byte) 255 : 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright (c) 2015 Shirish Kamath.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package io.e55.fovea.android.sdk.camera.lib.io;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.regex.Pattern;
+
+
+/**
+ * Writes a file so that it either appears complete or not at all: the bytes go to a temporary
+ * file of its own next to it, which is renamed into place by `commit()`. Closing the stream
+ * without a commit discards them, and a process death at any point leaves the previous file,
+ * if any, untouched.
+ * <p/>
+ * Writes are buffered in front of the file's channel, and a CRC-32C of the bytes is computed
+ * as they stream out, so the file never has to be read back to be checksummed. A digest, such
+ * as a content hash, can be computed likewise.
+ * <p/>
+ * Concurrent writers of the same file each write a temporary file of their own; the last to
+ * commit wins. Temporary files left by a process death can be swept with
+ * {@link #deleteTempFiles(File, long)}.
+ */
+public class AtomicFileOutputStream extends OutputStream {
+
+    /**
+     * No sync; the file survives a process death, but a power loss soon after the commit may
+     * lose it or, depending on the filesystem, leave it empty.
+     */
+    public static final int SYNC_NONE = 0;
+
+    /**
+     * Syncs the file's data before the rename.
+     */
+    public static final int SYNC_DATA = 1;
+
+    /**
+     * Syncs the file's data and metadata before the rename.
+     */
+    public static final int SYNC_ALL = 2;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    // <name>.<random number>.tmp, as made by File.createTempFile()
+    private static final Pattern TEMP_NAME = Pattern.compile(".+\\.-?\\d+\\.tmp");
+
+    private final File mFile, mTempFile;
+    private final int mSyncMode;
+
+    private final FileOutputStream mStream;
+    private final FileChannel mChannel;
+    private final ByteBuffer mBuffer;
+    private final Crc32c mChecksum;
+    private final MessageDigest mDigest;
+
+    private long mSize;
+    private boolean mIsCommitted, mIsClosed;
+
+
+    /**
+     * @param file     Destination of the file.
+     * @param syncMode {@link #SYNC_NONE}, {@link #SYNC_DATA} or {@link #SYNC_ALL}.
+     * @throws IOException if the temporary file cannot be created.
+     */
+    public AtomicFileOutputStream(File file, int syncMode) throws IOException {
+        this(file, syncMode, null);
+    }
+
+
+    /**
+     * @param file     Destination of the file.
+     * @param syncMode {@link #SYNC_NONE}, {@link #SYNC_DATA} or {@link #SYNC_ALL}.
+     * @param digest   Digest to feed with the bytes written, if any.
+     * @throws IOException if the temporary file cannot be created.
+     */
+    public AtomicFileOutputStream(File file, int syncMode, MessageDigest digest)
+            throws IOException {
+        mFile = file;
+        // in the same directory, so that the rename stays on one filesystem
+        String prefix = file.getName() + ((file.getName().length() < 2) ? "_." : ".");
+        mTempFile = File.createTempFile(prefix, TEMP_SUFFIX,
+                file.getAbsoluteFile().getParentFile());
+        mSyncMode = syncMode;
+
+        try {
+            mStream = new FileOutputStream(mTempFile);
+        } catch (IOException e) {
+            //noinspection ResultOfMethodCallIgnored
+            mTempFile.delete();
+            throw e;
+        }
+
+        mChannel = mStream.getChannel();
+        mBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+        mChecksum = new Crc32c();
+        mDigest = digest;
+    }
+
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+
+        if (!mBuffer.hasRemaining()) {
+            drain();
+        }
+
+        mBuffer.put((byte) b);
+        mChecksum.update(b);
+        if (mDigest != null) {
+            mDigest.update((byte) b);
+        }
+        mSize++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        mChecksum.update(b, off, len);
+        if (mDigest != null) {
+            mDigest.update(b, off, len);
+        }
+        mSize += len;
+
+        if (len >= mBuffer.capacity()) {
+            // large writes skip the copy into the buffer
+            drain();
+            write(ByteBuffer.wrap(b, off, len));
+            return;
+        }
+
+        if (len > mBuffer.remaining()) {
+            drain();
+        }
+
+        mBuffer.put(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        drain();
+    }
+
+
+    /**
+     * Flushes and syncs the file according to the sync mode, then renames it into place.
+     * The stream is closed afterwards.
+     *
+     * @throws IOException if the file could not be written or renamed; it is discarded then.
+     */
+    public void commit() throws IOException {
+        ensureOpen();
+
+        try {
+            drain();
+
+            if (mSyncMode != SYNC_NONE) {
+                mChannel.force(mSyncMode == SYNC_ALL);
+            }
+
+            mIsClosed = true;
+            mStream.close();
+
+            if (!mTempFile.renameTo(mFile)) {
+                throw new IOException("Failed to rename " + mTempFile + " to " + mFile);
+            }
+
+            mIsCommitted = true;
+        } finally {
+            if (!mIsCommitted) {
+                discard();
+            }
+        }
+    }
+
+
+    /**
+     * Discards the file unless it was committed.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!mIsClosed) {
+            discard();
+        }
+    }
+
+
+    /**
+     * @return Destination of the file.
+     */
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * @return Number of bytes written so far.
+     */
+    public long getSize() {
+        return mSize;
+    }
+
+    /**
+     * @return CRC-32C of the bytes written so far.
+     */
+    public long getChecksum() {
+        return mChecksum.getValue();
+    }
+
+    /**
+     * @return The digest given to the constructor, or null.
+     */
+    public MessageDigest getDigest() {
+        return mDigest;
+    }
+
+
+    /**
+     * @return Whether the file is a temporary file of a stream.
+     */
+    public static boolean isTempFile(File file) {
+        return TEMP_NAME.matcher(file.getName()).matches();
+    }
+
+
+    /**
+     * Deletes the temporary files in the directory that were last written to at least
+     * `minAgeMs` ago, i.e. that were left behind by a process death rather than being written.
+     *
+     * @return Number of files deleted.
+     */
+    public static int deleteTempFiles(File dir, long minAgeMs) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return 0;
+        }
+
+        long before = System.currentTimeMillis() - minAgeMs;
+        int deleted = 0;
+
+        for (File file : files) {
+            if (isTempFile(file) && file.lastModified() <= before && file.delete()) {
+                deleted++;
+            }
+        }
+
+        return deleted;
+    }
+
+
+    private void drain() throws IOException {
+        mBuffer.flip();
+        write(mBuffer);
+        mBuffer.clear();
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            mChannel.write(buffer);
+        }
+    }
+
+    private void discard() {
+        mIsClosed = true;
+
+        try {
+            mStream.close();
+        } catch (IOException e) {
+            // nothing to keep
+        }
+
+        //noinspection ResultOfMethodCallIgnored
+        mTempFile.delete();
+    }
+
+    private void ensureOpen() throws IOException {
+        if (mIsClosed) {
+            throw new IOException("Stream closed");
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2015 Shirish Kamath.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package io.e55.fovea.android.sdk.camera.lib.io;
+
+import java.util.zip.Checksum;
+
+
+/**
+ * CRC-32C (Castagnoli), as used by iSCSI, ext4 and most object stores for integrity checks.
+ * {@link java.util.zip.CRC32C} is unavailable before API 26, so this is a pure Java version
+ * that processes 8 bytes per step with eight lookup tables ("slicing-by-8").
+ */
+public class Crc32c implements Checksum {
+
+    // reflected 0x1EDC6F41
+    private static final int POLYNOMIAL = 0x82f63b78;
+
+    private static final int[][] TABLES = newTables();
+
+    private int mCrc = 0xffffffff;
+
+
+    @Override
+    public void update(int b) {
+        mCrc = (mCrc >>> 8) ^ TABLES[0][(mCrc ^ b) & 0xff];
+    }
+
+    @Override
+    public void update(byte[] b, int off, int len) {
+        int[] t0 = TABLES[0], t1 = TABLES[1], t2 = TABLES[2], t3 = TABLES[3];
+        int[] t4 = TABLES[4], t5 = TABLES[5], t6 = TABLES[6], t7 = TABLES[7];
+        int crc = mCrc;
+        int end = off + len;
+
+        while (end - off >= 8) {
+            int lo = crc ^ ((b[off] & 0xff) | (b[off + 1] & 0xff) << 8 |
+                    (b[off + 2] & 0xff) << 16 | (b[off + 3] & 0xff) << 24);
+            crc = t7[lo & 0xff] ^ t6[(lo >>> 8) & 0xff] ^ t5[(lo >>> 16) & 0xff] ^
+                    t4[lo >>> 24] ^ t3[b[off + 4] & 0xff] ^ t2[b[off + 5] & 0xff] ^
+                    t1[b[off + 6] & 0xff] ^ t0[b[off + 7] & 0xff];
+            off += 8;
+        }
+
+        while (off < end) {
+            crc = (crc >>> 8) ^ t0[(crc ^ b[off++]) & 0xff];
+        }
+
+        mCrc = crc;
+    }
+
+    public void update(byte[] b) {
+        update(b, 0, b.length);
+    }
+
+    @Override
+    public long getValue() {
+        return ~mCrc & 0xffffffffL;
+    }
+
+    @Override
+    public void reset() {
+        mCrc = 0xffffffff;
+    }
+
+
+    private static int[][] newTables() {
+        int[][] tables = new int[8][256];
+
+        for (int i = 0; i < 256; i++) {
+            int crc = i;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = ((crc & 1) != 0) ? (crc >>> 1) ^ POLYNOMIAL : crc >>> 1;
+            }
+            tables[0][i] = crc;
+        }
+
+        // tables[k][i]: the CRC of byte i followed by k zero bytes
+        for (int i = 0; i < 256; i++) {
+            int crc = tables[0][i];
+            for (int k = 1; k < 8; k++) {
+                crc = (crc >>> 8) ^ tables[0][crc & 0xff];
+                tables[k][i] = crc;
+            }
+        }
+
+        return tables;
+    }
+}
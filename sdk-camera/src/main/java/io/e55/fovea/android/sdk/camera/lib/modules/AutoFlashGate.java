@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2015 Shirish Kamath.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package io.e55.fovea.android.sdk.camera.lib.modules;
+
+
+/**
+ * Decides when {@link CameraAutoFlashModule} switches the flash, from the luma of the scene.
+ *
+ * The flash goes on at or below the dark threshold and off once the scene would be at or above
+ * the bright threshold without it. What the flash adds to the luma is measured on the first
+ * frame after it went on, against the frame that switched it on. If the flash was already on
+ * when the gate was reset, its gain is unknown and taken to be 0.
+ *
+ * No switch is made within the dwell time of the last one, which also lets the Camera's
+ * exposure settle before the flash's gain is measured. Times are in milliseconds of any
+ * monotonic clock. Methods may be called from different threads.
+ */
+class AutoFlashGate {
+
+    private final float mLumaDark, mLumaBright;
+    private final long mDwellMs;
+
+    private boolean mFlashOn;
+    private long mLastSwitched;
+
+    // luma of the scene just before the flash went on, if known, and what the flash adds to it
+    private float mLumaBeforeFlash, mFlashGain;
+
+
+    AutoFlashGate(float lumaDark, float lumaBright, long dwellMs) {
+        mLumaDark = lumaDark;
+        mLumaBright = lumaBright;
+        mDwellMs = dwellMs;
+    }
+
+
+    /**
+     * Starts over with the flash as it is now, as at the start of a preview session.
+     */
+    synchronized void reset(boolean flashOn, long now) {
+        mFlashOn = flashOn;
+        mLastSwitched = now;
+        mLumaBeforeFlash = Float.NaN;
+        mFlashGain = -1f;
+    }
+
+
+    /**
+     * @param luma Luma of the scene, in [0, 1].
+     * @return Whether the flash should be switched, i.e. on if it is off and vice versa.
+     */
+    synchronized boolean update(float luma, long now) {
+        if (now - mLastSwitched < mDwellMs) {
+            return false;
+        }
+
+        if (!mFlashOn) {
+            if (luma <= mLumaDark) {
+                mLumaBeforeFlash = luma;
+                return true;
+            }
+            return false;
+        }
+
+        if (mFlashGain < 0) {
+            // first measurement since the flash settled
+            mFlashGain = Float.isNaN(mLumaBeforeFlash) ? 0f :
+                    Math.max(0f, luma - mLumaBeforeFlash);
+        }
+
+        return luma - mFlashGain >= mLumaBright;
+    }
+
+
+    /**
+     * Records that the flash was switched as requested by `update()`.
+     */
+    synchronized void onSwitched(boolean flashOn, long now) {
+        if (!flashOn) {
+            mLumaBeforeFlash = Float.NaN;
+        }
+
+        mFlashOn = flashOn;
+        mLastSwitched = now;
+        mFlashGain = -1f;
+    }
+
+
+    synchronized boolean isFlashOn() {
+        return mFlashOn;
+    }
+
+
+    /**
+     * @return What the flash adds to the luma of the scene; -1 until measured.
+     */
+    synchronized float getFlashGain() {
+        return mFlashGain;
+    }
+}
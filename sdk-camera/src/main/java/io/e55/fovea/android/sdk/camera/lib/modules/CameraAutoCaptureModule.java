@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2015 Shirish Kamath.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package io.e55.fovea.android.sdk.camera.lib.modules;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+
+import io.e55.fovea.android.sdk.camera.lib.CameraConfig;
+import io.e55.fovea.android.sdk.camera.lib.CameraManager;
+import io.e55.fovea.android.sdk.camera.lib.CameraManager.PictureTarget;
+import io.e55.fovea.android.sdk.camera.lib.capture.AutoCaptureDecision;
+import io.e55.fovea.android.sdk.camera.lib.capture.AutoCaptureGate;
+import io.e55.fovea.android.sdk.camera.lib.document.Quad;
+import io.e55.fovea.android.sdk.camera.lib.frame.Frame;
+import io.e55.fovea.android.sdk.camera.lib.frame.FrameAnalyzer;
+import io.e55.fovea.android.sdk.camera.lib.frame.FrameQuality;
+import rx.Observable;
+import rx.Subscription;
+import rx.android.schedulers.AndroidSchedulers;
+import rx.functions.Action1;
+import rx.subjects.PublishSubject;
+import timber.log.Timber;
+
+
+/**
+ * This module takes a picture on its own once the preview has been still, sharp and evenly lit
+ * for a number of frames; see {@link AutoCaptureGate}.
+ *
+ * Frames are measured on a worker thread of the frame pipeline; the picture is taken on the
+ * main thread through `CameraManager.takePicture()`, with the path and subscriber supplied by
+ * the {@link PictureTarget} set with `CameraManager.setAutoCapture()`. Nothing is captured while
+ * no target is set. Decisions are published whenever their reason changes.
+ */
+public class CameraAutoCaptureModule extends CameraModule implements FrameAnalyzer {
+
+    private final FrameQuality mFrameQuality;
+    private final AutoCaptureGate mGate;
+    private final boolean mRequireDocument;
+    private final Handler mMainHandler;
+
+    private final PublishSubject<AutoCaptureDecision> mDecisionSubject;
+    private final Observable<AutoCaptureDecision> mDecisionObservable;
+
+    private volatile CameraManager mCameraManager;
+    private volatile PictureTarget mTarget;
+    private volatile boolean mDocumentFound;
+
+    private Subscription mDocumentSubscription;
+
+    // only accessed by the analyzer
+    private String mLastReason;
+
+    CameraAutoCaptureModule(Context context, CameraConfig config) {
+        super(context, config);
+
+        mRequireDocument = config.autoCaptureRequireDocument() && config.useDocumentDetection();
+
+        mFrameQuality = new FrameQuality();
+        mGate = new AutoCaptureGate(
+                config.autoCaptureStableFrames(),
+                config.autoCaptureMaxMotion(),
+                config.autoCaptureRearmMotion(),
+                config.autoCaptureMinSharpness(),
+                config.autoCaptureSharpnessRatio(),
+                config.autoCaptureMinEvenness(),
+                config.autoCaptureMinLuma(),
+                mRequireDocument);
+
+        mMainHandler = new Handler(Looper.getMainLooper());
+        mDecisionSubject = PublishSubject.create();
+        mDecisionObservable = mDecisionSubject
+                .onBackpressureDrop()
+                .observeOn(AndroidSchedulers.mainThread());
+    }
+
+    @Override
+    public void start(CameraManager cameraManager) {
+        stop();
+
+        mFrameQuality.reset();
+        mGate.reset();
+        mLastReason = null;
+        mDocumentFound = false;
+
+        if (mRequireDocument) {
+            mDocumentSubscription = cameraManager.getDocumentQuadObservable()
+                    .subscribe(new Action1<Quad>() {
+                        @Override
+                        public void call(Quad quad) {
+                            mDocumentFound = !quad.isEmpty();
+                        }
+                    });
+        }
+
+        mCameraManager = cameraManager;
+        cameraManager.addFrameAnalyzer(this);
+    }
+
+    @Override
+    public void stop() {
+        mMainHandler.removeCallbacksAndMessages(null);
+
+        if (mDocumentSubscription != null) {
+            mDocumentSubscription.unsubscribe();
+            mDocumentSubscription = null;
+        }
+
+        if (mCameraManager != null) {
+            mCameraManager.removeFrameAnalyzer(this);
+            mCameraManager = null;
+        }
+    }
+
+    @Override
+    public void analyze(Frame frame) {
+        CameraManager cameraManager = mCameraManager;
+        if (cameraManager == null || mTarget == null || cameraManager.isCapturing()) {
+            return;
+        }
+
+        FrameQuality q = mFrameQuality;
+        q.compute(frame);
+
+        String reason = mGate.update(q.getMotion(), q.getSharpness(), q.getEvenness(),
+                q.getLuma(), mDocumentFound);
+
+        boolean capture = AutoCaptureDecision.Reasons.CAPTURE.equals(reason);
+
+        if (capture || !reason.equals(mLastReason)) {
+            mLastReason = reason;
+
+            AutoCaptureDecision decision = new AutoCaptureDecision(reason,
+                    mGate.getStableCount(), mGate.getStableFrames(),
+                    q.getMotion(), q.getSharpness(), q.getEvenness(), q.getLuma(),
+                    frame.getTimestamp());
+
+            Timber.d("%s", decision);
+            mDecisionSubject.onNext(decision);
+        }
+
+        // the gate waits for movement before the next capture, so a frame analyzed before
+        // the capture starts on the main thread can't trigger another one
+        if (capture) {
+            mMainHandler.post(mCapture);
+        }
+    }
+
+
+    private final Runnable mCapture = new Runnable() {
+        @Override
+        public void run() {
+            CameraManager cameraManager = mCameraManager;
+            PictureTarget target = mTarget;
+
+            // fails e.g. if a manual capture is already in progress
+            if (cameraManager != null && target != null &&
+                    !cameraManager.takePicture(target.provideOutputFilePath(),
+                            target.providePictureTakenSubscriber())) {
+                Timber.d("Auto-capture skipped");
+            }
+        }
+    };
+
+
+    /**
+     * @param target Supplies the path and subscriber for automatic captures; null disables them.
+     */
+    public void setTarget(PictureTarget target) {
+        mTarget = target;
+    }
+
+
+    /**
+     * Auto-capture decisions, observed on the main thread.
+     *
+     * @return Observable of {@link AutoCaptureDecision}s, emitted when the reason changes.
+     */
+    public Observable<AutoCaptureDecision> getDecisionObservable() {
+        return mDecisionObservable;
+    }
+}
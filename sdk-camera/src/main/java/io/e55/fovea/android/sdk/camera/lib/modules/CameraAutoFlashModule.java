@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2015 Shirish Kamath.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package io.e55.fovea.android.sdk.camera.lib.modules;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import io.e55.fovea.android.sdk.camera.lib.CameraConfig;
+import io.e55.fovea.android.sdk.camera.lib.CameraManager;
+import io.e55.fovea.android.sdk.camera.lib.frame.Frame;
+import io.e55.fovea.android.sdk.camera.lib.frame.FrameAnalyzer;
+import io.e55.fovea.android.sdk.camera.lib.frame.LumaStats;
+import io.e55.fovea.android.sdk.camera.lib.frame.YPyramid;
+import timber.log.Timber;
+
+
+/**
+ * This module switches the Flash light on in dim scenes and off again once there is enough light,
+ * based on the luminance of the Camera preview frames.
+ *
+ * Unlike the light sensor ({@link CameraSensorModule}), preview frames measure the light that
+ * actually reaches the Camera, in normalised luma that is comparable across devices.
+ * Separate thresholds for switching on and off (hysteresis) and a minimum dwell time
+ * between switches keep the flash from flickering; see {@link AutoFlashGate}.
+ *
+ * Frames are measured on a worker thread of the frame pipeline; the flash is switched on the
+ * main thread. The module backs off for the rest of the preview session once the user toggles
+ * the flash.
+ */
+public class CameraAutoFlashModule extends CameraModule implements FrameAnalyzer {
+
+    // ~64 x 64 grid, regardless of the preview size; at most every pixel of the 1/8 level
+    private static final int LUMA_SAMPLES = 4096;
+
+    private final AutoFlashGate mGate;
+    private final LumaStats mLumaStats;
+    private final Handler mMainHandler;
+
+    private volatile CameraManager mCameraManager;
+
+    // written on the main thread, read by the analyzer
+    private volatile boolean mSuspended, mIsSwitching;
+
+    CameraAutoFlashModule(Context context, CameraConfig config) {
+        super(context, config);
+
+        mGate = new AutoFlashGate(config.autoFlashLumaDark(), config.autoFlashLumaBright(),
+                config.autoFlashDwell());
+        mLumaStats = new LumaStats();
+        mMainHandler = new Handler(Looper.getMainLooper());
+    }
+
+    @Override
+    public void start(CameraManager cameraManager) {
+        stop();
+
+        mGate.reset(cameraManager.isFlashOn(), SystemClock.elapsedRealtime());
+        mSuspended = false;
+        mIsSwitching = false;
+
+        mCameraManager = cameraManager;
+        cameraManager.addFrameAnalyzer(this);
+    }
+
+    @Override
+    public void stop() {
+        mMainHandler.removeCallbacksAndMessages(null);
+
+        if (mCameraManager != null) {
+            mCameraManager.removeFrameAnalyzer(this);
+            mCameraManager = null;
+        }
+    }
+
+    @Override
+    public void analyze(Frame frame) {
+        if (mCameraManager == null || mSuspended || mIsSwitching) {
+            return;
+        }
+
+        // box-filtered samples are less noisy than single pixels
+        YPyramid pyramid = frame.getPyramid();
+        int level = YPyramid.LEVELS - 1;
+        mLumaStats.compute(pyramid.getLevel(level), pyramid.getWidth(level),
+                pyramid.getHeight(level), LUMA_SAMPLES);
+
+        // A bright background around a dim document should not keep the flash off
+        float luma = Math.min(mLumaStats.getMean(), mLumaStats.percentile(0.5f));
+
+        if (mGate.update(luma, SystemClock.elapsedRealtime())) {
+            requestFlash(!mGate.isFlashOn(), luma);
+        }
+    }
+
+    private void requestFlash(final boolean on, final float luma) {
+        mIsSwitching = true;
+
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mIsSwitching = false;
+                switchFlash(on, luma);
+            }
+        });
+    }
+
+    private void switchFlash(boolean on, float luma) {
+        CameraManager cameraManager = mCameraManager;
+        if (cameraManager == null) {
+            return;
+        }
+
+        if (cameraManager.isFlashOn() != mGate.isFlashOn()) {
+            Timber.d("Flash toggled manually. Auto flash suspended.");
+            mSuspended = true;
+            return;
+        }
+
+        if (!cameraManager.setFlash(on)) {
+            Timber.d("Flash unavailable. Auto flash suspended.");
+            mSuspended = true;
+            return;
+        }
+
+        Timber.d("Auto flash: %b (luma: %.3f, flash gain: %.3f)", on, luma,
+                mGate.getFlashGain());
+        mGate.onSwitched(on, SystemClock.elapsedRealtime());
+    }
+}
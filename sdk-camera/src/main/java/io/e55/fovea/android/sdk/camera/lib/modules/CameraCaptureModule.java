@@ -23,20 +23,22 @@
 package io.e55.fovea.android.sdk.camera.lib.modules;
 
 import android.content.Context;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.Matrix;
-import android.graphics.Rect;
-import android.graphics.YuvImage;
+import android.graphics.RectF;
 import android.hardware.Camera;
 
-import java.io.ByteArrayOutputStream;
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 
 import io.e55.fovea.android.sdk.camera.lib.CameraConfig;
 import io.e55.fovea.android.sdk.camera.lib.CameraManager;
+import io.e55.fovea.android.sdk.camera.lib.capture.CaptureQualityException;
+import io.e55.fovea.android.sdk.camera.lib.capture.CaptureResult;
+import io.e55.fovea.android.sdk.camera.lib.document.Quad;
+import io.e55.fovea.android.sdk.camera.lib.frame.Frame;
+import io.e55.fovea.android.sdk.camera.lib.frame.FrameAnalyzer;
+import io.e55.fovea.android.sdk.camera.lib.frame.FrameFusion;
+import io.e55.fovea.android.sdk.camera.lib.frame.FramePipeline.FrameListener;
+import io.e55.fovea.android.sdk.camera.lib.frame.LumaStats;
+import io.e55.fovea.android.sdk.camera.lib.frame.YPyramid;
 import rx.Observable;
 import rx.Subscriber;
 import rx.android.schedulers.AndroidSchedulers;
@@ -52,50 +54,122 @@ import timber.log.Timber;
  * Depending on the configuration in {@link CameraConfig}, it can persist a raw Camera frame buffer
  * or a processed/compressed JPEG. Transforms of resize and rotate are applied on the image data
  * before it is store to file.
+ *
+ * The captured data is then processed and stored by a {@link CaptureProcessor}: checked for
+ * its exposure, cropped or de-skewed, converted to the configured output mode and encoded.
+ *
+ * When preview frames are captured, a number of consecutive frames can be averaged into the
+ * captured picture in dim scenes (see {@link FrameFusion}), which has much less noise than a
+ * single frame. Full-resolution pictures are never replaced with fused preview frames.
+ *
+ * With a capture queue configured, captured data is journaled and processed in the background
+ * by the {@link CaptureQueue} instead, which survives the module and the process.
  */
 public class CameraCaptureModule extends CameraModule {
 
     private static final String TAG = CameraCaptureModule.class.getSimpleName();
 
-    private Camera mCamera;
+    private volatile Camera mCamera;
+    private volatile CameraManager mCameraManager;
 
-    private final int mJpegQuality, mAdjustOrientation, mMaxSide;
     private final boolean mCapturePreviewFrame;
+    private final boolean mQueueCaptures;
+    private final CaptureProcessor mProcessor;
+
+    private final int mLowLightFrames;
+    private final float mLowLightLuma;
+    private final FrameFusion mFusion;
+    private final LumaStats mLowLightStats;
+
+    private volatile LowLightCollector mCollector;
 
     CameraCaptureModule(Context context, CameraConfig config) {
         super(context, config);
 
-        mJpegQuality = config.captureJpegQuality();
-        mAdjustOrientation = config.captureAdjustOrientation();
-        mMaxSide = config.captureMaxSide();
         mCapturePreviewFrame = config.capturePreviewFrame();
+        mQueueCaptures = config.captureQueueWorkers() > 0;
+        mProcessor = new CaptureProcessor(config);
+
+        mLowLightFrames = config.captureLowLightFrames();
+        mLowLightLuma = config.captureLowLightLuma();
+        mFusion = new FrameFusion();
+        mLowLightStats = new LumaStats();
     }
 
     @Override
     public void start(CameraManager cameraManager) {
         mCamera = cameraManager.getCamera();
+        mCameraManager = cameraManager;
     }
 
     @Override
     public void stop() {
+        LowLightCollector collector = mCollector;
+        if (collector != null) {
+            removeCollector(collector);
+            collector.cancel();
+        }
+
         mCamera = null;
+        mCameraManager = null;
     }
 
 
     public Observable<String> takePicture(final String path) {
-        return getCaptureObservable().flatMap(new Func1<byte[], Observable<String>>() {
+        return takePicture(path, null);
+    }
+
+
+    /**
+     * @param path    Write-accessible path for the image file to be stored.
+     * @param corners Corners of the document to cut out and de-skew; null keeps the whole picture.
+     * @return Observable for the path of the stored image file.
+     */
+    public Observable<String> takePicture(final String path, final Quad corners) {
+        return capture(path, corners).map(new Func1<CaptureResult, String>() {
             @Override
-            public Observable<String> call(byte[] data) {
-                return getPictureSaveObservable(data, path);
+            public String call(CaptureResult result) {
+                return result.getPath();
             }
         });
     }
 
 
-    private Observable<byte[]> getCaptureObservable() {
-        return Observable.create(new Observable.OnSubscribe<byte[]>() {
+    /**
+     * @param path    Write-accessible path for the image file to be stored.
+     * @param corners Corners of the document to cut out and de-skew; null keeps the whole picture.
+     * @return Observable for the stored picture; fails with a {@link CaptureQualityException}
+     * if the picture is rejected for its exposure.
+     */
+    public Observable<CaptureResult> capture(final String path, final Quad corners) {
+        return capture(path, corners, null);
+    }
+
+
+    /**
+     * @param path    Write-accessible path for the image file to be stored.
+     * @param corners Corners of the document to cut out and de-skew; null keeps the whole picture.
+     * @param region  Region to keep, in normalised frame coordinates, if there are no corners;
+     *                null keeps the whole picture.
+     * @return Observable for the stored picture; fails with a {@link CaptureQualityException}
+     * if the picture is rejected for its exposure.
+     */
+    public Observable<CaptureResult> capture(final String path, final Quad corners,
+                                             final RectF region) {
+        return getCaptureObservable().flatMap(new Func1<CapturedData, Observable<CaptureResult>>() {
             @Override
-            public void call(final Subscriber<? super byte[]> subscriber) {
+            public Observable<CaptureResult> call(CapturedData captured) {
+                return getPictureSaveObservable(captured, path,
+                        (corners != null && !corners.isEmpty()) ? corners : null, region);
+            }
+        });
+    }
+
+
+    private Observable<CapturedData> getCaptureObservable() {
+        return Observable.create(new Observable.OnSubscribe<CapturedData>() {
+            @Override
+            public void call(final Subscriber<? super CapturedData> subscriber) {
                 if (subscriber.isUnsubscribed()) {
                     return;
                 }
@@ -107,38 +181,160 @@ public class CameraCaptureModule extends CameraModule {
                     return;
                 }
 
-                if (mCapturePreviewFrame) {
-                    mCamera.setOneShotPreviewCallback(new Camera.PreviewCallback() {
-                        @Override
-                        public void onPreviewFrame(final byte[] data, Camera camera) {
-                            Timber.d("onPreviewFrame");
-                            subscriber.onNext(data);
-                            subscriber.onCompleted();
-                        }
-                    });
+                if (mCapturePreviewFrame && mLowLightFrames > 1) {
+                    // decides on the first frame whether to average frames
+                    LowLightCollector collector = new LowLightCollector(subscriber);
+                    mCollector = collector;
+                    mCameraManager.addFrameAnalyzer(collector, false);
+                } else if (mCapturePreviewFrame) {
+                    capturePreviewFrame(subscriber);
                 } else {
-                    mCamera.takePicture(new Camera.ShutterCallback() {
-                        @Override
-                        public void onShutter() {
-
-                        }
-                    }, null, null, new Camera.PictureCallback() {
-                        @Override
-                        public void onPictureTaken(byte[] data, Camera camera) {
-                            Timber.d("onPictureTaken");
-                            subscriber.onNext(data);
-                            subscriber.onCompleted();
-                        }
-                    });
+                    captureJpeg(subscriber);
                 }
             }
         });
     }
 
-    private Observable<String> getPictureSaveObservable(final byte[] data, final String path) {
-        return Observable.create(new Observable.OnSubscribe<String>() {
+    private void capturePreviewFrame(final Subscriber<? super CapturedData> subscriber) {
+        final CameraManager cameraManager = mCameraManager;
+        cameraManager.addPreviewFrameListener(new FrameListener() {
+            @Override
+            public void onPreviewFrame(byte[] data, int width, int height) {
+                Timber.d("onPreviewFrame");
+                cameraManager.removePreviewFrameListener(this);
+
+                // the buffer goes back to the Camera once we return
+                subscriber.onNext(new CapturedData(data.clone(), true));
+                subscriber.onCompleted();
+            }
+        });
+    }
+
+    private void captureJpeg(final Subscriber<? super CapturedData> subscriber) {
+        if (mCamera == null) {
+            subscriber.onError(new IOException("Camera not ready."));
+            return;
+        }
+
+        mCamera.takePicture(new Camera.ShutterCallback() {
+            @Override
+            public void onShutter() {
+
+            }
+        }, null, null, new Camera.PictureCallback() {
+            @Override
+            public void onPictureTaken(byte[] data, Camera camera) {
+                Timber.d("onPictureTaken");
+                subscriber.onNext(new CapturedData(data, false));
+                subscriber.onCompleted();
+            }
+        });
+    }
+
+
+    /**
+     * Averages the next preview frames into one if the scene is dim; otherwise captures the
+     * first one. Runs on a worker thread of the frame pipeline.
+     */
+    private class LowLightCollector implements FrameAnalyzer {
+        private final Subscriber<? super CapturedData> mSubscriber;
+        private int mSeen;
+        private volatile boolean mIsDone;
+
+        LowLightCollector(Subscriber<? super CapturedData> subscriber) {
+            mSubscriber = subscriber;
+        }
+
+        @Override
+        public void analyze(Frame frame) {
+            if (mIsDone) {
+                return;
+            }
+
+            if (mSeen++ == 0) {
+                if (!isDim(frame)) {
+                    finish();
+                    mSubscriber.onNext(new CapturedData(frame.getData().clone(), true));
+                    mSubscriber.onCompleted();
+                    return;
+                }
+
+                mFusion.begin(frame);
+                return;
+            }
+
+            if (!mFusion.add(frame)) {
+                Timber.d("Frame not fused: shifted by %d, %d", mFusion.getShiftX(),
+                        mFusion.getShiftY());
+            }
+
+            // frames that moved too far don't count, but don't wait for them forever
+            if (mFusion.getCount() >= mLowLightFrames || mSeen >= 2 * mLowLightFrames) {
+                finish();
+
+                byte[] fused = new byte[frame.getData().length];
+                mFusion.finish(fused);
+                Timber.d("Fused %d of %d frames", mFusion.getCount(), mSeen);
+
+                mSubscriber.onNext(new CapturedData(fused, true));
+                mSubscriber.onCompleted();
+            }
+        }
+
+        private boolean isDim(Frame frame) {
+            YPyramid pyramid = frame.getPyramid();
+            int level = YPyramid.LEVELS - 1;
+
+            // one collector runs at a time, as for mFusion
+            mLowLightStats.compute(pyramid.getLevel(level), pyramid.getWidth(level),
+                    pyramid.getHeight(level), CaptureProcessor.EXPOSURE_SAMPLES);
+            return mLowLightStats.getMean() <= mLowLightLuma;
+        }
+
+        private void finish() {
+            mIsDone = true;
+            removeCollector(this);
+        }
+
+        void cancel() {
+            mIsDone = true;
+            mSubscriber.onError(new IOException("Camera not ready."));
+        }
+    }
+
+    private void removeCollector(LowLightCollector collector) {
+        CameraManager cameraManager = mCameraManager;
+        if (cameraManager != null) {
+            cameraManager.removeFrameAnalyzer(collector);
+        }
+
+        if (mCollector == collector) {
+            mCollector = null;
+        }
+    }
+
+
+    /**
+     * Picture data as captured: a JPEG, or a raw preview frame.
+     */
+    private static class CapturedData {
+        final byte[] mData;
+        final boolean mIsRaw;
+
+        CapturedData(byte[] data, boolean isRaw) {
+            mData = data;
+            mIsRaw = isRaw;
+        }
+    }
+
+
+    private Observable<CaptureResult> getPictureSaveObservable(final CapturedData captured,
+                                                               final String path,
+                                                               final Quad corners,
+                                                               final RectF region) {
+        return Observable.create(new Observable.OnSubscribe<CaptureResult>() {
             @Override
-            public void call(Subscriber<? super String> subscriber) {
+            public void call(Subscriber<? super CaptureResult> subscriber) {
                 if (subscriber.isUnsubscribed()) {
                     return;
                 }
@@ -150,7 +346,7 @@ public class CameraCaptureModule extends CameraModule {
                     return;
                 }
 
-                if (data == null) {
+                if (captured.mData == null) {
                     subscriber.onError(new IOException("Failed to capture image. Please try again."));
                     return;
                 }
@@ -161,17 +357,17 @@ public class CameraCaptureModule extends CameraModule {
                 Timber.d("Capture Preview Size: %d x %d", previewSize.width, previewSize.height);
 
                 try {
-                    String outFile;
-
-                    if (mCapturePreviewFrame) {
-                        outFile = saveRawData(data, previewSize, previewFormat,
-                                mMaxSide, mAdjustOrientation, mJpegQuality, path);
-                    } else {
-                        outFile = saveJpegData(data,
-                                mMaxSide, mAdjustOrientation, mJpegQuality, path);
+                    if (mQueueCaptures) {
+                        // the queue notifies the subscriber once the picture is stored
+                        CaptureQueue.getInstance(mConfig).enqueue(captured.mData,
+                                captured.mIsRaw, previewSize.width, previewSize.height,
+                                previewFormat, corners, region, path, subscriber);
+                        return;
                     }
 
-                    subscriber.onNext(outFile);
+                    subscriber.onNext(mProcessor.process(captured.mData, captured.mIsRaw,
+                            previewSize.width, previewSize.height, previewFormat, corners,
+                            region, path));
                     subscriber.onCompleted();
                 } catch (IOException e) {
                     Timber.e(e, TAG);
@@ -183,67 +379,4 @@ public class CameraCaptureModule extends CameraModule {
                 .observeOn(AndroidSchedulers.mainThread());
     }
 
-
-    private static String saveRawData(byte[] yuv, Camera.Size previewSize, int previewFormat,
-                                      int maxSide, int adjustOrientation,
-                                      int jpegQuality, String path) throws IOException {
-
-        int width = previewSize.width;
-        int height = previewSize.height;
-
-        ByteArrayOutputStream os = new ByteArrayOutputStream();
-        YuvImage yuvImage = new YuvImage(yuv, previewFormat, width, height, null);
-        Rect rect = new Rect(0, 0, yuvImage.getWidth(), yuvImage.getHeight());
-
-        boolean success;
-        success = yuvImage.compressToJpeg(rect, jpegQuality, os);
-
-        if (!success) {
-            throw new IOException("Failed to save image.");
-        }
-
-        return saveJpegData(os.toByteArray(), maxSide, adjustOrientation, jpegQuality, path);
-    }
-
-
-    private static String saveJpegData(byte[] data, int maxSide, int adjustOrientation,
-                                       int jpegQuality, String path) throws IOException {
-        Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, data.length);
-        Timber.d("Before: %d x %d", bitmap.getWidth(), bitmap.getHeight());
-
-        Bitmap rotBitmap = newScaledBitmap(bitmap, maxSide, adjustOrientation);
-        Timber.d("After: %d x %d", rotBitmap.getWidth(), rotBitmap.getHeight());
-        bitmap.recycle();
-
-        File f = new File(path);
-        FileOutputStream fos = new FileOutputStream(f);
-        boolean success = rotBitmap.compress(Bitmap.CompressFormat.JPEG, jpegQuality, fos);
-        fos.close();
-        rotBitmap.recycle();
-
-        if (!success) {
-            throw new IOException("Failed to save image.");
-        }
-
-        return f.getAbsolutePath();
-    }
-
-    private static Bitmap newScaledBitmap(Bitmap bm, float maxSide, int adjustOrientation) {
-        int width = bm.getWidth();
-        int height = bm.getHeight();
-        float scaleWidth = (maxSide / (float) width);
-        float scaleHeight = (maxSide / (float) height);
-        float scale = Math.max(scaleWidth, scaleHeight);
-
-        // CREATE A MATRIX FOR THE MANIPULATION
-        Matrix matrix = new Matrix();
-        // RESIZE THE BIT MAP
-        matrix.postScale(scale, scale);
-        matrix.postRotate(adjustOrientation);
-        Timber.d("Scale: %f | Rotate: %d", scale, adjustOrientation);
-
-        // "RECREATE" THE NEW BITMAP
-        return Bitmap.createBitmap(bm, 0, 0, width, height, matrix, true);
-    }
-
 }
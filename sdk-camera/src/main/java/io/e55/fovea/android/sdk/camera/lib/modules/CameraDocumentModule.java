@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2015 Shirish Kamath.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package io.e55.fovea.android.sdk.camera.lib.modules;
+
+import android.content.Context;
+
+import io.e55.fovea.android.sdk.camera.lib.CameraConfig;
+import io.e55.fovea.android.sdk.camera.lib.CameraManager;
+import io.e55.fovea.android.sdk.camera.lib.document.Quad;
+import io.e55.fovea.android.sdk.camera.lib.document.QuadDetector;
+import io.e55.fovea.android.sdk.camera.lib.frame.Frame;
+import io.e55.fovea.android.sdk.camera.lib.frame.FrameAnalyzer;
+import io.e55.fovea.android.sdk.camera.lib.frame.YPyramid;
+import rx.Observable;
+import rx.android.schedulers.AndroidSchedulers;
+import rx.subjects.PublishSubject;
+import rx.subjects.SerializedSubject;
+import rx.subjects.Subject;
+
+
+/**
+ * This module looks for the outline of a document in the Camera preview frames.
+ *
+ * Frames are analyzed on a worker thread of the frame pipeline with a {@link QuadDetector}.
+ * Every quad found is published, followed by a single empty {@link Quad} once the document is
+ * lost, so that overlays can be cleared. Corners are in normalised frame coordinates, i.e. before
+ * the preview rotation is applied.
+ */
+public class CameraDocumentModule extends CameraModule implements FrameAnalyzer {
+
+    private final int mMaxSide;
+    private final QuadDetector mDetector;
+    // published from the analyzer's worker thread, and from the main thread on stop()
+    private final Subject<Quad, Quad> mQuadSubject;
+    private final Observable<Quad> mQuadObservable;
+
+    private volatile CameraManager mCameraManager;
+    private volatile Quad mLastQuad;
+
+    CameraDocumentModule(Context context, CameraConfig config) {
+        super(context, config);
+
+        mMaxSide = config.documentDetectMaxSide();
+        mDetector = new QuadDetector(mMaxSide, config.documentMinArea());
+        mQuadSubject = new SerializedSubject<>(PublishSubject.<Quad>create());
+        mQuadObservable = mQuadSubject
+                .onBackpressureDrop()
+                .observeOn(AndroidSchedulers.mainThread());
+    }
+
+    @Override
+    public void start(CameraManager cameraManager) {
+        stop();
+
+        mLastQuad = null;
+        mCameraManager = cameraManager;
+        cameraManager.addFrameAnalyzer(this);
+    }
+
+    @Override
+    public void stop() {
+        if (mCameraManager != null) {
+            mCameraManager.removeFrameAnalyzer(this);
+            mCameraManager = null;
+
+            if (mLastQuad != null && !mLastQuad.isEmpty()) {
+                mQuadSubject.onNext(Quad.empty(System.nanoTime()));
+            }
+        }
+    }
+
+    @Override
+    public void analyze(Frame frame) {
+        if (mCameraManager == null) {
+            return;
+        }
+
+        // start from the smallest pyramid level that the detector does not have to upscale
+        YPyramid pyramid = frame.getPyramid();
+        int level = pyramid.levelFor(mMaxSide);
+
+        Quad quad = mDetector.detectScaled(pyramid.getLevel(level),
+                pyramid.getWidth(level), pyramid.getHeight(level),
+                frame.getWidth(), frame.getHeight(), frame.getTimestamp());
+
+        Quad last = mLastQuad;
+        mLastQuad = quad;
+
+        if (!quad.isEmpty() || (last != null && !last.isEmpty())) {
+            mQuadSubject.onNext(quad);
+        }
+    }
+
+
+    /**
+     * Quads found in the preview frames, observed on the main thread.
+     *
+     * @return Observable of {@link Quad}s; an empty Quad signals that the document was lost.
+     */
+    public Observable<Quad> getQuadObservable() {
+        return mQuadObservable;
+    }
+
+
+    /**
+     * Result of the most recently analyzed frame.
+     *
+     * @return Quad, possibly empty; null if no frame has been analyzed since the preview started.
+     */
+    public Quad getLastQuad() {
+        return mLastQuad;
+    }
+}
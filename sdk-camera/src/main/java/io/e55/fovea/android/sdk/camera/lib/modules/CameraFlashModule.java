@@ -29,73 +29,128 @@ import java.util.List;
 
 import io.e55.fovea.android.sdk.camera.lib.CameraConfig;
 import io.e55.fovea.android.sdk.camera.lib.CameraManager;
+import io.e55.fovea.android.sdk.camera.lib.timer.TimerWheel;
+import io.e55.fovea.android.sdk.camera.lib.timer.Timers;
+import timber.log.Timber;
 
 
 /**
  * This module manages the Flash light for the Camera.
+ *
+ * The flash state is tracked locally, so that `isFlashOn()` doesn't have to query the Camera's
+ * parameters. Toggles are applied at most once every `flash_toggle_interval` ms; toggles
+ * requested in between are coalesced into a single update, which is skipped altogether
+ * if the flash is already in the requested state (see {@link FlashToggle}).
  */
 public class CameraFlashModule extends CameraModule {
 
+    private static final String TAG = CameraFlashModule.class.getSimpleName();
+
     private Camera mCamera;
 
+    private final FlashToggle mToggle;
+
+    // supported flash modes, resolved on start()
+    private String mFlashOnMode, mFlashOffMode;
+
     CameraFlashModule(Context context, CameraConfig config) {
         super(context, config);
+
+        mToggle = new FlashToggle(new FlashToggle.Flash() {
+            @Override
+            public boolean apply(boolean on) {
+                return applyFlash(on);
+            }
+        }, Timers.mainThread(), TimerWheel.SYSTEM_CLOCK, config.flashToggleInterval());
     }
 
     @Override
     public void start(CameraManager cameraManager) {
         mCamera = cameraManager.getCamera();
+        mFlashOnMode = null;
+        mFlashOffMode = null;
+        boolean flashOn = false;
+
+        if (mCamera != null) {
+            Camera.Parameters parameters = mCamera.getParameters();
+            List<String> supportedFlashModes = parameters.getSupportedFlashModes();
+
+            if (supportedFlashModes != null) {
+                mFlashOnMode = findSupportedMode(supportedFlashModes, CameraConfig.FLASH_ON_MODES);
+                mFlashOffMode = findSupportedMode(supportedFlashModes, CameraConfig.FLASH_OFF_MODES);
+            }
+
+            flashOn = isFlashOnMode(parameters.getFlashMode());
+        }
+
+        mToggle.reset(flashOn);
     }
 
     @Override
     public void stop() {
-        setFlash(false);
+        mToggle.cancel();
+
+        if (mCamera != null && mToggle.isOn()) {
+            applyFlash(false);
+        }
+
+        mToggle.reset(false);
         mCamera = null;
     }
 
     public boolean isFlashOn() {
-        if (mCamera == null) {
-            return false;
-        }
+        return (mCamera != null) && mToggle.isRequestedOn();
+    }
 
-        String flashMode = mCamera.getParameters().getFlashMode();
-        if (flashMode != null) {
-            for (String mode : CameraConfig.FLASH_ON_MODES) {
-                if (flashMode.equals(mode)) {
-                    return true;
-                }
-            }
+    /**
+     * @return false if the flash is in the requested state already, or could not be switched.
+     */
+    public boolean setFlash(boolean on) {
+        if (mCamera == null || (on ? mFlashOnMode : mFlashOffMode) == null) {
+            return false;
         }
 
-        return false;
+        return mToggle.request(on);
     }
 
-    public boolean setFlash(boolean on) {
+
+    private boolean applyFlash(boolean on) {
         if (mCamera == null) {
             return false;
         }
 
-        Camera.Parameters parameters = mCamera.getParameters();
-        List<String> supportedFlashModes = parameters.getSupportedFlashModes();
-        String flashMode = null;
+        try {
+            Camera.Parameters parameters = mCamera.getParameters();
+            parameters.setFlashMode(on ? mFlashOnMode : mFlashOffMode);
+            mCamera.setParameters(parameters);
+        } catch (RuntimeException e) {
+            Timber.e(e, TAG);
+            return false;
+        }
+
+        return true;
+    }
 
-        if (supportedFlashModes != null) {
-            String[] values = on ? CameraConfig.FLASH_ON_MODES : CameraConfig.FLASH_OFF_MODES;
 
-            for (String s : values) {
-                if (supportedFlashModes.contains(s)) {
-                    flashMode = s;
-                    break;
-                }
+    private static String findSupportedMode(List<String> supportedModes, String[] modes) {
+        for (String s : modes) {
+            if (supportedModes.contains(s)) {
+                return s;
             }
         }
 
-        if (flashMode == null || flashMode.equals(parameters.getFlashMode())) {
-            return false;
+        return null;
+    }
+
+    private static boolean isFlashOnMode(String flashMode) {
+        if (flashMode != null) {
+            for (String mode : CameraConfig.FLASH_ON_MODES) {
+                if (flashMode.equals(mode)) {
+                    return true;
+                }
+            }
         }
 
-        parameters.setFlashMode(flashMode);
-        mCamera.setParameters(parameters);
-        return true;
+        return false;
     }
 }
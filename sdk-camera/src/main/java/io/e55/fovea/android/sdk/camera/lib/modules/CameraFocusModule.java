@@ -26,19 +26,24 @@ import android.content.Context;
 import android.hardware.Camera;
 import android.hardware.Sensor;
 import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
+import android.os.Handler;
+import android.os.Looper;
 import android.view.MotionEvent;
 
 import java.util.concurrent.TimeUnit;
 
 import io.e55.fovea.android.sdk.camera.lib.CameraConfig;
 import io.e55.fovea.android.sdk.camera.lib.CameraManager;
+import io.e55.fovea.android.sdk.camera.lib.sensor.SensorHub;
+import io.e55.fovea.android.sdk.camera.lib.sensor.SensorHub.SensorConsumer;
+import io.e55.fovea.android.sdk.camera.lib.sensor.SensorHub.SensorSubscription;
+import io.e55.fovea.android.sdk.camera.lib.timer.TimerWheel;
+import io.e55.fovea.android.sdk.camera.lib.timer.TimerWheel.Timeout;
+import io.e55.fovea.android.sdk.camera.lib.timer.Timers;
 import rx.Observable;
 import rx.Subscription;
-import rx.android.schedulers.AndroidSchedulers;
 import rx.functions.Action1;
-import rx.schedulers.Schedulers;
 import timber.log.Timber;
 
 
@@ -51,7 +56,8 @@ import timber.log.Timber;
  * {@link android.view.SurfaceView} (TouchEvent focus).
  *
  * It makes use of sensors such as the Accelerometer to automatically refocus when the phone
- * is moved a significant distance (Accelerometer focus).
+ * is moved a significant distance (Accelerometer focus). Sensor events are received through
+ * the {@link SensorHub}, off the main thread.
  *
  * It can also refocus periodically at a given time interval (ContinuousFocus).
  */
@@ -59,20 +65,28 @@ public class CameraFocusModule extends CameraModule {
 
     private static final String TAG = CameraFocusModule.class.getSimpleName();
 
-    private final SensorManager mSensorManager;
+    // number of quiet accelerometer events after which the phone is considered to be at rest
+    private static final int ACCEL_STEADY_EVENTS = 10;
+
+    private final SensorHub mSensorHub;
+    private final Handler mMainHandler;
+    private final TimerWheel mTimer;
     private final int mAutoFocusInitialDelay, mContinuousFocusInterval, mAutoFocusBusy;
     private final float mFocusOnAcceleration;
 
-    private Camera mCamera;
+    private volatile Camera mCamera;
 
-    private Subscription mInitialFocusSubscription, mContinuousFocusSubscription, mTouchEventSubscription;
-    private AccelerometerListener mAccelerometerListener;
+    private Subscription mTouchEventSubscription;
+    private Timeout mInitialFocusTimeout, mContinuousFocusTimeout;
+    private SensorSubscription mAccelerometerSubscription;
 
-    private long mLastUpdated;
+    private volatile long mLastUpdated;
 
     public CameraFocusModule(Context context, CameraConfig config) {
         super(context, config);
-        mSensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
+        mSensorHub = SensorHub.getInstance(context);
+        mMainHandler = new Handler(Looper.getMainLooper());
+        mTimer = Timers.mainThread();
 
         mAutoFocusInitialDelay = config.autoFocusInitialDelay();
         mContinuousFocusInterval = config.continuousFocusInterval();
@@ -95,72 +109,67 @@ public class CameraFocusModule extends CameraModule {
         });
 
         if (mConfig.useFocusOnAcceleration()) {
-            Sensor accSensor = mSensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
-            if (accSensor != null) {
-                mAccelerometerListener = new AccelerometerListener(cameraManager);
-                boolean isSupported = mSensorManager.registerListener(
-                        mAccelerometerListener, accSensor, SensorManager.SENSOR_DELAY_NORMAL);
-
-                if (!isSupported) {
-                    mSensorManager.unregisterListener(mAccelerometerListener);
-                }
+            AccelerometerConsumer consumer = new AccelerometerConsumer();
+            mAccelerometerSubscription = mSensorHub.subscribe(Sensor.TYPE_ACCELEROMETER, consumer);
+
+            if (mAccelerometerSubscription != null) {
+                consumer.mSubscription = mAccelerometerSubscription;
             } else {
                 Timber.w("Accelerometer sensor not available");
             }
         }
 
         if (mConfig.useContinuousFocus()) {
-            mContinuousFocusSubscription = Observable.interval(mContinuousFocusInterval,
-                    TimeUnit.MILLISECONDS, Schedulers.io())
-                    .observeOn(AndroidSchedulers.mainThread())
-                    .subscribe(new Action1<Long>() {
-                        @Override
-                        public void call(Long aLong) {
-                            if (mCamera == null) {
-                                return;
-                            }
+            mContinuousFocusTimeout = mTimer.schedulePeriodically(new Runnable() {
+                @Override
+                public void run() {
+                    if (mCamera == null) {
+                        return;
+                    }
 
-                            if (isBusy()) {
-                                return;
-                            }
+                    if (isBusy()) {
+                        return;
+                    }
 
-                            autoFocus(new Camera.AutoFocusCallback() {
-                                @Override
-                                public void onAutoFocus(boolean success, Camera camera) {
-                                    if (camera == null || !cameraManager.isPreviewing()) {
-                                        Timber.d("mCamera not previewing or null");
-                                        //stop();
-                                    }
-                                }
-                            });
+                    autoFocus(new Camera.AutoFocusCallback() {
+                        @Override
+                        public void onAutoFocus(boolean success, Camera camera) {
+                            if (camera == null || !cameraManager.isPreviewing()) {
+                                Timber.d("mCamera not previewing or null");
+                                //stop();
+                            }
                         }
                     });
+                }
+            }, mContinuousFocusInterval, mContinuousFocusInterval, TimeUnit.MILLISECONDS);
         }
 
-        mInitialFocusSubscription = Observable.timer(mAutoFocusInitialDelay,
-                TimeUnit.MILLISECONDS, Schedulers.io())
-                .observeOn(AndroidSchedulers.mainThread())
-                .subscribe(new Action1<Long>() {
-                    @Override
-                    public void call(Long aLong) {
-                        autoFocus(null);
-                    }
-                });
+        mInitialFocusTimeout = mTimer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                autoFocus(null);
+            }
+        }, mAutoFocusInitialDelay, TimeUnit.MILLISECONDS);
         Timber.d("start()");
     }
 
     @Override
     public void stop() {
-        if (mAccelerometerListener != null) {
-            mSensorManager.unregisterListener(mAccelerometerListener);
+        mMainHandler.removeCallbacks(mAccelerometerFocus);
+
+        if (mAccelerometerSubscription != null) {
+            mAccelerometerSubscription.unsubscribe();
+            mAccelerometerSubscription = null;
         }
 
-        if (mInitialFocusSubscription != null) {
-            mInitialFocusSubscription.unsubscribe();
+        if (mInitialFocusTimeout != null) {
+            mInitialFocusTimeout.cancel();
+            mInitialFocusTimeout = null;
         }
 
-        if (mContinuousFocusSubscription != null) {
-            mContinuousFocusSubscription.unsubscribe();
+        if (mContinuousFocusTimeout != null) {
+            mContinuousFocusTimeout.cancel();
+            mContinuousFocusTimeout = null;
         }
 
         if (mTouchEventSubscription != null) {
@@ -198,57 +207,67 @@ public class CameraFocusModule extends CameraModule {
     }
 
 
-    private class AccelerometerListener implements SensorEventListener {
-        final CameraManager mCameraManager;
+    private final Runnable mAccelerometerFocus = new Runnable() {
+        @Override
+        public void run() {
+            if (!isBusy()) {
+                autoFocus(null);
+            }
+        }
+    };
+
+
+    /**
+     * Runs on the {@link SensorHub} thread; focusing is posted back to the main thread.
+     */
+    private class AccelerometerConsumer implements SensorConsumer {
+        private volatile SensorSubscription mSubscription;
 
-        private float[] mGravity;
         private float mAccel;
         private float mAccelCurrent;
         private float mAccelLast;
 
+        private int mQuietEvents;
 
-        public AccelerometerListener(CameraManager cameraManager) {
-            mCameraManager = cameraManager;
 
+        public AccelerometerConsumer() {
             mAccel = 0.00f;
             mAccelCurrent = SensorManager.GRAVITY_EARTH;
             mAccelLast = SensorManager.GRAVITY_EARTH;
         }
 
-        public void onSensorChanged(SensorEvent event) {
-            if (event.sensor.getType() == Sensor.TYPE_ACCELEROMETER) {
-                if (mCamera == null) {
-                    return;
-                }
-
-                if (isBusy()) {
-                    return;
-                }
+        @Override
+        public void onSensorEvent(SensorEvent event) {
+            if (mCamera == null) {
+                return;
+            }
 
-                mGravity = event.values.clone();
-                // Shake detection
-                float x = mGravity[0];
-                float y = mGravity[1];
-                float z = mGravity[2];
+            // Shake detection
+            float x = event.values[0];
+            float y = event.values[1];
+            float z = event.values[2];
 
-                mAccelLast = mAccelCurrent;
-                mAccelCurrent = (float) Math.sqrt(x * x + y * y + z * z);
+            mAccelLast = mAccelCurrent;
+            mAccelCurrent = (float) Math.sqrt(x * x + y * y + z * z);
 
-                float delta = mAccelCurrent - mAccelLast;
-                mAccel = mAccel * 0.9f + delta;
-                // Make this higher or lower according to how much
-                // motion you want to detect
+            float delta = mAccelCurrent - mAccelLast;
+            mAccel = mAccel * 0.9f + delta;
+            // Make this higher or lower according to how much
+            // motion you want to detect
 
-                if (mAccel > mFocusOnAcceleration) {
-                    autoFocus(null);
-                }
+            if (Math.abs(mAccel) < mFocusOnAcceleration / 4) {
+                mQuietEvents++;
+            } else {
+                mQuietEvents = 0;
             }
-        }
 
+            if (mSubscription != null) {
+                mSubscription.setSteady(mQuietEvents >= ACCEL_STEADY_EVENTS);
+            }
 
-        @Override
-        public void onAccuracyChanged(Sensor sensor, int accuracy) {
-            // nothing
+            if (mAccel > mFocusOnAcceleration && !isBusy()) {
+                mMainHandler.post(mAccelerometerFocus);
+            }
         }
     }
 }
@@ -55,6 +55,15 @@ public class CameraModuleFactory {
 
             case CameraModules.SHADE:
                 return new CameraShadeModule(mContext, mConfig);
+
+            case CameraModules.AUTO_FLASH:
+                return new CameraAutoFlashModule(mContext, mConfig);
+
+            case CameraModules.DOCUMENT_DETECT:
+                return new CameraDocumentModule(mContext, mConfig);
+
+            case CameraModules.AUTO_CAPTURE:
+                return new CameraAutoCaptureModule(mContext, mConfig);
         }
 
         return null;
@@ -67,6 +76,9 @@ public class CameraModuleFactory {
         String FLASH = "FLASH";
         String CAPTURE = "CAPTURE";
         String SHADE = "SHADE";
+        String AUTO_FLASH = "AUTO_FLASH";
+        String DOCUMENT_DETECT = "DOCUMENT_DETECT";
+        String AUTO_CAPTURE = "AUTO_CAPTURE";
     }
 
 }
@@ -25,39 +25,43 @@ package io.e55.fovea.android.sdk.camera.lib.modules;
 import android.content.Context;
 import android.hardware.Sensor;
 import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
-import android.hardware.SensorManager;
+import android.os.Handler;
+import android.os.Looper;
 
 import io.e55.fovea.android.sdk.camera.lib.CameraConfig;
 import io.e55.fovea.android.sdk.camera.lib.CameraManager;
+import io.e55.fovea.android.sdk.camera.lib.sensor.SensorHub;
+import io.e55.fovea.android.sdk.camera.lib.sensor.SensorHub.SensorConsumer;
+import io.e55.fovea.android.sdk.camera.lib.sensor.SensorHub.SensorSubscription;
 import timber.log.Timber;
 
 public class CameraSensorModule extends CameraModule {
 
-    private final SensorManager mSensorManager;
-    private LightSensorListener mLightSensorListener;
+    // number of readings within LUX_STEADY_RATIO of each other after which the light is steady
+    private static final int LUX_STEADY_EVENTS = 5;
+    private static final float LUX_STEADY_RATIO = 0.1f;
+
+    private final SensorHub mSensorHub;
+    private final Handler mMainHandler;
+    private SensorSubscription mLightSensorSubscription;
 
     public CameraSensorModule(Context context, CameraConfig config) {
         super(context, config);
-        mSensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
+        mSensorHub = SensorHub.getInstance(context);
+        mMainHandler = new Handler(Looper.getMainLooper());
         Timber.d("CameraSensorModule");
     }
 
     @Override
     public void start(final CameraManager cameraManager) {
         Timber.d("CameraSensorModule.start");
+        stop();
 
-        Sensor lightSensor = mSensorManager.getDefaultSensor(Sensor.TYPE_LIGHT);
-        if (lightSensor != null) {
-            stop();
-
-            mLightSensorListener = new LightSensorListener(cameraManager);
-            boolean isSupported = mSensorManager.registerListener(
-                    mLightSensorListener, lightSensor, SensorManager.SENSOR_DELAY_NORMAL);
+        LightSensorConsumer consumer = new LightSensorConsumer(cameraManager);
+        mLightSensorSubscription = mSensorHub.subscribe(Sensor.TYPE_LIGHT, consumer);
 
-            if (!isSupported) {
-                mSensorManager.unregisterListener(mLightSensorListener);
-            }
+        if (mLightSensorSubscription != null) {
+            consumer.mSubscription = mLightSensorSubscription;
         } else {
             Timber.d("Light sensor not available");
         }
@@ -67,35 +71,84 @@ public class CameraSensorModule extends CameraModule {
     public void stop() {
         Timber.d("CameraSensorModule.stop");
 
-        if (mLightSensorListener != null) {
-            mSensorManager.unregisterListener(mLightSensorListener);
-            mLightSensorListener = null;
+        if (mLightSensorSubscription != null) {
+            mLightSensorSubscription.unsubscribe();
+            mLightSensorSubscription = null;
         }
+
+        mMainHandler.removeCallbacksAndMessages(null);
     }
 
-    private class LightSensorListener implements SensorEventListener {
+    /**
+     * Runs on the {@link SensorHub} thread; the flash is toggled on the main thread.
+     *
+     * The thresholds are checked on the hub thread, and the main thread is only involved when
+     * the light crosses one of them, so that the user can still toggle the flash in between.
+     */
+    private class LightSensorConsumer implements SensorConsumer {
         final CameraManager mCameraManager;
 
-        public LightSensorListener(CameraManager cameraManager) {
+        private final Runnable mFlashOn = new SetFlash(true);
+        private final Runnable mFlashOff = new SetFlash(false);
+
+        private volatile SensorSubscription mSubscription;
+
+        private float mLastValue = -1f;
+        private int mSteadyEvents;
+
+        // the last of mFlashOn or mFlashOff posted to the main thread
+        private Runnable mLastPosted;
+
+        public LightSensorConsumer(CameraManager cameraManager) {
             mCameraManager = cameraManager;
         }
 
         @Override
-        public void onSensorChanged(SensorEvent event) {
+        public void onSensorEvent(SensorEvent event) {
             if (event.values.length > 0) {
                 float value = event.values[0];
 
-                if (mConfig.isBrightEnough(value) && !mCameraManager.isFlashOn()) {
-                    mCameraManager.setFlash(false);
+                if (Math.abs(value - mLastValue) <= mLastValue * LUX_STEADY_RATIO) {
+                    mSteadyEvents++;
+                } else {
+                    mSteadyEvents = 0;
+                }
+
+                mLastValue = value;
+
+                if (mSubscription != null) {
+                    mSubscription.setSteady(mSteadyEvents >= LUX_STEADY_EVENTS);
+                }
+
+                Runnable setFlash = null;
+                if (mConfig.isBrightEnough(value)) {
+                    setFlash = mFlashOff;
                 } else if (mConfig.isLightTooDark(value)) {
-                    mCameraManager.setFlash(true);
+                    setFlash = mFlashOn;
+                }
+
+                if (setFlash != null && setFlash != mLastPosted) {
+                    mLastPosted = setFlash;
+                    mMainHandler.post(setFlash);
                 }
             }
         }
 
-        @Override
-        public void onAccuracyChanged(Sensor sensor, int accuracy) {
 
+        private class SetFlash implements Runnable {
+            private final boolean mOn;
+
+            SetFlash(boolean on) {
+                mOn = on;
+            }
+
+            @Override
+            public void run() {
+                // the flash may have been toggled since the light crossed the threshold
+                if (mCameraManager.isFlashOn() != mOn) {
+                    mCameraManager.setFlash(mOn);
+                }
+            }
         }
     }
 }
@@ -25,15 +25,17 @@ package io.e55.fovea.android.sdk.camera.lib.modules;
 import android.content.Context;
 import android.hardware.Camera;
 import android.view.View;
+import android.widget.ImageView;
 
 import java.util.concurrent.TimeUnit;
 
+import io.e55.fovea.android.sdk.camera.R;
 import io.e55.fovea.android.sdk.camera.lib.CameraConfig;
 import io.e55.fovea.android.sdk.camera.lib.CameraManager;
-import rx.Observable;
-import rx.android.schedulers.AndroidSchedulers;
-import rx.functions.Action1;
-import rx.schedulers.Schedulers;
+import io.e55.fovea.android.sdk.camera.lib.frame.FrameSnapshot;
+import io.e55.fovea.android.sdk.camera.lib.frame.FramePipeline.FrameListener;
+import io.e55.fovea.android.sdk.camera.lib.timer.TimerWheel.Timeout;
+import io.e55.fovea.android.sdk.camera.lib.timer.Timers;
 import timber.log.Timber;
 
 /**
@@ -42,26 +44,84 @@ import timber.log.Timber;
  *
  * Without this, the lifecycle changes of Camera-related objects in the UI
  * can appear jarring to the user.
+ *
+ * If the shade contains an {@link ImageView} with the id `cameraShadeSnapshot`, the shade
+ * shows a grayscale snapshot of the last preview frame instead, so that the preview appears to
+ * freeze rather than disappear. The shade is then lifted on the very first preview frame, as
+ * there is no blank screen to hide; `camera_shade_init_delay` only applies until the first
+ * snapshot has been taken.
  */
 public class CameraShadeModule extends CameraModule {
 
+    // refresh the snapshot every few frames; it only needs to be recent, not current
+    private static final int SNAPSHOT_FRAME_INTERVAL = 5;
+
     private Camera mCamera;
+    private CameraManager mCameraManager;
     private View mCameraShadeView;
+    private ImageView mSnapshotView;
 
     private final boolean mUseCameraShade;
     private final int mCameraShadeInitDelay;
 
+    private final FrameSnapshot mSnapshot;
+
+    private boolean mIsShadeVisible, mIsWaitingForFrame;
+    private Timeout mInitDelayTimeout;
+    private int mFrameCount;
+
     CameraShadeModule(Context context, CameraConfig config) {
         super(context, config);
 
         mUseCameraShade = config.useCameraShade();
         mCameraShadeInitDelay = config.cameraShadeInitDelay();
+
+        int snapshotSide = config.cameraShadeSnapshotSide();
+        mSnapshot = (snapshotSide > 0) ? new FrameSnapshot(snapshotSide) : null;
+    }
+
+
+    /**
+     * Lifts the shade once the Camera starts delivering preview frames,
+     * and keeps the snapshot up to date while the preview is visible.
+     */
+    private final FrameListener mFrameListener = new FrameListener() {
+        @Override
+        public void onPreviewFrame(byte[] data, int width, int height) {
+            if (mIsWaitingForFrame) {
+                mIsWaitingForFrame = false;
+                onFirstFrame();
+                return;
+            }
+
+            if (mSnapshotView != null && !mIsShadeVisible &&
+                    ++mFrameCount % SNAPSHOT_FRAME_INTERVAL == 0) {
+                mSnapshot.update(data, width, height, mCameraManager.getPreviewRotation());
+            }
+        }
+    };
+
+    private void onFirstFrame() {
+        if (mCameraShadeInitDelay > 0 && !hasSnapshot()) {
+            mInitDelayTimeout = Timers.mainThread().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    mInitDelayTimeout = null;
+                    if (mCamera != null) {
+                        toggleShade(false);
+                    }
+                }
+            }, mCameraShadeInitDelay, TimeUnit.MILLISECONDS);
+        } else {
+            toggleShade(false);
+        }
     }
 
     @SuppressWarnings("deprecation")
     @Override
     public void start(CameraManager cameraManager) {
         mCamera = cameraManager.getCamera();
+        mCameraManager = cameraManager;
         mCameraShadeView = cameraManager.getCameraShadeView();
 
         if (mCameraShadeView == null) {
@@ -70,30 +130,20 @@ public class CameraShadeModule extends CameraModule {
             return;
         }
 
+        if (mSnapshot != null) {
+            View snapshotView = mCameraShadeView.findViewById(R.id.cameraShadeSnapshot);
+            if (snapshotView instanceof ImageView) {
+                mSnapshotView = (ImageView) snapshotView;
+            }
+        }
+
         if (mCamera != null) {
             toggleShade(true);
 
             if (mUseCameraShade) {
-                mCamera.setOneShotPreviewCallback(new Camera.PreviewCallback() {
-                    @Override
-                    public void onPreviewFrame(byte[] data, Camera camera) {
-                        if (mCameraShadeInitDelay > 0) {
-                            Observable.timer(mCameraShadeInitDelay,
-                                    TimeUnit.MILLISECONDS, Schedulers.io())
-                                    .observeOn(AndroidSchedulers.mainThread())
-                                    .subscribe(new Action1<Long>() {
-                                        @Override
-                                        public void call(Long aLong) {
-                                            if (mCamera != null) {
-                                                toggleShade(false);
-                                            }
-                                        }
-                                    });
-                        } else {
-                            toggleShade(false);
-                        }
-                    }
-                });
+                mIsWaitingForFrame = true;
+                mFrameCount = 0;
+                cameraManager.addPreviewFrameListener(mFrameListener);
             }
         }
     }
@@ -102,14 +152,41 @@ public class CameraShadeModule extends CameraModule {
     public void stop() {
         toggleShade(true);
 
+        if (mCameraManager != null) {
+            mCameraManager.removePreviewFrameListener(mFrameListener);
+        }
+
+        if (mInitDelayTimeout != null) {
+            mInitDelayTimeout.cancel();
+            mInitDelayTimeout = null;
+        }
+
+        mIsWaitingForFrame = false;
         mCameraShadeView = null;
+        mSnapshotView = null;
+        mCameraManager = null;
         mCamera = null;
     }
 
     public void toggleShade(boolean show) {
         if (mCameraShadeView != null) {
             Timber.d("displayShade: %s", show);
-            mCameraShadeView.setVisibility(mUseCameraShade && show ? View.VISIBLE : View.GONE);
+            mIsShadeVisible = mUseCameraShade && show;
+
+            if (mSnapshotView != null) {
+                if (mIsShadeVisible && hasSnapshot()) {
+                    mSnapshotView.setImageBitmap(mSnapshot.getBitmap());
+                    mSnapshotView.setVisibility(View.VISIBLE);
+                } else {
+                    mSnapshotView.setVisibility(View.GONE);
+                }
+            }
+
+            mCameraShadeView.setVisibility(mIsShadeVisible ? View.VISIBLE : View.GONE);
         }
     }
+
+    private boolean hasSnapshot() {
+        return mSnapshot != null && mSnapshot.hasSnapshot();
+    }
 }
@@ -0,0 +1,969 @@
+/*
+ * Copyright (c) 2015 Shirish Kamath.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package io.e55.fovea.android.sdk.camera.lib.modules;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.ImageFormat;
+import android.graphics.Matrix;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.graphics.YuvImage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import io.e55.fovea.android.sdk.camera.lib.CameraConfig;
+import io.e55.fovea.android.sdk.camera.lib.capture.CaptureQualityException;
+import io.e55.fovea.android.sdk.camera.lib.capture.CaptureResult;
+import io.e55.fovea.android.sdk.camera.lib.capture.ExposureCheck;
+import io.e55.fovea.android.sdk.camera.lib.capture.ExposureReport;
+import io.e55.fovea.android.sdk.camera.lib.document.Quad;
+import io.e55.fovea.android.sdk.camera.lib.frame.LumaStats;
+import io.e55.fovea.android.sdk.camera.lib.image.GrayTransform;
+import io.e55.fovea.android.sdk.camera.lib.image.JpegEncoder;
+import io.e55.fovea.android.sdk.camera.lib.image.JpegQualitySearch;
+import io.e55.fovea.android.sdk.camera.lib.image.JpegTranscoder;
+import io.e55.fovea.android.sdk.camera.lib.image.PerspectiveWarp;
+import io.e55.fovea.android.sdk.camera.lib.image.PngWriter;
+import io.e55.fovea.android.sdk.camera.lib.image.RowBands;
+import io.e55.fovea.android.sdk.camera.lib.image.SauvolaBinarizer;
+import io.e55.fovea.android.sdk.camera.lib.io.AtomicFileOutputStream;
+import io.e55.fovea.android.sdk.camera.lib.store.CaptureStore;
+import timber.log.Timber;
+
+
+/**
+ * Processes captured data, a JPEG or a raw preview frame, and stores the picture as configured
+ * in {@link CameraConfig}. It holds no Camera, so pictures can be processed by the
+ * {@link CameraCaptureModule} as well as in the background by the {@link CaptureQueue}, and
+ * may be used from several threads at once.
+ *
+ * Unless disabled, the exposure of the picture is checked before it is encoded and stored
+ * (see {@link ExposureCheck}); a poor picture is either rejected with a
+ * {@link CaptureQualityException} or stored and flagged in its {@link CaptureResult}.
+ *
+ * Pictures of black-and-white documents can be stored in grayscale, or binarized with a local
+ * adaptive threshold (see {@link SauvolaBinarizer}) as a 1-bit PNG, depending on the
+ * configured output mode. Raw preview frames are then processed from their Y plane alone
+ * (see {@link GrayTransform}), and grayscale JPEGs are encoded in parallel stripes
+ * (see {@link JpegEncoder}).
+ *
+ * With a byte budget configured, the JPEG quality of every picture is lowered as far as needed
+ * to fit it (see {@link JpegQualitySearch}); color pictures are then encoded by the
+ * {@link JpegEncoder} as well.
+ *
+ * JPEGs can also be rotated and downscaled without a decode, losslessly or nearly so
+ * (see {@link JpegTranscoder}), unless they need pixel work such as rectification,
+ * binarization or a byte budget.
+ *
+ * If the corners of a document are given, the document is first cut out and de-skewed with a
+ * {@link PerspectiveWarp}. Corners are in normalised preview frame coordinates, which also apply
+ * to the picture as long as both share their aspect ratio (see {@link CameraConfig}).
+ * Otherwise, a region in the same coordinates, such as the area inside the capture guide, can
+ * be kept instead; it is cropped before anything else, so the rest of the picture is never
+ * decoded, scaled or encoded.
+ *
+ * A thumbnail can be stored next to every picture (see {@link CaptureResult#getThumbnail()}).
+ * It is made from the same decoded pixels, or DCT coefficients, as the picture and is encoded
+ * on the image executor while the picture is encoded on the calling thread.
+ *
+ * Files are written atomically (see {@link AtomicFileOutputStream}), so a process death while
+ * storing a picture never leaves a truncated file behind, and are checksummed on the way out.
+ * If enabled, pictures are kept in a {@link CaptureStore} under a hash of their contents rather
+ * than at the given path, with their thumbnails next to them.
+ */
+class CaptureProcessor implements CaptureQueue.Processor {
+
+    // ~128 x 128 pixels are plenty for the exposure histogram
+    static final int EXPOSURE_SAMPLES = 16384;
+
+    // temporary files this old were left behind by a process death, not being written
+    private static final long STALE_TEMP_MS = 10 * 60 * 1000;
+
+    // output directories swept of stale temporary files by this process
+    private static final Set<String> sSweptDirs = new HashSet<>();
+
+    private final int mJpegQuality, mAdjustOrientation, mMaxSide, mRectifyMaxSide;
+    private final int mThumbnailSide;
+    private final boolean mTranscodeJpeg;
+    private final int mSyncMode;
+    private final CaptureStore mStore;
+
+    // null if exposure is not checked
+    private final ExposureCheck mExposureCheck;
+    private final boolean mRejectPoorExposure;
+
+    // byte budget of JPEG pictures; 0 if none
+    private final int mTargetBytes;
+    private final int mTargetMinQuality, mTargetIterations, mTargetMillis;
+
+    private final String mOutputMode;
+    private final JpegEncoder mJpegEncoder;
+    private final int mBinarizeWindow;
+    private final float mBinarizeK;
+
+    CaptureProcessor(CameraConfig config) {
+        mJpegQuality = config.captureJpegQuality();
+        mAdjustOrientation = config.captureAdjustOrientation();
+        mMaxSide = config.captureMaxSide();
+        mThumbnailSide = config.captureThumbnailSide();
+        mRectifyMaxSide = config.captureRectifyMaxSide();
+        mTranscodeJpeg = config.captureTranscodeJpeg() && mAdjustOrientation % 90 == 0;
+
+        String sync = config.captureSyncPolicy();
+        if (CameraConfig.SYNC_POLICY_NONE.equals(sync)) {
+            mSyncMode = AtomicFileOutputStream.SYNC_NONE;
+        } else if (CameraConfig.SYNC_POLICY_ALL.equals(sync)) {
+            mSyncMode = AtomicFileOutputStream.SYNC_ALL;
+        } else {
+            mSyncMode = AtomicFileOutputStream.SYNC_DATA;
+        }
+
+        mStore = config.getCaptureStore();
+
+        String policy = config.captureExposureCheck();
+        mExposureCheck = CameraConfig.EXPOSURE_CHECK_OFF.equals(policy) ? null :
+                new ExposureCheck(config.captureMaxClipped(), config.captureMaxDark(),
+                        config.captureMinDynamicRange());
+        mRejectPoorExposure = CameraConfig.EXPOSURE_CHECK_REJECT.equals(policy);
+
+        mTargetBytes = config.captureTargetBytes();
+        mTargetMinQuality = config.captureTargetMinQuality();
+        mTargetIterations = config.captureTargetIterations();
+        mTargetMillis = config.captureTargetMillis();
+
+        mOutputMode = config.captureOutputMode();
+        mJpegEncoder = new JpegEncoder(mJpegQuality);
+        mBinarizeWindow = config.captureBinarizeWindow();
+        mBinarizeK = config.captureBinarizeK();
+    }
+
+
+    /**
+     * Processes and stores captured data.
+     *
+     * @param isRaw Whether the data is a preview frame of the given size and format, rather
+     *              than a JPEG.
+     */
+    @Override
+    public CaptureResult process(byte[] data, boolean isRaw, int previewWidth,
+                                 int previewHeight, int previewFormat, Quad corners,
+                                 RectF region, String path) throws IOException {
+        if (isRaw) {
+            return saveRawData(data, previewWidth, previewHeight, previewFormat, corners, region,
+                    path);
+        }
+
+        return saveJpegData(data, corners, region, null, path);
+    }
+
+
+    private CaptureResult saveRawData(byte[] yuv, int width, int height, int previewFormat,
+                                      Quad corners, RectF region, String path)
+            throws IOException {
+        Rect crop = toPixels(region, width, height);
+
+        // without a document to cut out, the kept part of the frame can be checked before
+        // it is encoded
+        ExposureReport exposure = null;
+        if (mExposureCheck != null && corners == null && hasYPlane(previewFormat)) {
+            int stride = yStride(previewFormat, width);
+            int step = (int) Math.sqrt((double) crop.width() * crop.height() / EXPOSURE_SAMPLES);
+            LumaStats stats = new LumaStats();
+            stats.compute(yuv, crop.top * stride + crop.left, stride, crop.width(),
+                    crop.height(), Math.max(1, step));
+            exposure = checkExposure(stats);
+        }
+
+        if (!CameraConfig.OUTPUT_MODE_COLOR.equals(mOutputMode) && hasYPlane(previewFormat) &&
+                mAdjustOrientation % 90 == 0) {
+            return saveYPlane(yuv, width, height, yStride(previewFormat, width), corners, crop,
+                    exposure, path);
+        }
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        YuvImage yuvImage = new YuvImage(yuv, previewFormat, width, height, null);
+
+        boolean success;
+        success = yuvImage.compressToJpeg(crop, mJpegQuality, os);
+
+        if (!success) {
+            throw new IOException("Failed to save image.");
+        }
+
+        return saveJpegData(os.toByteArray(), corners, null, exposure, path);
+    }
+
+
+    /**
+     * Stores a grayscale picture straight from the Y plane of a preview frame; the chroma is
+     * never touched and no ARGB bitmap is created.
+     */
+    private CaptureResult saveYPlane(byte[] yuv, int width, int height, int stride, Quad corners,
+                                     Rect crop, ExposureReport exposure, String path)
+            throws IOException {
+        byte[] plane = yuv;
+
+        if (stride != width) {
+            // the transforms take tightly packed planes
+            plane = new byte[width * height];
+            for (int y = 0; y < height; y++) {
+                System.arraycopy(yuv, y * stride, plane, y * width, width);
+            }
+        }
+
+        if (corners != null) {
+            float[] points = corners.getCorners();
+            for (int i = 0; i < points.length; i += 2) {
+                points[i] *= width;
+                points[i + 1] *= height;
+            }
+
+            try {
+                PerspectiveWarp warp = new PerspectiveWarp(points, mRectifyMaxSide);
+                byte[] rectified = new byte[warp.getWidth() * warp.getHeight()];
+                warp.warp(plane, width, height, rectified);
+                plane = rectified;
+                width = warp.getWidth();
+                height = warp.getHeight();
+                crop = new Rect(0, 0, width, height);
+                Timber.d("Rectified: %d x %d", width, height);
+            } catch (IllegalArgumentException e) {
+                Timber.w("Not rectified: %s", corners);
+            }
+        }
+
+        // same scale as newScaledBitmap()
+        float scale = Math.max(mMaxSide / (float) crop.width(),
+                mMaxSide / (float) crop.height());
+        GrayTransform transform = new GrayTransform(crop.left, crop.top, crop.width(),
+                crop.height(), scale, mAdjustOrientation);
+
+        byte[] gray = new byte[transform.getWidth() * transform.getHeight()];
+        transform.transform(plane, width, height, gray);
+        Timber.d("After: %d x %d", transform.getWidth(), transform.getHeight());
+
+        if (exposure == null && mExposureCheck != null) {
+            LumaStats stats = new LumaStats();
+            stats.compute(gray, transform.getWidth(), transform.getHeight(), EXPOSURE_SAMPLES);
+            exposure = checkExposure(stats);
+        }
+
+        return saveGrayData(gray, transform.getWidth(), transform.getHeight(), exposure, path);
+    }
+
+    /**
+     * @return Whether frames of the format start with a full-resolution Y plane.
+     */
+    private static boolean hasYPlane(int format) {
+        return format == ImageFormat.NV21 || format == ImageFormat.YV12;
+    }
+
+    /**
+     * @return Row stride of the Y plane of a frame with a Y plane; YV12 rows are aligned to
+     * 16 bytes, see {@link ImageFormat#YV12}.
+     */
+    private static int yStride(int format, int width) {
+        return (format == ImageFormat.YV12) ? (width + 15) & ~15 : width;
+    }
+
+
+    private CaptureResult saveJpegData(byte[] data, Quad corners, RectF region,
+                                       ExposureReport exposure, String path) throws IOException {
+        if (mTranscodeJpeg && corners == null && mTargetBytes == 0 &&
+                !CameraConfig.OUTPUT_MODE_BINARY.equals(mOutputMode)) {
+            JpegTranscoder transcoder = null;
+            try {
+                transcoder = new JpegTranscoder(data);
+            } catch (IOException e) {
+                Timber.w("Not transcoded: %s", e.getMessage());
+            }
+
+            if (transcoder != null) {
+                return saveTranscodedData(transcoder, region, exposure, path);
+            }
+        }
+
+        Bitmap bitmap = decode(data, region);
+        if (bitmap == null) {
+            throw new IOException("Failed to decode image.");
+        }
+
+        Timber.d("Before: %d x %d", bitmap.getWidth(), bitmap.getHeight());
+
+        if (corners != null) {
+            bitmap = rectify(bitmap, corners, mRectifyMaxSide);
+            Timber.d("Rectified: %d x %d", bitmap.getWidth(), bitmap.getHeight());
+        }
+
+        if (exposure == null && mExposureCheck != null) {
+            try {
+                exposure = checkExposure(measure(bitmap));
+            } catch (IOException e) {
+                bitmap.recycle();
+                throw e;
+            }
+        }
+
+        Bitmap rotBitmap = newScaledBitmap(bitmap, mMaxSide, mAdjustOrientation);
+        Timber.d("After: %d x %d", rotBitmap.getWidth(), rotBitmap.getHeight());
+        bitmap.recycle();
+
+        int width = rotBitmap.getWidth();
+        int height = rotBitmap.getHeight();
+
+        if (!CameraConfig.OUTPUT_MODE_COLOR.equals(mOutputMode)) {
+            byte[] gray = toGray(rotBitmap);
+            rotBitmap.recycle();
+            return saveGrayData(gray, width, height, exposure, path);
+        }
+
+        FutureTask<CaptureResult> thumbnail = startThumbnail(rotBitmap, path);
+
+        if (mTargetBytes > 0) {
+            byte[][] planes = toYCbCr(rotBitmap);
+            rotBitmap.recycle();
+            return finishThumbnail(saveYCbCrData(planes, width, height, exposure, path),
+                    thumbnail);
+        }
+
+        AtomicFileOutputStream os = newPictureStream(path);
+
+        try {
+            if (!rotBitmap.compress(Bitmap.CompressFormat.JPEG, mJpegQuality, os)) {
+                throw new IOException("Failed to save image.");
+            }
+
+            os.commit();
+        } finally {
+            os.close();
+            rotBitmap.recycle();
+        }
+
+        return finishThumbnail(newPictureResult(os, CaptureResult.MIME_JPEG, width, height,
+                mJpegQuality, exposure), thumbnail);
+    }
+
+
+    /**
+     * Stores a YCbCr 4:2:0 picture as a JPEG within the byte budget.
+     */
+    private CaptureResult saveYCbCrData(byte[][] planes, int width, int height,
+                                        ExposureReport exposure, String path) throws IOException {
+        JpegQualitySearch search = newQualitySearch();
+        int quality = search.searchYCbCr(planes[0], planes[1], planes[2], width, height);
+        Timber.d("Quality %d after %d estimates", quality, search.getIterations());
+
+        AtomicFileOutputStream os = newPictureStream(path);
+
+        try {
+            new JpegEncoder(quality).encodeYCbCr(planes[0], planes[1], planes[2], width, height,
+                    os);
+            os.commit();
+        } finally {
+            os.close();
+        }
+
+        return newPictureResult(os, CaptureResult.MIME_JPEG, width, height, quality, exposure);
+    }
+
+
+    /**
+     * Rotates and downscales a JPEG without decoding it. The picture is downscaled by a power
+     * of two, so it ends up to twice as large as `captureMaxSide` asks for.
+     */
+    private CaptureResult saveTranscodedData(JpegTranscoder transcoder, RectF region,
+                                             ExposureReport exposure, String path)
+            throws IOException {
+        Rect crop = toPixels(region, transcoder.getWidth(), transcoder.getHeight());
+
+        if (exposure == null && mExposureCheck != null) {
+            // the thumbnail has a pixel for every 8 x 8 block of the picture
+            int thumbWidth = transcoder.getThumbnailWidth();
+            int thumbHeight = transcoder.getThumbnailHeight();
+            int left = Math.min(thumbWidth - 1, crop.left / 8);
+            int top = Math.min(thumbHeight - 1, crop.top / 8);
+            int right = Math.max(left + 1, Math.min(thumbWidth, (crop.right + 7) / 8));
+            int bottom = Math.max(top + 1, Math.min(thumbHeight, (crop.bottom + 7) / 8));
+            int step = (int) Math.sqrt((double) (right - left) * (bottom - top) /
+                    EXPOSURE_SAMPLES);
+
+            LumaStats stats = new LumaStats();
+            stats.compute(transcoder.getLumaThumbnail(), top * thumbWidth + left, thumbWidth,
+                    right - left, bottom - top, Math.max(1, step));
+            exposure = checkExposure(stats);
+        }
+
+        // same scale as newScaledBitmap(), rounded to the next larger power of two
+        float scale = Math.max(mMaxSide / (float) crop.width(),
+                mMaxSide / (float) crop.height());
+        int shift = 0;
+        while (shift < 3 && scale * (2 << shift) <= 1f) {
+            shift++;
+        }
+
+        boolean gray = CameraConfig.OUTPUT_MODE_GRAY.equals(mOutputMode);
+        JpegTranscoder.Transform transform = transcoder.newTransform(crop.left, crop.top,
+                crop.width(), crop.height(), mAdjustOrientation, shift, gray);
+        Timber.d("Transcoded: %d x %d", transform.getWidth(), transform.getHeight());
+
+        FutureTask<CaptureResult> thumbnail = startThumbnail(transcoder, crop, gray, path);
+
+        AtomicFileOutputStream os = newPictureStream(path);
+
+        try {
+            transform.write(os);
+            os.commit();
+        } finally {
+            os.close();
+        }
+
+        return finishThumbnail(newPictureResult(os, CaptureResult.MIME_JPEG, transform.getWidth(),
+                transform.getHeight(), transcoder.getQuality(), exposure), thumbnail);
+    }
+
+
+    /**
+     * Stores a grayscale picture as a grayscale JPEG, or binarized as a 1-bit PNG.
+     */
+    private CaptureResult saveGrayData(byte[] gray, int width, int height,
+                                       ExposureReport exposure, String path) throws IOException {
+        FutureTask<CaptureResult> thumbnail = startThumbnail(gray, width, height, path);
+
+        AtomicFileOutputStream os = newPictureStream(path);
+        String mimeType;
+        int quality = -1;
+
+        try {
+            if (CameraConfig.OUTPUT_MODE_BINARY.equals(mOutputMode)) {
+                int window = (mBinarizeWindow > 0) ?
+                        mBinarizeWindow : Math.max(15, Math.min(width, height) / 24);
+
+                byte[] binary = new byte[gray.length];
+                new SauvolaBinarizer(window, mBinarizeK).binarize(gray, width, height, binary);
+
+                PngWriter.writeGray(os, binary, width, height, 1);
+                mimeType = CaptureResult.MIME_PNG;
+            } else {
+                JpegEncoder encoder = mJpegEncoder;
+
+                if (mTargetBytes > 0) {
+                    JpegQualitySearch search = newQualitySearch();
+                    encoder = new JpegEncoder(search.searchGray(gray, width, height));
+                    Timber.d("Quality %d after %d estimates", encoder.getQuality(),
+                            search.getIterations());
+                }
+
+                encoder.encodeGray(gray, width, height, os);
+                mimeType = CaptureResult.MIME_JPEG;
+                quality = encoder.getQuality();
+            }
+
+            os.commit();
+        } finally {
+            os.close();
+        }
+
+        return finishThumbnail(newPictureResult(os, mimeType, width, height, quality, exposure),
+                thumbnail);
+    }
+
+
+    /**
+     * Starts storing a thumbnail of the grayscale picture; `gray` must not change meanwhile.
+     *
+     * @return The pending thumbnail, or null if none is configured.
+     */
+    private FutureTask<CaptureResult> startThumbnail(final byte[] gray, final int width,
+                                                     final int height, String path) {
+        if (mThumbnailSide <= 0) {
+            return null;
+        }
+
+        final String thumbnailPath = CaptureResult.getThumbnailPath(path);
+
+        return startThumbnail(new Callable<CaptureResult>() {
+            @Override
+            public CaptureResult call() throws IOException {
+                float scale = Math.min(1f, mThumbnailSide / (float) Math.max(width, height));
+                GrayTransform transform = new GrayTransform(0, 0, width, height, scale, 0);
+                int thumbWidth = transform.getWidth();
+                int thumbHeight = transform.getHeight();
+
+                // on this thread alone, as the picture is being encoded on the others
+                byte[] thumb = new byte[thumbWidth * thumbHeight];
+                transform.transform(gray, width, height, thumb, null, 1);
+
+                AtomicFileOutputStream os = newThumbnailStream(thumbnailPath);
+                try {
+                    mJpegEncoder.encodeGray(thumb, thumbWidth, thumbHeight, os, null, 1);
+                    os.commit();
+                } finally {
+                    os.close();
+                }
+
+                return newResult(os, CaptureResult.MIME_JPEG, thumbWidth, thumbHeight,
+                        mJpegEncoder.getQuality(), null);
+            }
+        });
+    }
+
+
+    /**
+     * Starts storing a thumbnail of the bitmap, which may be recycled as soon as this returns.
+     *
+     * @return The pending thumbnail, or null if none is configured.
+     */
+    private FutureTask<CaptureResult> startThumbnail(Bitmap bm, String path) {
+        if (mThumbnailSide <= 0) {
+            return null;
+        }
+
+        float scale = Math.min(1f,
+                mThumbnailSide / (float) Math.max(bm.getWidth(), bm.getHeight()));
+        Bitmap scaled = Bitmap.createScaledBitmap(bm,
+                Math.max(1, Math.round(bm.getWidth() * scale)),
+                Math.max(1, Math.round(bm.getHeight() * scale)), true);
+
+        final Bitmap thumb = (scaled != bm) ? scaled : bm.copy(bm.getConfig(), false);
+        final int thumbWidth = thumb.getWidth();
+        final int thumbHeight = thumb.getHeight();
+        final String thumbnailPath = CaptureResult.getThumbnailPath(path);
+
+        return startThumbnail(new Callable<CaptureResult>() {
+            @Override
+            public CaptureResult call() throws IOException {
+                AtomicFileOutputStream os = newThumbnailStream(thumbnailPath);
+
+                try {
+                    if (!thumb.compress(Bitmap.CompressFormat.JPEG, mJpegQuality, os)) {
+                        throw new IOException("Failed to save thumbnail.");
+                    }
+
+                    os.commit();
+                } finally {
+                    os.close();
+                    thumb.recycle();
+                }
+
+                return newResult(os, CaptureResult.MIME_JPEG, thumbWidth, thumbHeight,
+                        mJpegQuality, null);
+            }
+        });
+    }
+
+
+    /**
+     * Starts storing a thumbnail transcoded from the same crop of the JPEG as the picture.
+     * Like the picture, it is downscaled by a power of two, so may be up to twice as large as
+     * configured, or larger still for very large pictures.
+     *
+     * @return The pending thumbnail, or null if none is configured.
+     */
+    private FutureTask<CaptureResult> startThumbnail(final JpegTranscoder transcoder,
+                                                     final Rect crop, final boolean gray,
+                                                     String path) {
+        if (mThumbnailSide <= 0) {
+            return null;
+        }
+
+        final String thumbnailPath = CaptureResult.getThumbnailPath(path);
+
+        return startThumbnail(new Callable<CaptureResult>() {
+            @Override
+            public CaptureResult call() throws IOException {
+                float scale = mThumbnailSide / (float) Math.max(crop.width(), crop.height());
+                int shift = 0;
+                while (shift < 3 && scale * (2 << shift) <= 1f) {
+                    shift++;
+                }
+
+                JpegTranscoder.Transform transform = transcoder.newTransform(crop.left,
+                        crop.top, crop.width(), crop.height(), mAdjustOrientation, shift, gray);
+
+                // on this thread alone, as waiting on the executor it runs on could deadlock
+                AtomicFileOutputStream os = newThumbnailStream(thumbnailPath);
+                try {
+                    transform.write(os, null, 1);
+                    os.commit();
+                } finally {
+                    os.close();
+                }
+
+                return newResult(os, CaptureResult.MIME_JPEG, transform.getWidth(),
+                        transform.getHeight(), transcoder.getQuality(), null);
+            }
+        });
+    }
+
+
+    /**
+     * Stream for a picture: into a file of the store, if enabled, hashing the picture on the way.
+     */
+    private AtomicFileOutputStream newPictureStream(String path) throws IOException {
+        if (mStore == null) {
+            return newOutputStream(path);
+        }
+
+        return new AtomicFileOutputStream(mStore.newTempFile(), mSyncMode,
+                CaptureStore.newDigest());
+    }
+
+    /**
+     * Result for the picture committed by the stream, once it is moved into the store,
+     * if enabled.
+     */
+    private CaptureResult newPictureResult(AtomicFileOutputStream os, String mimeType, int width,
+                                           int height, int quality, ExposureReport exposure)
+            throws IOException {
+        if (mStore == null) {
+            return newResult(os, mimeType, width, height, quality, exposure);
+        }
+
+        CaptureStore.Entry entry = mStore.put(os.getFile(), os.getDigest().digest(), mimeType,
+                width, height, os.getChecksum());
+
+        return new CaptureResult(entry.getFile().getAbsolutePath(), mimeType, width, height,
+                quality, entry.getSize(), os.getChecksum(), exposure);
+    }
+
+    /**
+     * Stream for a thumbnail: into a file of the store, if enabled, until its picture is stored.
+     */
+    private AtomicFileOutputStream newThumbnailStream(String path) throws IOException {
+        if (mStore == null) {
+            return newOutputStream(path);
+        }
+
+        return new AtomicFileOutputStream(mStore.newTempFile(), mSyncMode);
+    }
+
+    private AtomicFileOutputStream newOutputStream(String path) throws IOException {
+        File file = new File(path);
+        sweepTempFiles(file.getAbsoluteFile().getParentFile());
+        return new AtomicFileOutputStream(file, mSyncMode);
+    }
+
+    /**
+     * Deletes the temporary files left in an output directory, once per process.
+     */
+    private static void sweepTempFiles(File dir) {
+        if (dir == null) {
+            return;
+        }
+
+        synchronized (sSweptDirs) {
+            if (!sSweptDirs.add(dir.getPath())) {
+                return;
+            }
+        }
+
+        int deleted = AtomicFileOutputStream.deleteTempFiles(dir, STALE_TEMP_MS);
+        if (deleted > 0) {
+            Timber.i("Deleted %d stale temporary files in %s", deleted, dir);
+        }
+    }
+
+    /**
+     * Result for the file committed by the stream.
+     */
+    private static CaptureResult newResult(AtomicFileOutputStream os, String mimeType, int width,
+                                           int height, int quality, ExposureReport exposure) {
+        return new CaptureResult(os.getFile().getAbsolutePath(), mimeType, width, height,
+                quality, os.getSize(), os.getChecksum(), exposure);
+    }
+
+
+    private static FutureTask<CaptureResult> startThumbnail(Callable<CaptureResult> store) {
+        FutureTask<CaptureResult> task = new FutureTask<>(store);
+        RowBands.getExecutor().execute(task);
+        return task;
+    }
+
+
+    /**
+     * Waits for the thumbnail and adds it to the result of the picture; with a store, it is
+     * moved next to the stored picture. The picture is stored either way, so a failed thumbnail
+     * is only logged.
+     */
+    private CaptureResult finishThumbnail(CaptureResult result,
+                                          FutureTask<CaptureResult> thumbnail) {
+        if (thumbnail == null) {
+            return result;
+        }
+
+        try {
+            CaptureResult thumb = thumbnail.get();
+
+            if (mStore != null) {
+                File file = mStore.attachThumbnail(new File(result.getPath()),
+                        new File(thumb.getPath()));
+                if (file == null) {
+                    return result;
+                }
+
+                thumb = new CaptureResult(file.getAbsolutePath(), thumb.getMimeType(),
+                        thumb.getWidth(), thumb.getHeight(), thumb.getQuality(), thumb.getSize(),
+                        thumb.getChecksum(), null);
+            }
+
+            return result.withThumbnail(thumb);
+        } catch (IOException e) {
+            Timber.w(e, "Thumbnail not stored");
+        } catch (ExecutionException e) {
+            Timber.w(e.getCause(), "Thumbnail not stored");
+        } catch (InterruptedException e) {
+            thumbnail.cancel(true);
+            Thread.currentThread().interrupt();
+        }
+
+        return result;
+    }
+
+
+    /**
+     * Pixel bounds of the region in a picture of the given size, rounded outwards, with an even
+     * left and top edge so that subsampled chroma is cropped cleanly.
+     *
+     * @param region Region in normalised coordinates; null for the whole picture.
+     */
+    private static Rect toPixels(RectF region, int width, int height) {
+        if (region == null) {
+            return new Rect(0, 0, width, height);
+        }
+
+        int left = Math.max(0, (int) Math.floor(region.left * width)) & ~1;
+        int top = Math.max(0, (int) Math.floor(region.top * height)) & ~1;
+        int right = Math.min(width, (int) Math.ceil(region.right * width));
+        int bottom = Math.min(height, (int) Math.ceil(region.bottom * height));
+
+        return new Rect(left, top, Math.max(left + 1, right), Math.max(top + 1, bottom));
+    }
+
+
+    /**
+     * Decodes the JPEG, or only the part of it within the region, which is cheaper than
+     * decoding the whole picture and cropping it.
+     */
+    private static Bitmap decode(byte[] data, RectF region) throws IOException {
+        if (region == null) {
+            return BitmapFactory.decodeByteArray(data, 0, data.length);
+        }
+
+        BitmapRegionDecoder decoder = BitmapRegionDecoder.newInstance(data, 0, data.length,
+                false);
+
+        try {
+            return decoder.decodeRegion(toPixels(region, decoder.getWidth(),
+                    decoder.getHeight()), null);
+        } finally {
+            decoder.recycle();
+        }
+    }
+
+
+    private JpegQualitySearch newQualitySearch() {
+        return new JpegQualitySearch(mTargetBytes, mTargetMinQuality, mJpegQuality,
+                mTargetIterations, mTargetMillis);
+    }
+
+
+    /**
+     * JFIF YCbCr planes of the bitmap, with the chroma averaged over 2 x 2 pixels.
+     */
+    private static byte[][] toYCbCr(Bitmap bm) {
+        int width = bm.getWidth();
+        int height = bm.getHeight();
+        int chromaWidth = (width + 1) / 2;
+        int chromaHeight = (height + 1) / 2;
+
+        byte[] y = new byte[width * height];
+        byte[] cb = new byte[chromaWidth * chromaHeight];
+        byte[] cr = new byte[chromaWidth * chromaHeight];
+        int[] rows = new int[2 * width];
+
+        for (int row = 0; row < height; row += 2) {
+            int count = Math.min(2, height - row);
+            bm.getPixels(rows, 0, width, 0, row, width, count);
+            if (count == 1) {
+                System.arraycopy(rows, 0, rows, width, width);
+            }
+
+            for (int x = 0; x < width; x += 2) {
+                int r = 0, g = 0, b = 0;
+
+                for (int i = 0; i < 4; i++) {
+                    int dx = Math.min(x + (i & 1), width - 1);
+                    int c = rows[(i >> 1) * width + dx];
+                    int cr8 = (c >> 16) & 0xff, cg8 = (c >> 8) & 0xff, cb8 = c & 0xff;
+
+                    if (row + (i >> 1) < height && x + (i & 1) < width) {
+                        y[(row + (i >> 1)) * width + dx] =
+                                (byte) ((77 * cr8 + 150 * cg8 + 29 * cb8 + 128) >> 8);
+                    }
+
+                    r += cr8;
+                    g += cg8;
+                    b += cb8;
+                }
+
+                // sums of 4 pixels; coefficients scaled by 256
+                int p = (row / 2) * chromaWidth + x / 2;
+                cb[p] = (byte) clamp((-43 * r - 85 * g + 128 * b + (128 << 10) + 512) >> 10);
+                cr[p] = (byte) clamp((128 * r - 107 * g - 21 * b + (128 << 10) + 512) >> 10);
+            }
+        }
+
+        return new byte[][]{y, cb, cr};
+    }
+
+    private static int clamp(int value) {
+        return (value < 0) ? 0 : (value > 255) ? 255 : value;
+    }
+
+
+    /**
+     * BT.601 luma of the bitmap, as in the Camera's YUV frames.
+     */
+    private static byte[] toGray(Bitmap bm) {
+        int width = bm.getWidth();
+        int height = bm.getHeight();
+        byte[] gray = new byte[width * height];
+        int[] row = new int[width];
+
+        for (int y = 0; y < height; y++) {
+            bm.getPixels(row, 0, width, 0, y, width, 1);
+
+            int p = y * width;
+            for (int x = 0; x < width; x++) {
+                int c = row[x];
+                gray[p + x] = (byte) ((77 * ((c >> 16) & 0xff) + 150 * ((c >> 8) & 0xff) +
+                        29 * (c & 0xff)) >> 8);
+            }
+        }
+
+        return gray;
+    }
+
+
+    /**
+     * @throws CaptureQualityException if the exposure is unacceptable and such pictures
+     *                                 are to be rejected.
+     */
+    private ExposureReport checkExposure(LumaStats stats) throws CaptureQualityException {
+        ExposureReport report = mExposureCheck.evaluate(stats);
+        Timber.d("%s", report);
+
+        if (!report.isAcceptable() && mRejectPoorExposure) {
+            throw new CaptureQualityException(report);
+        }
+
+        return report;
+    }
+
+
+    /**
+     * Luma statistics of a nearest-neighbour thumbnail of the bitmap, which unlike a filtered
+     * one keeps clipped highlights clipped.
+     */
+    private static LumaStats measure(Bitmap bm) {
+        float scale = Math.min(1f, (float) Math.sqrt(
+                EXPOSURE_SAMPLES / (double) (bm.getWidth() * bm.getHeight())));
+        int width = Math.max(1, Math.round(bm.getWidth() * scale));
+        int height = Math.max(1, Math.round(bm.getHeight() * scale));
+
+        Bitmap thumb = Bitmap.createScaledBitmap(bm, width, height, false);
+        int[] pixels = new int[width * height];
+        thumb.getPixels(pixels, 0, width, 0, 0, width, height);
+
+        if (thumb != bm) {
+            thumb.recycle();
+        }
+
+        LumaStats stats = new LumaStats();
+        stats.computeArgb(pixels, pixels.length);
+        return stats;
+    }
+
+
+    /**
+     * Cuts the document out of the bitmap and maps it onto an upright rectangle.
+     * The source bitmap is recycled.
+     */
+    private static Bitmap rectify(Bitmap bm, Quad corners, int maxSide) {
+        int width = bm.getWidth();
+        int height = bm.getHeight();
+
+        float[] points = corners.getCorners();
+        for (int i = 0; i < points.length; i += 2) {
+            points[i] *= width;
+            points[i + 1] *= height;
+        }
+
+        PerspectiveWarp warp;
+        try {
+            warp = new PerspectiveWarp(points, maxSide);
+        } catch (IllegalArgumentException e) {
+            Timber.w("Not rectified: %s", corners);
+            return bm;
+        }
+
+        int[] src = new int[width * height];
+        bm.getPixels(src, 0, width, 0, 0, width, height);
+        bm.recycle();
+
+        int[] dst = new int[warp.getWidth() * warp.getHeight()];
+        warp.warp(src, width, height, dst);
+
+        return Bitmap.createBitmap(dst, warp.getWidth(), warp.getHeight(),
+                Bitmap.Config.ARGB_8888);
+    }
+
+    private static Bitmap newScaledBitmap(Bitmap bm, float maxSide, int adjustOrientation) {
+        int width = bm.getWidth();
+        int height = bm.getHeight();
+        float scaleWidth = (maxSide / (float) width);
+        float scaleHeight = (maxSide / (float) height);
+        float scale = Math.max(scaleWidth, scaleHeight);
+
+        // CREATE A MATRIX FOR THE MANIPULATION
+        Matrix matrix = new Matrix();
+        // RESIZE THE BIT MAP
+        matrix.postScale(scale, scale);
+        matrix.postRotate(adjustOrientation);
+        Timber.d("Scale: %f | Rotate: %d", scale, adjustOrientation);
+
+        // "RECREATE" THE NEW BITMAP
+        return Bitmap.createBitmap(bm, 0, 0, width, height, matrix, true);
+    }
+
+}
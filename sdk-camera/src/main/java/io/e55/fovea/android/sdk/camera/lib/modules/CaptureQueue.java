@@ -0,0 +1,600 @@
+/*
+ * Copyright (c) 2015 Shirish Kamath.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package io.e55.fovea.android.sdk.camera.lib.modules;
+
+import android.graphics.RectF;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.e55.fovea.android.sdk.camera.lib.CameraConfig;
+import io.e55.fovea.android.sdk.camera.lib.capture.CaptureQualityException;
+import io.e55.fovea.android.sdk.camera.lib.capture.CaptureResult;
+import io.e55.fovea.android.sdk.camera.lib.document.Quad;
+import io.e55.fovea.android.sdk.camera.lib.io.AtomicFileOutputStream;
+import io.e55.fovea.android.sdk.camera.lib.io.Crc32c;
+import rx.Observable;
+import rx.Subscriber;
+import rx.subjects.PublishSubject;
+import timber.log.Timber;
+
+
+/**
+ * Durable queue of captured pictures waiting to be processed and stored, so that neither a
+ * process death nor leaving the camera screen loses a capture once the shutter has fired.
+ * <p/>
+ * The captured data, with everything needed to process it, is journaled to a file of its own
+ * before the capture is acknowledged. Jobs are then processed by a {@link CaptureProcessor}
+ * on a bounded pool of workers, independently of the Camera, and their journal files deleted
+ * once the picture is stored. Failed jobs are retried with a backoff, up to a configured number
+ * of attempts; a picture rejected for its exposure is not retried.
+ * <p/>
+ * Jobs left over by a previous process are resumed by {@link CameraConfig#init} in the order
+ * they were captured. The journal is read by the first task of the workers rather than by the
+ * caller, and captures enqueued meanwhile are journaled once it is done. An attempt is counted
+ * before it starts, so that a job which takes the process down with it is given up on
+ * eventually.
+ */
+public class CaptureQueue {
+
+    private static final String TAG = CaptureQueue.class.getSimpleName();
+
+    private static final int MAGIC = 0x4656434a; // FVCJ
+    private static final int VERSION = 1;
+
+    private static final String JOB_SUFFIX = ".job";
+
+    private static final long RETRY_DELAY_MS = 1000;
+    private static final long KEEP_ALIVE_S = 30;
+
+    // outcomes kept for a first subscriber at most, oldest dropped first
+    private static final int MAX_UNDELIVERED = 64;
+
+    private static volatile CaptureQueue instance;
+
+    private final File mDir;
+    private final Processor mProcessor;
+    private final ScheduledThreadPoolExecutor mExecutor;
+    private final int mMaxAttempts;
+    private final int mSyncMode;
+    private final long mRetryDelayMs;
+
+    private final Map<String, Subscriber<? super CaptureResult>> mSubscribers;
+    private final PublishSubject<Completion> mCompletions;
+    private final Deque<Completion> mUndelivered;
+    private final AtomicInteger mPending;
+    private final AtomicInteger mSequence;
+    private final CountDownLatch mResumed;
+
+
+    /**
+     * @return The queue, which starts resuming any pending jobs in the background when first
+     * created.
+     */
+    public static CaptureQueue getInstance(CameraConfig config) {
+        if (instance == null) {
+            synchronized (CaptureQueue.class) {
+                if (instance == null) {
+                    CaptureQueue queue = new CaptureQueue(config);
+                    queue.resume();
+                    instance = queue;
+                }
+            }
+        }
+
+        return instance;
+    }
+
+
+    CaptureQueue(CameraConfig config) {
+        this(config.captureQueueDir(), new CaptureProcessor(config), config.captureQueueWorkers(),
+                config.captureQueueMaxAttempts(),
+                CameraConfig.SYNC_POLICY_NONE.equals(config.captureSyncPolicy()) ?
+                        AtomicFileOutputStream.SYNC_NONE : AtomicFileOutputStream.SYNC_DATA,
+                RETRY_DELAY_MS);
+    }
+
+
+    /**
+     * @param retryDelayMs Delay of the first retry of a job; it doubles with every attempt.
+     */
+    CaptureQueue(File dir, Processor processor, int workers, int maxAttempts, int syncMode,
+                 long retryDelayMs) {
+        mDir = dir;
+        mProcessor = processor;
+        mMaxAttempts = Math.max(1, maxAttempts);
+        mSyncMode = syncMode;
+        mRetryDelayMs = retryDelayMs;
+
+        final AtomicInteger threads = new AtomicInteger();
+        mExecutor = new ScheduledThreadPoolExecutor(Math.max(1, workers),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, TAG + "-" + threads.incrementAndGet());
+                        thread.setPriority(Thread.NORM_PRIORITY - 1);
+                        return thread;
+                    }
+                });
+        mExecutor.setKeepAliveTime(KEEP_ALIVE_S, TimeUnit.SECONDS);
+        mExecutor.allowCoreThreadTimeOut(true);
+
+        mSubscribers = new HashMap<>();
+        mCompletions = PublishSubject.create();
+        mUndelivered = new ArrayDeque<>();
+        mPending = new AtomicInteger();
+        mSequence = new AtomicInteger();
+        mResumed = new CountDownLatch(1);
+    }
+
+
+    /**
+     * Processes and stores the captured data of a job.
+     */
+    interface Processor {
+        CaptureResult process(byte[] data, boolean isRaw, int previewWidth, int previewHeight,
+                              int previewFormat, Quad corners, RectF region, String path)
+                throws IOException;
+    }
+
+
+    /**
+     * Outcome of a job: the stored picture, or the error it was given up with.
+     */
+    public static class Completion {
+        private final String mPath;
+        private final CaptureResult mResult;
+        private final Throwable mError;
+
+        Completion(String path, CaptureResult result, Throwable error) {
+            mPath = path;
+            mResult = result;
+            mError = error;
+        }
+
+        /**
+         * @return Path the picture was requested to be stored at.
+         */
+        public String getPath() {
+            return mPath;
+        }
+
+        /**
+         * @return The stored picture, or null if the job failed.
+         */
+        public CaptureResult getResult() {
+            return mResult;
+        }
+
+        public Throwable getError() {
+            return mError;
+        }
+
+        public boolean isSuccessful() {
+            return mResult != null;
+        }
+    }
+
+
+    /**
+     * Outcomes of all jobs, including those resumed after a process death, which nobody else
+     * waits for. Emitted on a worker thread.
+     * <p/>
+     * Outcomes that reached neither the job's subscriber nor a subscriber of these, such as
+     * those of jobs resumed before the app could subscribe, are kept and replayed to the next
+     * subscriber on the subscribing thread; up to {@value #MAX_UNDELIVERED} of them.
+     */
+    public Observable<Completion> getCompletions() {
+        return Observable.create(new Observable.OnSubscribe<Completion>() {
+            @Override
+            public void call(Subscriber<? super Completion> subscriber) {
+                // not interleaved with a completion, so that none is missed or delivered twice
+                synchronized (mCompletions) {
+                    while (!mUndelivered.isEmpty() && !subscriber.isUnsubscribed()) {
+                        subscriber.onNext(mUndelivered.poll());
+                    }
+
+                    if (!subscriber.isUnsubscribed()) {
+                        mCompletions.unsafeSubscribe(subscriber);
+                    }
+                }
+            }
+        });
+    }
+
+
+    /**
+     * @return Number of jobs not yet completed.
+     */
+    public int getPendingCount() {
+        return mPending.get();
+    }
+
+
+    /**
+     * Journals a capture and queues it for processing.
+     *
+     * @param subscriber Notified of the job's outcome on a worker thread, unless unsubscribed
+     *                   by then; the job goes on either way.
+     * @throws IOException if the capture could not be journaled.
+     */
+    void enqueue(byte[] data, boolean isRaw, int previewWidth, int previewHeight,
+                 int previewFormat, Quad corners, RectF region, String path,
+                 Subscriber<? super CaptureResult> subscriber) throws IOException {
+        // a job journaled while the journal is swept and listed would be deleted or run twice
+        awaitResumed();
+
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            throw new IOException("Failed to create " + mDir);
+        }
+
+        String id = String.format(Locale.US, "%013d-%05d", System.currentTimeMillis(),
+                mSequence.incrementAndGet() % 100000);
+        File file = new File(mDir, id + ".0" + JOB_SUFFIX);
+
+        Job job = new Job(file, data, isRaw, previewWidth, previewHeight, previewFormat,
+                (corners != null) ? corners.getCorners() : null, region, path);
+        job.write(mSyncMode);
+
+        if (subscriber != null) {
+            synchronized (mSubscribers) {
+                mSubscribers.put(id, subscriber);
+            }
+        }
+
+        mPending.incrementAndGet();
+        schedule(id, file, 0, 0);
+    }
+
+
+    /**
+     * Queues the jobs left in the journal, oldest first, as the first task of the workers.
+     */
+    void resume() {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    resumeJobs();
+                } finally {
+                    mResumed.countDown();
+                }
+            }
+        });
+    }
+
+    private void awaitResumed() throws IOException {
+        try {
+            mResumed.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while resuming captures");
+        }
+    }
+
+    private void resumeJobs() {
+        // journal writes cut short by the previous process; none has started in this one
+        int stale = AtomicFileOutputStream.deleteTempFiles(mDir, 0);
+        if (stale > 0) {
+            Timber.d("Deleted %d incomplete jobs", stale);
+        }
+
+        String[] names = mDir.list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(JOB_SUFFIX);
+            }
+        });
+
+        if (names == null || names.length == 0) {
+            return;
+        }
+
+        Arrays.sort(names);
+        Timber.i("Resuming %d captures", names.length);
+
+        for (String name : names) {
+            String[] parts = name.split("\\.");
+            int attempts;
+            try {
+                attempts = Integer.parseInt(parts[1]);
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                Timber.w("Dropping unknown job %s", name);
+                delete(new File(mDir, name));
+                continue;
+            }
+
+            mPending.incrementAndGet();
+            schedule(parts[0], new File(mDir, name), attempts, 0);
+        }
+    }
+
+
+    private void schedule(final String id, final File file, final int attempts, long delayMs) {
+        mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                process(id, file, attempts);
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+
+    private void process(String id, File file, int attempts) {
+        Job job = null;
+        Throwable error;
+
+        if (attempts >= mMaxAttempts) {
+            // resumed, but every attempt so far took the process down with it
+            try {
+                job = Job.read(file);
+            } catch (IOException e) {
+                Timber.w(e, "Capture %s not readable", id);
+            }
+
+            giveUp(id, file, job, attempts,
+                    new IOException("Abandoned after " + attempts + " attempts"));
+            return;
+        }
+
+        // counted before the attempt, which may not come back
+        File next = new File(mDir, id + "." + (attempts + 1) + JOB_SUFFIX);
+        if (file.renameTo(next)) {
+            file = next;
+        }
+        attempts++;
+
+        try {
+            job = Job.read(file);
+
+            CaptureResult result = mProcessor.process(job.mData, job.mIsRaw,
+                    job.mPreviewWidth, job.mPreviewHeight, job.mPreviewFormat,
+                    (job.mCorners != null) ? new Quad(job.mCorners, 1f, 0) : null,
+                    job.mRegion, job.mPath);
+
+            delete(file);
+            complete(id, new Completion(job.mPath, result, null));
+            return;
+        } catch (CaptureQualityException e) {
+            // the same picture gets the same verdict
+            error = e;
+            attempts = mMaxAttempts;
+        } catch (JournalException e) {
+            error = e;
+            attempts = mMaxAttempts;
+        } catch (IOException | RuntimeException | OutOfMemoryError e) {
+            // a pool task would swallow the error, and memory may be back for the next attempt
+            error = e;
+        }
+
+        if (attempts < mMaxAttempts) {
+            long delayMs = mRetryDelayMs << Math.min(attempts - 1, 5);
+            Timber.w(error, "Capture %s failed, retrying in %d ms", id, delayMs);
+            schedule(id, file, attempts, delayMs);
+            return;
+        }
+
+        giveUp(id, file, job, attempts, error);
+    }
+
+    private void giveUp(String id, File file, Job job, int attempts, Throwable error) {
+        Timber.e(error, "Capture %s failed after %d attempts", id, attempts);
+        delete(file);
+        complete(id, new Completion((job != null) ? job.mPath : null, null, error));
+    }
+
+
+    private void complete(String id, Completion completion) {
+        mPending.decrementAndGet();
+
+        Subscriber<? super CaptureResult> subscriber;
+        synchronized (mSubscribers) {
+            subscriber = mSubscribers.remove(id);
+        }
+
+        boolean delivered = false;
+        if (subscriber != null && !subscriber.isUnsubscribed()) {
+            if (completion.isSuccessful()) {
+                subscriber.onNext(completion.getResult());
+                subscriber.onCompleted();
+            } else {
+                subscriber.onError(completion.getError());
+            }
+            delivered = true;
+        }
+
+        // a subject's observers must not be notified concurrently
+        synchronized (mCompletions) {
+            if (mCompletions.hasObservers()) {
+                mCompletions.onNext(completion);
+            } else if (!delivered) {
+                if (mUndelivered.size() == MAX_UNDELIVERED) {
+                    Timber.w("Dropping outcome of %s", mUndelivered.poll().getPath());
+                }
+                mUndelivered.add(completion);
+            }
+        }
+    }
+
+    private static void delete(File file) {
+        if (!file.delete() && file.exists()) {
+            Timber.w("Failed to delete %s", file);
+        }
+    }
+
+
+    /**
+     * A journal file that cannot be read, which no retry would fix.
+     */
+    private static class JournalException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        JournalException(String message) {
+            super(message);
+        }
+    }
+
+
+    /**
+     * Captured data and its processing parameters, as journaled.
+     */
+    private static class Job {
+        final File mFile;
+        final byte[] mData;
+        final boolean mIsRaw;
+        final int mPreviewWidth, mPreviewHeight, mPreviewFormat;
+        final float[] mCorners;
+        final RectF mRegion;
+        final String mPath;
+
+        Job(File file, byte[] data, boolean isRaw, int previewWidth, int previewHeight,
+            int previewFormat, float[] corners, RectF region, String path) {
+            mFile = file;
+            mData = data;
+            mIsRaw = isRaw;
+            mPreviewWidth = previewWidth;
+            mPreviewHeight = previewHeight;
+            mPreviewFormat = previewFormat;
+            mCorners = corners;
+            mRegion = region;
+            mPath = path;
+        }
+
+
+        /**
+         * Writes the job atomically, followed by the CRC-32C of all of it.
+         */
+        void write(int syncMode) throws IOException {
+            AtomicFileOutputStream os = new AtomicFileOutputStream(mFile, syncMode);
+
+            try {
+                DataOutputStream out = new DataOutputStream(os);
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(mPath);
+                out.writeBoolean(mIsRaw);
+                out.writeInt(mPreviewWidth);
+                out.writeInt(mPreviewHeight);
+                out.writeInt(mPreviewFormat);
+
+                out.writeBoolean(mCorners != null);
+                if (mCorners != null) {
+                    for (float corner : mCorners) {
+                        out.writeFloat(corner);
+                    }
+                }
+
+                out.writeBoolean(mRegion != null);
+                if (mRegion != null) {
+                    out.writeFloat(mRegion.left);
+                    out.writeFloat(mRegion.top);
+                    out.writeFloat(mRegion.right);
+                    out.writeFloat(mRegion.bottom);
+                }
+
+                out.writeInt(mData.length);
+                out.write(mData);
+
+                out.writeInt((int) os.getChecksum());
+                os.commit();
+            } finally {
+                os.close();
+            }
+        }
+
+
+        static Job read(File file) throws IOException {
+            long length = file.length();
+            if (length < 12 || length > Integer.MAX_VALUE) {
+                throw new JournalException("Invalid job: " + file);
+            }
+
+            byte[] bytes = new byte[(int) length];
+            DataInputStream in = new DataInputStream(new FileInputStream(file));
+            try {
+                in.readFully(bytes);
+            } finally {
+                in.close();
+            }
+
+            Crc32c crc = new Crc32c();
+            crc.update(bytes, 0, bytes.length - 4);
+            int stored = ((bytes[bytes.length - 4] & 0xff) << 24) |
+                    ((bytes[bytes.length - 3] & 0xff) << 16) |
+                    ((bytes[bytes.length - 2] & 0xff) << 8) | (bytes[bytes.length - 1] & 0xff);
+            if ((int) crc.getValue() != stored) {
+                throw new JournalException("Corrupt job: " + file);
+            }
+
+            DataInputStream job = new DataInputStream(
+                    new ByteArrayInputStream(bytes, 0, bytes.length - 4));
+            if (job.readInt() != MAGIC || job.readInt() != VERSION) {
+                throw new JournalException("Unsupported job: " + file);
+            }
+
+            String path = job.readUTF();
+            boolean isRaw = job.readBoolean();
+            int previewWidth = job.readInt();
+            int previewHeight = job.readInt();
+            int previewFormat = job.readInt();
+
+            float[] corners = null;
+            if (job.readBoolean()) {
+                corners = new float[8];
+                for (int i = 0; i < corners.length; i++) {
+                    corners[i] = job.readFloat();
+                }
+            }
+
+            RectF region = null;
+            if (job.readBoolean()) {
+                region = new RectF(job.readFloat(), job.readFloat(), job.readFloat(),
+                        job.readFloat());
+            }
+
+            byte[] data = new byte[job.readInt()];
+            job.readFully(data);
+
+            return new Job(file, data, isRaw, previewWidth, previewHeight, previewFormat,
+                    corners, region, path);
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2015 Shirish Kamath.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package io.e55.fovea.android.sdk.camera.lib.modules;
+
+import java.util.concurrent.TimeUnit;
+
+import io.e55.fovea.android.sdk.camera.lib.timer.TimerWheel;
+import io.e55.fovea.android.sdk.camera.lib.timer.TimerWheel.Timeout;
+
+
+/**
+ * Rate-limits the toggles of the flash for {@link CameraFlashModule}.
+ *
+ * A toggle is applied at once if the last one was applied at least the interval ago; otherwise
+ * it is applied once the interval is up, together with any toggles requested meanwhile, and not
+ * at all if they cancel out. If applying fails, the requested state reverts to the applied one.
+ *
+ * Instances are not thread-safe; the module uses its one on the thread that the timer runs
+ * tasks on.
+ */
+class FlashToggle {
+
+    /**
+     * Switches the flash.
+     */
+    interface Flash {
+        /**
+         * @return false if the flash could not be switched.
+         */
+        boolean apply(boolean on);
+    }
+
+    private final Flash mFlash;
+    private final TimerWheel mTimer;
+    private final TimerWheel.Clock mClock;
+    private final long mIntervalNanos;
+
+    // state last applied to the flash and the state last requested
+    private boolean mOn, mRequestedOn;
+    private boolean mHasApplied;
+    private long mLastApplied;
+
+    private Timeout mPending;
+
+
+    /**
+     * @param timer      Runs deferred toggles.
+     * @param clock      Clock of the timer
+     * @param intervalMs Minimum time between two toggles applied to the flash.
+     */
+    FlashToggle(Flash flash, TimerWheel timer, TimerWheel.Clock clock, long intervalMs) {
+        mFlash = flash;
+        mTimer = timer;
+        mClock = clock;
+        mIntervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMs);
+    }
+
+
+    /**
+     * Starts over with the flash as it is now; a pending toggle is dropped.
+     */
+    void reset(boolean on) {
+        cancel();
+        mOn = on;
+        mRequestedOn = on;
+        mHasApplied = false;
+    }
+
+
+    /**
+     * @return false if the flash is in the requested state already, or could not be switched.
+     */
+    boolean request(boolean on) {
+        if (on == mRequestedOn) {
+            return false;
+        }
+
+        mRequestedOn = on;
+
+        long wait = mHasApplied ? mLastApplied + mIntervalNanos - mClock.nanoTime() : 0;
+        if (wait <= 0) {
+            return applyRequested();
+        }
+
+        if (mPending == null) {
+            mPending = mTimer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    mPending = null;
+                    applyRequested();
+                }
+            }, wait, TimeUnit.NANOSECONDS);
+        }
+
+        return true;
+    }
+
+
+    /**
+     * Drops a pending toggle; the requested state stays as it is.
+     */
+    void cancel() {
+        if (mPending != null) {
+            mPending.cancel();
+            mPending = null;
+        }
+    }
+
+
+    /**
+     * @return State last applied to the flash.
+     */
+    boolean isOn() {
+        return mOn;
+    }
+
+    /**
+     * @return State last requested, which is applied to the flash once the interval is up.
+     */
+    boolean isRequestedOn() {
+        return mRequestedOn;
+    }
+
+
+    private boolean applyRequested() {
+        if (mRequestedOn == mOn) {
+            // toggled back and forth in the meantime
+            return true;
+        }
+
+        if (!mFlash.apply(mRequestedOn)) {
+            mRequestedOn = mOn;
+            return false;
+        }
+
+        mOn = mRequestedOn;
+        mHasApplied = true;
+        mLastApplied = mClock.nanoTime();
+        return true;
+    }
+}
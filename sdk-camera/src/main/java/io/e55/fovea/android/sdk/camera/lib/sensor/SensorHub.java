@@ -0,0 +1,315 @@
+/*
+ * Copyright (c) 2015 Shirish Kamath.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package io.e55.fovea.android.sdk.camera.lib.sensor;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.SparseArray;
+
+import java.util.concurrent.TimeUnit;
+
+import io.e55.fovea.android.sdk.camera.lib.CameraConfig;
+import rx.Subscription;
+import timber.log.Timber;
+
+
+/**
+ * Singleton that shares the device's sensors between the camera modules.
+ * <p/>
+ * Each sensor is registered with the {@link SensorManager} once, no matter how many modules
+ * subscribe to it, and its events are delivered on a background {@link HandlerThread}
+ * instead of the main looper.
+ * <p/>
+ * Subscribers report whether the values they are seeing are steady. Once every subscriber of
+ * a sensor reports steady values, the sensor is re-registered at a lower sampling rate and,
+ * where the hardware supports it, with its events batched in the sensor FIFO. It returns to
+ * the full rate as soon as any subscriber reports activity.
+ */
+public class SensorHub {
+
+    private static volatile SensorHub instance;
+
+    private final SensorManager mSensorManager;
+
+    private final int mActivePeriodUs, mSteadyPeriodUs, mSteadyLatencyUs;
+
+    private final SparseArray<SensorEntry> mEntries;
+
+    private HandlerThread mThread;
+    private Handler mHandler;
+
+
+    /**
+     * Receives the events of a sensor on the {@link SensorHub}'s background thread.
+     */
+    public interface SensorConsumer {
+
+        /**
+         * @param event Sensor event; the framework reuses this object once the call returns.
+         */
+        void onSensorEvent(SensorEvent event);
+    }
+
+
+    public static SensorHub getInstance(final Context context) {
+        if (instance == null) {
+            synchronized (SensorHub.class) {
+                if (instance == null) {
+                    instance = new SensorHub(context.getApplicationContext(),
+                            CameraConfig.getInstance(context));
+                }
+            }
+        }
+
+        return instance;
+    }
+
+
+    SensorHub(Context context, CameraConfig config) {
+        mSensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
+        mActivePeriodUs = (int) TimeUnit.MILLISECONDS.toMicros(config.sensorIntervalActive());
+        mSteadyPeriodUs = (int) TimeUnit.MILLISECONDS.toMicros(config.sensorIntervalSteady());
+        mSteadyLatencyUs = (int) TimeUnit.MILLISECONDS.toMicros(config.sensorMaxReportLatency());
+        mEntries = new SparseArray<>();
+    }
+
+
+    /**
+     * Subscribes to the events of the default sensor of the given type.
+     *
+     * @param sensorType One of the `Sensor.TYPE_*` constants.
+     * @param consumer   {@link SensorConsumer} to receive the events.
+     * @return The subscription, or null if the sensor is not available.
+     */
+    public synchronized SensorSubscription subscribe(int sensorType, SensorConsumer consumer) {
+        SensorEntry entry = mEntries.get(sensorType);
+
+        if (entry == null) {
+            Sensor sensor = mSensorManager.getDefaultSensor(sensorType);
+            if (sensor == null) {
+                return null;
+            }
+
+            entry = new SensorEntry(sensor);
+            mEntries.put(sensorType, entry);
+        }
+
+        SensorSubscription subscription = new SensorSubscription(entry, consumer);
+        entry.add(subscription);
+
+        if (!entry.mIsRegistered) {
+            if (!register(entry)) {
+                entry.remove(subscription);
+                return null;
+            }
+        } else if (entry.mIsSteady) {
+            // a new subscriber hasn't seen anything yet
+            updateRate(entry);
+        }
+
+        return subscription;
+    }
+
+
+    private synchronized void unsubscribe(SensorSubscription subscription) {
+        SensorEntry entry = subscription.mEntry;
+        entry.remove(subscription);
+
+        if (entry.mSubscriptions.length == 0) {
+            mSensorManager.unregisterListener(entry, entry.mSensor);
+            entry.mIsRegistered = false;
+            mEntries.remove(entry.mSensor.getType());
+            Timber.d("Sensor %d unregistered", entry.mSensor.getType());
+
+            if (mEntries.size() == 0) {
+                stopThread();
+            }
+        } else {
+            updateRate(entry);
+        }
+    }
+
+
+    private synchronized void updateRate(SensorEntry entry) {
+        if (!entry.mIsRegistered) {
+            return;
+        }
+
+        boolean steady = true;
+        for (SensorSubscription s : entry.mSubscriptions) {
+            steady &= s.mIsSteady;
+        }
+
+        if (steady != entry.mIsSteady) {
+            entry.mIsSteady = steady;
+
+            mSensorManager.unregisterListener(entry, entry.mSensor);
+            register(entry);
+        }
+    }
+
+
+    private boolean register(SensorEntry entry) {
+        if (mHandler == null) {
+            mThread = new HandlerThread("SensorHub", Process.THREAD_PRIORITY_BACKGROUND);
+            mThread.start();
+            mHandler = new Handler(mThread.getLooper());
+        }
+
+        int periodUs = entry.mIsSteady ? mSteadyPeriodUs : mActivePeriodUs;
+        boolean isSupported;
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT &&
+                entry.mSensor.getFifoMaxEventCount() > 0) {
+            isSupported = registerBatched(entry, periodUs,
+                    entry.mIsSteady ? mSteadyLatencyUs : 0);
+        } else {
+            isSupported = mSensorManager.registerListener(entry, entry.mSensor, periodUs, mHandler);
+        }
+
+        if (!isSupported) {
+            mSensorManager.unregisterListener(entry, entry.mSensor);
+            Timber.w("Sensor %d not supported", entry.mSensor.getType());
+        }
+
+        entry.mIsRegistered = isSupported;
+        Timber.d("Sensor %d: %d us (steady: %b)", entry.mSensor.getType(), periodUs, entry.mIsSteady);
+        return isSupported;
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private boolean registerBatched(SensorEntry entry, int periodUs, int maxReportLatencyUs) {
+        return mSensorManager.registerListener(entry, entry.mSensor, periodUs,
+                maxReportLatencyUs, mHandler);
+    }
+
+    private void stopThread() {
+        if (mThread != null) {
+            mThread.quit();
+            mThread = null;
+            mHandler = null;
+        }
+    }
+
+
+    /**
+     * Subscription to a sensor of the {@link SensorHub}.
+     */
+    public class SensorSubscription implements Subscription {
+        private final SensorEntry mEntry;
+        private final SensorConsumer mConsumer;
+
+        private volatile boolean mIsSteady, mIsUnsubscribed;
+
+        SensorSubscription(SensorEntry entry, SensorConsumer consumer) {
+            mEntry = entry;
+            mConsumer = consumer;
+        }
+
+        /**
+         * Reports whether this subscriber is seeing steady values and can do with fewer events.
+         * Cheap to call on every event; the sensor is only re-registered when the overall
+         * state of the sensor's subscribers changes.
+         *
+         * @param steady true if the values are steady.
+         */
+        public void setSteady(boolean steady) {
+            if (mIsSteady != steady && !mIsUnsubscribed) {
+                mIsSteady = steady;
+                updateRate(mEntry);
+            }
+        }
+
+        @Override
+        public void unsubscribe() {
+            if (!mIsUnsubscribed) {
+                mIsUnsubscribed = true;
+                SensorHub.this.unsubscribe(this);
+            }
+        }
+
+        @Override
+        public boolean isUnsubscribed() {
+            return mIsUnsubscribed;
+        }
+    }
+
+
+    private static class SensorEntry implements SensorEventListener {
+        private static final SensorSubscription[] NO_SUBSCRIPTIONS = new SensorSubscription[0];
+
+        final Sensor mSensor;
+
+        // replaced on every add/remove so that event delivery never allocates
+        volatile SensorSubscription[] mSubscriptions = NO_SUBSCRIPTIONS;
+
+        boolean mIsRegistered, mIsSteady;
+
+        SensorEntry(Sensor sensor) {
+            mSensor = sensor;
+        }
+
+        void add(SensorSubscription subscription) {
+            SensorSubscription[] subscriptions = mSubscriptions;
+            SensorSubscription[] updated = new SensorSubscription[subscriptions.length + 1];
+            System.arraycopy(subscriptions, 0, updated, 0, subscriptions.length);
+            updated[subscriptions.length] = subscription;
+            mSubscriptions = updated;
+        }
+
+        void remove(SensorSubscription subscription) {
+            SensorSubscription[] subscriptions = mSubscriptions;
+            for (int i = 0; i < subscriptions.length; i++) {
+                if (subscriptions[i] == subscription) {
+                    SensorSubscription[] updated = new SensorSubscription[subscriptions.length - 1];
+                    System.arraycopy(subscriptions, 0, updated, 0, i);
+                    System.arraycopy(subscriptions, i + 1, updated, i, subscriptions.length - i - 1);
+                    mSubscriptions = (updated.length > 0) ? updated : NO_SUBSCRIPTIONS;
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public void onSensorChanged(SensorEvent event) {
+            for (SensorSubscription s : mSubscriptions) {
+                if (!s.mIsUnsubscribed) {
+                    s.mConsumer.onSensorEvent(event);
+                }
+            }
+        }
+
+        @Override
+        public void onAccuracyChanged(Sensor sensor, int accuracy) {
+            // nothing
+        }
+    }
+}
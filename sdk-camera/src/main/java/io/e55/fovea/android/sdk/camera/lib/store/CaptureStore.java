@@ -0,0 +1,808 @@
+/*
+ * Copyright (c) 2015 Shirish Kamath.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package io.e55.fovea.android.sdk.camera.lib.store;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import io.e55.fovea.android.sdk.camera.lib.capture.CaptureResult;
+import io.e55.fovea.android.sdk.camera.lib.io.AtomicFileOutputStream;
+import io.e55.fovea.android.sdk.camera.lib.io.Crc32c;
+import timber.log.Timber;
+
+
+/**
+ * Directory of captured pictures, each stored under the SHA-256 of its contents, so that
+ * pictures survive the next capture and identical ones are stored once.
+ * <p/>
+ * Once the pictures take more than the byte budget, the least recently used ones are evicted.
+ * Entries are tracked in an append-only index of small checksummed records, which is replayed
+ * on first use; a torn record at its end, e.g. after a process death, is dropped. The directory
+ * listing is then reconciled with the index, which adopts pictures that were stored but never
+ * indexed, without a stat for every indexed one. The index is rewritten once it is mostly
+ * obsolete records.
+ * <p/>
+ * A picture's thumbnail, if any, is kept next to it (see {@link #attachThumbnail(File, File)})
+ * and deleted with it; thumbnails do not count towards the budget.
+ * <p/>
+ * All methods may do disk IO and should be called off the main thread.
+ */
+public class CaptureStore {
+
+    private static final String INDEX_NAME = "index";
+    private static final String TEMP_PREFIX = "pending-";
+    private static final String THUMBNAIL_SUFFIX = "_thumb.jpg";
+
+    private static final int MAGIC = 0x46564353; // FVCS
+    private static final int VERSION = 1;
+
+    private static final byte OP_PUT = 1;
+    private static final byte OP_TOUCH = 2;
+    private static final byte OP_REMOVE = 3;
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final int KEY_BYTES = 32;
+    private static final int MAX_RECORD = 1024;
+
+    // rewrite the index once it has this many records and more than twice the entries
+    private static final int COMPACT_MIN_RECORDS = 256;
+
+    private static final Map<String, CaptureStore> sStores = new HashMap<>();
+
+    private final File mDir, mIndexFile;
+    private final long mMaxBytes;
+
+    // in access order: least recently used first
+    private final LinkedHashMap<String, Entry> mEntries;
+
+    private OutputStream mIndex;
+    private int mRecords;
+    private long mBytes;
+    private long mTempCounter;
+    private boolean mIsLoaded;
+
+
+    /**
+     * A picture in the store.
+     */
+    public static class Entry {
+        private final String mKey;
+        private final File mFile;
+        private final String mMimeType;
+        private final int mWidth, mHeight;
+        private final long mSize, mChecksum;
+        private final long mCreated;
+        private long mAccessed;
+
+        Entry(String key, File file, String mimeType, int width, int height, long size,
+              long checksum, long created, long accessed) {
+            mKey = key;
+            mFile = file;
+            mMimeType = mimeType;
+            mWidth = width;
+            mHeight = height;
+            mSize = size;
+            mChecksum = checksum;
+            mCreated = created;
+            mAccessed = accessed;
+        }
+
+        /**
+         * @return Hex SHA-256 of the picture.
+         */
+        public String getKey() {
+            return mKey;
+        }
+
+        public File getFile() {
+            return mFile;
+        }
+
+        /**
+         * @return File of the picture's thumbnail, which may not exist.
+         */
+        public File getThumbnailFile() {
+            return new File(CaptureResult.getThumbnailPath(mFile.getPath()));
+        }
+
+        public String getMimeType() {
+            return mMimeType;
+        }
+
+        /**
+         * @return Width of the picture, or 0 if unknown.
+         */
+        public int getWidth() {
+            return mWidth;
+        }
+
+        /**
+         * @return Height of the picture, or 0 if unknown.
+         */
+        public int getHeight() {
+            return mHeight;
+        }
+
+        public long getSize() {
+            return mSize;
+        }
+
+        /**
+         * @return CRC-32C of the picture, or 0 if unknown.
+         */
+        public long getChecksum() {
+            return mChecksum;
+        }
+
+        /**
+         * @return Time the picture was first stored, in ms since the epoch.
+         */
+        public long getCreated() {
+            return mCreated;
+        }
+
+        /**
+         * @return Time the picture was last stored or looked up, in ms since the epoch.
+         */
+        public synchronized long getAccessed() {
+            return mAccessed;
+        }
+
+        synchronized void setAccessed(long accessed) {
+            mAccessed = accessed;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Entry{%s, %s, %d x %d, %d bytes}", mKey, mMimeType, mWidth,
+                    mHeight, mSize);
+        }
+    }
+
+
+    /**
+     * A store of its own, regardless of other stores of the directory; see `open()`.
+     */
+    CaptureStore(File dir, long maxBytes) {
+        mDir = dir;
+        mIndexFile = new File(dir, INDEX_NAME);
+        mMaxBytes = maxBytes;
+        mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+
+    /**
+     * Returns the store for the directory; there is one per directory within the process.
+     * The directory is only read on first use of the store.
+     *
+     * @param dir      Directory of the store, used by nothing else.
+     * @param maxBytes Byte budget of the pictures; the most recent picture is kept even if it
+     *                 exceeds the budget alone.
+     * @throws IllegalArgumentException if the store of the directory is open with another
+     *                                  budget.
+     */
+    public static CaptureStore open(File dir, long maxBytes) {
+        synchronized (sStores) {
+            String path = dir.getAbsolutePath();
+            CaptureStore store = sStores.get(path);
+
+            if (store == null) {
+                store = new CaptureStore(dir, maxBytes);
+                sStores.put(path, store);
+            } else if (store.getMaxSize() != maxBytes) {
+                throw new IllegalArgumentException("Store " + path + " is open with a budget of "
+                        + store.getMaxSize() + " bytes, not " + maxBytes);
+            }
+
+            return store;
+        }
+    }
+
+
+    /**
+     * @return A new digest for the keys of pictures, to be fed with their bytes.
+     */
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // required of every Java platform
+            throw new IllegalStateException(e);
+        }
+    }
+
+
+    /**
+     * @return A file in the store's directory for a picture to be written to, then added
+     * with `put()`. It is deleted the next time the store is loaded otherwise.
+     */
+    public synchronized File newTempFile() throws IOException {
+        ensureLoaded();
+        return new File(mDir, TEMP_PREFIX + System.currentTimeMillis() + "-" + (mTempCounter++));
+    }
+
+
+    /**
+     * Moves a picture into the store. If the store has the same picture already, the file is
+     * deleted and the existing entry is returned instead.
+     *
+     * @param file     Picture in the store's directory, see `newTempFile()`.
+     * @param digest   SHA-256 of the picture, see `newDigest()`.
+     * @param mimeType Format of the picture, e.g. image/jpeg.
+     * @param width    Width of the picture
+     * @param height   Height of the picture
+     * @param checksum CRC-32C of the picture
+     * @return Entry of the picture.
+     */
+    public synchronized Entry put(File file, byte[] digest, String mimeType, int width,
+                                  int height, long checksum) throws IOException {
+        ensureLoaded();
+
+        if (digest.length != KEY_BYTES) {
+            throw new IllegalArgumentException("Expected a SHA-256 digest");
+        }
+
+        String key = toHex(digest, 0, digest.length);
+        long now = System.currentTimeMillis();
+        Entry entry = mEntries.get(key);
+
+        if (entry != null && entry.getFile().exists()) {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+            entry.setAccessed(now);
+            appendTouch(entry);
+            Timber.d("Deduplicated: %s", entry);
+            return entry;
+        }
+
+        File dest = new File(mDir, key + extensionOf(mimeType));
+        if (!file.renameTo(dest)) {
+            throw new IOException("Failed to rename " + file + " to " + dest);
+        }
+
+        if (entry != null) {
+            // its file was gone
+            mBytes -= entry.getSize();
+        }
+
+        entry = new Entry(key, dest, mimeType, width, height, dest.length(), checksum, now, now);
+        mEntries.put(key, entry);
+        mBytes += entry.getSize();
+        appendPut(entry);
+
+        evict();
+        return entry;
+    }
+
+
+    /**
+     * Moves the thumbnail of a stored picture next to it, see
+     * {@link CaptureResult#getThumbnailPath(String)}, replacing any previous one.
+     *
+     * @param picture   File of the picture's entry
+     * @param thumbnail Thumbnail in the store's directory, see `newTempFile()`.
+     * @return The thumbnail's file, or null if the picture is no longer in the store, in which
+     * case the thumbnail is deleted.
+     */
+    public synchronized File attachThumbnail(File picture, File thumbnail) throws IOException {
+        ensureLoaded();
+
+        String name = picture.getName();
+        int dot = name.indexOf('.');
+        Entry entry = (dot > 0) ? mEntries.get(name.substring(0, dot)) : null;
+
+        if (entry == null || !entry.getFile().equals(picture)) {
+            //noinspection ResultOfMethodCallIgnored
+            thumbnail.delete();
+            return null;
+        }
+
+        File dest = entry.getThumbnailFile();
+        if (!thumbnail.renameTo(dest)) {
+            throw new IOException("Failed to rename " + thumbnail + " to " + dest);
+        }
+
+        return dest;
+    }
+
+
+    /**
+     * Looks up a picture and marks it as recently used.
+     *
+     * @param key Hex SHA-256 of the picture
+     * @return Entry of the picture, or null if it is not in the store.
+     */
+    public synchronized Entry get(String key) throws IOException {
+        ensureLoaded();
+
+        Entry entry = mEntries.get(key);
+        if (entry == null) {
+            return null;
+        }
+
+        if (!entry.getFile().exists()) {
+            removeEntry(entry);
+            return null;
+        }
+
+        entry.setAccessed(System.currentTimeMillis());
+        appendTouch(entry);
+        return entry;
+    }
+
+
+    /**
+     * @return Entries of all pictures, least recently used first.
+     */
+    public synchronized List<Entry> getEntries() throws IOException {
+        ensureLoaded();
+        return new ArrayList<>(mEntries.values());
+    }
+
+
+    /**
+     * Deletes a picture from the store.
+     *
+     * @return Whether the store had the picture.
+     */
+    public synchronized boolean remove(String key) throws IOException {
+        ensureLoaded();
+
+        Entry entry = mEntries.get(key);
+        if (entry == null) {
+            return false;
+        }
+
+        removeEntry(entry);
+        return true;
+    }
+
+
+    /**
+     * @return Total size of the pictures in bytes.
+     */
+    public synchronized long getSize() throws IOException {
+        ensureLoaded();
+        return mBytes;
+    }
+
+    public long getMaxSize() {
+        return mMaxBytes;
+    }
+
+
+    private void evict() throws IOException {
+        Iterator<Entry> it = mEntries.values().iterator();
+
+        // never the most recent entry
+        while (mBytes > mMaxBytes && mEntries.size() > 1) {
+            Entry eldest = it.next();
+            it.remove();
+            mBytes -= eldest.getSize();
+
+            deleteFiles(eldest);
+            appendRemove(eldest);
+            Timber.d("Evicted: %s", eldest);
+        }
+    }
+
+    private void removeEntry(Entry entry) throws IOException {
+        mEntries.remove(entry.getKey());
+        mBytes -= entry.getSize();
+
+        deleteFiles(entry);
+        appendRemove(entry);
+    }
+
+    private static void deleteFiles(Entry entry) {
+        //noinspection ResultOfMethodCallIgnored
+        entry.getFile().delete();
+        //noinspection ResultOfMethodCallIgnored
+        entry.getThumbnailFile().delete();
+    }
+
+
+    private void ensureLoaded() throws IOException {
+        if (mIsLoaded) {
+            return;
+        }
+
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            throw new IOException("Failed to create " + mDir);
+        }
+
+        long start = System.currentTimeMillis();
+        long validLength = readIndex();
+        boolean changed = reconcile();
+
+        if (validLength < 0 || changed || needsCompaction()) {
+            writeIndex();
+        } else {
+            // drops a torn record at the end, if any, before appending
+            RandomAccessFile raf = new RandomAccessFile(mIndexFile, "rw");
+            try {
+                raf.setLength(validLength);
+            } finally {
+                raf.close();
+            }
+
+            mIndex = new FileOutputStream(mIndexFile, true);
+        }
+
+        mIsLoaded = true;
+        Timber.d("Loaded %d entries of %d bytes in %d ms", mEntries.size(), mBytes,
+                System.currentTimeMillis() - start);
+
+        evict();
+    }
+
+
+    /**
+     * Replays the index into the entries.
+     *
+     * @return Length of the valid part of the index, or -1 if it has to be rewritten.
+     */
+    private long readIndex() throws IOException {
+        if (!mIndexFile.exists()) {
+            return -1;
+        }
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(mIndexFile), 64 * 1024));
+        byte[] record = new byte[MAX_RECORD];
+        Crc32c crc = new Crc32c();
+        long validLength = -1;
+
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                Timber.w("Unknown index format; rebuilding");
+                return -1;
+            }
+            validLength = 8;
+
+            while (true) {
+                int length = in.readUnsignedShort();
+                if (length < 1 + KEY_BYTES || length > MAX_RECORD) {
+                    break;
+                }
+
+                in.readFully(record, 0, length);
+                crc.reset();
+                crc.update(record, 0, length);
+
+                if ((int) crc.getValue() != in.readInt() || !replay(record, length)) {
+                    break;
+                }
+
+                validLength += 2 + length + 4;
+                mRecords++;
+            }
+        } catch (EOFException e) {
+            // the index ends here, possibly with a torn record
+        } finally {
+            in.close();
+        }
+
+        return validLength;
+    }
+
+
+    /**
+     * @return false if the record is not understood.
+     */
+    private boolean replay(byte[] record, int length) {
+        String key = toHex(record, 1, KEY_BYTES);
+        int p = 1 + KEY_BYTES;
+
+        switch (record[0]) {
+            case OP_PUT: {
+                if (length < p + 41) {
+                    return false;
+                }
+
+                long accessed = readLong(record, p);
+                long created = readLong(record, p + 8);
+                long size = readLong(record, p + 16);
+                long checksum = readLong(record, p + 24);
+                int width = readInt(record, p + 32);
+                int height = readInt(record, p + 36);
+                int mimeLength = record[p + 40] & 0xff;
+                if (length < p + 41 + mimeLength) {
+                    return false;
+                }
+
+                String mimeType = new String(record, p + 41, mimeLength, ASCII);
+                Entry entry = new Entry(key, new File(mDir, key + extensionOf(mimeType)),
+                        mimeType, width, height, size, checksum, created, accessed);
+
+                Entry old = mEntries.put(key, entry);
+                mBytes += size - ((old != null) ? old.getSize() : 0);
+                return true;
+            }
+
+            case OP_TOUCH: {
+                if (length < p + 8) {
+                    return false;
+                }
+
+                // moves it to the end of the access order
+                Entry entry = mEntries.get(key);
+                if (entry != null) {
+                    entry.setAccessed(readLong(record, p));
+                }
+                return true;
+            }
+
+            case OP_REMOVE: {
+                Entry entry = mEntries.remove(key);
+                if (entry != null) {
+                    mBytes -= entry.getSize();
+                }
+                return true;
+            }
+
+            default:
+                return false;
+        }
+    }
+
+
+    /**
+     * Matches the entries with the pictures in the directory: pictures without an entry are
+     * adopted, entries without a picture dropped, and leftover temporary files and thumbnails
+     * without a picture deleted.
+     *
+     * @return Whether any entries changed.
+     */
+    private boolean reconcile() {
+        String[] names = mDir.list();
+        if (names == null) {
+            names = new String[0];
+        }
+
+        Set<String> present = new HashSet<>();
+        List<String> thumbnails = new ArrayList<>();
+        boolean changed = false;
+
+        for (String name : names) {
+            if (name.startsWith(TEMP_PREFIX) || name.endsWith(".tmp")) {
+                //noinspection ResultOfMethodCallIgnored
+                new File(mDir, name).delete();
+                continue;
+            }
+
+            if (name.length() == 2 * KEY_BYTES + THUMBNAIL_SUFFIX.length() &&
+                    name.endsWith(THUMBNAIL_SUFFIX) && isHex(name, 2 * KEY_BYTES)) {
+                thumbnails.add(name);
+                continue;
+            }
+
+            int dot = name.indexOf('.');
+            if (dot != 2 * KEY_BYTES || !isHex(name, dot)) {
+                continue;
+            }
+
+            String key = name.substring(0, dot);
+            present.add(key);
+
+            if (!mEntries.containsKey(key)) {
+                File file = new File(mDir, name);
+                String mimeType = name.endsWith(".png") ? CaptureResult.MIME_PNG : CaptureResult.MIME_JPEG;
+                Entry entry = new Entry(key, file, mimeType, 0, 0, file.length(), 0,
+                        file.lastModified(), file.lastModified());
+
+                mEntries.put(key, entry);
+                mBytes += entry.getSize();
+                changed = true;
+                Timber.d("Adopted: %s", entry);
+            }
+        }
+
+        Iterator<Entry> it = mEntries.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (!present.contains(entry.getKey())) {
+                it.remove();
+                mBytes -= entry.getSize();
+                changed = true;
+            }
+        }
+
+        for (String name : thumbnails) {
+            if (!present.contains(name.substring(0, 2 * KEY_BYTES))) {
+                //noinspection ResultOfMethodCallIgnored
+                new File(mDir, name).delete();
+            }
+        }
+
+        return changed;
+    }
+
+
+    /**
+     * Replaces the index with one record per entry.
+     */
+    private void writeIndex() throws IOException {
+        if (mIndex != null) {
+            mIndex.close();
+            mIndex = null;
+        }
+
+        AtomicFileOutputStream os = new AtomicFileOutputStream(mIndexFile,
+                AtomicFileOutputStream.SYNC_DATA);
+
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+
+            for (Entry entry : mEntries.values()) {
+                out.write(newRecord(OP_PUT, entry));
+            }
+
+            out.flush();
+            os.commit();
+        } finally {
+            os.close();
+        }
+
+        mRecords = mEntries.size();
+        mIndex = new FileOutputStream(mIndexFile, true);
+    }
+
+    private boolean needsCompaction() {
+        return mRecords > COMPACT_MIN_RECORDS && mRecords > 2 * mEntries.size();
+    }
+
+
+    private void appendPut(Entry entry) throws IOException {
+        append(newRecord(OP_PUT, entry));
+    }
+
+    private void appendTouch(Entry entry) throws IOException {
+        append(newRecord(OP_TOUCH, entry));
+    }
+
+    private void appendRemove(Entry entry) throws IOException {
+        append(newRecord(OP_REMOVE, entry));
+    }
+
+    private void append(byte[] record) throws IOException {
+        // one write per record, so that a process death tears at most the last one
+        mIndex.write(record);
+        mRecords++;
+
+        if (needsCompaction()) {
+            writeIndex();
+        }
+    }
+
+
+    /**
+     * @return The record, framed by its length and CRC-32C.
+     */
+    private static byte[] newRecord(byte op, Entry entry) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        out.writeShort(0);
+        out.writeByte(op);
+        out.write(fromHex(entry.getKey()));
+
+        if (op == OP_PUT) {
+            byte[] mimeType = entry.getMimeType().getBytes(ASCII);
+            out.writeLong(entry.getAccessed());
+            out.writeLong(entry.getCreated());
+            out.writeLong(entry.getSize());
+            out.writeLong(entry.getChecksum());
+            out.writeInt(entry.getWidth());
+            out.writeInt(entry.getHeight());
+            out.writeByte(mimeType.length);
+            out.write(mimeType);
+        } else if (op == OP_TOUCH) {
+            out.writeLong(entry.getAccessed());
+        }
+
+        out.writeInt(0);
+        byte[] record = bytes.toByteArray();
+
+        int length = record.length - 6;
+        record[0] = (byte) (length >> 8);
+        record[1] = (byte) length;
+
+        Crc32c crc = new Crc32c();
+        crc.update(record, 2, length);
+        int value = (int) crc.getValue();
+        for (int i = 0; i < 4; i++) {
+            record[record.length - 4 + i] = (byte) (value >> (24 - 8 * i));
+        }
+
+        return record;
+    }
+
+
+    private static String extensionOf(String mimeType) {
+        return CaptureResult.MIME_PNG.equals(mimeType) ? ".png" : ".jpg";
+    }
+
+    private static String toHex(byte[] bytes, int offset, int length) {
+        char[] chars = new char[length * 2];
+        for (int i = 0; i < length; i++) {
+            int b = bytes[offset + i];
+            chars[2 * i] = HEX[(b >> 4) & 0xf];
+            chars[2 * i + 1] = HEX[b & 0xf];
+        }
+        return new String(chars);
+    }
+
+    private static byte[] fromHex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+
+    private static boolean isHex(String s, int length) {
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (!(c >= '0' && c <= '9' || c >= 'a' && c <= 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long readLong(byte[] b, int p) {
+        return ((long) readInt(b, p) << 32) | (readInt(b, p + 4) & 0xffffffffL);
+    }
+
+    private static int readInt(byte[] b, int p) {
+        return (b[p] & 0xff) << 24 | (b[p + 1] & 0xff) << 16 | (b[p + 2] & 0xff) << 8 |
+                (b[p + 3] & 0xff);
+    }
+}
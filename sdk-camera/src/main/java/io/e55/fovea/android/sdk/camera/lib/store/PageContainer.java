@@ -0,0 +1,584 @@
+/*
+ * Copyright (c) 2015 Shirish Kamath.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package io.e55.fovea.android.sdk.camera.lib.store;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import io.e55.fovea.android.sdk.camera.lib.capture.CaptureResult;
+import io.e55.fovea.android.sdk.camera.lib.io.Crc32c;
+
+
+/**
+ * Single-file container for the pages of a scanning session, which saves a file, an fsync and
+ * an upload request per page.
+ * <p/>
+ * The file starts with a header, followed by one record per page: a small header with the
+ * page's metadata and the CRC-32C of its bytes, then the bytes, e.g. of a JPEG. A {@link Writer}
+ * only ever appends pages; once closed, it adds a trailing index of the pages' offsets, which a
+ * {@link Reader} uses to find every page without scanning the file. A container that was never
+ * closed, e.g. after a process death, is still read by scanning its records up to the first
+ * incomplete one, and can be appended to again.
+ * <p/>
+ * Readers memory-map the file, so page bytes are read straight from the page cache, and can
+ * stream pages to an {@link OutputStream}, e.g. for an upload. Containers are limited to 2 GB.
+ */
+public final class PageContainer {
+
+    private static final int MAGIC = 0x46565043; // FVPC
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 8;
+
+    private static final int PAGE_MAGIC = 0x46565047; // FVPG
+    private static final int INDEX_MAGIC = 0x46564958; // FVIX
+    private static final int END_MAGIC = 0x4656454e; // FVEN
+
+    // page magic, metadata length, data length, data CRC, header CRC
+    private static final int PAGE_FIXED_BYTES = 4 + 2 + 4 + 4 + 4;
+    // index offset, index CRC, end magic
+    private static final int TRAILER_BYTES = 8 + 4 + 4;
+
+    private static final int EXPORT_CHUNK = 64 * 1024;
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+
+    private PageContainer() {
+    }
+
+
+    /**
+     * A page of a container.
+     */
+    public static class Page {
+        private final int mIndex;
+        private final long mOffset;
+        private final int mDataOffset, mLength;
+        private final long mChecksum;
+        private final long mTimestamp;
+        private final int mWidth, mHeight;
+        private final String mMimeType;
+
+        Page(int index, long offset, int dataOffset, int length, long checksum, long timestamp,
+             int width, int height, String mimeType) {
+            mIndex = index;
+            mOffset = offset;
+            mDataOffset = dataOffset;
+            mLength = length;
+            mChecksum = checksum;
+            mTimestamp = timestamp;
+            mWidth = width;
+            mHeight = height;
+            mMimeType = mimeType;
+        }
+
+        /**
+         * @return Position of the page in the container, from 0.
+         */
+        public int getIndex() {
+            return mIndex;
+        }
+
+        /**
+         * @return Size of the page's bytes.
+         */
+        public int getLength() {
+            return mLength;
+        }
+
+        /**
+         * @return CRC-32C of the page's bytes, as in {@link CaptureResult#getChecksum()}.
+         */
+        public long getChecksum() {
+            return mChecksum;
+        }
+
+        /**
+         * @return Time the page was added, in ms since the epoch.
+         */
+        public long getTimestamp() {
+            return mTimestamp;
+        }
+
+        public int getWidth() {
+            return mWidth;
+        }
+
+        public int getHeight() {
+            return mHeight;
+        }
+
+        public String getMimeType() {
+            return mMimeType;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Page{%d, %s, %d x %d, %d bytes}", mIndex, mMimeType, mWidth,
+                    mHeight, mLength);
+        }
+    }
+
+
+    /**
+     * Appends pages to a container.
+     */
+    public static class Writer implements Closeable {
+        private final RandomAccessFile mFile;
+        private final FileChannel mChannel;
+        private final List<Long> mOffsets;
+        private final Crc32c mCrc;
+        private long mPosition;
+        private boolean mIsClosed;
+
+
+        /**
+         * Creates the container, or opens it to append more pages. The index of an existing
+         * container is dropped until the writer is closed.
+         *
+         * @throws IOException if the file is not a container.
+         */
+        public Writer(File file) throws IOException {
+            mFile = new RandomAccessFile(file, "rw");
+            mChannel = mFile.getChannel();
+            mOffsets = new ArrayList<>();
+            mCrc = new Crc32c();
+
+            try {
+                if (mFile.length() == 0) {
+                    ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+                    header.putInt(MAGIC).putInt(VERSION).flip();
+                    writeFully(header, 0);
+                    mPosition = HEADER_BYTES;
+                } else {
+                    MappedByteBuffer map = mChannel.map(FileChannel.MapMode.READ_ONLY, 0,
+                            mFile.length());
+                    List<Page> pages = readPages(map);
+                    for (Page page : pages) {
+                        mOffsets.add(page.mOffset);
+                    }
+
+                    mPosition = pages.isEmpty() ? HEADER_BYTES :
+                            pages.get(pages.size() - 1).mDataOffset +
+                                    (long) pages.get(pages.size() - 1).mLength;
+                }
+
+                // drops the index, or an incomplete record, until the next close
+                mChannel.truncate(mPosition);
+            } catch (IOException | RuntimeException e) {
+                mFile.close();
+                throw e;
+            }
+        }
+
+
+        /**
+         * Appends a page.
+         *
+         * @param data     Bytes of the page
+         * @param mimeType Format of the page, e.g. {@link CaptureResult#MIME_JPEG}.
+         * @param width    Width of the page, in pixels
+         * @param height   Height of the page, in pixels
+         * @return Index of the page in the container.
+         */
+        public int append(byte[] data, String mimeType, int width, int height)
+                throws IOException {
+            ensureOpen();
+
+            byte[] mime = mimeType.getBytes(ASCII);
+            int metaLength = 8 + 4 + 4 + 1 + mime.length;
+            ByteBuffer header = ByteBuffer.allocate(PAGE_FIXED_BYTES + metaLength);
+
+            mCrc.reset();
+            mCrc.update(data, 0, data.length);
+
+            header.putInt(PAGE_MAGIC);
+            header.putShort((short) metaLength);
+            header.putLong(System.currentTimeMillis());
+            header.putInt(width);
+            header.putInt(height);
+            header.put((byte) mime.length);
+            header.put(mime);
+            header.putInt(data.length);
+            header.putInt((int) mCrc.getValue());
+
+            mCrc.reset();
+            mCrc.update(header.array(), 0, header.position());
+            header.putInt((int) mCrc.getValue());
+            header.flip();
+
+            if (mPosition + header.remaining() + data.length > Integer.MAX_VALUE) {
+                throw new IOException("Container full");
+            }
+
+            long offset = mPosition;
+            writeFully(header, mPosition);
+            writeFully(ByteBuffer.wrap(data), mPosition);
+
+            mOffsets.add(offset);
+            return mOffsets.size() - 1;
+        }
+
+
+        /**
+         * Appends a stored picture as a page.
+         */
+        public int append(CaptureResult result) throws IOException {
+            File file = new File(result.getPath());
+            long length = file.length();
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("Page too large: " + file);
+            }
+
+            byte[] data = new byte[(int) length];
+            FileInputStream in = new FileInputStream(file);
+            try {
+                int read = 0;
+                while (read < data.length) {
+                    int n = in.read(data, read, data.length - read);
+                    if (n < 0) {
+                        throw new EOFException("Truncated: " + file);
+                    }
+                    read += n;
+                }
+            } finally {
+                in.close();
+            }
+
+            return append(data, result.getMimeType(), result.getWidth(), result.getHeight());
+        }
+
+
+        /**
+         * @return Number of pages in the container.
+         */
+        public int getPageCount() {
+            return mOffsets.size();
+        }
+
+
+        /**
+         * Syncs the pages appended so far to the disk; otherwise only closing the writer does.
+         */
+        public void sync() throws IOException {
+            ensureOpen();
+            mChannel.force(false);
+        }
+
+
+        /**
+         * Writes the index, syncs and closes the container.
+         */
+        @Override
+        public void close() throws IOException {
+            if (mIsClosed) {
+                return;
+            }
+
+            try {
+                ByteBuffer index = ByteBuffer.allocate(8 + 8 * mOffsets.size() + TRAILER_BYTES);
+                index.putInt(INDEX_MAGIC);
+                index.putInt(mOffsets.size());
+                for (long offset : mOffsets) {
+                    index.putLong(offset);
+                }
+
+                mCrc.reset();
+                mCrc.update(index.array(), 0, index.position());
+
+                index.putLong(mPosition);
+                index.putInt((int) mCrc.getValue());
+                index.putInt(END_MAGIC);
+                index.flip();
+
+                writeFully(index, mPosition);
+                mChannel.force(false);
+            } finally {
+                mIsClosed = true;
+                mFile.close();
+            }
+        }
+
+
+        private void writeFully(ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                position += mChannel.write(buffer, position);
+            }
+            mPosition = position;
+        }
+
+        private void ensureOpen() throws IOException {
+            if (mIsClosed) {
+                throw new IOException("Container closed");
+            }
+        }
+    }
+
+
+    /**
+     * Reads the pages of a container through a memory map.
+     */
+    public static class Reader implements Closeable {
+        private final RandomAccessFile mFile;
+        private final MappedByteBuffer mMap;
+        private final List<Page> mPages;
+
+
+        /**
+         * @throws IOException if the file is not a container.
+         */
+        public Reader(File file) throws IOException {
+            mFile = new RandomAccessFile(file, "r");
+
+            try {
+                mMap = mFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, mFile.length());
+                mPages = Collections.unmodifiableList(readPages(mMap));
+            } catch (IOException | RuntimeException e) {
+                mFile.close();
+                throw e;
+            }
+        }
+
+        public int getPageCount() {
+            return mPages.size();
+        }
+
+        public Page getPage(int index) {
+            return mPages.get(index);
+        }
+
+        public List<Page> getPages() {
+            return mPages;
+        }
+
+
+        /**
+         * Bytes of a page, without a copy. The buffer may not be used once the reader is closed.
+         *
+         * @return A read-only buffer of the page's bytes.
+         */
+        public ByteBuffer getData(int index) {
+            Page page = mPages.get(index);
+            ByteBuffer data = mMap.duplicate();
+            data.position(page.mDataOffset);
+            data.limit(page.mDataOffset + page.mLength);
+            return data.slice().asReadOnlyBuffer();
+        }
+
+
+        /**
+         * Streams the bytes of a page.
+         *
+         * @param index Page to write
+         * @param os    Destination, e.g. of an upload; not closed.
+         */
+        public void writePage(int index, OutputStream os) throws IOException {
+            ByteBuffer data = getData(index);
+            byte[] chunk = new byte[Math.min(EXPORT_CHUNK, data.remaining())];
+
+            while (data.hasRemaining()) {
+                int n = Math.min(chunk.length, data.remaining());
+                data.get(chunk, 0, n);
+                os.write(chunk, 0, n);
+            }
+        }
+
+
+        /**
+         * Checks the bytes of a page against their CRC-32C.
+         */
+        public boolean verify(int index) {
+            Page page = mPages.get(index);
+            Crc32c crc = new Crc32c();
+            ByteBuffer data = getData(index);
+            byte[] chunk = new byte[Math.min(EXPORT_CHUNK, data.remaining())];
+
+            while (data.hasRemaining()) {
+                int n = Math.min(chunk.length, data.remaining());
+                data.get(chunk, 0, n);
+                crc.update(chunk, 0, n);
+            }
+
+            return crc.getValue() == page.mChecksum;
+        }
+
+
+        /**
+         * Closes the file; the memory map is released once no longer referenced.
+         */
+        @Override
+        public void close() throws IOException {
+            mFile.close();
+        }
+    }
+
+
+    /**
+     * Pages of the mapped container: from its index if it was closed, by a scan otherwise.
+     */
+    static List<Page> readPages(ByteBuffer map) throws IOException {
+        if (map.limit() < HEADER_BYTES || map.getInt(0) != MAGIC) {
+            throw new IOException("Not a page container");
+        }
+        if (map.getInt(4) != VERSION) {
+            throw new IOException("Unsupported container version: " + map.getInt(4));
+        }
+
+        List<Page> pages = readIndexedPages(map);
+        if (pages != null) {
+            return pages;
+        }
+
+        pages = new ArrayList<>();
+        int offset = HEADER_BYTES;
+        Page page;
+
+        while ((page = readPage(map, offset, pages.size(), true)) != null) {
+            pages.add(page);
+            offset = page.mDataOffset + page.mLength;
+        }
+
+        return pages;
+    }
+
+
+    private static List<Page> readIndexedPages(ByteBuffer map) {
+        int end = map.limit();
+        if (end < HEADER_BYTES + 8 + TRAILER_BYTES || map.getInt(end - 4) != END_MAGIC) {
+            return null;
+        }
+
+        long indexOffset = map.getLong(end - TRAILER_BYTES);
+        if (indexOffset < HEADER_BYTES || indexOffset > end - TRAILER_BYTES - 8 ||
+                map.getInt((int) indexOffset) != INDEX_MAGIC) {
+            return null;
+        }
+
+        int start = (int) indexOffset;
+        int count = map.getInt(start + 4);
+        if (count < 0 || start + 8 + 8L * count != end - TRAILER_BYTES) {
+            return null;
+        }
+
+        Crc32c crc = new Crc32c();
+        update(crc, map, start, 8 + 8 * count);
+        if ((int) crc.getValue() != map.getInt(end - 8)) {
+            return null;
+        }
+
+        List<Page> pages = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            long offset = map.getLong(start + 8 + 8 * i);
+            Page page = (offset < start) ? readPage(map, (int) offset, i, false) : null;
+            if (page == null) {
+                return null;
+            }
+            pages.add(page);
+        }
+
+        return pages;
+    }
+
+
+    /**
+     * @param verifyData Whether to check the page's bytes too, as when scanning after a crash.
+     * @return The page at the offset, or null if there is no valid page.
+     */
+    private static Page readPage(ByteBuffer map, int offset, int index, boolean verifyData) {
+        int limit = map.limit();
+        if (limit - offset < PAGE_FIXED_BYTES || map.getInt(offset) != PAGE_MAGIC) {
+            return null;
+        }
+
+        int metaLength = map.getShort(offset + 4) & 0xffff;
+        int headerLength = PAGE_FIXED_BYTES + metaLength;
+        if (metaLength < 17 || limit - offset < headerLength) {
+            return null;
+        }
+
+        Crc32c crc = new Crc32c();
+        update(crc, map, offset, headerLength - 4);
+        if ((int) crc.getValue() != map.getInt(offset + headerLength - 4)) {
+            return null;
+        }
+
+        int p = offset + 6;
+        long timestamp = map.getLong(p);
+        int width = map.getInt(p + 8);
+        int height = map.getInt(p + 12);
+        int mimeLength = map.get(p + 16) & 0xff;
+        if (17 + mimeLength > metaLength) {
+            return null;
+        }
+
+        byte[] mime = new byte[mimeLength];
+        for (int i = 0; i < mimeLength; i++) {
+            mime[i] = map.get(p + 17 + i);
+        }
+
+        int length = map.getInt(offset + 6 + metaLength);
+        long checksum = map.getInt(offset + 10 + metaLength) & 0xffffffffL;
+        int dataOffset = offset + headerLength;
+        if (length < 0 || limit - dataOffset < length) {
+            return null;
+        }
+
+        if (verifyData) {
+            crc.reset();
+            update(crc, map, dataOffset, length);
+            if (crc.getValue() != checksum) {
+                return null;
+            }
+        }
+
+        return new Page(index, offset, dataOffset, length, checksum, timestamp, width, height,
+                new String(mime, ASCII));
+    }
+
+
+    private static void update(Crc32c crc, ByteBuffer map, int offset, int length) {
+        byte[] chunk = new byte[Math.min(EXPORT_CHUNK, length)];
+        ByteBuffer data = map.duplicate();
+        data.position(offset);
+
+        while (length > 0) {
+            int n = Math.min(chunk.length, length);
+            data.get(chunk, 0, n);
+            crc.update(chunk, 0, n);
+            length -= n;
+        }
+    }
+}
@@ -0,0 +1,368 @@
+/*
+ * Copyright (c) 2015 Shirish Kamath.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package io.e55.fovea.android.sdk.camera.lib.timer;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import timber.log.Timber;
+
+
+/**
+ * Hashed timing wheel that runs delayed and periodic tasks for the camera modules.
+ * <p/>
+ * Time advances in fixed ticks. Each timeout is hashed into the bucket of the tick it expires
+ * on, so scheduling and cancelling are O(1) and a single thread serves every timer of the SDK.
+ * Timeouts are accurate to within one tick. Expired tasks are handed to the {@link Executor}
+ * supplied at construction, e.g. one that posts to the main thread.
+ * <p/>
+ * While no timeouts are pending, the worker thread parks rather than ticking, and the ticks
+ * that went by are skipped at once when the next timeout is scheduled.
+ * <p/>
+ * Time is read from a pluggable {@link Clock}. Without `start()`, no thread is created and
+ * the wheel only moves when `advance()` is called, which makes timing fully deterministic.
+ */
+public class TimerWheel {
+
+    /**
+     * Source of monotonic time for a {@link TimerWheel}.
+     */
+    public interface Clock {
+        long nanoTime();
+    }
+
+    public static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+    };
+
+    /**
+     * Handle to a scheduled task.
+     */
+    public interface Timeout {
+
+        /**
+         * Cancels the task. A periodic task is not run again.
+         */
+        void cancel();
+
+        boolean isCancelled();
+    }
+
+
+    private final Clock mClock;
+    private final Executor mExecutor;
+    private final long mTickNanos;
+    private final int mMask;
+
+    private final Bucket[] mWheel;
+    private final Queue<TimeoutEntry> mPending;
+
+    private final long mStartTime;
+
+    // number of ticks processed so far; only touched by the thread that advances the wheel
+    private long mTick;
+
+    // number of entries in the buckets; likewise
+    private int mCount;
+
+    private volatile Thread mThread;
+
+
+    /**
+     * @param clock        Time source
+     * @param tickDuration Duration of a tick, i.e. the resolution of the timer.
+     * @param unit         Unit of `tickDuration`
+     * @param wheelSize    Number of buckets; rounded up to a power of two.
+     * @param executor     Runs the expired tasks.
+     */
+    public TimerWheel(Clock clock, long tickDuration, TimeUnit unit, int wheelSize,
+                      Executor executor) {
+        if (tickDuration <= 0 || wheelSize <= 0) {
+            throw new IllegalArgumentException("Invalid tick duration or wheel size");
+        }
+
+        int size = 1;
+        while (size < wheelSize) {
+            size <<= 1;
+        }
+
+        mClock = clock;
+        mExecutor = executor;
+        mTickNanos = unit.toNanos(tickDuration);
+        mMask = size - 1;
+
+        mWheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            mWheel[i] = new Bucket();
+        }
+
+        mPending = new ConcurrentLinkedQueue<>();
+        mStartTime = clock.nanoTime();
+    }
+
+
+    /**
+     * Runs `task` once after `delay`.
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        return add(task, unit.toNanos(Math.max(0, delay)), 0);
+    }
+
+
+    /**
+     * Runs `task` after `initialDelay` and then every `period`, until cancelled.
+     */
+    public Timeout schedulePeriodically(Runnable task, long initialDelay, long period,
+                                        TimeUnit unit) {
+        if (period <= 0) {
+            throw new IllegalArgumentException("Invalid period: " + period);
+        }
+
+        return add(task, unit.toNanos(Math.max(0, initialDelay)), unit.toNanos(period));
+    }
+
+
+    private Timeout add(Runnable task, long delayNanos, long periodNanos) {
+        TimeoutEntry entry = new TimeoutEntry(task,
+                mClock.nanoTime() - mStartTime + delayNanos, periodNanos);
+        mPending.add(entry);
+
+        Thread thread = mThread;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+
+        return entry;
+    }
+
+
+    /**
+     * Starts a daemon thread that advances the wheel in real time.
+     *
+     * @return this instance
+     */
+    public synchronized TimerWheel start() {
+        if (mThread == null) {
+            mThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    runWorker();
+                }
+            }, "TimerWheel");
+            mThread.setDaemon(true);
+            mThread.start();
+        }
+
+        return this;
+    }
+
+
+    public synchronized void stop() {
+        if (mThread != null) {
+            mThread.interrupt();
+            mThread = null;
+        }
+    }
+
+
+    private void runWorker() {
+        while (!Thread.currentThread().isInterrupted()) {
+            if (mCount == 0 && mPending.isEmpty()) {
+                // woken by add() or stop()
+                LockSupport.park(this);
+                continue;
+            }
+
+            long sleepNanos = (mTick + 1) * mTickNanos - (mClock.nanoTime() - mStartTime);
+
+            if (sleepNanos > 0) {
+                try {
+                    Thread.sleep(TimeUnit.NANOSECONDS.toMillis(sleepNanos + 999999));
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+
+            advance();
+        }
+    }
+
+
+    /**
+     * Processes every tick that has elapsed according to the {@link Clock},
+     * handing expired tasks to the executor.
+     * Called by the worker thread; call it directly only if the wheel was not started.
+     */
+    public void advance() {
+        long elapsed = mClock.nanoTime() - mStartTime;
+
+        if (mCount == 0) {
+            // nothing can expire in the ticks that went by while idle; the last one is
+            // processed below, placing any pending entries
+            mTick = Math.max(mTick, elapsed / mTickNanos - 1);
+        }
+
+        while ((mTick + 1) * mTickNanos <= elapsed) {
+            transferPending();
+
+            Bucket bucket = mWheel[(int) (mTick & mMask)];
+            mTick++;
+            expire(bucket, mTick * mTickNanos);
+        }
+    }
+
+
+    private void transferPending() {
+        TimeoutEntry entry;
+        while ((entry = mPending.poll()) != null) {
+            if (!entry.mIsCancelled) {
+                place(entry);
+            }
+        }
+    }
+
+    private void place(TimeoutEntry entry) {
+        // the tick at the end of which the entry expires
+        long expiryTick = Math.max(mTick, (entry.mDeadline + mTickNanos - 1) / mTickNanos - 1);
+        entry.mRemainingRounds = (expiryTick - mTick) / mWheel.length;
+        mWheel[(int) (expiryTick & mMask)].add(entry);
+        mCount++;
+    }
+
+    private void expire(Bucket bucket, long now) {
+        TimeoutEntry entry = bucket.mHead;
+
+        while (entry != null) {
+            TimeoutEntry next = entry.mNext;
+
+            if (entry.mIsCancelled) {
+                bucket.remove(entry);
+                mCount--;
+            } else if (entry.mRemainingRounds <= 0 && entry.mDeadline <= now) {
+                bucket.remove(entry);
+                mCount--;
+                run(entry);
+
+                if (entry.mPeriod > 0 && !entry.mIsCancelled) {
+                    entry.mDeadline += entry.mPeriod;
+                    if (entry.mDeadline <= now) {
+                        // fell behind; skip the missed runs
+                        entry.mDeadline = now + entry.mPeriod;
+                    }
+
+                    place(entry);
+                }
+            } else {
+                entry.mRemainingRounds--;
+            }
+
+            entry = next;
+        }
+    }
+
+    private void run(final TimeoutEntry entry) {
+        try {
+            mExecutor.execute(entry);
+        } catch (RuntimeException e) {
+            Timber.e(e, "TimerWheel");
+        }
+    }
+
+
+    private static class TimeoutEntry implements Timeout, Runnable {
+        final Runnable mTask;
+        final long mPeriod;
+
+        long mDeadline;
+        long mRemainingRounds;
+
+        TimeoutEntry mPrev, mNext;
+
+        volatile boolean mIsCancelled;
+
+        TimeoutEntry(Runnable task, long deadline, long period) {
+            mTask = task;
+            mDeadline = deadline;
+            mPeriod = period;
+        }
+
+        @Override
+        public void run() {
+            // may have been cancelled while waiting on the executor
+            if (!mIsCancelled) {
+                mTask.run();
+            }
+        }
+
+        @Override
+        public void cancel() {
+            mIsCancelled = true;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return mIsCancelled;
+        }
+    }
+
+
+    private static class Bucket {
+        TimeoutEntry mHead, mTail;
+
+        void add(TimeoutEntry entry) {
+            entry.mPrev = mTail;
+            entry.mNext = null;
+
+            if (mTail == null) {
+                mHead = entry;
+            } else {
+                mTail.mNext = entry;
+            }
+
+            mTail = entry;
+        }
+
+        void remove(TimeoutEntry entry) {
+            if (entry.mPrev == null) {
+                mHead = entry.mNext;
+            } else {
+                entry.mPrev.mNext = entry.mNext;
+            }
+
+            if (entry.mNext == null) {
+                mTail = entry.mPrev;
+            } else {
+                entry.mNext.mPrev = entry.mPrev;
+            }
+
+            entry.mPrev = null;
+            entry.mNext = null;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2015 Shirish Kamath.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package io.e55.fovea.android.sdk.camera.lib.timer;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * SDK-wide {@link TimerWheel}s.
+ */
+public final class Timers {
+
+    private static final int TICK_MS = 10;
+
+    // one revolution of the wheel covers ~5s, the longest regular module timer
+    private static final int WHEEL_SIZE = 512;
+
+    private static volatile TimerWheel mainThreadInstance;
+
+    private Timers() {
+    }
+
+
+    /**
+     * Shared timer whose tasks run on the main thread, where the Camera and the views
+     * are accessed by the modules.
+     *
+     * @return TimerWheel
+     */
+    public static TimerWheel mainThread() {
+        if (mainThreadInstance == null) {
+            synchronized (Timers.class) {
+                if (mainThreadInstance == null) {
+                    final Handler handler = new Handler(Looper.getMainLooper());
+
+                    mainThreadInstance = new TimerWheel(TimerWheel.SYSTEM_CLOCK,
+                            TICK_MS, TimeUnit.MILLISECONDS, WHEEL_SIZE, new Executor() {
+                        @Override
+                        public void execute(Runnable command) {
+                            handler.post(command);
+                        }
+                    }).start();
+                }
+            }
+        }
+
+        return mainThreadInstance;
+    }
+}
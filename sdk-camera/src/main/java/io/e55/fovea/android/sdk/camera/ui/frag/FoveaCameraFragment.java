@@ -92,6 +92,12 @@ public class FoveaCameraFragment extends Fragment {
             mCameraManager.setCameraShadeView(cameraShadeView);
         }
 
+        // pictures can be cropped to the area inside the guide's padding
+        View captureGuideView = view.findViewById(R.id.captureGuide);
+        if (captureGuideView != null && mCameraPreview != null) {
+            mCameraManager.setCaptureGuideView(captureGuideView, mCameraPreview);
+        }
+
         View flashView = view.findViewById(R.id.cameraFlashToggle);
         if (flashView != null) {
             flashView.setOnClickListener(new View.OnClickListener() {
@@ -121,6 +127,9 @@ public class FoveaCameraFragment extends Fragment {
         }
 
         if (mActivityListener != null) {
+            // takes pictures on its own, if enabled in the configuration
+            mCameraManager.setAutoCapture(mActivityListener);
+
             mActivityListener.onFragmentViewCreated(view);
         }
     }
@@ -140,6 +149,7 @@ public class FoveaCameraFragment extends Fragment {
     public void onDetach() {
         super.onDetach();
 
+        mCameraManager.setAutoCapture(null);
         mActivityListener = null;
     }
 
@@ -177,7 +187,7 @@ public class FoveaCameraFragment extends Fragment {
      * Activities that instantiate and use the {@link FoveaCameraFragment} must implement
      * this interface. This interface is used to collect configuration from the attaching Activity.
      */
-    public interface CameraActivityListener {
+    public interface CameraActivityListener extends CameraManager.PictureTarget {
 
         /**
          * Returns the inflated view from `provideLayout()` for the FoveaCameraFragment so that
@@ -0,0 +1,281 @@
+/*
+ * Copyright (c) 2015 Shirish Kamath.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package io.e55.fovea.android.sdk.camera.lib.capture;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import io.e55.fovea.android.sdk.camera.lib.capture.AutoCaptureDecision.Reasons;
+import io.e55.fovea.android.sdk.camera.lib.frame.FrameQuality;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Replays synthetic preview sequences through {@link FrameQuality} and an
+ * {@link AutoCaptureGate} set up with the defaults of `camera.xml`.
+ */
+public class AutoCaptureGateTest {
+
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 240;
+    private static final int STABLE_FRAMES = 8;
+
+    private byte[] mPage;
+    private Random mRandom;
+    private FrameQuality mQuality;
+    private AutoCaptureGate mGate;
+
+
+    @Before
+    public void setUp() {
+        mRandom = new Random(7);
+        mPage = renderPage(new Random(1));
+        mQuality = new FrameQuality();
+        mGate = newGate(true);
+    }
+
+
+    @Test
+    public void capturesOnceTheFramesAreStill() {
+        assertEquals(Reasons.MOTION, replay(frame(0, 0, 1f, false, false)));
+
+        for (int i = 1; i < STABLE_FRAMES; i++) {
+            assertEquals(Reasons.STABILIZING, replay(frame(0, 0, 1f, false, false)));
+            assertEquals(i, mGate.getStableCount());
+        }
+
+        assertEquals(Reasons.CAPTURE, replay(frame(0, 0, 1f, false, false)));
+    }
+
+    @Test
+    public void waitsForMovementBeforeTheNextCapture() {
+        captureStill();
+
+        // however long the camera stays on the same page
+        for (int i = 0; i < 3 * STABLE_FRAMES; i++) {
+            assertEquals(Reasons.WAITING_FOR_MOVEMENT, replay(frame(0, 0, 1f, false, false)));
+        }
+
+        // moving on to the next page re-arms the gate
+        String reason = null;
+        for (int i = 1; i <= 6; i++) {
+            reason = replay(frame(6 * i, 4 * i, 1f, false, false));
+        }
+        assertEquals(Reasons.MOTION, reason);
+
+        captureStill();
+    }
+
+    @Test
+    public void shakeRestartsTheCount() {
+        replay(frame(0, 0, 1f, false, false));
+        for (int i = 1; i < STABLE_FRAMES - 1; i++) {
+            replay(frame(0, 0, 1f, false, false));
+        }
+
+        assertEquals(Reasons.MOTION, replay(frame(5, 3, 1f, false, false)));
+        assertEquals(0, mGate.getStableCount());
+        assertEquals(Reasons.STABILIZING, replay(frame(5, 3, 1f, false, false)));
+    }
+
+    @Test
+    public void reportsDarkUnevenAndBlurredFrames() {
+        replay(frame(0, 0, 0.1f, false, false));
+        assertEquals(Reasons.TOO_DARK, replay(frame(0, 0, 0.1f, false, false)));
+
+        replay(frame(0, 0, 1f, true, false));
+        assertEquals(Reasons.UNEVEN_LIGHT, replay(frame(0, 0, 1f, true, false)));
+
+        // a refocus blurs one frame of an otherwise sharp still sequence; sparse samples
+        // of a bare plane see the blur as motion too, so only its sharpness is replayed
+        replay(frame(0, 0, 1f, false, false));
+        assertEquals(Reasons.STABILIZING, replay(frame(0, 0, 1f, false, false)));
+        float motion = mQuality.getMotion();
+        float sharpness = mQuality.getSharpness();
+
+        mQuality.compute(frame(0, 0, 1f, false, true), WIDTH, HEIGHT);
+        assertTrue(mQuality.getSharpness() < sharpness * 0.85f);
+        assertEquals(Reasons.BLURRED, mGate.update(motion, mQuality.getSharpness(),
+                mQuality.getEvenness(), mQuality.getLuma(), true));
+        assertEquals(0, mGate.getStableCount());
+    }
+
+    @Test
+    public void requiresADocumentIfConfigured() {
+        mQuality.compute(frame(0, 0, 1f, false, false), WIDTH, HEIGHT);
+        for (int i = 0; i < 2 * STABLE_FRAMES; i++) {
+            mQuality.compute(frame(0, 0, 1f, false, false), WIDTH, HEIGHT);
+            assertEquals(Reasons.NO_DOCUMENT, mGate.update(mQuality.getMotion(),
+                    mQuality.getSharpness(), mQuality.getEvenness(), mQuality.getLuma(), false));
+        }
+
+        AutoCaptureGate gate = newGate(false);
+        String reason = null;
+        for (int i = 0; i < STABLE_FRAMES; i++) {
+            mQuality.compute(frame(0, 0, 1f, false, false), WIDTH, HEIGHT);
+            reason = gate.update(mQuality.getMotion(), mQuality.getSharpness(),
+                    mQuality.getEvenness(), mQuality.getLuma(), false);
+        }
+        assertEquals(Reasons.CAPTURE, reason);
+    }
+
+    @Test
+    public void replayedMetricsYieldTheSameDecisions() {
+        List<float[]> metrics = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            // still stretches, a pan and a dark spell
+            int shift = (i >= 12 && i < 18) ? (i - 11) * 5 : (i >= 18 ? 30 : 0);
+            float light = (i >= 24 && i < 27) ? 0.1f : 1f;
+            mQuality.compute(frame(shift, shift / 2, light, false, false), WIDTH, HEIGHT);
+            metrics.add(new float[]{mQuality.getMotion(), mQuality.getSharpness(),
+                    mQuality.getEvenness(), mQuality.getLuma()});
+        }
+
+        List<String> first = replayMetrics(metrics, newGate(true));
+        List<String> second = replayMetrics(metrics, newGate(true));
+
+        assertEquals(first, second);
+        assertEquals(2, count(first, Reasons.CAPTURE));
+    }
+
+
+    private void captureStill() {
+        String reason = null;
+        for (int i = 0; i <= STABLE_FRAMES && !Reasons.CAPTURE.equals(reason); i++) {
+            reason = replay(frame(0, 0, 1f, false, false));
+        }
+        assertEquals(Reasons.CAPTURE, reason);
+    }
+
+    private String replay(byte[] y) {
+        mQuality.compute(y, WIDTH, HEIGHT);
+        return mGate.update(mQuality.getMotion(), mQuality.getSharpness(),
+                mQuality.getEvenness(), mQuality.getLuma(), true);
+    }
+
+    private static List<String> replayMetrics(List<float[]> metrics, AutoCaptureGate gate) {
+        List<String> reasons = new ArrayList<>();
+        for (float[] m : metrics) {
+            reasons.add(gate.update(m[0], m[1], m[2], m[3], true));
+        }
+        return reasons;
+    }
+
+    private static int count(List<String> reasons, String reason) {
+        int n = 0;
+        for (String r : reasons) {
+            if (r.equals(reason)) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    private static AutoCaptureGate newGate(boolean requireDocument) {
+        return new AutoCaptureGate(STABLE_FRAMES, 0.012f, 0.05f, 0.008f, 0.85f, 0.50f, 0.15f,
+                requireDocument);
+    }
+
+
+    /**
+     * Renders a preview frame of the page with sensor noise.
+     *
+     * @param dx      Horizontal camera movement, in pixels
+     * @param dy      Vertical camera movement, in pixels
+     * @param light   Scene brightness
+     * @param shadow  Whether the right half of the frame is in shadow
+     * @param blurred Whether the frame is out of focus
+     */
+    private byte[] frame(int dx, int dy, float light, boolean shadow, boolean blurred) {
+        byte[] y = new byte[WIDTH * HEIGHT];
+        int pageWidth = WIDTH * 2;
+
+        for (int row = 0; row < HEIGHT; row++) {
+            for (int col = 0; col < WIDTH; col++) {
+                float v;
+                if (blurred) {
+                    int sum = 0;
+                    for (int j = -2; j <= 2; j++) {
+                        for (int i = -2; i <= 2; i++) {
+                            int r = Math.max(0, Math.min(HEIGHT * 2 - 1, row + dy + j));
+                            int c = Math.max(0, Math.min(pageWidth - 1, col + dx + i));
+                            sum += mPage[r * pageWidth + c] & 0xff;
+                        }
+                    }
+                    v = sum / 25f;
+                } else {
+                    v = mPage[(row + dy) * pageWidth + col + dx] & 0xff;
+                }
+
+                v *= light;
+                if (shadow && col >= WIDTH / 2) {
+                    v *= 0.3f;
+                }
+                v += (float) mRandom.nextGaussian() * 1.5f;
+                y[row * WIDTH + col] = (byte) Math.max(0, Math.min(255, Math.round(v)));
+            }
+        }
+
+        return y;
+    }
+
+    /**
+     * @return A page twice the size of the frame, with lines of text-like marks.
+     */
+    private static byte[] renderPage(Random random) {
+        int width = WIDTH * 2;
+        int height = HEIGHT * 2;
+        byte[] page = new byte[width * height];
+
+        for (int row = 0; row < height; row++) {
+            for (int col = 0; col < width; col++) {
+                page[row * width + col] = (byte) 200;
+            }
+        }
+
+        // 3x6 glyphs on 10 pixel lines
+        for (int line = 4; line + 6 < height; line += 10) {
+            for (int col = 4; col + 3 < width; col += 4) {
+                if (random.nextInt(5) == 0) {
+                    continue;
+                }
+                for (int j = 0; j < 6; j++) {
+                    for (int i = 0; i < 3; i++) {
+                        if (random.nextBoolean()) {
+                            page[(line + j) * width + col + i] = (byte) 40;
+                        }
+                    }
+                }
+            }
+        }
+
+        return page;
+    }
+}
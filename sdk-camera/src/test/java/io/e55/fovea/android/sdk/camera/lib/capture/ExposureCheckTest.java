@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2015 Shirish Kamath.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package io.e55.fovea.android.sdk.camera.lib.capture;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+
+import io.e55.fovea.android.sdk.camera.lib.capture.ExposureReport.Problems;
+import io.e55.fovea.android.sdk.camera.lib.frame.LumaStats;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Judges synthetic pictures with an {@link ExposureCheck} set up with the defaults of
+ * `camera.xml`.
+ */
+public class ExposureCheckTest {
+
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 240;
+
+    private ExposureCheck mCheck;
+    private Random mRandom;
+
+
+    @Before
+    public void setUp() {
+        mCheck = new ExposureCheck(0.05f, 0.50f, 0.15f);
+        mRandom = new Random(1);
+    }
+
+
+    @Test
+    public void acceptsAWellLitPage() {
+        ExposureReport report = evaluate(picture(200, 60, 0f, 0f));
+
+        assertTrue(report.isAcceptable());
+        assertNull(report.getProblem());
+        assertEquals(0f, report.getClipped(), 0f);
+        assertEquals(0f, report.getDark(), 0f);
+        assertTrue(report.getDynamicRange() > 0.5f);
+    }
+
+    @Test
+    public void flagsGlare() {
+        ExposureReport report = evaluate(picture(200, 60, 0.10f, 0f));
+
+        assertEquals(Problems.GLARE, report.getProblem());
+        assertFalse(report.isAcceptable());
+        assertEquals(0.10f, report.getClipped(), 0.01f);
+    }
+
+    @Test
+    public void flagsAPictureInShadow() {
+        ExposureReport report = evaluate(picture(200, 60, 0f, 0.60f));
+
+        assertEquals(Problems.UNDEREXPOSED, report.getProblem());
+        assertEquals(0.60f, report.getDark(), 0.01f);
+    }
+
+    @Test
+    public void flagsAWashedOutPage() {
+        // grey text on grey paper, as through a foggy lens
+        ExposureReport report = evaluate(picture(140, 115, 0f, 0f));
+
+        assertEquals(Problems.LOW_CONTRAST, report.getProblem());
+        assertTrue(report.getDynamicRange() < 0.15f);
+    }
+
+    @Test
+    public void reportsGlareFirst() {
+        ExposureReport report = evaluate(picture(200, 60, 0.10f, 0.60f));
+
+        assertEquals(Problems.GLARE, report.getProblem());
+        assertEquals(0.60f, report.getDark(), 0.01f);
+    }
+
+    @Test
+    public void toleratesSomeGlareAndShadow() {
+        assertTrue(evaluate(picture(200, 60, 0.03f, 0.30f)).isAcceptable());
+    }
+
+
+    private ExposureReport evaluate(byte[] picture) {
+        LumaStats stats = new LumaStats();
+        stats.compute(picture, WIDTH, HEIGHT, 16384);
+        return mCheck.evaluate(stats);
+    }
+
+    /**
+     * @return Lines of text on paper, with a clipped glare spot across the given fraction of the
+     * rows at the top and deep shadow across the given fraction at the bottom.
+     */
+    private byte[] picture(int paper, int ink, float glare, float shadow) {
+        int glareRows = Math.round(glare * HEIGHT);
+        int shadowRows = Math.round(shadow * HEIGHT);
+
+        byte[] pixels = new byte[WIDTH * HEIGHT];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                double v;
+                if (y < glareRows) {
+                    v = 255;
+                } else if (y >= HEIGHT - shadowRows) {
+                    v = 8 + mRandom.nextGaussian() * 2;
+                } else {
+                    boolean isInk = (y % 12) >= 4 && (y % 12) < 9 && (x % 7) < 3;
+                    v = (isInk ? ink : paper) + mRandom.nextGaussian() * 2;
+                }
+                pixels[y * WIDTH + x] = (byte) Math.max(0, Math.min(255, Math.round(v)));
+            }
+        }
+        return pixels;
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright (c) 2015 Shirish Kamath.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package io.e55.fovea.android.sdk.camera.lib.document;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import io.e55.fovea.android.sdk.camera.lib.capture.CaptureResult;
+import io.e55.fovea.android.sdk.camera.lib.image.JpegEncoder;
+import io.e55.fovea.android.sdk.camera.lib.store.PageContainer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Parses the output of {@link PdfWriter} back: cross-reference table, stream lengths, page
+ * tree and embedded JPEGs.
+ */
+public class PdfWriterTest {
+
+    private static final Charset LATIN_1 = Charset.forName("ISO-8859-1");
+
+    private static final Pattern OBJECT = Pattern.compile("(\\d+) 0 obj\n");
+    private static final Pattern STREAM = Pattern.compile(
+            "(\\d+) 0 obj\n<<([^\n]*) /Length (\\d+)([^\n]*)>>\nstream\n");
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+
+    @Test
+    public void crossReferencesEveryObject() throws IOException {
+        byte[] pdf = write(200f, jpeg(64, 48, false), jpeg(120, 80, true), jpeg(32, 32, false));
+        String text = new String(pdf, LATIN_1);
+
+        assertTrue(text.startsWith("%PDF-1.4\n"));
+        assertTrue(text.endsWith("%%EOF\n"));
+
+        Matcher startxref = Pattern.compile("startxref\n(\\d+)\n%%EOF\n$").matcher(text);
+        assertTrue(startxref.find());
+        int xref = Integer.parseInt(startxref.group(1));
+        assertTrue(text.startsWith("xref\n0 ", xref));
+
+        Matcher size = Pattern.compile("/Size (\\d+) ").matcher(text);
+        assertTrue(size.find());
+        int objects = Integer.parseInt(size.group(1));
+
+        // catalog, page tree and three objects per page, plus the free entry
+        assertEquals(2 + 3 * 3 + 1, objects);
+
+        int entries = text.indexOf('\n', xref + 5) + 1;
+        assertEquals("0000000000 65535 f \n", text.substring(entries, entries + 20));
+
+        for (int number = 1; number < objects; number++) {
+            String entry = text.substring(entries + 20 * number, entries + 20 * (number + 1));
+            assertTrue(entry, entry.matches("\\d{10} 00000 n \n"));
+
+            int offset = Integer.parseInt(entry.substring(0, 10));
+            assertTrue("object " + number, text.startsWith(number + " 0 obj\n", offset));
+        }
+
+        assertTrue(text.startsWith("trailer\n", entries + 20 * objects));
+    }
+
+    @Test
+    public void streamLengthsMatchTheirData() throws IOException {
+        byte[][] jpegs = {jpeg(64, 48, false), jpeg(120, 80, true)};
+        byte[] pdf = write(150f, jpegs);
+        String text = new String(pdf, LATIN_1);
+
+        Matcher stream = STREAM.matcher(text);
+        int streams = 0;
+        int images = 0;
+
+        while (stream.find()) {
+            int length = Integer.parseInt(stream.group(3));
+            int start = stream.end();
+
+            assertTrue(text.startsWith("\nendstream\nendobj\n", start + length));
+
+            if (stream.group(2).contains("/Subtype /Image")) {
+                byte[] data = Arrays.copyOfRange(pdf, start, start + length);
+                assertArrayEquals(jpegs[images], data);
+                images++;
+            }
+            streams++;
+        }
+
+        assertEquals(2, images);
+        assertEquals(4, streams);
+    }
+
+    @Test
+    public void describesPagesAndImages() throws IOException {
+        String text = new String(write(200f, jpeg(1654, 64, false), jpeg(96, 200, true)),
+                LATIN_1);
+
+        assertTrue(text.contains("/Width 1654 /Height 64 /ColorSpace /DeviceGray "));
+        assertTrue(text.contains("/Width 96 /Height 200 /ColorSpace /DeviceRGB "));
+
+        // pixels at 200 dpi, in points
+        assertTrue(text.contains("/MediaBox [0 0 595.44 23.04]"));
+        assertTrue(text.contains("/MediaBox [0 0 34.56 72.00]"));
+
+        Matcher pages = Pattern.compile("/Type /Pages /Kids \\[((?:\\d+ 0 R )*)\\] /Count (\\d+)")
+                .matcher(text);
+        assertTrue(pages.find());
+        assertEquals("2", pages.group(2));
+
+        // every kid is a page of the tree
+        for (String kid : pages.group(1).trim().split(" 0 R ?")) {
+            Matcher object = OBJECT.matcher(text);
+            boolean found = false;
+            while (object.find()) {
+                if (object.group(1).equals(kid.trim())) {
+                    assertTrue(text.startsWith("<< /Type /Page /Parent 2 0 R", object.end()));
+                    found = true;
+                }
+            }
+            assertTrue("page " + kid, found);
+        }
+    }
+
+    @Test
+    public void writesAnEmptyDocument() throws IOException {
+        String text = new String(write(200f), LATIN_1);
+
+        assertTrue(text.contains("/Type /Pages /Kids [] /Count 0"));
+        assertTrue(text.contains("/Size 3 "));
+    }
+
+    @Test
+    public void addsPagesOfAContainer() throws IOException {
+        byte[][] jpegs = {jpeg(64, 48, true), jpeg(48, 64, false)};
+        File file = mFolder.newFile("session.fvpc");
+
+        PageContainer.Writer writer = new PageContainer.Writer(file);
+        for (byte[] jpeg : jpegs) {
+            writer.append(jpeg, CaptureResult.MIME_JPEG, 0, 0);
+        }
+        writer.close();
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        PdfWriter pdf = new PdfWriter(os, 200f);
+        PageContainer.Reader reader = new PageContainer.Reader(file);
+        try {
+            for (int i = 0; i < reader.getPageCount(); i++) {
+                pdf.addPage(reader.getData(i));
+            }
+        } finally {
+            reader.close();
+        }
+        pdf.close();
+
+        assertArrayEquals(write(200f, jpegs), os.toByteArray());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOtherFormats() throws IOException {
+        PdfWriter pdf = new PdfWriter(new ByteArrayOutputStream(), 200f);
+        pdf.addPage(new byte[]{(byte) 0x89, 'P', 'N', 'G', 0, 0, 0, 0});
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsPngCaptures() throws IOException {
+        PdfWriter pdf = new PdfWriter(new ByteArrayOutputStream(), 200f);
+        pdf.addPage(new CaptureResult("page.png", CaptureResult.MIME_PNG, 10, 10, 0, 0L, 0L,
+                null));
+    }
+
+
+    private static byte[] write(float dpi, byte[]... jpegs) throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        PdfWriter pdf = new PdfWriter(os, dpi);
+        for (byte[] jpeg : jpegs) {
+            pdf.addPage(jpeg);
+        }
+        assertEquals(jpegs.length, pdf.getPageCount());
+        pdf.close();
+        return os.toByteArray();
+    }
+
+    private static byte[] jpeg(int width, int height, boolean color) throws IOException {
+        byte[] y = new byte[width * height];
+        for (int i = 0; i < y.length; i++) {
+            y[i] = (byte) (i * 7);
+        }
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        JpegEncoder encoder = new JpegEncoder(80);
+        if (color) {
+            byte[] chroma = new byte[((width + 1) / 2) * ((height + 1) / 2)];
+            Arrays.fill(chroma, (byte) 128);
+            encoder.encodeYCbCr(y, chroma, chroma, width, height, os, null, 1);
+        } else {
+            encoder.encodeGray(y, width, height, os, null, 1);
+        }
+        return os.toByteArray();
+    }
+}
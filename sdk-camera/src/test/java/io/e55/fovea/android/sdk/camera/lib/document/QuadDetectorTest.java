@@ -0,0 +1,232 @@
+/*
+ * Copyright (c) 2015 Shirish Kamath.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package io.e55.fovea.android.sdk.camera.lib.document;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import io.e55.fovea.android.sdk.camera.lib.frame.YPyramid;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Replays synthetic preview frames, a bright page on a darker desk with sensor noise,
+ * through a {@link QuadDetector} and checks the corners it finds.
+ */
+public class QuadDetectorTest {
+
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 480;
+
+    // width or height of the detector's working image
+    private static final int MAX_SIDE = 160;
+
+    // allowed corner error, in pixels of the working image
+    private static final float TOLERANCE = 2f;
+
+    private final Random mRandom = new Random(42);
+
+
+    @Test
+    public void findsAnUprightPage() {
+        float[] corners = {120, 80, 520, 90, 510, 400, 130, 390};
+        QuadDetector detector = new QuadDetector(MAX_SIDE, 0.2f);
+
+        Quad quad = detector.detect(render(corners, WIDTH, HEIGHT, 4), WIDTH, HEIGHT, 7L);
+
+        assertCorners(corners, WIDTH, HEIGHT, quad);
+        assertEquals(7L, quad.getTimestamp());
+    }
+
+    @Test
+    public void followsAPageAcrossAReplayedSequence() {
+        QuadDetector detector = new QuadDetector(MAX_SIDE, 0.2f);
+
+        // the page drifts and tilts slightly, as in a hand-held preview
+        for (int i = 0; i < 12; i++) {
+            float dx = 4f * i;
+            float dy = 2f * i;
+            float tilt = 1.5f * i;
+            float[] corners = {
+                    100 + dx, 70 + dy - tilt,
+                    480 + dx, 70 + dy + tilt,
+                    480 + dx - tilt, 380 + dy + tilt,
+                    100 + dx + tilt, 380 + dy - tilt
+            };
+
+            Quad quad = detector.detect(render(corners, WIDTH, HEIGHT, 6), WIDTH, HEIGHT, i);
+            assertCorners(corners, WIDTH, HEIGHT, quad);
+        }
+    }
+
+    @Test
+    public void findsNothingInAnEmptyFrame() {
+        QuadDetector detector = new QuadDetector(MAX_SIDE, 0.2f);
+
+        Quad quad = detector.detect(render(null, WIDTH, HEIGHT, 6), WIDTH, HEIGHT, 3L);
+
+        assertTrue(quad.isEmpty());
+        assertEquals(3L, quad.getTimestamp());
+    }
+
+    @Test
+    public void ignoresPagesBelowTheMinimumArea() {
+        float[] corners = {280, 200, 360, 200, 360, 280, 280, 280};
+        QuadDetector detector = new QuadDetector(MAX_SIDE, 0.2f);
+
+        Quad quad = detector.detect(render(corners, WIDTH, HEIGHT, 4), WIDTH, HEIGHT, 0L);
+
+        assertTrue(quad.isEmpty());
+    }
+
+    @Test
+    public void adaptsToFrameSizeChanges() {
+        QuadDetector detector = new QuadDetector(MAX_SIDE, 0.2f);
+        float[] small = {60, 40, 260, 45, 255, 200, 65, 195};
+        float[] large = {240, 160, 1040, 180, 1020, 800, 260, 780};
+
+        assertCorners(small, 320, 240, detector.detect(render(small, 320, 240, 4), 320, 240, 0L));
+        assertCorners(large, 1280, 960,
+                detector.detect(render(large, 1280, 960, 4), 1280, 960, 1L));
+        assertCorners(small, 320, 240, detector.detect(render(small, 320, 240, 4), 320, 240, 2L));
+    }
+
+    @Test
+    public void detectsDownscaledPlanes() {
+        float[] corners = {120, 80, 520, 90, 510, 400, 130, 390};
+        byte[] y = render(corners, WIDTH, HEIGHT, 4);
+
+        // 4x box downscale, as done by the frame pyramid
+        int pw = WIDTH / 4, ph = HEIGHT / 4;
+        byte[] plane = new byte[pw * ph];
+        for (int py = 0; py < ph; py++) {
+            for (int px = 0; px < pw; px++) {
+                int sum = 0;
+                for (int j = 0; j < 4; j++) {
+                    for (int i = 0; i < 4; i++) {
+                        sum += y[(py * 4 + j) * WIDTH + px * 4 + i] & 0xff;
+                    }
+                }
+                plane[py * pw + px] = (byte) (sum / 16);
+            }
+        }
+
+        Quad quad = new QuadDetector(MAX_SIDE, 0.2f).detectScaled(plane, pw, ph, WIDTH, HEIGHT, 0L);
+        assertCorners(corners, WIDTH, HEIGHT, quad);
+    }
+
+    @Test
+    public void benchmark() {
+        int w = 1280, h = 720;
+        float[] corners = {240, 100, 1040, 120, 1010, 640, 260, 620};
+        byte[] y = render(corners, w, h, 4);
+
+        // the 1/4 level of the frame pyramid, as used by the document module
+        byte[] half = new byte[(w / 2) * (h / 2)];
+        byte[] quarter = new byte[(w / 4) * (h / 4)];
+        YPyramid.downscale(y, w, h, half);
+        YPyramid.downscale(half, w / 2, h / 2, quarter);
+
+        QuadDetector detector = new QuadDetector(MAX_SIDE, 0.2f);
+        int runs = 50;
+
+        for (int i = 0; i < runs; i++) {
+            detector.detect(y, w, h, i);
+            detector.detectScaled(quarter, w / 4, h / 4, w, h, i);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < runs; i++) {
+            detector.detect(y, w, h, i);
+        }
+        long planeNanos = (System.nanoTime() - start) / runs;
+
+        start = System.nanoTime();
+        for (int i = 0; i < runs; i++) {
+            detector.detectScaled(quarter, w / 4, h / 4, w, h, i);
+        }
+        long scaledNanos = (System.nanoTime() - start) / runs;
+
+        System.out.printf("QuadDetector %dx%d: %.2f ms from the Y plane, "
+                + "%.2f ms from a pyramid level%n", w, h, planeNanos / 1e6, scaledNanos / 1e6);
+    }
+
+
+    /**
+     * @param expected Corners in frame pixels; the quad's are relative to the frame size.
+     */
+    private static void assertCorners(float[] expected, int width, int height, Quad quad) {
+        assertFalse("no document found", quad.isEmpty());
+        float tolerance = TOLERANCE * Math.max(width, height) / MAX_SIDE;
+
+        // the detector may start from any corner of the page; match each to the nearest one
+        for (int c = 0; c < 4; c++) {
+            float best = Float.MAX_VALUE;
+            for (int k = 0; k < 4; k++) {
+                float dx = quad.getX(k) * width - expected[c * 2];
+                float dy = quad.getY(k) * height - expected[c * 2 + 1];
+                best = Math.min(best, (float) Math.sqrt(dx * dx + dy * dy));
+            }
+            assertTrue("corner " + c + " off by " + best + ": " + quad, best <= tolerance);
+        }
+    }
+
+    /**
+     * @param corners Page corners in clockwise order, or null for an empty desk.
+     * @param noise   Standard deviation of the sensor noise
+     */
+    private byte[] render(float[] corners, int width, int height, float noise) {
+        byte[] y = new byte[width * height];
+
+        for (int py = 0; py < height; py++) {
+            for (int px = 0; px < width; px++) {
+                // faint lighting gradient across the desk
+                float v = 50f + 20f * px / width;
+                if (corners != null && inside(corners, px + 0.5f, py + 0.5f)) {
+                    v = 190f + 15f * py / height;
+                }
+                v += (float) mRandom.nextGaussian() * noise;
+                y[py * width + px] = (byte) Math.max(0, Math.min(255, Math.round(v)));
+            }
+        }
+
+        return y;
+    }
+
+    private static boolean inside(float[] c, float x, float y) {
+        for (int i = 0; i < 4; i++) {
+            int j = (i + 1) % 4;
+            float cross = (c[j * 2] - c[i * 2]) * (y - c[i * 2 + 1])
+                    - (c[j * 2 + 1] - c[i * 2 + 1]) * (x - c[i * 2]);
+            if (cross < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2015 Shirish Kamath.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package io.e55.fovea.android.sdk.camera.lib.frame;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Replays synthetic 1/8 preview planes through a {@link ChangeDetector} set up with the defaults
+ * of `camera.xml`.
+ */
+public class ChangeDetectorTest {
+
+    private static final float THRESHOLD = 0.004f;
+    private static final int STATIC_FRAMES = 15;
+    private static final int STATIC_INTERVAL = 10;
+
+    // 1/8 of a 1920 x 1080 preview
+    private static final int WIDTH = 240;
+    private static final int HEIGHT = 135;
+
+    private ChangeDetector mDetector;
+    private Random mRandom;
+
+
+    @Before
+    public void setUp() {
+        mDetector = new ChangeDetector(THRESHOLD, STATIC_FRAMES, STATIC_INTERVAL);
+        mRandom = new Random(1);
+    }
+
+
+    @Test
+    public void analyzesTheFirstFrame() {
+        assertTrue(update(0, 0));
+        assertEquals(1f, mDetector.getChange(), 0f);
+        assertFalse(mDetector.isStatic());
+    }
+
+    @Test
+    public void throttlesAStaticScene() {
+        // sensor noise alone does not count as a change
+        for (int i = 0; i < STATIC_FRAMES; i++) {
+            assertTrue(update(0, 0));
+            assertFalse(mDetector.isStatic());
+        }
+
+        for (int period = 0; period < 3; period++) {
+            for (int i = 1; i < STATIC_INTERVAL; i++) {
+                assertFalse(update(0, 0));
+                assertTrue(mDetector.isStatic());
+                assertTrue(mDetector.getChange() < THRESHOLD);
+            }
+            assertTrue(update(0, 0));
+        }
+    }
+
+    @Test
+    public void theFirstChangeEndsTheStaticPeriod() {
+        goStatic();
+        assertFalse(update(0, 0));
+
+        // the page slides by a few preview pixels
+        assertTrue(update(3, 0));
+        assertTrue(mDetector.getChange() >= THRESHOLD);
+        assertFalse(mDetector.isStatic());
+
+        // and takes as long as before to be static again
+        for (int i = 1; i < STATIC_FRAMES; i++) {
+            assertTrue(update(3, 0));
+        }
+        assertFalse(update(3, 0));
+        assertTrue(mDetector.isStatic());
+    }
+
+    @Test
+    public void resetStartsOver() {
+        goStatic();
+
+        mDetector.reset();
+        assertFalse(mDetector.isStatic());
+        assertTrue(update(0, 0));
+        assertEquals(1f, mDetector.getChange(), 0f);
+    }
+
+    @Test
+    public void analyzesEveryFrameWithAnIntervalOfOne() {
+        mDetector = new ChangeDetector(THRESHOLD, STATIC_FRAMES, 1);
+
+        for (int i = 0; i < 3 * STATIC_FRAMES; i++) {
+            assertTrue(update(0, 0));
+        }
+        assertTrue(mDetector.isStatic());
+    }
+
+
+    private void goStatic() {
+        for (int i = 0; i <= STATIC_FRAMES; i++) {
+            update(0, 0);
+        }
+        assertTrue(mDetector.isStatic());
+    }
+
+    private boolean update(int dx, int dy) {
+        byte[] plane = plane(dx, dy);
+        return mDetector.update(plane, WIDTH, HEIGHT);
+    }
+
+    /**
+     * @return A page of dark bars on light paper, shifted by (dx, dy), with sensor noise.
+     */
+    private byte[] plane(int dx, int dy) {
+        byte[] plane = new byte[WIDTH * HEIGHT];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int u = x - dx, v = y - dy;
+                double value = ((u / 6) % 2 == 0 && (v / 10) % 3 != 0) ? 60 : 200;
+                value += mRandom.nextGaussian() * 2;
+                plane[y * WIDTH + x] = (byte) Math.max(0, Math.min(255, Math.round(value)));
+            }
+        }
+        return plane;
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright (c) 2015 Shirish Kamath.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package io.e55.fovea.android.sdk.camera.lib.frame;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Checks the alignment and noise reduction of {@link FrameFusion} on synthetic NV21 frames,
+ * and measures its throughput.
+ */
+public class FrameFusionTest {
+
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 480;
+
+    // scenes extend this far beyond the frame on every side, so that frames can be shifted
+    private static final int MARGIN = 64;
+    private static final int SCENE_WIDTH = WIDTH + 2 * MARGIN;
+    private static final int SCENE_HEIGHT = HEIGHT + 2 * MARGIN;
+
+    private final Random mRandom = new Random(11);
+
+
+    @Test
+    public void recoversKnownShifts() {
+        byte[] scene = texturedScene(new Random(2));
+        int[][] shifts = {{0, 0}, {3, -2}, {-7, 5}, {18, 11}, {-29, -31}, {30, 0}};
+
+        FrameFusion fusion = new FrameFusion();
+        fusion.begin(frame(scene, 0, 0, 3f));
+
+        for (int[] shift : shifts) {
+            assertTrue(fusion.add(frame(scene, shift[0], shift[1], 3f)));
+            assertEquals(shift[0], fusion.getShiftX());
+            assertEquals(shift[1], fusion.getShiftY());
+        }
+    }
+
+    @Test
+    public void recoversShiftsOfDimFrames() {
+        // a tenth of the contrast, with the same noise
+        byte[] scene = texturedScene(new Random(6));
+        for (int i = 0; i < scene.length; i++) {
+            scene[i] = (byte) (10 + (scene[i] & 0xff) / 10);
+        }
+
+        FrameFusion fusion = new FrameFusion();
+        fusion.begin(frame(scene, 0, 0, 4f));
+
+        for (int[] shift : new int[][]{{2, 1}, {-6, 9}, {15, -12}}) {
+            assertTrue(fusion.add(frame(scene, shift[0], shift[1], 4f)));
+            assertEquals(shift[0], fusion.getShiftX());
+            assertEquals(shift[1], fusion.getShiftY());
+        }
+    }
+
+    @Test
+    public void staysPutOnFlatDimFrames() {
+        byte[] scene = flatScene(18);
+
+        FrameFusion fusion = new FrameFusion();
+        fusion.begin(frame(scene, 0, 0, 4f));
+
+        for (int i = 0; i < 8; i++) {
+            assertTrue(fusion.add(frame(scene, 0, 0, 4f)));
+            assertEquals(0, fusion.getShiftX());
+            assertEquals(0, fusion.getShiftY());
+        }
+    }
+
+    @Test
+    public void rejectsFramesThatMovedTooFar() {
+        byte[] scene = texturedScene(new Random(3));
+
+        FrameFusion fusion = new FrameFusion();
+        fusion.begin(frame(scene, 0, 0, 2f));
+
+        assertFalse(fusion.add(frame(scene, 36, 0, 2f)));
+        assertEquals(1, fusion.getCount());
+    }
+
+    @Test
+    public void averagingReducesNoiseBySquareRootOfCount() {
+        byte[] scene = texturedScene(new Random(4));
+        float sigma = 8f;
+        int count = 8;
+
+        // the camera drifts a little between frames
+        FrameFusion fusion = new FrameFusion();
+        fusion.begin(frame(scene, 0, 0, sigma));
+        for (int i = 1; i < count; i++) {
+            assertTrue(fusion.add(frame(scene, i % 3 - 1, 2 - i % 5, sigma)));
+        }
+        assertEquals(count, fusion.getCount());
+
+        byte[] out = new byte[WIDTH * HEIGHT * 3 / 2];
+        fusion.finish(out);
+
+        float single = noise(frame(scene, 0, 0, sigma).getData(), scene);
+        float fused = noise(out, scene);
+        float expected = single / (float) Math.sqrt(count);
+
+        assertTrue("single " + single + ", fused " + fused,
+                fused > expected * 0.8f && fused < expected * 1.25f);
+    }
+
+    @Test
+    public void benchmark() {
+        byte[] scene = texturedScene(new Random(5));
+        Frame[] frames = new Frame[8];
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = frame(scene, i - 4, 4 - i, 6f);
+        }
+
+        FrameFusion fusion = new FrameFusion();
+        byte[] out = new byte[WIDTH * HEIGHT * 3 / 2];
+
+        for (int i = 0; i < 5; i++) {
+            fuse(fusion, frames, out);
+        }
+
+        int runs = 10;
+        long start = System.nanoTime();
+        for (int i = 0; i < runs; i++) {
+            fuse(fusion, frames, out);
+        }
+        long nanos = (System.nanoTime() - start) / runs;
+
+        System.out.printf("FrameFusion %dx%d: %d frames in %.2f ms (%.2f ms per frame)%n",
+                WIDTH, HEIGHT, frames.length, nanos / 1e6, nanos / 1e6 / frames.length);
+    }
+
+
+    private static void fuse(FrameFusion fusion, Frame[] frames, byte[] out) {
+        fusion.begin(frames[0]);
+        for (int i = 1; i < frames.length; i++) {
+            frames[i].getPyramid().invalidate();
+            fusion.add(frames[i]);
+        }
+        fusion.finish(out);
+    }
+
+    /**
+     * Standard deviation of the Y plane against the unshifted, noiseless scene, away from
+     * the edges.
+     */
+    private static float noise(byte[] y, byte[] scene) {
+        double sum = 0, sumSq = 0;
+        int n = 0;
+
+        for (int row = 32; row < HEIGHT - 32; row++) {
+            for (int col = 32; col < WIDTH - 32; col++) {
+                int d = (y[row * WIDTH + col] & 0xff)
+                        - (scene[(row + MARGIN) * SCENE_WIDTH + col + MARGIN] & 0xff);
+                sum += d;
+                sumSq += d * d;
+                n++;
+            }
+        }
+
+        double mean = sum / n;
+        return (float) Math.sqrt(sumSq / n - mean * mean);
+    }
+
+    /**
+     * Cuts a frame out of the middle of a larger scene, offset by (dx, dy), and adds noise.
+     */
+    private Frame frame(byte[] scene, int dx, int dy, float sigma) {
+        byte[] data = new byte[WIDTH * HEIGHT * 3 / 2];
+
+        for (int row = 0; row < HEIGHT; row++) {
+            for (int col = 0; col < WIDTH; col++) {
+                int v = scene[(row - dy + MARGIN) * SCENE_WIDTH + col - dx + MARGIN] & 0xff;
+                v += Math.round((float) mRandom.nextGaussian() * sigma);
+                data[row * WIDTH + col] = (byte) Math.max(0, Math.min(255, v));
+            }
+        }
+
+        // neutral chroma
+        for (int i = WIDTH * HEIGHT; i < data.length; i++) {
+            data[i] = (byte) 128;
+        }
+
+        Frame frame = new Frame(null, data, WIDTH, HEIGHT, 0);
+        frame.prepare(0L, 0L);
+        return frame;
+    }
+
+    private static byte[] flatScene(int luma) {
+        byte[] scene = new byte[SCENE_WIDTH * SCENE_HEIGHT];
+        Arrays.fill(scene, (byte) luma);
+        return scene;
+    }
+
+    /**
+     * @return Soft shading with blobs and text-like marks, as on a page on a desk.
+     */
+    private static byte[] texturedScene(Random random) {
+        byte[] scene = new byte[SCENE_WIDTH * SCENE_HEIGHT];
+        for (int y = 0; y < SCENE_HEIGHT; y++) {
+            for (int x = 0; x < SCENE_WIDTH; x++) {
+                double v = 120 + 50 * Math.sin(x / 37.0) * Math.cos(y / 53.0);
+                if (((x / 6) * 7 + (y / 9) * 13) % 5 == 0 && random.nextInt(3) > 0) {
+                    v -= 60;
+                }
+                scene[y * SCENE_WIDTH + x] = (byte) Math.max(0, Math.min(255, (int) v));
+            }
+        }
+        return scene;
+    }
+}
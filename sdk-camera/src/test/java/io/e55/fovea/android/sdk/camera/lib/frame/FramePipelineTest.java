@@ -0,0 +1,309 @@
+/*
+ * Copyright (c) 2015 Shirish Kamath.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package io.e55.fovea.android.sdk.camera.lib.frame;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Feeds a {@link FramePipeline} from a stand-in for the Camera that checks that no buffer is
+ * queued while it already has it, and checks which frames reach the analyzers.
+ */
+public class FramePipelineTest {
+
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 48;
+    private static final int BUFFER_SIZE = WIDTH * HEIGHT * 3 / 2;
+
+
+    @Test
+    public void deliversOnlyTheLatestFrameToABusyAnalyzer() {
+        ManualExecutor executor = new ManualExecutor();
+        FramePipeline pipeline = new FramePipeline(0.02f, 8, 4, executor);
+        Recorder analyzer = new Recorder(false);
+        pipeline.addAnalyzer(analyzer, false);
+
+        // one buffer for each analyzer and one waiting at the change gate, besides the minimum
+        Source source = new Source(pipeline);
+        pipeline.start(source, WIDTH, HEIGHT, BUFFER_SIZE);
+        assertEquals(5, source.getQueuedCount());
+
+        // the analyzer doesn't get to run until all three have arrived
+        for (int i = 0; i < 3; i++) {
+            assertTrue(source.deliver());
+        }
+        executor.runAll();
+
+        assertEquals(Collections.singletonList(2L), analyzer.mSequences);
+        assertEquals(1, pipeline.getStats(analyzer).getFrameCount());
+        assertEquals(2, pipeline.getStats(analyzer).getDropCount());
+        assertEquals(5, source.getQueuedCount());
+        source.assertNoErrors();
+    }
+
+    @Test
+    public void returnsABufferOnceWhenStartAndRecycleRace() {
+        ManualExecutor executor = new ManualExecutor();
+        FramePipeline pipeline = new FramePipeline(0.02f, 8, 4, executor);
+        Recorder analyzer = new Recorder(true);
+        pipeline.addAnalyzer(analyzer, false);
+
+        Source source = new Source(pipeline);
+        pipeline.start(source, WIDTH, HEIGHT, BUFFER_SIZE);
+        assertTrue(source.deliver());
+        executor.runAll();
+        Frame frame = analyzer.mRetained.get(0);
+
+        // released while the Camera is away, then handed over by start() ...
+        pipeline.stop();
+        frame.release();
+        pipeline.start(source, WIDTH, HEIGHT, BUFFER_SIZE);
+        assertEquals(5, source.getQueuedCount());
+
+        // ... before the release gets to recycle it
+        pipeline.recycle(frame);
+        assertEquals(5, source.getQueuedCount());
+        source.assertNoErrors();
+    }
+
+    @Test
+    public void holdsBackFramesInUseAcrossARestart() {
+        ManualExecutor executor = new ManualExecutor();
+        FramePipeline pipeline = new FramePipeline(0.02f, 8, 4, executor);
+        Recorder analyzer = new Recorder(true);
+        pipeline.addAnalyzer(analyzer, false);
+
+        Source source = new Source(pipeline);
+        pipeline.start(source, WIDTH, HEIGHT, BUFFER_SIZE);
+        assertTrue(source.deliver());
+        executor.runAll();
+
+        pipeline.stop();
+        pipeline.start(source, WIDTH, HEIGHT, BUFFER_SIZE);
+        assertEquals(4, source.getQueuedCount());
+
+        analyzer.mRetained.get(0).release();
+        assertEquals(5, source.getQueuedCount());
+        source.assertNoErrors();
+    }
+
+    @Test(timeout = 60000)
+    public void neverHandsOutABufferTwiceUnderLoad() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        FramePipeline pipeline = new FramePipeline(0f, 1000, 1, executor);
+        Recorder holding = new Recorder(true);
+        Recorder gated = new Recorder(false);
+        pipeline.addAnalyzer(holding, false);
+        pipeline.addAnalyzer(gated, true);
+
+        Source source = new Source(pipeline);
+        int delivered = 0;
+
+        try {
+            for (int session = 0; session < 8; session++) {
+                pipeline.start(source, WIDTH, HEIGHT, BUFFER_SIZE);
+
+                for (int i = 0; i < 500; i++) {
+                    // the Camera waits for a buffer when it has none
+                    while (!source.deliver()) {
+                        holding.releaseOldest();
+                        Thread.yield();
+                    }
+                    delivered++;
+
+                    if (i % 3 == 0) {
+                        holding.releaseOldest();
+                    }
+                }
+
+                pipeline.stop();
+            }
+
+            // every buffer comes back once the analyzers are done with it
+            pipeline.start(source, WIDTH, HEIGHT, BUFFER_SIZE);
+            while (source.getQueuedCount() < 6) {
+                holding.releaseOldest();
+                Thread.sleep(1);
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals(6, source.getQueuedCount());
+        source.assertNoErrors();
+        holding.assertNoErrors();
+        gated.assertNoErrors();
+        assertTrue(holding.mSequences.size() > 0 && holding.mSequences.size() <= delivered);
+        assertTrue(gated.mSequences.size() > 0);
+    }
+
+
+    /**
+     * Stands in for the Camera: fills queued buffers with a running count and delivers them.
+     */
+    private static class Source implements FramePipeline.FrameSource {
+        private final FramePipeline mPipeline;
+        private final Deque<byte[]> mQueued = new ArrayDeque<>();
+        private final List<String> mErrors = new ArrayList<>();
+        private FramePipeline mCallback;
+        private int mCount;
+
+        Source(FramePipeline pipeline) {
+            mPipeline = pipeline;
+        }
+
+        @Override
+        public synchronized void addCallbackBuffer(byte[] buffer) {
+            for (byte[] queued : mQueued) {
+                if (queued == buffer) {
+                    mErrors.add("buffer queued twice");
+                }
+            }
+            mQueued.add(buffer);
+        }
+
+        @Override
+        public synchronized void setCallback(FramePipeline pipeline) {
+            mCallback = pipeline;
+            if (pipeline == null) {
+                mQueued.clear();
+            }
+        }
+
+        /**
+         * @return Whether a frame was delivered; false if no buffer was queued.
+         */
+        boolean deliver() {
+            byte[] buffer;
+            synchronized (this) {
+                buffer = (mCallback != null) ? mQueued.poll() : null;
+                if (buffer == null) {
+                    return false;
+                }
+            }
+
+            Arrays.fill(buffer, (byte) mCount++);
+            mPipeline.onPreviewFrame(buffer, null);
+            return true;
+        }
+
+        synchronized int getQueuedCount() {
+            return mQueued.size();
+        }
+
+        synchronized void assertNoErrors() {
+            assertEquals(Collections.<String>emptyList(), mErrors);
+        }
+    }
+
+
+    /**
+     * Records the frames it sees and checks that their data doesn't change meanwhile, as it
+     * would if the buffer were refilled by the Camera. Optionally retains every frame.
+     */
+    private static class Recorder implements FrameAnalyzer {
+        final List<Long> mSequences = Collections.synchronizedList(new ArrayList<Long>());
+        final List<Frame> mRetained = Collections.synchronizedList(new ArrayList<Frame>());
+        private final List<String> mErrors = Collections.synchronizedList(new ArrayList<String>());
+        private final boolean mRetain;
+
+        Recorder(boolean retain) {
+            mRetain = retain;
+        }
+
+        @Override
+        public void analyze(Frame frame) {
+            mSequences.add(frame.getSequence());
+            check(frame);
+
+            if (mRetain) {
+                frame.retain();
+                mRetained.add(frame);
+            }
+        }
+
+        /**
+         * Checks and releases the oldest retained frame.
+         *
+         * @return Whether there was one.
+         */
+        boolean releaseOldest() {
+            Frame frame;
+            synchronized (mRetained) {
+                if (mRetained.isEmpty()) {
+                    return false;
+                }
+                frame = mRetained.remove(0);
+            }
+
+            check(frame);
+            frame.release();
+            return true;
+        }
+
+        private void check(Frame frame) {
+            byte[] data = frame.getData();
+            for (byte b : data) {
+                if (b != data[0]) {
+                    mErrors.add("frame " + frame.getSequence() + " overwritten");
+                    return;
+                }
+            }
+        }
+
+        void assertNoErrors() {
+            assertEquals(Collections.<String>emptyList(), mErrors);
+        }
+    }
+
+
+    private static class ManualExecutor implements Executor {
+        private final Deque<Runnable> mTasks = new ArrayDeque<>();
+
+        @Override
+        public void execute(Runnable task) {
+            mTasks.add(task);
+        }
+
+        void runAll() {
+            Runnable task;
+            while ((task = mTasks.poll()) != null) {
+                task.run();
+            }
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2015 Shirish Kamath.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package io.e55.fovea.android.sdk.camera.lib.frame;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+
+/**
+ * Checks the sampling and the histogram queries of {@link LumaStats} on synthetic planes.
+ */
+public class LumaStatsTest {
+
+    private static final float EPSILON = 1e-6f;
+
+    private LumaStats mStats;
+
+
+    @Before
+    public void setUp() {
+        mStats = new LumaStats();
+    }
+
+
+    @Test
+    public void measuresAUniformPlane() {
+        int w = 64, h = 48;
+        byte[] plane = filled(w * h, 128);
+
+        mStats.compute(plane, 0, w, w, h, 1);
+
+        assertEquals(w * h, mStats.getSampleCount());
+        assertEquals(128 / 255f, mStats.getMean(), EPSILON);
+        // the upper edge of the bin of 128
+        assertEquals(136 / 256f, mStats.percentile(0.5f), EPSILON);
+        assertEquals(w * h, mStats.getHistogram()[128 >> 3]);
+    }
+
+    @Test
+    public void splitsATwoToneHistogram() {
+        int w = 32, h = 32;
+        byte[] plane = new byte[w * h];
+        Arrays.fill(plane, w * h / 2, w * h, (byte) 255);
+
+        mStats.compute(plane, 0, w, w, h, 1);
+
+        assertEquals(0.5f, mStats.getMean(), EPSILON);
+        assertEquals(0.5f, mStats.fractionBelow(0.1f), EPSILON);
+        assertEquals(0.5f, mStats.fractionAbove(0.9f), EPSILON);
+        assertEquals(1f, mStats.fractionBelow(1f), EPSILON);
+        assertEquals(1f, mStats.fractionAbove(0f), EPSILON);
+        assertEquals(8 / 256f, mStats.percentile(0.25f), EPSILON);
+        assertEquals(8 / 256f, mStats.percentile(0.5f), EPSILON);
+        assertEquals(1f, mStats.percentile(0.75f), EPSILON);
+    }
+
+    @Test
+    public void samplesOnlyTheGivenRegion() {
+        int stride = 16;
+        byte[] plane = new byte[stride * 16];
+        for (int y = 4; y < 8; y++) {
+            Arrays.fill(plane, y * stride + 8, y * stride + 12, (byte) 200);
+        }
+
+        mStats.compute(plane, 4 * stride + 8, stride, 4, 4, 1);
+        assertEquals(16, mStats.getSampleCount());
+        assertEquals(200 / 255f, mStats.getMean(), EPSILON);
+
+        // the sampling grid is centred: rows and columns 1 and 3
+        mStats.compute(plane, 4 * stride + 8, stride, 4, 4, 2);
+        assertEquals(4, mStats.getSampleCount());
+        assertEquals(200 / 255f, mStats.getMean(), EPSILON);
+    }
+
+    @Test
+    public void spreadsTheTargetSamplesAcrossTheFrame() {
+        int w = 640, h = 480;
+        byte[] plane = new byte[w * h];
+        // only the last row and column are bright; a centred grid of step 8 misses both
+        Arrays.fill(plane, (h - 1) * w, h * w, (byte) 255);
+        for (int y = 0; y < h; y++) {
+            plane[y * w + w - 1] = (byte) 255;
+        }
+
+        mStats.compute(plane, w, h, 4800);
+
+        assertEquals(4800, mStats.getSampleCount());
+        assertEquals(0f, mStats.getMean(), EPSILON);
+    }
+
+    @Test
+    public void weighsArgbChannelsAsBt601() {
+        int[] argb = {0xffffffff, 0xffff0000, 0xff00ff00, 0xff0000ff, 0xff000000};
+
+        mStats.computeArgb(argb, 4);
+
+        assertEquals(4, mStats.getSampleCount());
+        assertEquals((255 + 76 + 149 + 28) / (4 * 255f), mStats.getMean(), EPSILON);
+    }
+
+    @Test
+    public void reportsNothingWithoutSamples() {
+        mStats.compute(filled(16, 255), 0, 4, 4, 4, 1);
+        mStats.computeArgb(new int[0], 0);
+
+        assertEquals(0, mStats.getSampleCount());
+        assertEquals(0f, mStats.getMean(), EPSILON);
+        assertEquals(0f, mStats.percentile(0.5f), EPSILON);
+        assertEquals(0f, mStats.fractionBelow(1f), EPSILON);
+        assertEquals(0f, mStats.fractionAbove(0f), EPSILON);
+    }
+
+
+    private static byte[] filled(int length, int value) {
+        byte[] plane = new byte[length];
+        Arrays.fill(plane, (byte) value);
+        return plane;
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2015 Shirish Kamath.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package io.e55.fovea.android.sdk.camera.lib.frame;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+
+/**
+ * Checks the {@link YPyramid} box filter against a plain reference, and measures its throughput.
+ */
+public class YPyramidTest {
+
+    @Test
+    public void eachLevelIsTheRoundedMeanOfTheOneBefore() {
+        int w = 1920, h = 1080;
+        byte[] plane = randomPlane(w, h, new Random(1));
+        YPyramid pyramid = new YPyramid(plane, w, h);
+
+        assertSame(plane, pyramid.getLevel(0));
+
+        for (int level = 1; level < YPyramid.LEVELS; level++) {
+            byte[] above = pyramid.getLevel(level - 1);
+            byte[] pixels = pyramid.getLevel(level);
+            int aw = pyramid.getWidth(level - 1);
+            int lw = pyramid.getWidth(level), lh = pyramid.getHeight(level);
+
+            assertEquals(w >> level, lw);
+            assertEquals(h >> level, lh);
+
+            for (int y = 0; y < lh; y++) {
+                for (int x = 0; x < lw; x++) {
+                    int sum = (above[2 * y * aw + 2 * x] & 0xff)
+                            + (above[2 * y * aw + 2 * x + 1] & 0xff)
+                            + (above[(2 * y + 1) * aw + 2 * x] & 0xff)
+                            + (above[(2 * y + 1) * aw + 2 * x + 1] & 0xff);
+                    assertEquals(Math.round(sum / 4f), pixels[y * lw + x] & 0xff);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void dropsAnOddLastRowAndColumn() {
+        byte[] src = {
+                10, 20, 99,
+                30, 40, 99,
+                99, 99, 99
+        };
+        byte[] dst = new byte[1];
+
+        YPyramid.downscale(src, 3, 3, dst);
+
+        assertEquals(25, dst[0]);
+    }
+
+    @Test
+    public void buildsEachLevelOncePerFrame() {
+        int w = 64, h = 48;
+        byte[] plane = new byte[w * h];
+        YPyramid pyramid = new YPyramid(plane, w, h);
+
+        byte[] coarse = pyramid.getLevel(3);
+        assertEquals(0, coarse[0]);
+
+        // a level is not rebuilt until the frame is invalidated, and its buffer is reused
+        plane[0] = plane[1] = plane[w] = plane[w + 1] = (byte) 200;
+        assertEquals(0, pyramid.getLevel(1)[0]);
+
+        pyramid.invalidate();
+        assertSame(coarse, pyramid.getLevel(3));
+        assertEquals(200, pyramid.getLevel(1)[0] & 0xff);
+        assertNotSame(pyramid.getLevel(1), pyramid.getLevel(2));
+    }
+
+    @Test
+    public void picksTheSmallestSufficientLevel() {
+        YPyramid pyramid = new YPyramid(new byte[1920 * 1080], 1920, 1080);
+
+        assertEquals(3, pyramid.levelFor(160));
+        assertEquals(3, pyramid.levelFor(240));
+        assertEquals(2, pyramid.levelFor(241));
+        assertEquals(1, pyramid.levelFor(960));
+        assertEquals(0, pyramid.levelFor(4000));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvalidLevels() {
+        new YPyramid(new byte[16], 4, 4).getLevel(YPyramid.LEVELS);
+    }
+
+    @Test
+    public void benchmark() {
+        int w = 1920, h = 1080;
+        byte[] plane = randomPlane(w, h, new Random(2));
+        byte[] half = new byte[(w / 2) * (h / 2)];
+        YPyramid pyramid = new YPyramid(plane, w, h);
+
+        for (int i = 0; i < 20; i++) {
+            YPyramid.downscale(plane, w, h, half);
+            pyramid.invalidate();
+            pyramid.getLevel(YPyramid.LEVELS - 1);
+        }
+
+        int runs = 50;
+        long start = System.nanoTime();
+        for (int i = 0; i < runs; i++) {
+            YPyramid.downscale(plane, w, h, half);
+        }
+        long halfNanos = (System.nanoTime() - start) / runs;
+
+        start = System.nanoTime();
+        for (int i = 0; i < runs; i++) {
+            pyramid.invalidate();
+            pyramid.getLevel(YPyramid.LEVELS - 1);
+        }
+        long pyramidNanos = (System.nanoTime() - start) / runs;
+
+        System.out.printf("YPyramid %dx%d: 1/2 level in %.2f ms (%.0f Mpx/s), "
+                        + "all levels in %.2f ms%n", w, h, halfNanos / 1e6,
+                w * h * 1e3 / halfNanos, pyramidNanos / 1e6);
+    }
+
+
+    private static byte[] randomPlane(int w, int h, Random random) {
+        byte[] plane = new byte[w * h];
+        random.nextBytes(plane);
+        return plane;
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2015 Shirish Kamath.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package io.e55.fovea.android.sdk.camera.lib.image;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+
+/**
+ * Checks crops, rotations and reductions of {@link GrayTransform} against plain references,
+ * and measures its throughput on a preview frame.
+ */
+public class GrayTransformTest {
+
+    @Test
+    public void copiesAnUnscaledCrop() {
+        int w = 64, h = 48;
+        byte[] src = random(w, h, new Random(1));
+
+        GrayTransform transform = new GrayTransform(5, 7, 40, 30, 1f, 0);
+        byte[] dst = transform(transform, src, w, h);
+
+        assertEquals(40, transform.getWidth());
+        assertEquals(30, transform.getHeight());
+        for (int y = 0; y < 30; y++) {
+            for (int x = 0; x < 40; x++) {
+                assertEquals(src[(7 + y) * w + 5 + x], dst[y * 40 + x]);
+            }
+        }
+    }
+
+    @Test
+    public void rotatesClockwise() {
+        int w = 37, h = 23;
+        byte[] src = random(w, h, new Random(2));
+
+        for (int rotation = 0; rotation < 360; rotation += 90) {
+            GrayTransform transform = new GrayTransform(0, 0, w, h, 1f, rotation);
+            byte[] dst = transform(transform, src, w, h);
+            int dw = transform.getWidth();
+
+            assertEquals((rotation % 180 == 0) ? w : h, dw);
+
+            for (int y = 0; y < h; y++) {
+                for (int x = 0; x < w; x++) {
+                    // where the source pixel ends up after turning the image clockwise
+                    int col, row;
+                    switch (rotation) {
+                        case 90:
+                            col = h - 1 - y;
+                            row = x;
+                            break;
+                        case 180:
+                            col = w - 1 - x;
+                            row = h - 1 - y;
+                            break;
+                        case 270:
+                            col = y;
+                            row = w - 1 - x;
+                            break;
+                        default:
+                            col = x;
+                            row = y;
+                            break;
+                    }
+                    assertEquals("rotation " + rotation, src[y * w + x], dst[row * dw + col]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void halvesIntoBoxAverages() {
+        int w = 64, h = 48;
+        byte[] src = random(w, h, new Random(3));
+
+        byte[] dst = transform(new GrayTransform(0, 0, w, h, 0.5f, 0), src, w, h);
+
+        for (int y = 0; y < h / 2; y++) {
+            for (int x = 0; x < w / 2; x++) {
+                int p = 2 * y * w + 2 * x;
+                float mean = ((src[p] & 0xff) + (src[p + 1] & 0xff) + (src[p + w] & 0xff)
+                        + (src[p + w + 1] & 0xff)) / 4f;
+                assertEquals(mean, dst[y * (w / 2) + x] & 0xff, 1f);
+            }
+        }
+    }
+
+    @Test
+    public void doesNotAliasStrongReductions() {
+        // a one-pixel checkerboard; sampling without filtering turns it all black or white
+        int w = 640, h = 480;
+        byte[] src = new byte[w * h];
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                src[y * w + x] = ((x + y) % 2 == 0) ? (byte) 255 : 0;
+            }
+        }
+
+        GrayTransform transform = new GrayTransform(0, 0, w, h, 0.1f, 90);
+        byte[] dst = transform(transform, src, w, h);
+
+        assertEquals(48, transform.getWidth());
+        assertEquals(64, transform.getHeight());
+        for (byte v : dst) {
+            assertEquals(127.5f, v & 0xff, 1f);
+        }
+    }
+
+    @Test
+    public void bandsMatchASingleThread() {
+        int w = 640, h = 480;
+        byte[] src = JpegEncoderTest.page(w, h, new Random(4));
+        GrayTransform transform = new GrayTransform(31, 17, 500, 420, 0.73f, 270);
+
+        byte[] serial = new byte[transform.getWidth() * transform.getHeight()];
+        transform.transform(src, w, h, serial, null, 1);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            byte[] parallel = new byte[serial.length];
+            transform.transform(src, w, h, parallel, executor, 4);
+            assertArrayEquals(serial, parallel);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsACropOutOfBounds() {
+        transform(new GrayTransform(10, 0, 60, 48, 1f, 0), new byte[64 * 48], 64, 48);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsOddRotations() {
+        new GrayTransform(0, 0, 64, 48, 1f, 45);
+    }
+
+    @Test
+    public void benchmark() {
+        int w = 1920, h = 1080;
+        byte[] src = JpegEncoderTest.page(w, h, new Random(5));
+        GrayTransform transform = new GrayTransform(0, 0, w, h, 0.75f, 90);
+        byte[] dst = new byte[transform.getWidth() * transform.getHeight()];
+
+        for (int i = 0; i < 10; i++) {
+            transform.transform(src, w, h, dst, null, 1);
+        }
+
+        int runs = 20;
+        long start = System.nanoTime();
+        for (int i = 0; i < runs; i++) {
+            transform.transform(src, w, h, dst, null, 1);
+        }
+        long nanos = (System.nanoTime() - start) / runs;
+
+        System.out.printf("GrayTransform %dx%d to %dx%d, rotated: %.2f ms (%.0f Mpx/s)%n", w, h,
+                transform.getWidth(), transform.getHeight(), nanos / 1e6,
+                dst.length * 1e3 / nanos);
+    }
+
+
+    private static byte[] transform(GrayTransform transform, byte[] src, int w, int h) {
+        byte[] dst = new byte[transform.getWidth() * transform.getHeight()];
+        transform.transform(src, w, h, dst, null, 1);
+        return dst;
+    }
+
+    private static byte[] random(int w, int h, Random random) {
+        byte[] pixels = new byte[w * h];
+        random.nextBytes(pixels);
+        return pixels;
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright (c) 2015 Shirish Kamath.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package io.e55.fovea.android.sdk.camera.lib.image;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Decodes the output of {@link JpegEncoder} with ImageIO and compares it to the source image,
+ * and measures the encoder's throughput.
+ */
+public class JpegEncoderTest {
+
+    @Test
+    public void grayDecodesCloseToTheSource() throws IOException {
+        int w = 333, h = 217;
+        byte[] gray = page(w, h, new Random(1));
+
+        BufferedImage image = decode(encodeGray(new JpegEncoder(90), gray, w, h));
+
+        assertEquals(w, image.getWidth());
+        assertEquals(h, image.getHeight());
+
+        // ImageIO's own encoder reaches 37.6 dB on this image at the same quality
+        double psnr = psnr(gray, luma(image), w * h);
+        assertTrue("PSNR " + psnr, psnr > 37);
+    }
+
+    @Test
+    public void colorDecodesCloseToTheSource() throws IOException {
+        int w = 320, h = 240;
+        int cw = (w + 1) / 2, ch = (h + 1) / 2;
+        byte[] y = page(w, h, new Random(2));
+        byte[] cb = new byte[cw * ch];
+        byte[] cr = new byte[cw * ch];
+        for (int row = 0; row < ch; row++) {
+            for (int col = 0; col < cw; col++) {
+                cb[row * cw + col] = (byte) (128 + 40 * col / cw);
+                cr[row * cw + col] = (byte) (160 - 50 * row / ch);
+            }
+        }
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        new JpegEncoder(92).encodeYCbCr(y, cb, cr, w, h, os);
+        BufferedImage image = decode(os.toByteArray());
+
+        // the JFIF conversion of the source, against the decoded RGB
+        byte[] expected = new byte[w * h * 3];
+        byte[] actual = new byte[w * h * 3];
+        for (int row = 0; row < h; row++) {
+            for (int col = 0; col < w; col++) {
+                int i = row * w + col;
+                int c = (row / 2) * cw + col / 2;
+                float l = y[i] & 0xff;
+                float b = (cb[c] & 0xff) - 128f;
+                float r = (cr[c] & 0xff) - 128f;
+
+                expected[i * 3] = clamp(l + 1.402f * r);
+                expected[i * 3 + 1] = clamp(l - 0.344136f * b - 0.714136f * r);
+                expected[i * 3 + 2] = clamp(l + 1.772f * b);
+
+                int rgb = image.getRGB(col, row);
+                actual[i * 3] = (byte) (rgb >> 16);
+                actual[i * 3 + 1] = (byte) (rgb >> 8);
+                actual[i * 3 + 2] = (byte) rgb;
+            }
+        }
+
+        double psnr = psnr(expected, actual, expected.length);
+        assertTrue("PSNR " + psnr, psnr > 32);
+    }
+
+    @Test
+    public void higherQualityIsLargerAndCloser() throws IOException {
+        int w = 256, h = 256;
+        byte[] gray = page(w, h, new Random(3));
+
+        byte[] low = encodeGray(new JpegEncoder(40), gray, w, h);
+        byte[] high = encodeGray(new JpegEncoder(95), gray, w, h);
+
+        assertTrue(low.length < high.length);
+        assertTrue(psnr(gray, luma(decode(low)), w * h) < psnr(gray, luma(decode(high)), w * h));
+    }
+
+    @Test
+    public void bandsMatchASingleThread() throws IOException {
+        int w = 640, h = 480;
+        byte[] gray = page(w, h, new Random(4));
+        JpegEncoder encoder = new JpegEncoder(85);
+
+        ByteArrayOutputStream serial = new ByteArrayOutputStream();
+        ByteArrayOutputStream parallel = new ByteArrayOutputStream();
+        encoder.encodeGray(gray, w, h, serial, null, 1);
+        encoder.encodeGray(gray, w, h, parallel, RowBands.getExecutor(), 8);
+
+        assertArrayEquals(serial.toByteArray(), parallel.toByteArray());
+    }
+
+    @Test
+    public void estimatesTheEncodedSize() throws IOException {
+        int w = 1024, h = 768;
+        byte[] gray = page(w, h, new Random(5));
+        JpegEncoder encoder = new JpegEncoder(80);
+
+        int size = encodeGray(encoder, gray, w, h).length;
+        int estimate = encoder.estimateGray(gray, w, h, JpegQualitySearch.SAMPLE_STEP);
+
+        assertTrue(size + " estimated as " + estimate, Math.abs(estimate - size) < size * 0.15);
+    }
+
+    @Test
+    public void benchmark() throws IOException {
+        int w = 1920, h = 1080;
+        byte[] y = page(w, h, new Random(6));
+        byte[] chroma = new byte[(w / 2) * (h / 2)];
+        Arrays.fill(chroma, (byte) 128);
+        JpegEncoder encoder = new JpegEncoder(85);
+        ByteArrayOutputStream os = new ByteArrayOutputStream(1 << 20);
+
+        for (int i = 0; i < 3; i++) {
+            os.reset();
+            encoder.encodeYCbCr(y, chroma, chroma, w, h, os, null, 1);
+            os.reset();
+            encoder.encodeYCbCr(y, chroma, chroma, w, h, os);
+        }
+
+        int runs = 5;
+        long start = System.nanoTime();
+        for (int i = 0; i < runs; i++) {
+            os.reset();
+            encoder.encodeYCbCr(y, chroma, chroma, w, h, os, null, 1);
+        }
+        long serial = (System.nanoTime() - start) / runs;
+
+        start = System.nanoTime();
+        for (int i = 0; i < runs; i++) {
+            os.reset();
+            encoder.encodeYCbCr(y, chroma, chroma, w, h, os);
+        }
+        long parallel = (System.nanoTime() - start) / runs;
+
+        System.out.printf("JpegEncoder %dx%d 4:2:0: %.1f ms on 1 thread, %.1f ms in %d bands, "
+                + "%d bytes%n", w, h, serial / 1e6, parallel / 1e6, RowBands.getParallelism(),
+                os.size());
+    }
+
+
+    private static byte[] encodeGray(JpegEncoder encoder, byte[] gray, int w, int h)
+            throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        encoder.encodeGray(gray, w, h, os);
+        return os.toByteArray();
+    }
+
+    private static BufferedImage decode(byte[] jpeg) throws IOException {
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(jpeg));
+        assertTrue("not decodable", image != null);
+        return image;
+    }
+
+    private static byte[] luma(BufferedImage image) {
+        int w = image.getWidth(), h = image.getHeight();
+        byte[] pixels = new byte[w * h];
+        image.getRaster().getDataElements(0, 0, w, h, pixels);
+        return pixels;
+    }
+
+    static double psnr(byte[] a, byte[] b, int n) {
+        double sum = 0;
+        for (int i = 0; i < n; i++) {
+            int d = (a[i] & 0xff) - (b[i] & 0xff);
+            sum += d * d;
+        }
+        return 10 * Math.log10(255.0 * 255.0 / Math.max(1e-9, sum / n));
+    }
+
+    private static byte clamp(float v) {
+        return (byte) Math.max(0, Math.min(255, Math.round(v)));
+    }
+
+    /**
+     * @return A photographed page: soft shading, lines of text-like marks and sensor noise.
+     */
+    static byte[] page(int w, int h, Random random) {
+        byte[] pixels = new byte[w * h];
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                double v = 200 - 40.0 * (x + y) / (w + h);
+                if ((y % 14) >= 4 && (y % 14) < 11 && ((x / 3) * 7 + y / 14) % 4 != 0) {
+                    v -= 110;
+                }
+                v += random.nextGaussian() * 2;
+                pixels[y * w + x] = (byte) Math.max(0, Math.min(255, (int) Math.round(v)));
+            }
+        }
+        return pixels;
+    }
+}
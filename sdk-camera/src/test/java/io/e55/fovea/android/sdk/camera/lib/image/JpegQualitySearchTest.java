@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2015 Shirish Kamath.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package io.e55.fovea.android.sdk.camera.lib.image;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Searches the quality for byte budgets of a synthetic page with the search limits of
+ * `camera.xml`, and checks the encoded files against the budgets.
+ */
+public class JpegQualitySearchTest {
+
+    private static final int MIN_QUALITY = 30;
+    private static final int MAX_QUALITY = 80;
+    private static final int ITERATIONS = 7;
+
+    // generous, so that the results do not depend on the speed of the machine
+    private static final long MILLIS = 60000;
+
+    private static final int WIDTH = 960;
+    private static final int HEIGHT = 1280;
+
+    private final byte[] mPage = JpegEncoderTest.page(WIDTH, HEIGHT, new Random(1));
+
+
+    @Test
+    public void convergesOnTheBudget() throws IOException {
+        for (int targetQuality : new int[]{40, 55, 70}) {
+            int target = encodedSize(targetQuality);
+
+            JpegQualitySearch search = new JpegQualitySearch(target, MIN_QUALITY, MAX_QUALITY,
+                    ITERATIONS, MILLIS);
+            int quality = search.searchGray(mPage, WIDTH, HEIGHT);
+            int size = encodedSize(quality);
+
+            System.out.printf("JpegQualitySearch %d B: quality %d (%d B, estimated %d B) "
+                            + "after %d estimates%n", target, quality, size, search.getEstimate(),
+                    search.getIterations());
+
+            // within the budget, and not far below it
+            assertTrue(size + " > " + target, size <= target);
+            assertTrue(quality + " for " + targetQuality, quality >= targetQuality - 5);
+            assertTrue(search.getIterations() <= ITERATIONS);
+        }
+    }
+
+    @Test
+    public void estimatesCloseToTheFile() throws IOException {
+        for (int quality = MIN_QUALITY; quality <= MAX_QUALITY; quality += 10) {
+            int estimate = new JpegEncoder(quality).estimateGray(mPage, WIDTH, HEIGHT,
+                    JpegQualitySearch.SAMPLE_STEP);
+            int size = encodedSize(quality);
+
+            assertEquals("quality " + quality, size, estimate, 0.05 * size);
+        }
+    }
+
+    @Test
+    public void takesTheHighestQualityIfItFits() throws IOException {
+        JpegQualitySearch search = new JpegQualitySearch(10 * encodedSize(MAX_QUALITY),
+                MIN_QUALITY, MAX_QUALITY, ITERATIONS, MILLIS);
+
+        assertEquals(MAX_QUALITY, search.searchGray(mPage, WIDTH, HEIGHT));
+        assertEquals(1, search.getIterations());
+    }
+
+    @Test
+    public void fallsBackToTheLowestQuality() {
+        JpegQualitySearch search = new JpegQualitySearch(1000, MIN_QUALITY, MAX_QUALITY,
+                ITERATIONS, MILLIS);
+
+        assertEquals(MIN_QUALITY, search.searchGray(mPage, WIDTH, HEIGHT));
+        assertEquals(0, search.getEstimate());
+    }
+
+    @Test
+    public void stopsAfterTheMaximumEstimates() throws IOException {
+        JpegQualitySearch search = new JpegQualitySearch(encodedSize(55), MIN_QUALITY,
+                MAX_QUALITY, 3, MILLIS);
+        int quality = search.searchGray(mPage, WIDTH, HEIGHT);
+
+        assertEquals(3, search.getIterations());
+        assertTrue(encodedSize(quality) <= encodedSize(55));
+    }
+
+    @Test
+    public void meetsTheBudgetInColor() throws IOException {
+        byte[] cb = new byte[(WIDTH / 2) * (HEIGHT / 2)];
+        byte[] cr = new byte[cb.length];
+        for (int i = 0; i < cb.length; i++) {
+            cb[i] = (byte) (128 + i % 7);
+            cr[i] = (byte) (128 - i % 5);
+        }
+
+        int target = encodedSize(60);
+        JpegQualitySearch search = new JpegQualitySearch(target, MIN_QUALITY, MAX_QUALITY,
+                ITERATIONS, MILLIS);
+        int quality = search.searchYCbCr(mPage, cb, cr, WIDTH, HEIGHT);
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        new JpegEncoder(quality).encodeYCbCr(mPage, cb, cr, WIDTH, HEIGHT, os);
+        assertTrue(os.size() + " > " + target, os.size() <= target);
+        assertTrue(quality > MIN_QUALITY);
+    }
+
+
+    private int encodedSize(int quality) throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        new JpegEncoder(quality).encodeGray(mPage, WIDTH, HEIGHT, os);
+        return os.size();
+    }
+}
@@ -0,0 +1,339 @@
+/*
+ * Copyright (c) 2015 Shirish Kamath.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package io.e55.fovea.android.sdk.camera.lib.image;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Compares the output of {@link JpegTranscoder} with the same crop, rotation and downscale
+ * applied to the decoded pixels of the source, and measures its throughput.
+ */
+public class JpegTranscoderTest {
+
+    private static final int[] ROTATIONS = {0, 90, 180, 270};
+
+
+    @Test
+    public void cropsAndRotatesGrayLosslessly() throws IOException {
+        int w = 320, h = 240;
+        byte[] jpeg = encodeGray(JpegEncoderTest.page(w, h, new Random(1)), w, h, 85);
+        int[] source = pixels(decode(jpeg));
+        JpegTranscoder transcoder = new JpegTranscoder(jpeg);
+
+        for (int rotation : ROTATIONS) {
+            int left = 48, top = 32, cw = 200, ch = 160;
+            JpegTranscoder.Transform transform =
+                    transcoder.newTransform(left, top, cw, ch, rotation, 0, false);
+            int[] expected = rotate(crop(source, w, left, top, cw, ch), cw, ch, rotation);
+            BufferedImage actual = decode(write(transform));
+
+            assertEquals(size(cw, ch, rotation)[0], actual.getWidth());
+            assertEquals(size(cw, ch, rotation)[1], actual.getHeight());
+
+            // the same coefficients, give or take the rounding of a transposed IDCT
+            double psnr = psnr(expected, pixels(actual));
+            assertTrue(rotation + " degrees: PSNR " + psnr, psnr > 45);
+        }
+    }
+
+    @Test
+    public void cropsAndRotatesColor() throws IOException {
+        int w = 320, h = 240;
+        byte[] jpeg = encodeRgb(colorPage(w, h, new Random(2)), 90);
+        int[] source = pixels(decode(jpeg));
+        JpegTranscoder transcoder = new JpegTranscoder(jpeg);
+
+        assertEquals(3, transcoder.getComponentCount());
+        assertEquals(16, transcoder.getMcuWidth());
+
+        for (int rotation : ROTATIONS) {
+            int left = 32, top = 16, cw = 224, ch = 192;
+            JpegTranscoder.Transform transform =
+                    transcoder.newTransform(left, top, cw, ch, rotation, 0, false);
+            int[] expected = rotate(crop(source, w, left, top, cw, ch), cw, ch, rotation);
+            int[] actual = pixels(decode(write(transform)));
+
+            // chroma is upsampled from different neighbours along the new edges
+            int[] size = size(cw, ch, rotation);
+            double psnr = psnr(trim(expected, size[0], size[1], 2),
+                    trim(actual, size[0], size[1], 2));
+            assertTrue(rotation + " degrees: PSNR " + psnr, psnr > 40);
+        }
+    }
+
+    @Test
+    public void downscalesCloseToABoxFilter() throws IOException {
+        int w = 512, h = 384;
+        byte[] jpeg = encodeGray(JpegEncoderTest.page(w, h, new Random(3)), w, h, 90);
+        int[] source = pixels(decode(jpeg));
+        JpegTranscoder transcoder = new JpegTranscoder(jpeg);
+
+        for (int shift = 1; shift <= 3; shift++) {
+            JpegTranscoder.Transform transform =
+                    transcoder.newTransform(0, 0, w, h, 90, shift, true);
+            int[] expected = rotate(downscale(source, w, h, 1 << shift), w >> shift, h >> shift,
+                    90);
+            int[] actual = pixels(decode(write(transform)));
+
+            assertEquals(h >> shift, transform.getWidth());
+            assertEquals(w >> shift, transform.getHeight());
+
+            double psnr = psnr(expected, actual);
+            assertTrue("1/" + (1 << shift) + ": PSNR " + psnr, psnr > 28);
+        }
+    }
+
+    @Test
+    public void quarterTurnsAddUp() throws IOException {
+        int w = 256, h = 192;
+        byte[] jpeg = encodeRgb(colorPage(w, h, new Random(4)), 85);
+
+        byte[] turned = jpeg;
+        for (int i = 0; i < 4; i++) {
+            JpegTranscoder transcoder = new JpegTranscoder(turned);
+            turned = write(transcoder.newTransform(0, 0, transcoder.getWidth(),
+                    transcoder.getHeight(), 90, 0, false));
+        }
+
+        // four lossless quarter turns give back the very same pixels
+        assertArrayEquals(pixels(decode(jpeg)), pixels(decode(turned)));
+    }
+
+    @Test
+    public void singleThreadMatchesBands() throws IOException {
+        int w = 640, h = 480;
+        byte[] jpeg = encodeRgb(colorPage(w, h, new Random(5)), 90);
+        JpegTranscoder.Transform transform =
+                new JpegTranscoder(jpeg).newTransform(16, 16, 600, 400, 270, 1, false);
+
+        ByteArrayOutputStream serial = new ByteArrayOutputStream();
+        ByteArrayOutputStream parallel = new ByteArrayOutputStream();
+        transform.write(serial, null, 1);
+        transform.write(parallel, RowBands.getExecutor(), 8);
+
+        assertArrayEquals(serial.toByteArray(), parallel.toByteArray());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsTruncatedJpegs() throws IOException {
+        byte[] jpeg = encodeGray(JpegEncoderTest.page(64, 64, new Random(6)), 64, 64, 80);
+        byte[] truncated = new byte[jpeg.length / 2];
+        System.arraycopy(jpeg, 0, truncated, 0, truncated.length);
+
+        new JpegTranscoder(truncated);
+    }
+
+    @Test
+    public void benchmark() throws IOException {
+        int w = 2048, h = 1536;
+        byte[] jpeg = encodeRgb(colorPage(w, h, new Random(7)), 90);
+
+        for (int i = 0; i < 3; i++) {
+            transcode(jpeg, 0);
+            transcode(jpeg, 3);
+        }
+
+        int runs = 5;
+        long start = System.nanoTime();
+        for (int i = 0; i < runs; i++) {
+            transcode(jpeg, 0);
+        }
+        long rotate = (System.nanoTime() - start) / runs;
+
+        start = System.nanoTime();
+        for (int i = 0; i < runs; i++) {
+            transcode(jpeg, 3);
+        }
+        long thumbnail = (System.nanoTime() - start) / runs;
+
+        System.out.printf("JpegTranscoder %dx%d, %d bytes: rotated in %.1f ms, "
+                        + "1/8 thumbnail in %.1f ms%n", w, h, jpeg.length, rotate / 1e6,
+                thumbnail / 1e6);
+    }
+
+
+    private static void transcode(byte[] jpeg, int shift) throws IOException {
+        JpegTranscoder transcoder = new JpegTranscoder(jpeg);
+        transcoder.newTransform(0, 0, transcoder.getWidth(), transcoder.getHeight(), 90,
+                shift, false).write(new ByteArrayOutputStream());
+    }
+
+    private static byte[] write(JpegTranscoder.Transform transform) throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        transform.write(os);
+        return os.toByteArray();
+    }
+
+    static byte[] encodeGray(byte[] gray, int w, int h, int quality)
+            throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        new JpegEncoder(quality).encodeGray(gray, w, h, os);
+        return os.toByteArray();
+    }
+
+    /**
+     * Encodes with ImageIO, as 4:2:0 YCbCr without restart markers.
+     */
+    private static byte[] encodeRgb(BufferedImage image, int quality) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(quality / 100f);
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        ImageOutputStream ios = ImageIO.createImageOutputStream(os);
+        writer.setOutput(ios);
+        writer.write(null, new IIOImage(image, null, null), param);
+        ios.close();
+        writer.dispose();
+
+        return os.toByteArray();
+    }
+
+    private static BufferedImage decode(byte[] jpeg) throws IOException {
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(jpeg));
+        assertTrue("not decodable", image != null);
+        return image;
+    }
+
+    private static BufferedImage colorPage(int w, int h, Random random) {
+        byte[] luma = JpegEncoderTest.page(w, h, random);
+        BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                int v = luma[y * w + x] & 0xff;
+                // warm paper under a cool light from the left
+                int r = Math.min(255, v + 10 * x / w);
+                int b = Math.max(0, v - 20 + 20 * x / w);
+                image.setRGB(x, y, (r << 16) | (v << 8) | b);
+            }
+        }
+        return image;
+    }
+
+    /**
+     * @return RGB of every pixel, row by row.
+     */
+    private static int[] pixels(BufferedImage image) {
+        int w = image.getWidth(), h = image.getHeight();
+        return image.getRGB(0, 0, w, h, null, 0, w);
+    }
+
+    private static int[] crop(int[] src, int w, int left, int top, int cw, int ch) {
+        int[] dst = new int[cw * ch];
+        for (int y = 0; y < ch; y++) {
+            System.arraycopy(src, (top + y) * w + left, dst, y * cw, cw);
+        }
+        return dst;
+    }
+
+    /**
+     * Rotates clockwise by `rotation` degrees.
+     */
+    private static int[] rotate(int[] src, int w, int h, int rotation) {
+        int[] size = size(w, h, rotation);
+        int[] dst = new int[src.length];
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                int dx = x, dy = y;
+                if (rotation == 90) {
+                    dx = h - 1 - y;
+                    dy = x;
+                } else if (rotation == 180) {
+                    dx = w - 1 - x;
+                    dy = h - 1 - y;
+                } else if (rotation == 270) {
+                    dx = y;
+                    dy = w - 1 - x;
+                }
+                dst[dy * size[0] + dx] = src[y * w + x];
+            }
+        }
+        return dst;
+    }
+
+    private static int[] size(int w, int h, int rotation) {
+        return (rotation == 90 || rotation == 270) ? new int[]{h, w} : new int[]{w, h};
+    }
+
+    /**
+     * Box-filters the green channel of `src` by `scale`, as gray RGB.
+     */
+    private static int[] downscale(int[] src, int w, int h, int scale) {
+        int dw = w / scale, dh = h / scale;
+        int[] dst = new int[dw * dh];
+        for (int y = 0; y < dh; y++) {
+            for (int x = 0; x < dw; x++) {
+                int sum = 0;
+                for (int j = 0; j < scale; j++) {
+                    for (int i = 0; i < scale; i++) {
+                        sum += (src[(y * scale + j) * w + x * scale + i] >> 8) & 0xff;
+                    }
+                }
+                int v = (sum + scale * scale / 2) / (scale * scale);
+                dst[y * dw + x] = (v << 16) | (v << 8) | v;
+            }
+        }
+        return dst;
+    }
+
+    /**
+     * @return The pixels more than `border` pixels away from the edges.
+     */
+    private static int[] trim(int[] src, int w, int h, int border) {
+        return crop(src, w, border, border, w - 2 * border, h - 2 * border);
+    }
+
+    /**
+     * PSNR over the RGB channels.
+     */
+    private static double psnr(int[] a, int[] b) {
+        assertEquals(a.length, b.length);
+        double sum = 0;
+        for (int i = 0; i < a.length; i++) {
+            for (int shift = 0; shift < 24; shift += 8) {
+                int d = ((a[i] >> shift) & 0xff) - ((b[i] >> shift) & 0xff);
+                sum += d * d;
+            }
+        }
+        return 10 * Math.log10(255.0 * 255.0 / Math.max(1e-9, sum / (a.length * 3)));
+    }
+}
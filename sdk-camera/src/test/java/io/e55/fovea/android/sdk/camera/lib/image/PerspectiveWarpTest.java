@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2015 Shirish Kamath.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package io.e55.fovea.android.sdk.camera.lib.image;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Checks {@link PerspectiveWarp} on synthetic images, and measures its throughput.
+ */
+public class PerspectiveWarpTest {
+
+    @Test
+    public void copiesTheWholeImageUnchanged() {
+        int w = 97, h = 61;
+        int[] src = randomArgb(w, h, new Random(3));
+        PerspectiveWarp warp = new PerspectiveWarp(new float[]{0, 0, w, 0, w, h, 0, h}, 1000);
+
+        int[] dst = new int[w * h];
+        warp.warp(src, w, h, dst, null, 1);
+
+        assertEquals(w, warp.getWidth());
+        assertEquals(h, warp.getHeight());
+
+        // pixel centres map onto pixel centres, up to the rounding of the weights
+        for (int i = 0; i < src.length; i++) {
+            for (int shift = 0; shift < 32; shift += 8) {
+                int expected = (src[i] >> shift) & 0xff;
+                int actual = (dst[i] >> shift) & 0xff;
+                assertTrue("pixel " + i, Math.abs(expected - actual) <= 2);
+            }
+        }
+    }
+
+    @Test
+    public void rectifiesASkewedPage() {
+        int w = 400, h = 300;
+
+        // a parallelogram, whose inverse mapping is easy to compute for reference
+        float ox = 60, oy = 40, ax = 260, ay = 30, bx = 40, by = 220;
+        float[] corners = {ox, oy, ox + ax, oy + ay, ox + ax + bx, oy + ay + by, ox + bx, oy + by};
+        float det = ax * by - ay * bx;
+
+        int[] src = new int[w * h];
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                float px = x + 0.5f - ox, py = y + 0.5f - oy;
+                float u = (px * by - py * bx) / det;
+                float v = (ax * py - ay * px) / det;
+                src[y * w + x] = gray(pattern(u, v));
+            }
+        }
+
+        PerspectiveWarp warp = new PerspectiveWarp(corners, 1000);
+        int ow = warp.getWidth(), oh = warp.getHeight();
+        int[] dst = new int[ow * oh];
+        warp.warp(src, w, h, dst);
+
+        long error = 0;
+        for (int row = 0; row < oh; row++) {
+            for (int col = 0; col < ow; col++) {
+                int expected = pattern((col + 0.5f) / ow, (row + 0.5f) / oh);
+                error += Math.abs((dst[row * ow + col] & 0xff) - expected);
+            }
+        }
+
+        float meanError = error / (float) (ow * oh);
+        assertTrue("mean error " + meanError, meanError < 2f);
+    }
+
+    @Test
+    public void mapsTheCornersOfAPerspectiveQuad() {
+        int w = 320, h = 240;
+        float[] corners = {50, 30, 290, 60, 260, 220, 70, 200};
+
+        // a distinct shade around each corner, mid gray elsewhere
+        byte[] src = new byte[w * h];
+        Arrays.fill(src, (byte) 128);
+        for (int c = 0; c < 4; c++) {
+            for (int y = 0; y < h; y++) {
+                for (int x = 0; x < w; x++) {
+                    float dx = x + 0.5f - corners[c * 2], dy = y + 0.5f - corners[c * 2 + 1];
+                    if (dx * dx + dy * dy < 100) {
+                        src[y * w + x] = (byte) (40 * c + 10);
+                    }
+                }
+            }
+        }
+
+        PerspectiveWarp warp = new PerspectiveWarp(corners, 200);
+        int ow = warp.getWidth(), oh = warp.getHeight();
+        byte[] dst = new byte[ow * oh];
+        warp.warp(src, w, h, dst);
+
+        assertEquals(10, dst[0] & 0xff);
+        assertEquals(50, dst[ow - 1] & 0xff);
+        assertEquals(90, dst[ow * oh - 1] & 0xff);
+        assertEquals(130, dst[(oh - 1) * ow] & 0xff);
+        assertEquals(128, dst[(oh / 2) * ow + ow / 2] & 0xff);
+    }
+
+    @Test
+    public void boundsTheOutputSize() {
+        PerspectiveWarp warp = new PerspectiveWarp(
+                new float[]{0, 0, 3000, 0, 3000, 2000, 0, 2000}, 1500);
+
+        assertEquals(1500, warp.getWidth());
+        assertEquals(1000, warp.getHeight());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsDegenerateQuads() {
+        new PerspectiveWarp(new float[]{0, 0, 10, 10, 20, 20, 30, 30}, 100);
+    }
+
+    @Test
+    public void bandsMatchASingleThread() {
+        int w = 640, h = 480;
+        int[] src = randomArgb(w, h, new Random(5));
+        PerspectiveWarp warp = new PerspectiveWarp(
+                new float[]{40, 20, 600, 50, 580, 460, 30, 430}, 512);
+
+        int[] serial = new int[warp.getWidth() * warp.getHeight()];
+        int[] parallel = new int[serial.length];
+        warp.warp(src, w, h, serial, null, 1);
+        warp.warp(src, w, h, parallel, RowBands.getExecutor(), 8);
+
+        assertArrayEquals(serial, parallel);
+    }
+
+    @Test
+    public void benchmark() {
+        int w = 2048, h = 1536;
+        int[] src = randomArgb(w, h, new Random(9));
+        PerspectiveWarp warp = new PerspectiveWarp(
+                new float[]{120, 80, 1930, 140, 1880, 1460, 160, 1400}, 1600);
+        int[] dst = new int[warp.getWidth() * warp.getHeight()];
+
+        double serial = measure(warp, src, w, h, dst, null, 1);
+        double parallel = measure(warp, src, w, h, dst, RowBands.getExecutor(),
+                RowBands.getParallelism());
+
+        System.out.printf("PerspectiveWarp %dx%d: %.1f Mpx/s on 1 thread, "
+                        + "%.1f Mpx/s in %d bands%n", warp.getWidth(), warp.getHeight(),
+                serial, parallel, RowBands.getParallelism());
+    }
+
+
+    private static double measure(PerspectiveWarp warp, int[] src, int w, int h, int[] dst,
+                                  Executor executor, int parallelism) {
+        // warm up
+        for (int i = 0; i < 3; i++) {
+            warp.warp(src, w, h, dst, executor, parallelism);
+        }
+
+        int runs = 5;
+        long start = System.nanoTime();
+        for (int i = 0; i < runs; i++) {
+            warp.warp(src, w, h, dst, executor, parallelism);
+        }
+        long nanos = System.nanoTime() - start;
+
+        return (double) runs * warp.getWidth() * warp.getHeight() * 1000 / nanos;
+    }
+
+    private static int pattern(float u, float v) {
+        double s = Math.sin(2 * Math.PI * u) * Math.cos(3 * Math.PI * v);
+        return (int) Math.round(128 + 90 * s);
+    }
+
+    private static int gray(int v) {
+        return 0xff000000 | (v << 16) | (v << 8) | v;
+    }
+
+    private static int[] randomArgb(int w, int h, Random random) {
+        int[] pixels = new int[w * h];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = 0xff000000 | random.nextInt(0x1000000);
+        }
+        return pixels;
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2015 Shirish Kamath.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package io.e55.fovea.android.sdk.camera.lib.image;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Round-trips grayscale images through {@link PngWriter} and ImageIO's PNG decoder.
+ */
+public class PngWriterTest {
+
+    @Test
+    public void eightBitRoundTripsExactly() throws IOException {
+        int w = 211, h = 97;
+        byte[] gray = new byte[w * h];
+        new Random(1).nextBytes(gray);
+
+        BufferedImage image = decode(write(gray, w, h, 8));
+
+        assertEquals(w, image.getWidth());
+        assertEquals(h, image.getHeight());
+        assertEquals(8, image.getColorModel().getPixelSize());
+
+        Raster raster = image.getRaster();
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                assertEquals(gray[y * w + x] & 0xff, raster.getSample(x, y, 0));
+            }
+        }
+    }
+
+    @Test
+    public void oneBitKeepsTheHalfwayThreshold() throws IOException {
+        // rows that end in the middle of a byte
+        int w = 13, h = 5;
+        byte[] gray = new byte[w * h];
+        for (int i = 0; i < gray.length; i++) {
+            gray[i] = (byte) (i * 37);
+        }
+
+        BufferedImage image = decode(write(gray, w, h, 1));
+
+        assertEquals(w, image.getWidth());
+        assertEquals(h, image.getHeight());
+        assertEquals(1, image.getColorModel().getPixelSize());
+
+        Raster raster = image.getRaster();
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                int expected = ((gray[y * w + x] & 0xff) >= 128) ? 1 : 0;
+                assertEquals(expected, raster.getSample(x, y, 0));
+            }
+        }
+    }
+
+    @Test
+    public void oneBitPagesAreSmall() throws IOException {
+        int w = 1200, h = 1600;
+        byte[] page = JpegEncoderTest.page(w, h, new Random(2));
+        byte[] binary = new byte[w * h];
+        new SauvolaBinarizer(31, 0.34f).binarize(page, w, h, binary, null, 1);
+
+        int eightBit = write(page, w, h, 8).length;
+        int oneBit = write(binary, w, h, 1).length;
+
+        System.out.printf("PngWriter %dx%d page: 8 bit %d KB, 1 bit %d KB%n", w, h,
+                eightBit / 1024, oneBit / 1024);
+        assertTrue(oneBit * 8 < eightBit);
+    }
+
+    @Test
+    public void chunksCarryTheirCrc() throws IOException {
+        byte[] png = write(new byte[64 * 64], 64, 64, 8);
+
+        // ImageIO does not check the CRCs
+        int chunks = 0;
+        String type = null;
+        for (int p = 8; p < png.length; chunks++) {
+            int length = getInt(png, p);
+            type = new String(png, p + 4, 4, "US-ASCII");
+
+            CRC32 crc = new CRC32();
+            crc.update(png, p + 4, 4 + length);
+            assertEquals(type, (int) crc.getValue(), getInt(png, p + 8 + length));
+
+            p += 12 + length;
+        }
+
+        assertEquals("IEND", type);
+        assertTrue(chunks >= 3);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsOtherBitDepths() throws IOException {
+        PngWriter.writeGray(new ByteArrayOutputStream(), new byte[4], 2, 2, 4);
+    }
+
+
+    private static byte[] write(byte[] gray, int w, int h, int bitDepth) throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        PngWriter.writeGray(os, gray, w, h, bitDepth);
+        return os.toByteArray();
+    }
+
+    private static int getInt(byte[] b, int offset) {
+        return ((b[offset] & 0xff) << 24) | ((b[offset + 1] & 0xff) << 16)
+                | ((b[offset + 2] & 0xff) << 8) | (b[offset + 3] & 0xff);
+    }
+
+    private static BufferedImage decode(byte[] png) throws IOException {
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(png));
+        assertTrue(image != null);
+        return image;
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2015 Shirish Kamath.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package io.e55.fovea.android.sdk.camera.lib.image;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+
+/**
+ * Runs {@link RowBands} from several callers at once on a pool smaller than their demand,
+ * as the capture queue's workers do when they share the image executor.
+ */
+public class RowBandsTest {
+
+    private static final int WORKERS = 4;
+    private static final int POOL_SIZE = 2;
+
+    private ExecutorService mWorkers;
+    private ExecutorService mPool;
+
+
+    @Before
+    public void setUp() {
+        mWorkers = Executors.newFixedThreadPool(WORKERS);
+        mPool = Executors.newFixedThreadPool(POOL_SIZE);
+    }
+
+    @After
+    public void tearDown() {
+        mWorkers.shutdownNow();
+        mPool.shutdownNow();
+    }
+
+
+    @Test(timeout = 30000)
+    public void concurrentCallersCoverEveryRowOnce() throws Exception {
+        final int rows = 1000;
+        final AtomicIntegerArray[] counts = new AtomicIntegerArray[WORKERS];
+        List<Future<?>> futures = new ArrayList<>();
+
+        for (int i = 0; i < WORKERS; i++) {
+            final AtomicIntegerArray count = counts[i] = new AtomicIntegerArray(rows);
+            futures.add(mWorkers.submit(new Runnable() {
+                @Override
+                public void run() {
+                    for (int k = 0; k < 20; k++) {
+                        RowBands.run(mPool, WORKERS, rows, 1, new RowBands.RowTask() {
+                            @Override
+                            public void run(int startRow, int endRow) {
+                                for (int y = startRow; y < endRow; y++) {
+                                    count.incrementAndGet(y);
+                                }
+                            }
+                        });
+                    }
+                }
+            }));
+        }
+
+        for (Future<?> future : futures) {
+            future.get();
+        }
+
+        for (AtomicIntegerArray count : counts) {
+            for (int y = 0; y < rows; y++) {
+                assertEquals("row " + y, 20, count.get(y));
+            }
+        }
+    }
+
+    /**
+     * Each worker transcodes a picture on the pool while its thumbnail is written by a task
+     * on the same pool, so the thumbnails may hold every pool thread at once.
+     */
+    @Test(timeout = 60000)
+    public void concurrentCapturesCompleteOnASharedPool() throws Exception {
+        int w = 640, h = 480;
+        final byte[] jpeg = JpegTranscoderTest.encodeGray(
+                JpegEncoderTest.page(w, h, new Random(3)), w, h, 85);
+        final byte[] picture = transcode(jpeg, 0, null, 1);
+        final byte[] thumbnail = transcode(jpeg, 2, null, 1);
+
+        List<Future<byte[][]>> futures = new ArrayList<>();
+        for (int i = 0; i < WORKERS * 2; i++) {
+            futures.add(mWorkers.submit(new Callable<byte[][]>() {
+                @Override
+                public byte[][] call() throws Exception {
+                    FutureTask<byte[]> thumbnailTask = new FutureTask<>(new Callable<byte[]>() {
+                        @Override
+                        public byte[] call() throws IOException {
+                            // on the pool thread alone, as the capture module does
+                            return transcode(jpeg, 2, null, 1);
+                        }
+                    });
+                    mPool.execute(thumbnailTask);
+
+                    byte[] main = transcode(jpeg, 0, mPool, WORKERS);
+                    return new byte[][]{main, thumbnailTask.get()};
+                }
+            }));
+        }
+
+        for (Future<byte[][]> future : futures) {
+            byte[][] result = future.get();
+            assertArrayEquals(picture, result[0]);
+            assertArrayEquals(thumbnail, result[1]);
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void rethrowsAFailingBand() {
+        try {
+            RowBands.run(mPool, WORKERS, 100, 1, new RowBands.RowTask() {
+                @Override
+                public void run(int startRow, int endRow) {
+                    if (startRow == 0) {
+                        throw new IllegalStateException("band failed");
+                    }
+                }
+            });
+            fail("no exception");
+        } catch (IllegalStateException e) {
+            assertEquals("band failed", e.getMessage());
+        }
+    }
+
+
+    private static byte[] transcode(byte[] jpeg, int shift, ExecutorService executor,
+                                    int parallelism) throws IOException {
+        JpegTranscoder transcoder = new JpegTranscoder(jpeg);
+        JpegTranscoder.Transform transform = transcoder.newTransform(0, 0,
+                transcoder.getWidth(), transcoder.getHeight(), 90, shift, false);
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        transform.write(os, executor, parallelism);
+        return os.toByteArray();
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2015 Shirish Kamath.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package io.e55.fovea.android.sdk.camera.lib.image;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Binarizes a synthetic page in uneven light with {@link SauvolaBinarizer} and checks the result
+ * against the page's ink mask.
+ */
+public class SauvolaBinarizerTest {
+
+    private static final int WINDOW = 25;
+    private static final float K = 0.34f;
+
+    @Test
+    public void separatesInkFromAShadedPage() {
+        int w = 320, h = 200;
+        boolean[] ink = new boolean[w * h];
+        byte[] gray = shadedPage(w, h, ink, new Random(1));
+
+        byte[] out = new byte[w * h];
+        new SauvolaBinarizer(WINDOW, K).binarize(gray, w, h, out, null, 1);
+
+        int inkPixels = 0, inkMissed = 0, paperPixels = 0, paperMissed = 0;
+        for (int i = 0; i < w * h; i++) {
+            int v = out[i] & 0xff;
+            assertTrue(v == 0 || v == 255);
+
+            if (ink[i]) {
+                inkPixels++;
+                inkMissed += (v == 0) ? 0 : 1;
+            } else {
+                paperPixels++;
+                paperMissed += (v == 255) ? 0 : 1;
+            }
+        }
+
+        assertTrue("ink missed: " + inkMissed, inkMissed <= inkPixels / 100);
+        assertTrue("paper missed: " + paperMissed, paperMissed <= paperPixels / 100);
+
+        // the paper in the shadow is darker than the ink in the light, so no global threshold
+        // gets this right
+        int shadowPaper = 0, litInk = 255;
+        for (int y = 0; y < h; y++) {
+            shadowPaper = Math.max(shadowPaper, gray[y * w] & 0xff);
+            if (ink[y * w + w - 4]) {
+                litInk = Math.min(litInk, gray[y * w + w - 4] & 0xff);
+            }
+        }
+        assertTrue(shadowPaper + " vs " + litInk, shadowPaper < litInk);
+    }
+
+    @Test
+    public void keepsAFlatPageWhite() {
+        int w = 100, h = 80;
+        byte[] gray = new byte[w * h];
+        Random random = new Random(2);
+        for (int i = 0; i < gray.length; i++) {
+            gray[i] = (byte) (180 + random.nextInt(5));
+        }
+
+        byte[] out = new byte[w * h];
+        new SauvolaBinarizer(WINDOW, K).binarize(gray, w, h, out, null, 1);
+
+        for (int i = 0; i < out.length; i++) {
+            assertEquals(255, out[i] & 0xff);
+        }
+    }
+
+    @Test
+    public void bandsMatchASingleThread() {
+        // several tiles, and a window reaching across tile edges
+        int w = 157, h = 301;
+        byte[] gray = JpegEncoderTest.page(w, h, new Random(3));
+
+        byte[] serial = new byte[w * h];
+        new SauvolaBinarizer(WINDOW, K).binarize(gray, w, h, serial, null, 1);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            byte[] parallel = new byte[w * h];
+            new SauvolaBinarizer(WINDOW, K).binarize(gray, w, h, parallel, executor, 4);
+            assertArrayEquals(serial, parallel);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+
+    /**
+     * @return A page lit from the right, the left edge in deep shadow, with lines of marks
+     * whose pixels are set in `ink`.
+     */
+    private static byte[] shadedPage(int w, int h, boolean[] ink, Random random) {
+        byte[] pixels = new byte[w * h];
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                double paper = 70 + 160.0 * x / (w - 1);
+                boolean isInk = (y % 16) >= 5 && (y % 16) < 11 && (x % 5) < 2
+                        && ((x / 5) * 3 + y / 16) % 7 != 0;
+
+                double v = (isInk ? 0.35 * paper : paper) + random.nextGaussian() * 2;
+                ink[y * w + x] = isInk;
+                pixels[y * w + x] = (byte) Math.max(0, Math.min(255, (int) Math.round(v)));
+            }
+        }
+        return pixels;
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright (c) 2015 Shirish Kamath.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package io.e55.fovea.android.sdk.camera.lib.io;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Checks that {@link AtomicFileOutputStream} leaves either a complete file or none, also with
+ * several writers of the same file at once, as the capture queue's workers may be.
+ */
+public class AtomicFileOutputStreamTest {
+
+    private static final int WRITERS = 4;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+
+    @Test
+    public void commitsTheFile() throws IOException {
+        File file = new File(mFolder.getRoot(), "page.jpg");
+        byte[] data = content(1, 200 * 1024);
+
+        AtomicFileOutputStream os =
+                new AtomicFileOutputStream(file, AtomicFileOutputStream.SYNC_DATA);
+        try {
+            os.write(data, 0, data.length);
+            assertFalse(file.exists());
+            os.commit();
+        } finally {
+            os.close();
+        }
+
+        assertArrayEquals(data, read(file));
+        assertEquals(data.length, os.getSize());
+        assertEquals(Arrays.asList("page.jpg"), list());
+    }
+
+    @Test
+    public void discardsTheFileWithoutACommit() throws IOException {
+        File file = new File(mFolder.getRoot(), "page.jpg");
+        byte[] old = content(2, 1000);
+        write(file, old);
+
+        AtomicFileOutputStream os =
+                new AtomicFileOutputStream(file, AtomicFileOutputStream.SYNC_NONE);
+        try {
+            os.write(content(3, 5000), 0, 5000);
+        } finally {
+            os.close();
+        }
+
+        assertArrayEquals(old, read(file));
+        assertEquals(Arrays.asList("page.jpg"), list());
+    }
+
+    @Test
+    public void concurrentWritersLeaveOneCompleteFile() throws Exception {
+        final File file = new File(mFolder.getRoot(), "page.jpg");
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(WRITERS);
+        List<byte[]> contents = new ArrayList<>();
+        List<Future<Void>> futures = new ArrayList<>();
+
+        try {
+            for (int i = 0; i < WRITERS; i++) {
+                final byte[] data = content(10 + i, 300 * 1024 + i);
+                contents.add(data);
+
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        AtomicFileOutputStream os = new AtomicFileOutputStream(file,
+                                AtomicFileOutputStream.SYNC_NONE);
+                        try {
+                            start.await();
+                            // in small writes, so that the writers interleave
+                            for (int off = 0; off < data.length; off += 4096) {
+                                os.write(data, off, Math.min(4096, data.length - off));
+                            }
+                            os.commit();
+                        } finally {
+                            os.close();
+                        }
+                        return null;
+                    }
+                }));
+            }
+
+            start.countDown();
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // the last to commit wins, whole
+        byte[] actual = read(file);
+        boolean matched = false;
+        for (byte[] data : contents) {
+            matched |= Arrays.equals(data, actual);
+        }
+        assertTrue("file mixes the writers' bytes", matched);
+        assertEquals(Arrays.asList("page.jpg"), list());
+    }
+
+    @Test
+    public void deletesOnlyStaleTempFiles() throws IOException {
+        File dir = mFolder.getRoot();
+        File stale = new File(dir, "page.jpg.123456.tmp");
+        File negative = new File(dir, "page.jpg.-42.tmp");
+        File page = new File(dir, "page.jpg");
+        write(stale, content(4, 10));
+        write(negative, content(5, 10));
+        write(page, content(6, 10));
+
+        long old = System.currentTimeMillis() - 60000;
+        assertTrue(stale.setLastModified(old));
+
+        // a temporary file that is still being written is kept
+        AtomicFileOutputStream os = new AtomicFileOutputStream(new File(dir, "other.jpg"),
+                AtomicFileOutputStream.SYNC_NONE);
+        try {
+            assertEquals(1, AtomicFileOutputStream.deleteTempFiles(dir, 30000));
+            assertFalse(stale.exists());
+            assertTrue(negative.exists());
+            assertEquals(3, list().size());
+
+            assertEquals(2, AtomicFileOutputStream.deleteTempFiles(dir, 0));
+            assertEquals(Arrays.asList("page.jpg"), list());
+        } finally {
+            os.close();
+        }
+    }
+
+    @Test
+    public void recognizesTempFiles() {
+        assertTrue(AtomicFileOutputStream.isTempFile(new File("page.jpg.8312.tmp")));
+        assertTrue(AtomicFileOutputStream.isTempFile(new File("a_.-17.tmp")));
+        assertFalse(AtomicFileOutputStream.isTempFile(new File("page.jpg")));
+        assertFalse(AtomicFileOutputStream.isTempFile(new File("page.tmp")));
+        assertFalse(AtomicFileOutputStream.isTempFile(new File("page.jpg.x1.tmp")));
+    }
+
+
+    private List<String> list() {
+        String[] names = mFolder.getRoot().list();
+        Arrays.sort(names);
+        return Arrays.asList(names);
+    }
+
+    private static byte[] content(int seed, int length) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private static byte[] read(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] data = new byte[(int) raf.length()];
+            raf.readFully(data);
+            return data;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void write(File file, byte[] data) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.write(data);
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2015 Shirish Kamath.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package io.e55.fovea.android.sdk.camera.lib.modules;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Replays luma sequences through an {@link AutoFlashGate} set up with the defaults of
+ * `camera.xml`.
+ */
+public class AutoFlashGateTest {
+
+    private static final float DARK = 0.20f;
+    private static final float BRIGHT = 0.40f;
+    private static final long DWELL = 1500;
+
+    private AutoFlashGate mGate;
+    private long mNow;
+
+
+    @Before
+    public void setUp() {
+        mGate = new AutoFlashGate(DARK, BRIGHT, DWELL);
+        mNow = 10000;
+        mGate.reset(false, mNow);
+    }
+
+
+    @Test
+    public void switchesOnInTheDarkOnly() {
+        mNow += DWELL;
+        assertFalse(mGate.update(0.5f, mNow));
+        assertFalse(mGate.update(DARK + 0.01f, mNow));
+        assertTrue(mGate.update(DARK, mNow));
+    }
+
+    @Test
+    public void waitsForTheDwellTime() {
+        // since the reset, as the Camera's exposure settles
+        assertFalse(mGate.update(0.05f, mNow + DWELL - 1));
+        assertTrue(mGate.update(0.05f, mNow + DWELL));
+
+        switchOn(0.05f);
+
+        // a bright scene right after the switch does not switch back
+        assertFalse(mGate.update(0.9f, mNow + 1));
+        assertFalse(mGate.update(0.9f, mNow + DWELL - 1));
+    }
+
+    @Test
+    public void keepsTheFlashWithinTheHysteresisBand() {
+        switchOn(0.1f);
+
+        // the flash adds 0.15; the scene alone stays between the thresholds
+        mNow += DWELL;
+        assertFalse(mGate.update(0.25f, mNow));
+        assertEquals(0.15f, mGate.getFlashGain(), 1e-6f);
+        assertFalse(mGate.update(0.25f + BRIGHT - DARK - 0.01f, mNow));
+
+        switchOff();
+
+        mNow += DWELL;
+        assertFalse(mGate.update(DARK + 0.01f, mNow));
+        assertFalse(mGate.update(BRIGHT - 0.01f, mNow));
+    }
+
+    @Test
+    public void discountsTheLightOfTheFlash() {
+        switchOn(0.1f);
+
+        // lit by the flash alone, the page would be bright enough to switch it off otherwise
+        mNow += DWELL;
+        assertFalse(mGate.update(0.5f, mNow));
+        assertFalse(mGate.update(0.6f, mNow));
+
+        // the room lights come on
+        assertTrue(mGate.update(0.85f, mNow));
+    }
+
+    @Test
+    public void measuresTheGainAfterEverySwitch() {
+        switchOn(0.1f);
+        mNow += DWELL;
+        assertFalse(mGate.update(0.5f, mNow));
+
+        switchOff();
+        assertEquals(-1f, mGate.getFlashGain(), 0f);
+
+        switchOn(0.15f);
+        mNow += DWELL;
+        assertFalse(mGate.update(0.2f, mNow));
+        assertEquals(0.05f, mGate.getFlashGain(), 1e-6f);
+    }
+
+    @Test
+    public void switchesOffAFlashThatWasOnAtTheStart() {
+        // the last session switched the flash on in a dark scene and measured its gain
+        switchOn(0.05f);
+        mNow += DWELL;
+        assertFalse(mGate.update(0.6f, mNow));
+
+        // a new session starts with the flash on in a bright scene; the old gain would swallow it
+        mNow += 60000;
+        mGate.reset(true, mNow);
+        mNow += DWELL;
+        assertTrue(mGate.update(0.5f, mNow));
+        assertEquals(0f, mGate.getFlashGain(), 0f);
+    }
+
+
+    private void switchOn(float luma) {
+        mNow += DWELL;
+        assertTrue(mGate.update(luma, mNow));
+        mGate.onSwitched(true, mNow);
+        assertTrue(mGate.isFlashOn());
+    }
+
+    private void switchOff() {
+        mGate.onSwitched(false, mNow);
+        assertFalse(mGate.isFlashOn());
+    }
+}
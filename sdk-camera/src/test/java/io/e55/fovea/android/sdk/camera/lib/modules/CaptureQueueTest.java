@@ -0,0 +1,453 @@
+/*
+ * Copyright (c) 2015 Shirish Kamath.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package io.e55.fovea.android.sdk.camera.lib.modules;
+
+import android.graphics.RectF;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import io.e55.fovea.android.sdk.camera.lib.capture.CaptureQualityException;
+import io.e55.fovea.android.sdk.camera.lib.capture.CaptureResult;
+import io.e55.fovea.android.sdk.camera.lib.capture.ExposureReport;
+import io.e55.fovea.android.sdk.camera.lib.document.Quad;
+import io.e55.fovea.android.sdk.camera.lib.io.AtomicFileOutputStream;
+import rx.Subscriber;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+/**
+ * Journals captures in a {@link CaptureQueue}, processes them with a recording processor and
+ * checks what is left in the journal, also across simulated process deaths.
+ */
+public class CaptureQueueTest {
+
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long TIMEOUT_MS = 10000;
+
+    // NV21
+    private static final int FORMAT = 17;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mDir;
+
+
+    @Before
+    public void setUp() {
+        mDir = new File(mFolder.getRoot(), "queue");
+    }
+
+
+    @Test
+    public void processesAJournaledCapture() throws Exception {
+        Recorder processor = new Recorder();
+        CaptureQueue queue = newQueue(processor, 2);
+        Outcome outcome = new Outcome();
+
+        queue.enqueue(data(1), true, 640, 480, FORMAT, null, null, "a.jpg", outcome);
+
+        assertEquals("a.jpg", outcome.await().getPath());
+        assertArrayEquals(data(1), processor.mData.get(0));
+        assertEquals(Collections.singletonList(".1.job"), processor.mJournals.get(0));
+        assertEquals(Collections.emptyList(), journal());
+        assertEquals(0, queue.getPendingCount());
+    }
+
+    @Test
+    public void retriesUpToTheAttemptLimit() throws Exception {
+        Recorder processor = new Recorder();
+        processor.mFailure = new IOException("disk full");
+        CaptureQueue queue = newQueue(processor, 1);
+        Outcome outcome = new Outcome();
+
+        queue.enqueue(data(2), true, 640, 480, FORMAT, null, null, "a.jpg", outcome);
+
+        assertEquals(processor.mFailure, outcome.awaitError());
+        // the job file counts the attempts, each before it starts
+        assertEquals(Arrays.asList(
+                Collections.singletonList(".1.job"),
+                Collections.singletonList(".2.job"),
+                Collections.singletonList(".3.job")), processor.mJournals);
+        assertEquals(Collections.emptyList(), journal());
+    }
+
+    @Test
+    public void doesNotRetryARejectedPicture() throws Exception {
+        Recorder processor = new Recorder();
+        processor.mFailure = new CaptureQualityException(
+                new ExposureReport(0.5f, 0f, 0.8f, ExposureReport.Problems.GLARE));
+        CaptureQueue queue = newQueue(processor, 1);
+        Outcome outcome = new Outcome();
+
+        queue.enqueue(data(3), true, 640, 480, FORMAT, null, null, "a.jpg", outcome);
+
+        assertEquals(processor.mFailure, outcome.awaitError());
+        assertEquals(1, processor.mPaths.size());
+        assertEquals(Collections.emptyList(), journal());
+    }
+
+    @Test
+    public void resumesTheJournalAfterAProcessDeath() throws Exception {
+        crash("a.jpg", "b.jpg", "c.jpg");
+        assertEquals(Arrays.asList(".1.job", ".1.job", ".1.job"), journal());
+
+        // a journal write cut short, and a file that is not a job
+        File partial = new File(mDir, "0000000000000-00009.0.job.123456.tmp");
+        write(partial, data(4));
+        write(new File(mDir, "notes.job"), data(5));
+
+        Recorder processor = new Recorder();
+        CaptureQueue queue = newQueue(processor, 1);
+        final List<CaptureQueue.Completion> completions = new ArrayList<>();
+        final CountDownLatch done = new CountDownLatch(3);
+
+        awaitIdle(queue, processor, 3);
+
+        // nobody could subscribe before the jobs were resumed
+        queue.getCompletions().subscribe(new Subscriber<CaptureQueue.Completion>() {
+            @Override
+            public void onNext(CaptureQueue.Completion completion) {
+                completions.add(completion);
+                done.countDown();
+            }
+
+            @Override
+            public void onCompleted() {
+            }
+
+            @Override
+            public void onError(Throwable e) {
+            }
+        });
+        assertTrue(done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        assertEquals(Arrays.asList("a.jpg", "b.jpg", "c.jpg"), processor.mPaths);
+        // one worker: the oldest job's second attempt is counted, the others wait their turn
+        assertEquals(Arrays.asList(".2.job", ".1.job", ".1.job"), processor.mJournals.get(0));
+        for (int i = 0; i < 3; i++) {
+            assertEquals(processor.mPaths.get(i), completions.get(i).getPath());
+            assertTrue(completions.get(i).isSuccessful());
+        }
+
+        assertFalse(partial.exists());
+        assertEquals(Collections.emptyList(), journal());
+    }
+
+    @Test
+    public void abandonsAJobThatKeepsTakingTheProcessDown() throws Exception {
+        for (int i = 0; i < MAX_ATTEMPTS; i++) {
+            if (i == 0) {
+                crash("a.jpg");
+            } else {
+                Recorder crashing = new Recorder();
+                crashing.mCrash = true;
+                newQueue(crashing, 1);
+                awaitCalls(crashing, 1);
+            }
+        }
+        assertEquals(Collections.singletonList("." + MAX_ATTEMPTS + ".job"), journal());
+
+        Recorder processor = new Recorder();
+        CaptureQueue queue = newQueue(processor, 1);
+        CaptureQueue.Completion completion = awaitCompletion(queue);
+
+        assertEquals("a.jpg", completion.getPath());
+        assertFalse(completion.isSuccessful());
+        assertTrue(processor.mPaths.isEmpty());
+        assertEquals(Collections.emptyList(), journal());
+    }
+
+    @Test
+    public void dropsACorruptJob() throws Exception {
+        crash("a.jpg");
+        File job = new File(mDir, mDir.list()[0]);
+        RandomAccessFile raf = new RandomAccessFile(job, "rw");
+        try {
+            raf.seek(raf.length() / 2);
+            raf.write(~raf.read());
+        } finally {
+            raf.close();
+        }
+
+        Recorder processor = new Recorder();
+        CaptureQueue.Completion completion = awaitCompletion(newQueue(processor, 1));
+
+        assertNull(completion.getPath());
+        assertFalse(completion.isSuccessful());
+        assertTrue(processor.mPaths.isEmpty());
+        assertEquals(Collections.emptyList(), journal());
+    }
+
+    @Test
+    public void keepsTheJobParameters() throws Exception {
+        Recorder processor = new Recorder();
+        CaptureQueue queue = newQueue(processor, 1);
+        Outcome outcome = new Outcome();
+        float[] corners = {0.1f, 0.2f, 0.9f, 0.1f, 0.8f, 0.9f, 0.2f, 0.8f};
+
+        queue.enqueue(data(6), false, 1280, 720, FORMAT, new Quad(corners, 0.5f, 0), null,
+                "a.jpg", outcome);
+        outcome.await();
+
+        assertArrayEquals(corners, processor.mCorners.get(0).getCorners(), 0f);
+        assertEquals("false 1280x720 " + FORMAT, processor.mParameters.get(0));
+    }
+
+    @Test
+    public void doesNotReplayOutcomesDeliveredToTheirCapture() throws Exception {
+        Recorder processor = new Recorder();
+        CaptureQueue queue = newQueue(processor, 1);
+        Outcome outcome = new Outcome();
+
+        queue.enqueue(data(7), true, 640, 480, FORMAT, null, null, "a.jpg", outcome);
+        outcome.await();
+
+        final List<CaptureQueue.Completion> completions = new ArrayList<>();
+        queue.getCompletions().subscribe(new Subscriber<CaptureQueue.Completion>() {
+            @Override
+            public void onNext(CaptureQueue.Completion completion) {
+                completions.add(completion);
+            }
+
+            @Override
+            public void onCompleted() {
+            }
+
+            @Override
+            public void onError(Throwable e) {
+            }
+        });
+
+        assertTrue(completions.isEmpty());
+    }
+
+
+    /**
+     * Enqueues captures with a processor that takes the process down, leaving their jobs in
+     * the journal with one attempt counted.
+     */
+    private void crash(String... paths) throws Exception {
+        Recorder processor = new Recorder();
+        processor.mCrash = true;
+        CaptureQueue queue = newQueue(processor, 1);
+
+        for (int i = 0; i < paths.length; i++) {
+            queue.enqueue(data(10 + i), true, 640, 480, FORMAT, null, null, paths[i], null);
+        }
+
+        awaitCalls(processor, paths.length);
+    }
+
+    private CaptureQueue newQueue(CaptureQueue.Processor processor, int workers) {
+        CaptureQueue queue = new CaptureQueue(mDir, processor, workers, MAX_ATTEMPTS,
+                AtomicFileOutputStream.SYNC_NONE, 1);
+        queue.resume();
+        return queue;
+    }
+
+    private static void awaitCalls(Recorder processor, int calls)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (processor.mPaths.size() < calls) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("processed " + processor.mPaths.size() + " of " + calls);
+            }
+            Thread.sleep(5);
+        }
+    }
+
+    private static void awaitIdle(CaptureQueue queue, Recorder processor, int calls)
+            throws InterruptedException {
+        awaitCalls(processor, calls);
+
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (queue.getPendingCount() > 0) {
+            if (System.currentTimeMillis() > deadline) {
+                fail(queue.getPendingCount() + " pending");
+            }
+            Thread.sleep(5);
+        }
+    }
+
+    private static CaptureQueue.Completion awaitCompletion(CaptureQueue queue)
+            throws InterruptedException {
+        final CaptureQueue.Completion[] completion = new CaptureQueue.Completion[1];
+        final CountDownLatch done = new CountDownLatch(1);
+
+        queue.getCompletions().subscribe(new Subscriber<CaptureQueue.Completion>() {
+            @Override
+            public void onNext(CaptureQueue.Completion c) {
+                completion[0] = c;
+                done.countDown();
+            }
+
+            @Override
+            public void onCompleted() {
+            }
+
+            @Override
+            public void onError(Throwable e) {
+            }
+        });
+
+        assertTrue("no completion", done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        return completion[0];
+    }
+
+    /**
+     * @return Suffixes of the journal's files, i.e. the attempts counted for each job.
+     */
+    private List<String> journal() {
+        String[] names = mDir.list();
+        List<String> suffixes = new ArrayList<>();
+        if (names == null) {
+            return suffixes;
+        }
+
+        Arrays.sort(names);
+        for (String name : names) {
+            suffixes.add(name.substring(name.indexOf('.')));
+        }
+        return suffixes;
+    }
+
+    private static byte[] data(int seed) {
+        byte[] data = new byte[1000 + seed];
+        Arrays.fill(data, (byte) seed);
+        return data;
+    }
+
+    private static void write(File file, byte[] data) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.write(data);
+        } finally {
+            raf.close();
+        }
+    }
+
+
+    /**
+     * Stands in for a process death in the middle of an attempt.
+     */
+    private static class ProcessDeath extends Error {
+    }
+
+
+    private class Recorder implements CaptureQueue.Processor {
+        final List<String> mPaths = Collections.synchronizedList(new ArrayList<String>());
+        final List<byte[]> mData = Collections.synchronizedList(new ArrayList<byte[]>());
+        final List<Quad> mCorners = Collections.synchronizedList(new ArrayList<Quad>());
+        final List<String> mParameters =
+                Collections.synchronizedList(new ArrayList<String>());
+        final List<List<String>> mJournals =
+                Collections.synchronizedList(new ArrayList<List<String>>());
+
+        volatile IOException mFailure;
+        volatile boolean mCrash;
+
+        @Override
+        public CaptureResult process(byte[] data, boolean isRaw, int previewWidth,
+                                     int previewHeight, int previewFormat, Quad corners,
+                                     RectF region, String path) throws IOException {
+            mJournals.add(journal());
+            mData.add(data);
+            mCorners.add(corners);
+            mParameters.add(isRaw + " " + previewWidth + "x" + previewHeight + " "
+                    + previewFormat);
+            // last, as the tests wait for it
+            mPaths.add(path);
+
+            if (mCrash) {
+                throw new ProcessDeath();
+            }
+            if (mFailure != null) {
+                throw mFailure;
+            }
+
+            return new CaptureResult(path, CaptureResult.MIME_JPEG, previewWidth, previewHeight,
+                    90, data.length, 0, null);
+        }
+    }
+
+
+    /**
+     * Outcome of one capture, as its subscriber is notified.
+     */
+    private static class Outcome extends Subscriber<CaptureResult> {
+        private final CountDownLatch mDone = new CountDownLatch(1);
+        private volatile CaptureResult mResult;
+        private volatile Throwable mError;
+
+        @Override
+        public void onNext(CaptureResult result) {
+            mResult = result;
+        }
+
+        @Override
+        public void onCompleted() {
+            mDone.countDown();
+        }
+
+        @Override
+        public void onError(Throwable e) {
+            mError = e;
+            mDone.countDown();
+        }
+
+        CaptureResult await() throws InterruptedException {
+            assertTrue("not completed", mDone.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+            if (mError != null) {
+                throw new AssertionError(mError);
+            }
+            return mResult;
+        }
+
+        Throwable awaitError() throws InterruptedException {
+            assertTrue("not completed", mDone.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+            assertNull(mResult);
+            return mError;
+        }
+    }
+}
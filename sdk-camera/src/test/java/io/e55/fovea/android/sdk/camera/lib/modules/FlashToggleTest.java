@@ -0,0 +1,230 @@
+/*
+ * Copyright (c) 2015 Shirish Kamath.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package io.e55.fovea.android.sdk.camera.lib.modules;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import io.e55.fovea.android.sdk.camera.lib.timer.TimerWheel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Toggles a fake flash through a {@link FlashToggle} set up with the interval of `camera.xml`,
+ * on a timer driven by a manual clock.
+ */
+public class FlashToggleTest {
+
+    private static final long INTERVAL_MS = 300;
+    private static final long TICK_MS = 10;
+
+    private ManualClock mClock;
+    private TimerWheel mTimer;
+    private FakeFlash mFlash;
+    private FlashToggle mToggle;
+
+
+    private static class ManualClock implements TimerWheel.Clock {
+        long mNanos = TimeUnit.SECONDS.toNanos(1000);
+
+        @Override
+        public long nanoTime() {
+            return mNanos;
+        }
+    }
+
+    /**
+     * Records the states applied to it, and fails while `mFails` is set.
+     */
+    private static class FakeFlash implements FlashToggle.Flash {
+        final List<Boolean> mApplied = new ArrayList<>();
+        boolean mFails;
+
+        @Override
+        public boolean apply(boolean on) {
+            if (mFails) {
+                return false;
+            }
+            mApplied.add(on);
+            return true;
+        }
+    }
+
+
+    @Before
+    public void setUp() {
+        mClock = new ManualClock();
+        mTimer = new TimerWheel(mClock, TICK_MS, TimeUnit.MILLISECONDS, 64, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+        mFlash = new FakeFlash();
+        mToggle = new FlashToggle(mFlash, mTimer, mClock, INTERVAL_MS);
+        mToggle.reset(false);
+    }
+
+
+    @Test
+    public void appliesTheFirstToggleAtOnce() {
+        assertTrue(mToggle.request(true));
+
+        assertEquals(Arrays.asList(true), mFlash.mApplied);
+        assertTrue(mToggle.isOn());
+        assertTrue(mToggle.isRequestedOn());
+    }
+
+    @Test
+    public void ignoresTheStateAsRequested() {
+        assertFalse(mToggle.request(false));
+
+        mToggle.reset(true);
+        assertFalse(mToggle.request(true));
+        assertTrue(mFlash.mApplied.isEmpty());
+    }
+
+    @Test
+    public void defersTogglesWithinTheInterval() {
+        mToggle.request(true);
+        advance(100);
+
+        assertTrue(mToggle.request(false));
+        assertFalse(mToggle.isRequestedOn());
+        assertTrue(mToggle.isOn());
+        assertEquals(Arrays.asList(true), mFlash.mApplied);
+
+        // applied once the interval since the first toggle is up
+        advance(INTERVAL_MS - 100 - TICK_MS);
+        assertEquals(Arrays.asList(true), mFlash.mApplied);
+        advance(2 * TICK_MS);
+        assertEquals(Arrays.asList(true, false), mFlash.mApplied);
+        assertFalse(mToggle.isOn());
+    }
+
+    @Test
+    public void appliesTogglesAfterTheIntervalAtOnce() {
+        mToggle.request(true);
+        advance(INTERVAL_MS);
+
+        mToggle.request(false);
+        assertEquals(Arrays.asList(true, false), mFlash.mApplied);
+    }
+
+    @Test
+    public void coalescesTogglesWithinTheInterval() {
+        mToggle.request(true);
+
+        // a burst of taps ends with the flash off: one update
+        for (int i = 0; i < 5; i++) {
+            advance(20);
+            mToggle.request(false);
+            advance(20);
+            mToggle.request(true);
+        }
+        mToggle.request(false);
+
+        advance(INTERVAL_MS);
+        assertEquals(Arrays.asList(true, false), mFlash.mApplied);
+    }
+
+    @Test
+    public void skipsTogglesThatCancelOut() {
+        mToggle.request(true);
+        advance(50);
+        mToggle.request(false);
+        mToggle.request(true);
+
+        advance(2 * INTERVAL_MS);
+        assertEquals(Arrays.asList(true), mFlash.mApplied);
+        assertTrue(mToggle.isOn());
+
+        // nothing was applied, so the next toggle is not held back
+        mToggle.request(false);
+        assertEquals(Arrays.asList(true, false), mFlash.mApplied);
+    }
+
+    @Test
+    public void revertsAFailedToggle() {
+        mFlash.mFails = true;
+
+        assertFalse(mToggle.request(true));
+        assertFalse(mToggle.isRequestedOn());
+        assertFalse(mToggle.isOn());
+
+        // the same toggle can be retried
+        mFlash.mFails = false;
+        assertTrue(mToggle.request(true));
+        assertEquals(Arrays.asList(true), mFlash.mApplied);
+    }
+
+    @Test
+    public void revertsAFailedDeferredToggle() {
+        mToggle.request(true);
+        advance(100);
+        mToggle.request(false);
+        assertFalse(mToggle.isRequestedOn());
+
+        mFlash.mFails = true;
+        advance(INTERVAL_MS);
+
+        assertTrue(mToggle.isRequestedOn());
+        assertTrue(mToggle.isOn());
+        assertEquals(Arrays.asList(true), mFlash.mApplied);
+    }
+
+    @Test
+    public void resetDropsAPendingToggle() {
+        mToggle.request(true);
+        advance(100);
+        mToggle.request(false);
+
+        mToggle.reset(true);
+        advance(2 * INTERVAL_MS);
+
+        assertEquals(Arrays.asList(true), mFlash.mApplied);
+        assertTrue(mToggle.isRequestedOn());
+
+        // the interval starts over, too
+        mToggle.request(false);
+        assertEquals(Arrays.asList(true, false), mFlash.mApplied);
+    }
+
+
+    private void advance(long millis) {
+        for (long t = 0; t < millis; t++) {
+            mClock.mNanos += TimeUnit.MILLISECONDS.toNanos(1);
+            mTimer.advance();
+        }
+    }
+}
@@ -0,0 +1,312 @@
+/*
+ * Copyright (c) 2015 Shirish Kamath.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package io.e55.fovea.android.sdk.camera.lib.store;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import io.e55.fovea.android.sdk.camera.lib.capture.CaptureResult;
+import io.e55.fovea.android.sdk.camera.lib.io.Crc32c;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Stores, evicts and reloads pictures in a {@link CaptureStore}, also after damage to its index.
+ */
+public class CaptureStoreTest {
+
+    private static final long MAX_BYTES = 3000;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final Random mRandom = new Random(23);
+
+    private File mDir;
+
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = mFolder.newFolder("store");
+    }
+
+
+    @Test
+    public void storesAPictureUnderItsDigest() throws IOException {
+        CaptureStore store = new CaptureStore(mDir, MAX_BYTES);
+        byte[] picture = bytes(1000);
+
+        CaptureStore.Entry entry = put(store, picture, CaptureResult.MIME_PNG, 40, 30);
+
+        assertEquals(entry.getKey() + ".png", entry.getFile().getName());
+        assertEquals(1000, entry.getFile().length());
+        assertEquals(CaptureResult.MIME_PNG, entry.getMimeType());
+        assertEquals(checksum(picture), entry.getChecksum());
+        assertEquals(1000, store.getSize());
+        assertSame(entry, store.get(entry.getKey()));
+        assertEquals(Arrays.asList(entry.getFile().getName(), "index"), list());
+    }
+
+    @Test
+    public void storesIdenticalPicturesOnce() throws IOException {
+        CaptureStore store = new CaptureStore(mDir, MAX_BYTES);
+        byte[] picture = bytes(1000);
+
+        CaptureStore.Entry first = put(store, picture, CaptureResult.MIME_JPEG, 40, 30);
+        CaptureStore.Entry second = put(store, picture.clone(), CaptureResult.MIME_JPEG, 40, 30);
+
+        assertSame(first, second);
+        assertEquals(1, store.getEntries().size());
+        assertEquals(1000, store.getSize());
+        // the second copy is gone
+        assertEquals(Arrays.asList(first.getFile().getName(), "index"), list());
+    }
+
+    @Test
+    public void evictsTheLeastRecentlyUsed() throws IOException {
+        CaptureStore store = new CaptureStore(mDir, MAX_BYTES);
+        CaptureStore.Entry a = put(store, bytes(1000), CaptureResult.MIME_JPEG, 40, 30);
+        CaptureStore.Entry b = put(store, bytes(1000), CaptureResult.MIME_JPEG, 40, 30);
+        File thumbnail = store.attachThumbnail(b.getFile(), write(store, bytes(100)));
+        CaptureStore.Entry c = put(store, bytes(1000), CaptureResult.MIME_JPEG, 40, 30);
+
+        assertTrue(thumbnail.exists());
+        assertEquals(b.getThumbnailFile(), thumbnail);
+
+        // a is used again, so b is the least recently used
+        store.get(a.getKey());
+        CaptureStore.Entry d = put(store, bytes(1000), CaptureResult.MIME_JPEG, 40, 30);
+
+        assertEquals(keys(c, a, d), keys(store.getEntries()));
+        assertEquals(MAX_BYTES, store.getSize());
+        assertFalse(b.getFile().exists());
+        assertFalse(thumbnail.exists());
+        assertNull(store.get(b.getKey()));
+    }
+
+    @Test
+    public void keepsTheMostRecentPictureOverTheBudget() throws IOException {
+        CaptureStore store = new CaptureStore(mDir, 500);
+
+        CaptureStore.Entry a = put(store, bytes(1000), CaptureResult.MIME_JPEG, 40, 30);
+        assertEquals(keys(a), keys(store.getEntries()));
+
+        CaptureStore.Entry b = put(store, bytes(1000), CaptureResult.MIME_JPEG, 40, 30);
+        assertEquals(keys(b), keys(store.getEntries()));
+        assertFalse(a.getFile().exists());
+    }
+
+    @Test
+    public void replaysTheIndex() throws IOException {
+        CaptureStore store = new CaptureStore(mDir, MAX_BYTES);
+        CaptureStore.Entry a = put(store, bytes(1000), CaptureResult.MIME_PNG, 40, 30);
+        CaptureStore.Entry b = put(store, bytes(900), CaptureResult.MIME_JPEG, 80, 60);
+        CaptureStore.Entry c = put(store, bytes(800), CaptureResult.MIME_JPEG, 20, 10);
+        store.get(a.getKey());
+        store.remove(c.getKey());
+
+        CaptureStore reopened = new CaptureStore(mDir, MAX_BYTES);
+        List<CaptureStore.Entry> entries = reopened.getEntries();
+
+        assertEquals(keys(b, a), keys(entries));
+        assertSameEntry(b, entries.get(0));
+        assertSameEntry(a, entries.get(1));
+        assertEquals(1900, reopened.getSize());
+        assertFalse(c.getFile().exists());
+    }
+
+    @Test
+    public void dropsATornFinalRecord() throws IOException {
+        CaptureStore store = new CaptureStore(mDir, MAX_BYTES);
+        CaptureStore.Entry a = put(store, bytes(1000), CaptureResult.MIME_JPEG, 40, 30);
+        CaptureStore.Entry b = put(store, bytes(1000), CaptureResult.MIME_JPEG, 40, 30);
+        long beforeTouch = index().length();
+        store.get(a.getKey());
+
+        // the process dies while the touch of a is written
+        truncateIndex(index().length() - 5);
+
+        CaptureStore reopened = new CaptureStore(mDir, MAX_BYTES);
+        assertEquals(keys(a, b), keys(reopened.getEntries()));
+        assertSameEntry(a, reopened.getEntries().get(0));
+        // the torn record is cut off before anything is appended
+        assertEquals(beforeTouch, index().length());
+
+        CaptureStore.Entry c = put(reopened, bytes(500), CaptureResult.MIME_PNG, 20, 10);
+
+        List<CaptureStore.Entry> entries = new CaptureStore(mDir, MAX_BYTES).getEntries();
+        assertEquals(keys(a, b, c), keys(entries));
+        // indexed, not adopted
+        assertSameEntry(c, entries.get(2));
+    }
+
+    @Test
+    public void adoptsPicturesMissingFromTheIndex() throws IOException {
+        CaptureStore store = new CaptureStore(mDir, MAX_BYTES);
+        CaptureStore.Entry a = put(store, bytes(1000), CaptureResult.MIME_JPEG, 40, 30);
+        long beforePut = index().length();
+        CaptureStore.Entry b = put(store, bytes(700), CaptureResult.MIME_PNG, 40, 30);
+        File orphan = write(store, bytes(300));
+
+        // the process dies while the put of b is written, and before the orphan is put
+        truncateIndex(beforePut + 10);
+
+        CaptureStore reopened = new CaptureStore(mDir, MAX_BYTES);
+        List<CaptureStore.Entry> entries = reopened.getEntries();
+
+        assertEquals(keys(a, b), keys(entries));
+        assertSameEntry(a, entries.get(0));
+
+        CaptureStore.Entry adopted = entries.get(1);
+        assertEquals(CaptureResult.MIME_PNG, adopted.getMimeType());
+        assertEquals(700, adopted.getSize());
+        assertEquals(0, adopted.getWidth());
+        assertEquals(1700, reopened.getSize());
+        assertFalse(orphan.exists());
+    }
+
+    @Test
+    public void dropsEntriesOfDeletedPictures() throws IOException {
+        CaptureStore store = new CaptureStore(mDir, MAX_BYTES);
+        CaptureStore.Entry a = put(store, bytes(1000), CaptureResult.MIME_JPEG, 40, 30);
+        CaptureStore.Entry b = put(store, bytes(1000), CaptureResult.MIME_JPEG, 40, 30);
+
+        assertTrue(a.getFile().delete());
+        assertNull(store.get(a.getKey()));
+        assertEquals(1000, store.getSize());
+
+        assertTrue(b.getFile().delete());
+        CaptureStore reopened = new CaptureStore(mDir, MAX_BYTES);
+        assertTrue(reopened.getEntries().isEmpty());
+        assertEquals(0, reopened.getSize());
+    }
+
+    @Test
+    public void opensOneStorePerDirectory() {
+        CaptureStore store = CaptureStore.open(mDir, MAX_BYTES);
+
+        assertSame(store, CaptureStore.open(new File(mDir.getPath()), MAX_BYTES));
+        assertEquals(MAX_BYTES, store.getMaxSize());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAnotherBudgetForAnOpenStore() {
+        CaptureStore.open(mDir, MAX_BYTES);
+        CaptureStore.open(mDir, 2 * MAX_BYTES);
+    }
+
+
+    private CaptureStore.Entry put(CaptureStore store, byte[] picture, String mimeType,
+                                   int width, int height) throws IOException {
+        File file = write(store, picture);
+        CaptureStore.Entry entry = store.put(file, CaptureStore.newDigest().digest(picture),
+                mimeType, width, height, checksum(picture));
+
+        assertFalse(file.exists());
+        assertEquals(width, entry.getWidth());
+        assertEquals(height, entry.getHeight());
+        return entry;
+    }
+
+    private static File write(CaptureStore store, byte[] data) throws IOException {
+        File file = store.newTempFile();
+        FileOutputStream os = new FileOutputStream(file);
+        try {
+            os.write(data);
+        } finally {
+            os.close();
+        }
+        return file;
+    }
+
+    private static void assertSameEntry(CaptureStore.Entry expected, CaptureStore.Entry actual) {
+        assertEquals(expected.getKey(), actual.getKey());
+        assertEquals(expected.getFile(), actual.getFile());
+        assertEquals(expected.getMimeType(), actual.getMimeType());
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        assertEquals(expected.getSize(), actual.getSize());
+        assertEquals(expected.getChecksum(), actual.getChecksum());
+        assertEquals(expected.getCreated(), actual.getCreated());
+    }
+
+    private static List<String> keys(CaptureStore.Entry... entries) {
+        return keys(Arrays.asList(entries));
+    }
+
+    private static List<String> keys(List<CaptureStore.Entry> entries) {
+        List<String> keys = new ArrayList<>();
+        for (CaptureStore.Entry entry : entries) {
+            keys.add(entry.getKey());
+        }
+        return keys;
+    }
+
+    private static long checksum(byte[] data) {
+        Crc32c crc = new Crc32c();
+        crc.update(data, 0, data.length);
+        return crc.getValue();
+    }
+
+    private File index() {
+        return new File(mDir, "index");
+    }
+
+    private void truncateIndex(long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(index(), "rw");
+        try {
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private List<String> list() {
+        String[] names = mDir.list();
+        Arrays.sort(names);
+        return Arrays.asList(names);
+    }
+
+    private byte[] bytes(int length) {
+        byte[] bytes = new byte[length];
+        mRandom.nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,330 @@
+/*
+ * Copyright (c) 2015 Shirish Kamath.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package io.e55.fovea.android.sdk.camera.lib.store;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import io.e55.fovea.android.sdk.camera.lib.capture.CaptureResult;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Writes, reopens and damages {@link PageContainer}s on disk.
+ */
+public class PageContainerTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final Random mRandom = new Random(17);
+
+
+    @Test
+    public void readsPagesThroughTheIndex() throws IOException {
+        File file = mFolder.newFile("session.fvpc");
+        byte[][] pages = {bytes(40000), bytes(0), bytes(123457)};
+
+        PageContainer.Writer writer = new PageContainer.Writer(file);
+        for (int i = 0; i < pages.length; i++) {
+            assertEquals(i, writer.append(pages[i], CaptureResult.MIME_JPEG, 100 + i, 200 + i));
+        }
+        writer.close();
+
+        PageContainer.Reader reader = new PageContainer.Reader(file);
+        try {
+            assertEquals(pages.length, reader.getPageCount());
+
+            for (int i = 0; i < pages.length; i++) {
+                PageContainer.Page page = reader.getPage(i);
+                assertEquals(i, page.getIndex());
+                assertEquals(pages[i].length, page.getLength());
+                assertEquals(100 + i, page.getWidth());
+                assertEquals(200 + i, page.getHeight());
+                assertEquals(CaptureResult.MIME_JPEG, page.getMimeType());
+                assertTrue(reader.verify(i));
+
+                ByteArrayOutputStream os = new ByteArrayOutputStream();
+                reader.writePage(i, os);
+                assertArrayEquals(pages[i], os.toByteArray());
+                assertEquals(pages[i].length, reader.getData(i).remaining());
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void recoversTheCompletePagesOfATornContainer() throws IOException {
+        File file = mFolder.newFile("torn.fvpc");
+        byte[][] pages = {bytes(5000), bytes(7000), bytes(9000)};
+        writeClosed(file, pages);
+
+        // a crash while the last page was written: no index, and only part of the page
+        long lastEnd = file.length() - indexBytes(pages.length);
+        truncate(file, lastEnd - 4000);
+
+        assertPages(file, pages[0], pages[1]);
+    }
+
+    @Test
+    public void appendsAfterACrash() throws IOException {
+        File file = mFolder.newFile("resumed.fvpc");
+        byte[][] pages = {bytes(3000), bytes(4000)};
+        writeClosed(file, pages);
+
+        // drop the index and leave some garbage, as if the process died mid-append
+        truncate(file, file.length() - indexBytes(pages.length));
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(raf.length());
+        raf.write(bytes(50));
+        raf.close();
+
+        byte[] next = bytes(6000);
+        PageContainer.Writer writer = new PageContainer.Writer(file);
+        assertEquals(2, writer.getPageCount());
+        assertEquals(2, writer.append(next, CaptureResult.MIME_PNG, 1, 1));
+        writer.close();
+
+        assertPages(file, pages[0], pages[1], next);
+    }
+
+    @Test
+    public void appendsToAClosedContainer() throws IOException {
+        File file = mFolder.newFile("appended.fvpc");
+        byte[] first = bytes(1000);
+        byte[] second = bytes(2000);
+        writeClosed(file, new byte[][]{first});
+
+        PageContainer.Writer writer = new PageContainer.Writer(file);
+        writer.append(second, CaptureResult.MIME_JPEG, 1, 1);
+        writer.sync();
+        writer.close();
+
+        assertPages(file, first, second);
+    }
+
+    @Test
+    public void scansWhenTheIndexIsDamaged() throws IOException {
+        File file = mFolder.newFile("index.fvpc");
+        byte[][] pages = {bytes(1000), bytes(2000), bytes(3000)};
+        writeClosed(file, pages);
+
+        // the first offset in the index
+        flip(file, file.length() - indexBytes(pages.length) + 8 + 3);
+
+        assertPages(file, pages);
+    }
+
+    @Test
+    public void detectsDamagedPageBytes() throws IOException {
+        File file = mFolder.newFile("damaged.fvpc");
+        byte[][] pages = {bytes(1000), bytes(2000), bytes(3000)};
+        writeClosed(file, pages);
+
+        // into the bytes of the second page
+        flip(file, file.length() - indexBytes(pages.length) - 3000 - 1000);
+
+        // the index is intact, so every page is listed but the damage shows on verify()
+        PageContainer.Reader reader = new PageContainer.Reader(file);
+        try {
+            assertEquals(3, reader.getPageCount());
+            assertTrue(reader.verify(0));
+            assertFalse(reader.verify(1));
+            assertTrue(reader.verify(2));
+        } finally {
+            reader.close();
+        }
+
+        // without the index, the scan stops at the damaged page
+        truncate(file, file.length() - indexBytes(pages.length));
+        assertPages(file, pages[0]);
+    }
+
+    @Test
+    public void appendsStoredPictures() throws IOException {
+        File picture = mFolder.newFile("picture.jpg");
+        byte[] data = bytes(20000);
+        FileOutputStream os = new FileOutputStream(picture);
+        os.write(data);
+        os.close();
+
+        File file = mFolder.newFile("pictures.fvpc");
+        PageContainer.Writer writer = new PageContainer.Writer(file);
+        writer.append(new CaptureResult(picture.getPath(), CaptureResult.MIME_JPEG, 640, 480,
+                90, data.length, 0L, null));
+        writer.close();
+
+        PageContainer.Reader reader = new PageContainer.Reader(file);
+        try {
+            assertEquals(640, reader.getPage(0).getWidth());
+            assertEquals(480, reader.getPage(0).getHeight());
+        } finally {
+            reader.close();
+        }
+        assertPages(file, data);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOtherFiles() throws IOException {
+        File file = mFolder.newFile("other.jpg");
+        FileOutputStream os = new FileOutputStream(file);
+        os.write(bytes(100));
+        os.close();
+
+        new PageContainer.Reader(file);
+    }
+
+    @Test
+    public void benchmark() throws IOException {
+        int count = 100;
+        byte[][] pages = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            pages[i] = bytes(150 * 1024);
+        }
+        long bytes = (long) count * pages[0].length;
+
+        // one synced file per page, as without a container
+        File dir = mFolder.newFolder("pages");
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            FileOutputStream os = new FileOutputStream(new File(dir, i + ".jpg"));
+            try {
+                os.write(pages[i]);
+                os.getFD().sync();
+            } finally {
+                os.close();
+            }
+        }
+        long filesNanos = System.nanoTime() - start;
+
+        File file = new File(mFolder.getRoot(), "bench.fvpc");
+        start = System.nanoTime();
+        PageContainer.Writer writer = new PageContainer.Writer(file);
+        for (byte[] page : pages) {
+            writer.append(page, CaptureResult.MIME_JPEG, 1200, 1600);
+            writer.sync();
+        }
+        writer.close();
+        long containerNanos = System.nanoTime() - start;
+
+        // through the index, and by scanning a container that was never closed
+        start = System.nanoTime();
+        PageContainer.Reader reader = new PageContainer.Reader(file);
+        long indexedNanos = System.nanoTime() - start;
+        reader.close();
+
+        truncate(file, file.length() - indexBytes(count));
+        start = System.nanoTime();
+        reader = new PageContainer.Reader(file);
+        long scannedNanos = System.nanoTime() - start;
+
+        int lookups = 100000;
+        long sum = 0;
+        try {
+            assertEquals(count, reader.getPageCount());
+
+            start = System.nanoTime();
+            for (int i = 0; i < lookups; i++) {
+                ByteBuffer data = reader.getData(mRandom.nextInt(count));
+                sum += data.remaining();
+            }
+        } finally {
+            reader.close();
+        }
+        long lookupNanos = (System.nanoTime() - start) / lookups;
+        assertEquals((long) lookups * pages[0].length, sum);
+
+        System.out.printf("PageContainer %d pages of %d KB: written at %.0f MB/s "
+                        + "(%.0f MB/s as files), opened in %.2f ms (%.2f ms scanning), "
+                        + "page lookup %d ns%n", count, pages[0].length / 1024,
+                bytes * 1e3 / containerNanos, bytes * 1e3 / filesNanos, indexedNanos / 1e6,
+                scannedNanos / 1e6, lookupNanos);
+    }
+
+
+    private void writeClosed(File file, byte[][] pages) throws IOException {
+        PageContainer.Writer writer = new PageContainer.Writer(file);
+        for (byte[] page : pages) {
+            writer.append(page, CaptureResult.MIME_JPEG, 1, 1);
+        }
+        writer.close();
+    }
+
+    private static void assertPages(File file, byte[]... pages) throws IOException {
+        PageContainer.Reader reader = new PageContainer.Reader(file);
+        try {
+            assertEquals(pages.length, reader.getPageCount());
+            for (int i = 0; i < pages.length; i++) {
+                ByteBuffer data = reader.getData(i);
+                byte[] actual = new byte[data.remaining()];
+                data.get(actual);
+                assertArrayEquals(pages[i], actual);
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * @return Size of the index and trailer that closing a container of `count` pages adds.
+     */
+    private static long indexBytes(int count) {
+        return 8 + 8 * count + 16;
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(length);
+        raf.close();
+    }
+
+    private static void flip(File file, long position) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(position);
+        int b = raf.read();
+        raf.seek(position);
+        raf.write(b ^ 0x5a);
+        raf.close();
+    }
+
+    private byte[] bytes(int length) {
+        byte[] data = new byte[length];
+        mRandom.nextBytes(data);
+        return data;
+    }
+}
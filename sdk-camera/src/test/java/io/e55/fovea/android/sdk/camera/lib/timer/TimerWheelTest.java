@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2015 Shirish Kamath.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package io.e55.fovea.android.sdk.camera.lib.timer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class TimerWheelTest {
+
+    private static final long TICK_MS = 10;
+
+    private ManualClock mClock;
+    private List<String> mRuns;
+    private TimerWheel mWheel;
+
+
+    private static class ManualClock implements TimerWheel.Clock {
+        long mNanos;
+
+        @Override
+        public long nanoTime() {
+            return mNanos;
+        }
+
+        void advanceMillis(long millis) {
+            mNanos += TimeUnit.MILLISECONDS.toNanos(millis);
+        }
+    }
+
+
+    @Before
+    public void setUp() {
+        mClock = new ManualClock();
+        mRuns = new ArrayList<>();
+        mWheel = new TimerWheel(mClock, TICK_MS, TimeUnit.MILLISECONDS, 8, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+    }
+
+    private Runnable record(final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                mRuns.add(name + "@" + TimeUnit.NANOSECONDS.toMillis(mClock.mNanos));
+            }
+        };
+    }
+
+    private void step(long millis, long stepMillis) {
+        for (long t = 0; t < millis; t += stepMillis) {
+            mClock.advanceMillis(stepMillis);
+            mWheel.advance();
+        }
+    }
+
+
+    @Test
+    public void runsOnceWithinATickOfTheDelay() {
+        mWheel.schedule(record("a"), 35, TimeUnit.MILLISECONDS);
+
+        step(30, 1);
+        assertTrue(mRuns.isEmpty());
+
+        step(20, 1);
+        assertEquals(1, mRuns.size());
+        assertEquals("a@40", mRuns.get(0));
+    }
+
+    @Test
+    public void runsTimeoutsBeyondOneRevolution() {
+        // 8 buckets of 10 ms: one revolution is 80 ms
+        mWheel.schedule(record("far"), 250, TimeUnit.MILLISECONDS);
+        mWheel.schedule(record("near"), 20, TimeUnit.MILLISECONDS);
+
+        step(300, 10);
+        assertEquals(2, mRuns.size());
+        assertEquals("near@20", mRuns.get(0));
+        assertEquals("far@250", mRuns.get(1));
+    }
+
+    @Test
+    public void runsPeriodicTasksUntilCancelled() {
+        TimerWheel.Timeout timeout = mWheel.schedulePeriodically(record("p"), 10, 30,
+                TimeUnit.MILLISECONDS);
+
+        step(100, 10);
+        assertEquals(4, mRuns.size());
+        assertEquals("p@10", mRuns.get(0));
+        assertEquals("p@100", mRuns.get(3));
+
+        timeout.cancel();
+        step(100, 10);
+        assertEquals(4, mRuns.size());
+        assertTrue(timeout.isCancelled());
+    }
+
+    @Test
+    public void doesNotRunCancelledTasks() {
+        TimerWheel.Timeout timeout = mWheel.schedule(record("a"), 20, TimeUnit.MILLISECONDS);
+        timeout.cancel();
+
+        step(50, 10);
+        assertTrue(mRuns.isEmpty());
+    }
+
+    @Test
+    public void timesTasksScheduledAfterAnIdleSpell() {
+        step(30, 10);
+        mClock.advanceMillis(TimeUnit.HOURS.toMillis(1));
+        mWheel.advance();
+
+        long start = TimeUnit.NANOSECONDS.toMillis(mClock.mNanos);
+        mWheel.schedule(record("a"), 20, TimeUnit.MILLISECONDS);
+
+        step(10, 10);
+        assertTrue(mRuns.isEmpty());
+
+        step(10, 10);
+        assertEquals(1, mRuns.size());
+        assertEquals("a@" + (start + 20), mRuns.get(0));
+    }
+
+    @Test
+    public void workerParksWhileIdle() throws Exception {
+        final CountDownLatch ran = new CountDownLatch(1);
+        TimerWheel wheel = new TimerWheel(TimerWheel.SYSTEM_CLOCK, TICK_MS,
+                TimeUnit.MILLISECONDS, 8, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        }).start();
+
+        try {
+            Thread worker = findWorker();
+            waitForState(worker, Thread.State.WAITING);
+
+            wheel.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    ran.countDown();
+                }
+            }, 20, TimeUnit.MILLISECONDS);
+
+            assertTrue(ran.await(1, TimeUnit.SECONDS));
+
+            // parked again once the wheel is empty, rather than sleeping a tick at a time
+            waitForState(worker, Thread.State.WAITING);
+        } finally {
+            wheel.stop();
+        }
+    }
+
+    private static Thread findWorker() throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            for (Thread thread : Thread.getAllStackTraces().keySet()) {
+                if ("TimerWheel".equals(thread.getName()) && thread.isAlive()) {
+                    return thread;
+                }
+            }
+            Thread.sleep(10);
+        }
+
+        throw new AssertionError("No worker thread");
+    }
+
+    private static void waitForState(Thread thread, Thread.State state)
+            throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            if (thread.getState() == state) {
+                return;
+            }
+            Thread.sleep(10);
+        }
+
+        assertEquals(state, thread.getState());
+    }
+}